@@ -0,0 +1 @@
+java -cp bin:BeanCounterSolution.jar:BeanCounterBuggy.jar BeanCounterBenchmark "$@"
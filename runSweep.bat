@@ -0,0 +1 @@
+java -cp bin BeanCounterSweep %*
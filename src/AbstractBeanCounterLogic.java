@@ -0,0 +1,622 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * AbstractBeanCounterLogic: State and behavior shared by the BeanCounterLogic
+ * engines. Subclasses report beans landing with countLanding() and empty
+ * slots with clearCounts(), which keep the running statistics and the rank
+ * index up to date. The statistics getters, the rank queries, the half
+ * operations and the text rendering of the machine are implemented here on top
+ * of that and of the BeanCounterLogic query methods. The machine is rendered
+ * straight into an Appendable or a ByteBuffer, so that a debug display can
+ * reuse one buffer for every frame.
+ *
+ * <p>The same hooks send change events to BeanCounterListeners: a slot changed
+ * from countLanding() and countRestored(), all slots from clearCounts() and
+ * the half operations, and the beans in flight from countSteps() and from a
+ * counted reset or repeat. Engines that change the beans in flight some other
+ * way call inFlightChanged() themselves.
+ *
+ * <p>The slot count and the statistics beyond the average are declared here
+ * rather than on BeanCounterLogic, since the prebuilt solution and buggy
+ * engines do not have them. Code that may be handed one of those checks for
+ * this class first.
+ *
+ * <p>A GoodnessOfFit attached with setFit() is kept up to date the same way,
+ * for runs that stop once the slot counts are close enough to the expected
+ * distribution.
+ *
+ * <p>For monitoring, every engine also counts the steps it takes and the beans
+ * that land, and times its resets, repeats and halves. The engine's thread is
+ * the only writer of these counters and publishes them with lazySet(), which
+ * costs no more than a plain store, so any thread can read them, for instance
+ * through EngineMetrics, without a lock or a fence on the step path.
+ */
+
+public abstract class AbstractBeanCounterLogic implements BeanCounterLogic {
+	/**
+	 * Operations whose calls and time are counted.
+	 */
+	public enum TimedOperation {
+		RESET, REPEAT, UPPER_HALF, LOWER_HALF
+	}
+
+	protected final SlotStatistics stats = new SlotStatistics(); // running statistics of the beans in slots
+	protected final SlotRankIndex ranks; // bean counts of the slots, by rank
+	private GoodnessOfFit fit; // fit of the beans in slots to a distribution, or null
+	private BeanCounterListener[] listeners = new BeanCounterListener[0]; // replaced, not changed, when one is added
+	private final AtomicLong stepCount = new AtomicLong(); // steps taken since the engine was created
+	private final AtomicLong landedCount = new AtomicLong(); // beans landed in slots since the engine was created
+	private final AtomicLongArray operationCalls = new AtomicLongArray(TimedOperation.values().length);
+	private final AtomicLongArray operationNanos = new AtomicLongArray(TimedOperation.values().length);
+
+	/**
+	 * Constructor - creates the statistics and the rank index for empty slots.
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 */
+	protected AbstractBeanCounterLogic(int slotCount) {
+		this.ranks = new SlotRankIndex(slotCount);
+	}
+
+	/**
+	 * Takes beans out of a slot. Only the slot's own storage needs updating; the
+	 * statistics and the rank index are handled by the caller.
+	 * 
+	 * @param i     index of slot
+	 * @param count number of beans to take, at most the number in the slot
+	 */
+	protected abstract void takeFromSlot(int i, long count);
+
+	/**
+	 * Records beans that landed in a slot in the statistics and the rank index.
+	 * 
+	 * @param i     index of slot
+	 * @param count number of beans
+	 */
+	protected final void countLanding(int i, long count) {
+		this.stats.add(i, count);
+		this.ranks.add(i, count);
+		if (this.fit != null) {
+			if (count == 1) {
+				this.fit.add(i);
+			} else {
+				this.fit.add(i, count);
+			}
+		}
+		this.landedCount.lazySet(this.landedCount.get() + count);
+		for (BeanCounterListener listener : this.listeners) {
+			listener.slotChanged(i);
+		}
+	}
+
+	/**
+	 * Records beans put back into a slot by a restore in the statistics and the
+	 * rank index. Unlike countLanding(), the beans do not count as landed.
+	 * 
+	 * @param i     index of slot
+	 * @param count number of beans
+	 */
+	protected final void countRestored(int i, long count) {
+		this.stats.add(i, count);
+		this.ranks.add(i, count);
+		if (this.fit != null) {
+			this.fit.add(i, count);
+		}
+		for (BeanCounterListener listener : this.listeners) {
+			listener.slotChanged(i);
+		}
+	}
+
+	/**
+	 * Adds to the number of steps taken, for steps that changed the status of the
+	 * machine.
+	 * 
+	 * @param steps number of steps
+	 */
+	protected final void countSteps(long steps) {
+		this.stepCount.lazySet(this.stepCount.get() + steps);
+		this.inFlightChanged();
+	}
+
+	/**
+	 * Tells the listeners that the beans in flight changed.
+	 */
+	protected final void inFlightChanged() {
+		for (BeanCounterListener listener : this.listeners) {
+			listener.inFlightChanged();
+		}
+	}
+
+	/**
+	 * Counts a call of an operation that started at the given time and ends now.
+	 * Calls that throw are not counted.
+	 * 
+	 * @param operation  the operation
+	 * @param startNanos System.nanoTime() when the call started
+	 */
+	protected final void countTime(TimedOperation operation, long startNanos) {
+		final long nanos = System.nanoTime() - startNanos;
+		final int k = operation.ordinal();
+		this.operationNanos.lazySet(k, this.operationNanos.get(k) + nanos);
+		this.operationCalls.lazySet(k, this.operationCalls.get(k) + 1);
+		if (operation == TimedOperation.RESET || operation == TimedOperation.REPEAT) {
+			this.inFlightChanged();
+		}
+	}
+
+	/**
+	 * Returns the number of steps that changed the status of the machine since it
+	 * was created. Safe to call from any thread.
+	 * 
+	 * @return number of steps
+	 */
+	public final long getStepCount() {
+		return this.stepCount.get();
+	}
+
+	/**
+	 * Returns the number of beans that landed in slots since the machine was
+	 * created, whether or not they are still there. Safe to call from any thread.
+	 * 
+	 * @return number of beans
+	 */
+	public final long getLandedCount() {
+		return this.landedCount.get();
+	}
+
+	/**
+	 * Returns the number of completed calls of an operation. Safe to call from any
+	 * thread.
+	 * 
+	 * @param operation the operation
+	 * @return number of calls
+	 */
+	public final long getOperationCount(TimedOperation operation) {
+		return this.operationCalls.get(operation.ordinal());
+	}
+
+	/**
+	 * Returns the total time spent in completed calls of an operation. Safe to call
+	 * from any thread.
+	 * 
+	 * @param operation the operation
+	 * @return time in nanoseconds
+	 */
+	public final long getOperationNanos(TimedOperation operation) {
+		return this.operationNanos.get(operation.ordinal());
+	}
+
+	/**
+	 * Forgets all beans in the statistics and the rank index, for when every slot
+	 * is emptied.
+	 */
+	protected final void clearCounts() {
+		this.stats.clear();
+		this.ranks.clear();
+		if (this.fit != null) {
+			this.fit.clear();
+		}
+		for (BeanCounterListener listener : this.listeners) {
+			listener.slotsChanged();
+		}
+	}
+
+	/**
+	 * Starts sending change events to a listener.
+	 * 
+	 * @param listener the listener
+	 * @return true, since every engine built on this class sends them
+	 */
+	@Override
+	public boolean addChangeListener(BeanCounterListener listener) {
+		final BeanCounterListener[] more = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+		more[this.listeners.length] = listener;
+		this.listeners = more;
+		return true;
+	}
+
+	/**
+	 * Stops sending change events to a listener.
+	 * 
+	 * @param listener the listener
+	 * @return whether the listener was registered
+	 */
+	@Override
+	public boolean removeChangeListener(BeanCounterListener listener) {
+		for (int k = 0; k < this.listeners.length; k++) {
+			if (this.listeners[k] == listener) {
+				final BeanCounterListener[] fewer = new BeanCounterListener[this.listeners.length - 1];
+				System.arraycopy(this.listeners, 0, fewer, 0, k);
+				System.arraycopy(this.listeners, k + 1, fewer, k, fewer.length - k);
+				this.listeners = fewer;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts keeping a goodness of fit of the beans in slots, which is updated in
+	 * O(1) whenever a bean lands from then on. The fit is cleared and given the
+	 * beans already in the slots.
+	 * 
+	 * @param fit the fit to keep, or null to stop keeping one
+	 */
+	public final void setFit(GoodnessOfFit fit) {
+		if (fit != null) {
+			if (fit.getSlotCount() != this.getSlotCount()) {
+				throw new IllegalArgumentException("Fit has " + fit.getSlotCount() + " slots, the machine "
+						+ this.getSlotCount());
+			}
+			fit.clear();
+			for (int i = 0; i < this.getSlotCount(); i++) {
+				fit.add(i, this.getSlotBeanCountLong(i));
+			}
+		}
+		this.fit = fit;
+	}
+
+	/**
+	 * Returns the goodness of fit kept since setFit().
+	 * 
+	 * @return the fit, or null if none is kept
+	 */
+	public final GoodnessOfFit getFit() {
+		return this.fit;
+	}
+
+	/**
+	 * Returns the number of slots the machine was created with.
+	 * 
+	 * @return number of slots
+	 */
+	public abstract int getSlotCount();
+
+	/**
+	 * Returns the number of beans currently falling through the pegs. Engines
+	 * that keep the count should override this; the default walks every lane of
+	 * every row.
+	 * 
+	 * @return number of in-flight beans
+	 */
+	public int getInFlightBeanCount() {
+		int count = 0;
+		for (int y = 0; y < this.getSlotCount(); y++) {
+			for (int lane = 0; lane < this.getLaneCount(); lane++) {
+				if (this.getInFlightBeanXPos(y, lane) != NO_BEAN_IN_YPOS) {
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of beans currently in all slots.
+	 * 
+	 * @return number of beans in slots
+	 */
+	public long getInSlotBeanCount() {
+		return this.stats.getCount();
+	}
+
+	/**
+	 * Returns the slot that holds the bean at the pth percentile, by the
+	 * nearest-rank method, in O(log slotCount).
+	 * 
+	 * @param p the percentile as a fraction from 0 to 1
+	 * @return slot number, or NO_BEAN_IN_YPOS if the slots are empty
+	 */
+	public int getPercentileSlot(double p) {
+		if (!(p >= 0.0 && p <= 1.0)) {
+			throw new IllegalArgumentException("Percentile must be between 0 and 1: " + p);
+		}
+		final long total = this.ranks.getTotal();
+		if (total == 0) {
+			return NO_BEAN_IN_YPOS;
+		}
+		return this.ranks.findSlot(BeanCounterLogic.nearestRank(p, total));
+	}
+
+	/**
+	 * Returns the slot that holds the median bean of all the beans in slots, the
+	 * lower one if there are an even number of beans.
+	 * 
+	 * @return slot number, or NO_BEAN_IN_YPOS if the slots are empty
+	 */
+	public int getMedianSlot() {
+		return this.getPercentileSlot(0.5);
+	}
+
+	/**
+	 * Keeps only the beans whose rank is from fromRank up to but not including
+	 * toRank, ordering the beans in slots by slot number. Each emptied or trimmed
+	 * slot costs O(log slotCount), however many beans it holds.
+	 * 
+	 * @param fromRank rank of the lowest bean to keep
+	 * @param toRank   rank just above the highest bean to keep
+	 */
+	@Override
+	public void keepRankRange(long fromRank, long toRank) {
+		final long total = this.ranks.getTotal();
+		if (fromRank < 0 || fromRank > toRank || toRank > total) {
+			throw new IllegalArgumentException("Rank range [" + fromRank + ", " + toRank + ") not within [0, "
+					+ total + ")");
+		}
+		for (long below = fromRank; below > 0;) {
+			below -= this.takeAtRank(0, below);
+		}
+		for (long above = total - toRank; above > 0;) {
+			above -= this.takeAtRank(this.ranks.getTotal() - 1, above);
+		}
+		if (toRank - fromRank < total) {
+			for (BeanCounterListener listener : this.listeners) {
+				listener.slotsChanged();
+			}
+		}
+	}
+
+	/**
+	 * Takes up to count beans out of the slot that holds the bean of the given
+	 * rank.
+	 * 
+	 * @param rank  the rank of a bean in the slot
+	 * @param count the most beans to take
+	 * @return number of beans taken
+	 */
+	private long takeAtRank(long rank, long count) {
+		final int i = this.ranks.findSlot(rank);
+		final long taken = Math.min(count, this.getSlotBeanCountLong(i));
+		this.takeFromSlot(i, taken);
+		this.stats.remove(i, taken);
+		this.ranks.add(i, -taken);
+		if (this.fit != null) {
+			this.fit.remove(i, taken);
+		}
+		return taken;
+	}
+
+	/**
+	 * Removes the lower half of all beans currently in slots, keeping only the
+	 * upper half. If there are an odd number of beans, remove (N-1)/2 beans, where
+	 * N is the number of beans. So, if there are 3 beans, 1 will be removed and 2
+	 * will be remaining.
+	 */
+	public void upperHalf() {
+		final long start = System.nanoTime();
+		final long total = this.ranks.getTotal();
+		this.keepRankRange(total / 2, total);
+		this.countTime(TimedOperation.UPPER_HALF, start);
+	}
+
+	/**
+	 * Removes the upper half of all beans currently in slots, keeping only the
+	 * lower half. If there are an odd number of beans, remove (N-1)/2 beans, where
+	 * N is the number of beans. So, if there are 3 beans, 1 will be removed and 2
+	 * will be remaining.
+	 */
+	public void lowerHalf() {
+		final long start = System.nanoTime();
+		final long total = this.ranks.getTotal();
+		this.keepRankRange(0, total - total / 2);
+		this.countTime(TimedOperation.LOWER_HALF, start);
+	}
+
+	/**
+	 * Calculates the average slot number of all the beans in slots.
+	 * 
+	 * @return Average slot number of all the beans in slots.
+	 */
+	public double getAverageSlotBeanCount() {
+		return this.stats.getMean();
+	}
+
+	/**
+	 * Calculates the variance of the slot numbers of all the beans in slots.
+	 * 
+	 * @return variance of the slot numbers of all the beans in slots
+	 */
+	public double getSlotBeanVariance() {
+		return this.stats.getVariance();
+	}
+
+	/**
+	 * Calculates the standard deviation of the slot numbers of all the beans in
+	 * slots.
+	 * 
+	 * @return standard deviation of the slot numbers of all the beans in slots
+	 */
+	public double getSlotBeanStandardDeviation() {
+		return this.stats.getStandardDeviation();
+	}
+
+	/**
+	 * Calculates the skewness of the slot numbers of all the beans in slots.
+	 * 
+	 * @return skewness of the slot numbers of all the beans in slots
+	 */
+	public double getSlotBeanSkewness() {
+		return this.stats.getSkewness();
+	}
+
+	/**
+	 * Calculates the excess kurtosis of the slot numbers of all the beans in
+	 * slots.
+	 * 
+	 * @return excess kurtosis of the slot numbers of all the beans in slots
+	 */
+	public double getSlotBeanKurtosis() {
+		return this.stats.getKurtosis();
+	}
+
+	/**
+	 * Number of spaces in between numbers when printing out the state of the
+	 * machine. Make sure the number is odd (even numbers don't work as well).
+	 */
+	private int xspacing = 3;
+
+	/**
+	 * Calculates the number of spaces to indent for the given row of pegs.
+	 * 
+	 * @param yPos the y-position (or row number) of the pegs
+	 * @return the number of spaces to indent
+	 */
+	private int getIndent(int yPos) {
+		int rootIndent = (getSlotCount() - 1) * (xspacing + 1) / 2 + (xspacing + 1);
+		return rootIndent - (xspacing + 1) / 2 * yPos;
+	}
+
+	/**
+	 * Spaces to pad cells with, a run at a time.
+	 */
+	private static final String SPACES = "                                ";
+
+	/**
+	 * Appends count spaces.
+	 * 
+	 * @param out   where to append
+	 * @param count number of spaces
+	 * @throws IOException if out cannot be appended to
+	 */
+	private static void appendSpaces(Appendable out, int count) throws IOException {
+		for (; count > 0; count -= SPACES.length()) {
+			out.append(SPACES, 0, Math.min(count, SPACES.length()));
+		}
+	}
+
+	/**
+	 * Appends the text getSlotString() returns, without format strings: each
+	 * slot's bean count right-aligned in a cell of xspacing + 1 characters.
+	 * 
+	 * @param out where to append
+	 * @throws IOException if out cannot be appended to
+	 */
+	public void appendSlots(Appendable out) throws IOException {
+		final char[] digits = new char[20]; // enough for any long
+		for (int i = 0; i < getSlotCount(); i++) {
+			long count = getSlotBeanCountLong(i);
+			int first = digits.length;
+			do {
+				digits[--first] = (char) ('0' + count % 10);
+				count /= 10;
+			} while (count > 0);
+			appendSpaces(out, (xspacing + 1) - (digits.length - first));
+			for (int k = first; k < digits.length; k++) {
+				out.append(digits[k]);
+			}
+		}
+	}
+
+	/**
+	 * Appends the text toString() returns, without format strings or
+	 * intermediate strings, so that a caller can render the machine into the same
+	 * buffer over and over.
+	 * 
+	 * @param out where to append
+	 * @throws IOException if out cannot be appended to
+	 */
+	public void appendBoard(Appendable out) throws IOException {
+		final String newline = System.lineSeparator();
+		final int laneCount = getLaneCount();
+		for (int yPos = 0; yPos < getSlotCount(); yPos++) {
+			for (int xPos = 0; xPos <= yPos; xPos++) {
+				// Each cell is a single digit, right-aligned
+				appendSpaces(out, ((xPos == 0) ? getIndent(yPos) : (xspacing + 1)) - 1);
+				boolean occupied = false;
+				for (int lane = 0; lane < laneCount; lane++) {
+					occupied |= getInFlightBeanXPos(yPos, lane) == xPos;
+				}
+				out.append(occupied ? '1' : '0');
+			}
+			out.append(newline);
+		}
+		appendSlots(out);
+	}
+
+	/**
+	 * Writes the text toString() returns into a byte buffer as ASCII, starting at
+	 * its position.
+	 * 
+	 * @param out where to write
+	 * @throws java.nio.BufferOverflowException if the text does not fit; the
+	 *                                          buffer then holds part of it
+	 */
+	public void putBoard(ByteBuffer out) {
+		try {
+			appendBoard(new AsciiAppender(out));
+		} catch (IOException e) {
+			// AsciiAppender never throws one
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Constructs a string representation of the bean count of all the slots.
+	 * 
+	 * @return a string with bean counts for each slot
+	 */
+	public String getSlotString() {
+		StringBuilder bld = new StringBuilder();
+		try {
+			appendSlots(bld);
+		} catch (IOException e) {
+			// A StringBuilder never throws one
+			throw new UncheckedIOException(e);
+		}
+		return bld.toString();
+	}
+
+	/**
+	 * Constructs a string representation of the entire machine. If a peg has a bean
+	 * above it, in any lane, it is represented as a "1", otherwise it is
+	 * represented as a "0". At the very bottom is attached the slots with the bean
+	 * counts.
+	 * 
+	 * @return the string representation of the machine
+	 */
+	public String toString() {
+		StringBuilder bld = new StringBuilder();
+		try {
+			appendBoard(bld);
+		} catch (IOException e) {
+			// A StringBuilder never throws one
+			throw new UncheckedIOException(e);
+		}
+		return bld.toString();
+	}
+
+	/**
+	 * Appendable that writes each character into a byte buffer as one ASCII byte.
+	 */
+	private static final class AsciiAppender implements Appendable {
+		private final ByteBuffer out;
+
+		AsciiAppender(ByteBuffer out) {
+			this.out = out;
+		}
+
+		@Override
+		public Appendable append(char c) {
+			this.out.put((byte) ((c < 0x80) ? c : '?'));
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq, int start, int end) {
+			for (int k = start; k < end; k++) {
+				this.append(csq.charAt(k));
+			}
+			return this;
+		}
+
+		@Override
+		public Appendable append(CharSequence csq) {
+			return this.append(csq, 0, csq.length());
+		}
+	}
+}
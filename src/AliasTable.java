@@ -0,0 +1,106 @@
+/**
+ * AliasTable: Draws from a fixed discrete distribution over 0 to n - 1 in O(1)
+ * per draw, by Walker's alias method. Building the table (Vose's version of it)
+ * costs O(n): every outcome gets a column of height 1 holding its own
+ * probability, scaled by n, up to its cutoff, and the rest of the column is
+ * filled by one other outcome, its alias. A draw picks a column and a height
+ * with a single uniform double.
+ */
+
+public final class AliasTable {
+	private final double[] cutoffs; // share of each column that is its own outcome
+	private final int[] aliases; // outcome filling the rest of each column
+
+	/**
+	 * Constructor - builds the table of a distribution.
+	 *
+	 * @param probabilities probability of each outcome; they are scaled to sum to 1
+	 */
+	public AliasTable(double[] probabilities) {
+		final int n = probabilities.length;
+		double sum = 0.0;
+		for (int i = 0; i < n; i++) {
+			if (!(probabilities[i] >= 0.0) || probabilities[i] == Double.POSITIVE_INFINITY) {
+				throw new IllegalArgumentException("Bad probability for outcome " + i + ": " + probabilities[i]);
+			}
+			sum += probabilities[i];
+		}
+		if (!(sum > 0.0)) {
+			throw new IllegalArgumentException("At least one outcome must have a positive probability");
+		}
+		this.cutoffs = new double[n];
+		this.aliases = new int[n];
+		final double[] scaled = new double[n];
+		// Outcomes below and above height 1, as two stacks sharing one array
+		final int[] work = new int[n];
+		int small = 0;
+		int large = n;
+		for (int i = 0; i < n; i++) {
+			scaled[i] = probabilities[i] * n / sum;
+			this.aliases[i] = i;
+			if (scaled[i] < 1.0) {
+				work[small++] = i;
+			} else {
+				work[--large] = i;
+			}
+		}
+		while (small > 0 && large < n) {
+			final int s = work[--small];
+			final int l = work[large];
+			this.cutoffs[s] = scaled[s];
+			this.aliases[s] = l;
+			scaled[l] -= 1.0 - scaled[s];
+			if (scaled[l] < 1.0) {
+				// l moves from the large stack to the small one
+				large++;
+				work[small++] = l;
+			}
+		}
+		// Whatever is left is 1 up to rounding
+		while (small > 0) {
+			this.cutoffs[work[--small]] = 1.0;
+		}
+		while (large < n) {
+			this.cutoffs[work[large++]] = 1.0;
+		}
+	}
+
+	/**
+	 * Returns the number of outcomes.
+	 *
+	 * @return number of outcomes
+	 */
+	public int size() {
+		return this.cutoffs.length;
+	}
+
+	/**
+	 * Draws an outcome.
+	 *
+	 * @param rand the source of randomness
+	 * @return the outcome, from 0 to size() - 1
+	 */
+	public int sample(RandomSource rand) {
+		final double u = rand.nextDouble() * this.cutoffs.length;
+		// Rounding can make u come out as the length itself
+		final int column = Math.min((int) u, this.cutoffs.length - 1);
+		return (u - column < this.cutoffs[column]) ? column : this.aliases[column];
+	}
+
+	/**
+	 * Returns the probability the table draws an outcome with, which is the given
+	 * probability up to rounding. Costs O(size()).
+	 *
+	 * @param outcome the outcome
+	 * @return its probability
+	 */
+	public double getProbability(int outcome) {
+		double height = this.cutoffs[outcome];
+		for (int column = 0; column < this.cutoffs.length; column++) {
+			if (this.aliases[column] == outcome && column != outcome) {
+				height += 1.0 - this.cutoffs[column];
+			}
+		}
+		return height / this.cutoffs.length;
+	}
+}
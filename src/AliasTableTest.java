@@ -0,0 +1,70 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that AliasTable draws each outcome with its given probability, both
+ * in the built table and in the draws themselves.
+ */
+
+public class AliasTableTest {
+	private static final double EPSILON = 1e-12;
+
+	/**
+	 * Test case for double getProbability(int outcome).
+	 * Preconditions: None.
+	 * Execution steps: Build tables for uneven distributions, with outcomes of probability
+	 *                  0, weights that do not sum to 1, and a single outcome.
+	 * Invariants: Each outcome's share of the columns is its normalized probability.
+	 */
+	@Test
+	public void testTableHoldsProbabilities() {
+		double[][] distributions = {{1.0}, {0.1, 0.2, 0.3, 0.4}, {0.0, 3.0, 0.0, 1.0, 0.0},
+			{0.97, 0.01, 0.01, 0.005, 0.005}, {1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0}};
+		for (double[] weights : distributions) {
+			AliasTable table = new AliasTable(weights);
+			double sum = 0;
+			for (double w : weights) {
+				sum += w;
+			}
+			assertEquals(weights.length, table.size());
+			for (int i = 0; i < weights.length; i++) {
+				assertEquals(weights[i] / sum, table.getProbability(i), EPSILON);
+			}
+		}
+	}
+
+	/**
+	 * Test case for int sample(RandomSource rand).
+	 * Preconditions: None.
+	 * Execution steps: Draw many outcomes from a table of a skewed distribution.
+	 * Invariants: Outcomes of probability 0 never come up, and the counts fit the
+	 *             distribution by a chi-square test.
+	 */
+	@Test
+	public void testSamplesFollowDistribution() {
+		double[] probabilities = {0.05, 0.0, 0.15, 0.3, 0.4, 0.1};
+		AliasTable table = new AliasTable(probabilities);
+		GoodnessOfFit fit = GoodnessOfFit.of(probabilities);
+		RandomSource rand = new XoroshiroRandomSource(13);
+		for (int k = 0; k < 200000; k++) {
+			final int outcome = table.sample(rand);
+			assertTrue(outcome != 1);
+			fit.add(outcome);
+		}
+		// 4 degrees of freedom: the 99.99th percentile of chi-square is about 23.5
+		assertTrue(fit.getChiSquare() < 23.5);
+	}
+
+	/**
+	 * Test case for AliasTable(double[] probabilities) with no possible outcome.
+	 * Preconditions: None.
+	 * Execution steps: Build a table of zero weights.
+	 * Invariants: The table is refused.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsZeroWeights() {
+		new AliasTable(new double[] {0.0, 0.0});
+	}
+}
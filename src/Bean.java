@@ -21,6 +21,47 @@ public interface Bean {
 		}
 		return null;
 	}
+
+	/**
+	 * Returns the either BeanImpl or BeanBuggy instance depending on the Config.
+	 * A BeanImpl draws from the given source directly; the other beans only take
+	 * a java.util.Random, so they get one seeded from the source.
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck whether the bean is in luck mode
+	 * @param rand the random source, shared by the beans of a machine
+	 * @return Bean object
+	 */
+	public static Bean createInstance(int slotCount, boolean isLuck, RandomSource rand) {
+		if (Config.getLogicType() == LogicType.IMPL) {
+			return new BeanImpl(slotCount, isLuck, rand);
+		}
+		return createInstance(slotCount, isLuck, new Random(rand.nextLong()));
+	}
+
+	/**
+	 * Returns the either BeanImpl or BeanBuggy instance depending on the Config,
+	 * for a bean that comes from a BeanSource with a given skill level. Only a
+	 * BeanImpl can be given a skill level; the other beans draw their own, so
+	 * they can only be made in luck mode, where the skill level is not used.
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck whether the bean is in luck mode
+	 * @param rand the random source, shared by the beans of a machine
+	 * @param skillLevel the skill level of the bean
+	 * @return Bean object
+	 * @throws UnsupportedOperationException if a skill-mode bean is asked for with
+	 *                                       a logic type other than IMPL
+	 */
+	public static Bean createInstance(int slotCount, boolean isLuck, RandomSource rand, int skillLevel) {
+		if (Config.getLogicType() == LogicType.IMPL) {
+			return new BeanImpl(slotCount, isLuck, rand, skillLevel);
+		}
+		if (!isLuck) {
+			throw new UnsupportedOperationException("Only BeanImpl beans can take their skill level from a source");
+		}
+		return createInstance(slotCount, isLuck, rand);
+	}
 	
 	// Public interface of BeanCounterLogic
 	
@@ -0,0 +1,518 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * BeanCounterBenchmark: Measures the throughput and allocation of the engines,
+ * for catching regressions and for comparing IMPL with the SOLUTION jar. Each
+ * benchmark is run for every combination of engine, slot count, bean count
+ * and mode given on the command line, JMH style: a few warmup iterations are
+ * thrown away, then each measured iteration calls the operation for a fixed
+ * time. Setup, such as filling the slots before a repeat(), happens outside
+ * the timed sections.
+ *
+ * <p>Allocation is read from the thread's allocated-bytes counter around the
+ * timed sections only, and garbage collections are counted over the whole
+ * benchmark. On a JVM without that counter (com.sun.management.ThreadMXBean)
+ * the bytes per operation are reported as null. Results are written as JSON, one result object per line, so
+ * that two runs can be compared with any JSON tool or a plain diff; progress
+ * goes to standard error.
+ *
+ * <p>Combinations that would take too long or too much memory are reported
+ * as skipped: running to completion on an engine that walks every peg costs
+ * beans * slots peg visits, and the SOLUTION jar needs a Bean object per bean.
+ */
+
+public final class BeanCounterBenchmark {
+	/**
+	 * Calls per timed section for operations too short to time one at a time.
+	 */
+	private static final int BATCH = 1024;
+
+	/**
+	 * Keeps the results of benchmarked calls alive, so the JIT cannot drop them.
+	 */
+	static volatile double sink;
+
+	/**
+	 * The operations measured.
+	 */
+	enum Benchmark {
+		ADVANCE_STEP("advanceStep"), RUN("runToCompletion"), RESET("reset"), REPEAT("repeat"),
+		UPPER_HALF("upperHalf"), LOWER_HALF("lowerHalf"), AVERAGE("getAverageSlotBeanCount");
+
+		private final String label;
+
+		Benchmark(String label) {
+			this.label = label;
+		}
+
+		/**
+		 * Returns whether the operation, or its setup, runs the machine to
+		 * completion.
+		 *
+		 * @return true if the machine is run
+		 */
+		boolean needsRun() {
+			return this != ADVANCE_STEP && this != RESET;
+		}
+	}
+
+	/**
+	 * The engines measured: BeanCounterLogicImpl, which walks every bean over
+	 * every peg, the engine BeanCounterLogic picks for the mode of the beans, and
+	 * the SOLUTION jar.
+	 */
+	enum Engine {
+		IMPL, SPECIALIZED, SOLUTION;
+
+		/**
+		 * Returns whether running to completion visits every peg of every bean.
+		 *
+		 * @return true if a run costs beans * slots peg visits
+		 */
+		boolean walksPegs() {
+			return this != SPECIALIZED;
+		}
+	}
+
+	/**
+	 * A machine and the beans to reset it with.
+	 */
+	private static final class Fixture {
+		private final BeanCounterLogic logic;
+		private final BeanSource source;
+		private final Bean[] beans;
+
+		Fixture(Engine engine, int slotCount, long beanCount, boolean isLuck, long seed) {
+			switch (engine) {
+			case IMPL:
+				this.logic = new BeanCounterLogicImpl(slotCount);
+				this.source = new SeededBeanSource(slotCount, isLuck, seed, beanCount);
+				this.beans = null;
+				break;
+			case SPECIALIZED:
+				this.logic = BeanCounterLogic.createInstance(slotCount, isLuck, seed);
+				this.source = new SeededBeanSource(slotCount, isLuck, seed, beanCount);
+				this.beans = null;
+				break;
+			default:
+				Config.setLogicType(LogicType.SOLUTION);
+				try {
+					this.logic = BeanCounterLogic.createInstance(slotCount);
+					final Random rand = new Random(seed);
+					this.beans = new Bean[Math.toIntExact(beanCount)];
+					for (int i = 0; i < this.beans.length; i++) {
+						this.beans[i] = Bean.createInstance(slotCount, isLuck, rand);
+					}
+				} finally {
+					Config.setLogicType(LogicType.IMPL);
+				}
+				this.source = null;
+			}
+			this.reset();
+		}
+
+		void reset() {
+			if (this.beans != null) {
+				this.logic.reset(this.beans);
+			} else {
+				this.logic.reset(this.source);
+			}
+		}
+	}
+
+	/**
+	 * The outcome of one benchmark.
+	 */
+	private static final class Result {
+		private double[] nsPerOp; // one per measured iteration
+		private long ops;
+		private double bytesPerOp;
+		private long gcCount;
+		private long gcMillis;
+	}
+
+	/**
+	 * The thread bean that counts allocated bytes, or null if the JVM has none.
+	 */
+	private static final ThreadMXBean ALLOCATION_COUNTER = allocationCounter();
+
+	private BeanCounterBenchmark() {
+	}
+
+	private static ThreadMXBean allocationCounter() {
+		try {
+			final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			if (threads instanceof com.sun.management.ThreadMXBean
+					&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+				((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+				return threads;
+			}
+		} catch (LinkageError | UnsupportedOperationException e) {
+			// No com.sun.management on this JVM
+		}
+		return null;
+	}
+
+	private static long allocatedBytes() {
+		if (ALLOCATION_COUNTER == null) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) ALLOCATION_COUNTER)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Returns the bytes a pair of allocatedBytes() calls itself accounts for,
+	 * which is subtracted from every timed section.
+	 *
+	 * @return the smallest difference seen between two back-to-back calls
+	 */
+	private static long allocationOverhead() {
+		long overhead = Long.MAX_VALUE;
+		for (int k = 0; k < 16; k++) {
+			final long before = allocatedBytes();
+			overhead = Math.min(overhead, allocatedBytes() - before);
+		}
+		return overhead;
+	}
+
+	private static long[] gcTotals() {
+		long count = 0;
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return new long[] {count, millis};
+	}
+
+	/**
+	 * Runs one benchmark on a fixture.
+	 *
+	 * @param fixture          the machine
+	 * @param benchmark        the operation
+	 * @param warmupIterations number of iterations to throw away
+	 * @param iterations       number of iterations to measure
+	 * @param iterationNanos   time each iteration keeps calling the operation
+	 * @return the measurements
+	 */
+	static Result measure(Fixture fixture, Benchmark benchmark, int warmupIterations, int iterations,
+			long iterationNanos) {
+		final BeanCounterLogic logic = fixture.logic;
+		final Result result = new Result();
+		result.nsPerOp = new double[iterations];
+		final long overhead = allocationOverhead();
+		final long[] gcBefore = gcTotals();
+		long measuredBytes = 0;
+		boolean finished = false;
+		boolean ran = false;
+		for (int it = -warmupIterations; it < iterations; it++) {
+			long ops = 0;
+			long nanos = 0;
+			long bytes = 0;
+			final long end = System.nanoTime() + iterationNanos;
+			do {
+				// Untimed setup
+				if (benchmark == Benchmark.ADVANCE_STEP) {
+					if (finished) {
+						fixture.reset();
+						finished = false;
+					}
+				} else if (benchmark == Benchmark.RUN) {
+					fixture.reset();
+				} else if (benchmark != Benchmark.RESET && (benchmark != Benchmark.AVERAGE || !ran)) {
+					fixture.reset();
+					logic.runToCompletion();
+					ran = true;
+				}
+				final long allocatedBefore = allocatedBytes();
+				final long start = System.nanoTime();
+				switch (benchmark) {
+				case ADVANCE_STEP:
+					for (int k = 0; k < BATCH; k++) {
+						ops++;
+						if (!logic.advanceStep()) {
+							finished = true;
+							break;
+						}
+					}
+					break;
+				case RUN:
+					sink = logic.runToCompletion();
+					ops++;
+					break;
+				case RESET:
+					fixture.reset();
+					ops++;
+					break;
+				case REPEAT:
+					logic.repeat();
+					ops++;
+					break;
+				case UPPER_HALF:
+					logic.upperHalf();
+					ops++;
+					break;
+				case LOWER_HALF:
+					logic.lowerHalf();
+					ops++;
+					break;
+				default:
+					double sum = 0;
+					for (int k = 0; k < BATCH; k++) {
+						sum += logic.getAverageSlotBeanCount();
+					}
+					sink = sum;
+					ops += BATCH;
+				}
+				nanos += System.nanoTime() - start;
+				bytes += allocatedBytes() - allocatedBefore - overhead;
+			} while (System.nanoTime() - end < 0);
+			if (it >= 0) {
+				result.nsPerOp[it] = (double) nanos / ops;
+				result.ops += ops;
+				measuredBytes += bytes;
+			}
+		}
+		final long[] gcAfter = gcTotals();
+		if (ALLOCATION_COUNTER == null) {
+			result.bytesPerOp = Double.NaN;
+		} else {
+			result.bytesPerOp = (result.ops > 0) ? Math.max(0.0, (double) measuredBytes / result.ops) : 0;
+		}
+		result.gcCount = gcAfter[0] - gcBefore[0];
+		result.gcMillis = gcAfter[1] - gcBefore[1];
+		return result;
+	}
+
+	/**
+	 * Returns why a combination is not run, or null if it is.
+	 *
+	 * @param engine         the engine
+	 * @param benchmark      the operation
+	 * @param slotCount      the number of slots
+	 * @param beanCount      the number of beans
+	 * @param maxPegs        most peg visits a setup or run may take
+	 * @param maxObjectBeans most beans to build Bean objects for
+	 * @return the reason, or null
+	 */
+	static String skipReason(Engine engine, Benchmark benchmark, int slotCount, long beanCount, long maxPegs,
+			long maxObjectBeans) {
+		if (engine == Engine.SOLUTION && beanCount > maxObjectBeans) {
+			return "more than " + maxObjectBeans + " Bean objects";
+		}
+		if (benchmark.needsRun() && engine.walksPegs() && (double) beanCount * slotCount > maxPegs) {
+			return "more than " + maxPegs + " peg visits per run";
+		}
+		return null;
+	}
+
+	private static String quote(String s) {
+		return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	private static String number(double value) {
+		return Double.isFinite(value) ? String.format(Locale.ROOT, "%.3f", value) : "null";
+	}
+
+	/**
+	 * Prints usage information.
+	 */
+	public static void showUsage() {
+		System.out.println("Usage: java BeanCounterBenchmark [--engines impl,specialized,solution] [--slots 10,100]"
+				+ " [--beans 1000,100000] [--modes luck,skill] [--benchmarks advanceStep,runToCompletion,...]"
+				+ " [--warmup n] [--iterations n] [--millis n] [--max-pegs n] [--max-object-beans n] [--seed n]"
+				+ " [--out file.json]");
+		System.out.println("Example: java BeanCounterBenchmark --slots 10,1000 --beans 1000,1000000 --out base.json");
+		System.out.println("Example: java BeanCounterBenchmark --engines impl,solution --benchmarks repeat,upperHalf");
+	}
+
+	private static long[] parseLongs(String list) {
+		final String[] parts = list.split(",");
+		final long[] values = new long[parts.length];
+		for (int k = 0; k < parts.length; k++) {
+			values[k] = Long.parseLong(parts[k].trim());
+		}
+		return values;
+	}
+
+	/**
+	 * Runs the benchmarks given on the command line and writes the results.
+	 *
+	 * @param args commandline arguments; see showUsage() for detailed information
+	 * @throws IOException if the results cannot be written
+	 */
+	public static void main(String[] args) throws IOException {
+		List<Engine> engines = Arrays.asList(Engine.values());
+		long[] slotCounts = {10, 100, 1000, 10000};
+		long[] beanCounts = {1000, 100000, 10000000};
+		boolean[] modes = {true, false};
+		List<Benchmark> benchmarks = Arrays.asList(Benchmark.values());
+		int warmup = 3;
+		int iterations = 5;
+		long millis = 200;
+		long maxPegs = 200000000L;
+		long maxObjectBeans = 1000000L;
+		long seed = 42;
+		Path out = null;
+
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (i + 1 >= args.length) {
+					showUsage();
+					return;
+				}
+				final String value = args[++i];
+				switch (args[i - 1]) {
+				case "--engines":
+					engines = new ArrayList<>();
+					for (String name : value.split(",")) {
+						engines.add(Engine.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+					}
+					break;
+				case "--slots":
+					slotCounts = parseLongs(value);
+					break;
+				case "--beans":
+					beanCounts = parseLongs(value);
+					break;
+				case "--modes":
+					final String[] names = value.split(",");
+					modes = new boolean[names.length];
+					for (int k = 0; k < names.length; k++) {
+						if (!names[k].equals("luck") && !names[k].equals("skill")) {
+							throw new IllegalArgumentException(names[k]);
+						}
+						modes[k] = names[k].equals("luck");
+					}
+					break;
+				case "--benchmarks":
+					benchmarks = new ArrayList<>();
+					for (String name : value.split(",")) {
+						Benchmark found = null;
+						for (Benchmark b : Benchmark.values()) {
+							if (b.label.equals(name.trim())) {
+								found = b;
+							}
+						}
+						if (found == null) {
+							throw new IllegalArgumentException(name);
+						}
+						benchmarks.add(found);
+					}
+					break;
+				case "--warmup":
+					warmup = Integer.parseInt(value);
+					break;
+				case "--iterations":
+					iterations = Integer.parseInt(value);
+					break;
+				case "--millis":
+					millis = Long.parseLong(value);
+					break;
+				case "--max-pegs":
+					maxPegs = Long.parseLong(value);
+					break;
+				case "--max-object-beans":
+					maxObjectBeans = Long.parseLong(value);
+					break;
+				case "--seed":
+					seed = Long.parseLong(value);
+					break;
+				case "--out":
+					out = Paths.get(value);
+					break;
+				default:
+					showUsage();
+					return;
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			showUsage();
+			return;
+		}
+		if (warmup < 0 || iterations < 1 || millis < 1) {
+			showUsage();
+			return;
+		}
+
+		StringBuilder json = new StringBuilder();
+		json.append("{\"harness\": \"BeanCounterBenchmark\", \"javaVersion\": ")
+				.append(quote(System.getProperty("java.version"))).append(", \"vm\": ")
+				.append(quote(System.getProperty("java.vm.name"))).append(", \"processors\": ")
+				.append(Runtime.getRuntime().availableProcessors()).append(", \"warmupIterations\": ").append(warmup)
+				.append(", \"iterations\": ").append(iterations).append(", \"iterationMillis\": ").append(millis)
+				.append(", \"results\": [\n");
+		boolean first = true;
+		for (Engine engine : engines) {
+			for (long slots : slotCounts) {
+				for (long beans : beanCounts) {
+					for (boolean isLuck : modes) {
+						Fixture fixture = null;
+						for (Benchmark benchmark : benchmarks) {
+							final String mode = isLuck ? "luck" : "skill";
+							json.append(first ? "" : ",\n").append("{\"benchmark\": ").append(quote(benchmark.label))
+									.append(", \"engine\": ").append(quote(engine.name().toLowerCase(Locale.ROOT)))
+									.append(", \"slots\": ").append(slots).append(", \"beans\": ").append(beans)
+									.append(", \"mode\": ").append(quote(mode));
+							first = false;
+							final String label = String.format(Locale.ROOT, "%s %s slots=%d beans=%d %s",
+									benchmark.label, engine.name().toLowerCase(Locale.ROOT), slots, beans, mode);
+							final String reason = skipReason(engine, benchmark, (int) slots, beans, maxPegs,
+									maxObjectBeans);
+							if (reason != null) {
+								json.append(", \"skipped\": ").append(quote(reason)).append('}');
+								System.err.println(label + ": skipped, " + reason);
+								continue;
+							}
+							if (fixture == null) {
+								fixture = new Fixture(engine, (int) slots, beans, isLuck, seed);
+							}
+							final Result result = measure(fixture, benchmark, warmup, iterations, millis * 1000000L);
+							double mean = 0;
+							double min = Double.POSITIVE_INFINITY;
+							for (double ns : result.nsPerOp) {
+								mean += ns / iterations;
+								min = Math.min(min, ns);
+							}
+							double squares = 0;
+							for (double ns : result.nsPerOp) {
+								squares += (ns - mean) * (ns - mean);
+							}
+							final double stdDev = (iterations > 1) ? Math.sqrt(squares / (iterations - 1)) : 0;
+							json.append(", \"unit\": \"ns/op\", \"score\": ").append(number(mean))
+									.append(", \"scoreStdDev\": ").append(number(stdDev)).append(", \"scoreMin\": ")
+									.append(number(min)).append(", \"iterationScores\": [");
+							for (int k = 0; k < iterations; k++) {
+								json.append((k == 0) ? "" : ", ").append(number(result.nsPerOp[k]));
+							}
+							json.append("], \"ops\": ").append(result.ops).append(", \"bytesPerOp\": ")
+									.append(number(result.bytesPerOp)).append(", \"gcCount\": ").append(result.gcCount)
+									.append(", \"gcMillis\": ").append(result.gcMillis).append('}');
+							System.err.println(String.format(Locale.ROOT, "%s: %.1f +- %.1f ns/op, %.1f B/op", label,
+									mean, stdDev, result.bytesPerOp));
+						}
+					}
+				}
+			}
+		}
+		json.append("\n]}\n");
+		if (out != null) {
+			Files.write(out, json.toString().getBytes(StandardCharsets.UTF_8));
+		} else {
+			System.out.print(json);
+		}
+	}
+}
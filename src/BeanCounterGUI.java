@@ -1,19 +1,24 @@
+import java.util.Random;
+
 public class BeanCounterGUI {
 
 	public static void showUsage() {
-		System.out.println("Usage: java BeanCounterGUI <number of beans> <luck | skill>");
+		System.out.println("Usage: java BeanCounterGUI <number of beans> <luck | skill> [--seed n] [--lanes n]");
 		System.out.println("Example: java BeanCounterGUI 400 luck");
+		System.out.println("Example: java BeanCounterGUI 400 luck --seed 42");
+		System.out.println("Example: java BeanCounterGUI 400 luck --lanes 3");
 	}
 
 	/**
 	 * Main method. Creates the main frame for the app.
 	 * 
 	 * @param args args[0] is an integer bean count, args[1] is a string which is
-	 *             either luck or skill.
+	 *             either luck or skill, optionally followed by --seed and a seed
+	 *             and by --lanes and the number of beans inserted per step.
 	 */
 
 	public static void main(String[] args) {
-		if (args.length != 2) {
+		if (args.length < 2) {
 			showUsage();
 			return;
 		}
@@ -40,8 +45,35 @@ public class BeanCounterGUI {
 			return;
 		}
 		
+		long seed = new Random().nextLong();
+		int laneCount = 1;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("--seed") && i + 1 < args.length) {
+				try {
+					seed = Long.parseLong(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--lanes") && i + 1 < args.length) {
+				try {
+					laneCount = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (laneCount < 1) {
+					showUsage();
+					return;
+				}
+			} else {
+				showUsage();
+				return;
+			}
+		}
+		
 		// Create the main frame for the app
-		new MainFrame(beanCount, luck);
+		new MainFrame(beanCount, luck, seed, laneCount);
 	}
 
 }
@@ -0,0 +1,31 @@
+/**
+ * BeanCounterListener: Is told what parts of a machine changed, so that a view
+ * can redraw just those parts instead of the whole machine. Events are sent on
+ * the thread that drives the machine, while the change is being made, so a
+ * listener should only note what changed and look at the machine later, as
+ * Swing's repaint() does. Every method does nothing by default.
+ */
+
+public interface BeanCounterListener {
+	/**
+	 * Called when beans landed in a slot, or were put back into it.
+	 *
+	 * @param slot index of the slot
+	 */
+	default void slotChanged(int slot) {
+	}
+
+	/**
+	 * Called when any number of slots changed at once, as when a reset or repeat
+	 * empties them or a half operation takes beans out of them.
+	 */
+	default void slotsChanged() {
+	}
+
+	/**
+	 * Called when the beans in flight moved or changed, as after a step, a reset
+	 * or a repeat. The number of remaining beans may have changed with them.
+	 */
+	default void inFlightChanged() {
+	}
+}
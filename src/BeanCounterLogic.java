@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
 public interface BeanCounterLogic {
 	/**
 	 * Returns the either BeanCounterLogicImpl or BeanCounterLogicBuggy instance
@@ -19,11 +23,46 @@ public interface BeanCounterLogic {
 		return null;
 	}
 	
+	/**
+	 * Returns the engine best suited to the mode of the beans. With the IMPL logic
+	 * type, machines whose beans are all in skill mode get a SkillBeanCounterLogic,
+	 * which never simulates pegs, and machines whose beans are all in luck mode get
+	 * a LuckBeanCounterLogic, which draws each bean's path as random bits.
+	 * Otherwise this is the same as createInstance(slotCount).
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck    whether the beans are in luck mode
+	 * @return BeanCounterLogic object
+	 */
+	public static BeanCounterLogic createInstance(int slotCount, boolean isLuck) {
+		return createInstance(slotCount, isLuck, new Random().nextLong());
+	}
+
+	/**
+	 * Same as createInstance(slotCount, isLuck), except that a LuckBeanCounterLogic
+	 * draws its bean paths from the given seed, so that the machine always runs
+	 * the same way. The other engines take no seed.
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck    whether the beans are in luck mode
+	 * @param seed      the master seed of luck-mode bean paths
+	 * @return BeanCounterLogic object
+	 */
+	public static BeanCounterLogic createInstance(int slotCount, boolean isLuck, long seed) {
+		if (Config.getLogicType() == LogicType.IMPL) {
+			return isLuck ? new LuckBeanCounterLogic(slotCount, seed) : new SkillBeanCounterLogic(slotCount);
+		}
+		return createInstance(slotCount);
+	}
+	
 	// Public interface of BeanCounterLogic
 	
 	// No bean in that particular Y coordinate
 	public static final int NO_BEAN_IN_YPOS = -1;
 
+	// Number of steps advanceStepsUntil() takes between reads of the clock
+	public static final int STEPS_PER_CLOCK_CHECK = 256;
+
 	// Methods
 	public int getRemainingBeanCount();
 
@@ -31,15 +70,210 @@ public interface BeanCounterLogic {
 
 	public int getSlotBeanCount(int i);
 
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted, as a
+	 * long. Engines that count beans past Integer.MAX_VALUE should override this
+	 * and make getRemainingBeanCount() throw an ArithmeticException when the count
+	 * does not fit in an int.
+	 * 
+	 * @return number of beans remaining
+	 */
+	public default long getRemainingBeanCountLong() {
+		return getRemainingBeanCount();
+	}
+
+	/**
+	 * Returns the number of beans in the ith slot, as a long. Engines that count
+	 * beans past Integer.MAX_VALUE should override this and make
+	 * getSlotBeanCount(i) throw an ArithmeticException when the count does not
+	 * fit in an int.
+	 * 
+	 * @param i index of slot
+	 * @return number of beans in slot
+	 */
+	public default long getSlotBeanCountLong(int i) {
+		return getSlotBeanCount(i);
+	}
+
+	/**
+	 * Returns the number of beans a row of the machine holds, which is also the
+	 * number of beans inserted per step. Machines with several lanes drain their
+	 * beans in fewer steps; the default is a single lane.
+	 * 
+	 * @return number of lanes
+	 */
+	public default int getLaneCount() {
+		return 1;
+	}
+
+	/**
+	 * Returns the x-coordinate for the in-flight bean in the given lane of the row
+	 * at the provided y-coordinate. Lanes fill from 0, so lane 0 holds the bean
+	 * getInFlightBeanXPos(yPos) returns.
+	 * 
+	 * @param yPos the y-coordinate in which to look for the in-flight bean
+	 * @param lane the lane, from 0 to getLaneCount() - 1
+	 * @return the x-coordinate of the in-flight bean; if no bean in that lane,
+	 *         return NO_BEAN_IN_YPOS
+	 */
+	public default int getInFlightBeanXPos(int yPos, int lane) {
+		return (lane == 0) ? getInFlightBeanXPos(yPos) : NO_BEAN_IN_YPOS;
+	}
+
 	public double getAverageSlotBeanCount();
 
+	/**
+	 * Keeps only the beans whose rank is from fromRank up to but not including
+	 * toRank, ordering all the beans in slots by slot number, and removes the
+	 * rest. upperHalf() and lowerHalf() are special cases.
+	 * 
+	 * @param fromRank rank of the lowest bean to keep
+	 * @param toRank   rank just above the highest bean to keep
+	 * @throws IllegalArgumentException      if the range is not within the beans in
+	 *                                       slots
+	 * @throws UnsupportedOperationException if the engine has no rank index
+	 */
+	public default void keepRankRange(long fromRank, long toRank) {
+		throw new UnsupportedOperationException("keepRankRange");
+	}
+
 	public void upperHalf();
 
 	public void lowerHalf();
 
 	public void reset(Bean[] beans);
 
+	/**
+	 * A hard reset from a BeanSource. Engines that can pull beans from the source
+	 * as they are dropped should override this; the default builds every bean up
+	 * front with Bean.createInstance(), sharing a generator seeded with the seed
+	 * of the source, and calls reset(Bean[]), so it is only suitable for small
+	 * sources.
+	 * 
+	 * @param source the beans to add to the machine
+	 * @throws UnsupportedOperationException if the beans are in skill mode and the
+	 *                                       logic type is not IMPL, since only a
+	 *                                       BeanImpl can take its skill level from
+	 *                                       the source
+	 */
+	public default void reset(BeanSource source) {
+		final RandomSource rand = new XoroshiroRandomSource(source.getSeed());
+		final Bean[] beans = new Bean[Math.toIntExact(source.getBeanCount())];
+		for (int i = 0; i < beans.length; i++) {
+			beans[i] = Bean.createInstance(source.getSlotCount(), source.isLuck(), rand, source.getSkillLevel(i));
+		}
+		reset(beans);
+	}
+
 	public void repeat();
 
 	public boolean advanceStep();
-}
\ No newline at end of file
+
+	/**
+	 * Advances the machine up to n steps, stopping early if the machine finishes.
+	 * 
+	 * @param n maximum number of steps to take
+	 * @return number of steps that changed the status of the machine; less than n
+	 *         means the machine is finished
+	 */
+	public default int advanceSteps(int n) {
+		int steps = 0;
+		while (steps < n && advanceStep()) {
+			steps++;
+		}
+		return steps;
+	}
+
+	/**
+	 * Advances the machine until all beans are in slots.
+	 * 
+	 * @return number of steps that changed the status of the machine
+	 */
+	public default long runToCompletion() {
+		long steps = 0;
+		while (advanceStep()) {
+			steps++;
+		}
+		return steps;
+	}
+
+	/**
+	 * Advances the machine until it finishes or System.nanoTime() passes the
+	 * deadline, whichever comes first. The clock is read once every
+	 * STEPS_PER_CLOCK_CHECK steps, so the call may overrun the deadline by up to
+	 * that many steps.
+	 * 
+	 * @param deadlineNanos deadline in System.nanoTime() units
+	 * @return number of steps that changed the status of the machine
+	 */
+	public default long advanceStepsUntil(long deadlineNanos) {
+		long steps = 0;
+		do {
+			final int batch = advanceSteps(STEPS_PER_CLOCK_CHECK);
+			steps += batch;
+			if (batch < STEPS_PER_CLOCK_CHECK) {
+				break;
+			}
+		} while (System.nanoTime() - deadlineNanos < 0);
+		return steps;
+	}
+
+	/**
+	 * Saves the complete state of the machine to a file, so that restore() can
+	 * carry on from exactly this point, on this or another host.
+	 * 
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException                   if the file cannot be written
+	 * @throws UnsupportedOperationException if the engine cannot save its state
+	 */
+	public default void checkpoint(Path path) throws IOException {
+		throw new UnsupportedOperationException("checkpoint");
+	}
+
+	/**
+	 * Replaces the state of the machine with one saved by checkpoint().
+	 * 
+	 * @param path the file to read
+	 * @throws IOException                   if the file cannot be read or was not
+	 *                                       written by this kind of machine
+	 * @throws UnsupportedOperationException if the engine cannot restore state
+	 */
+	public default void restore(Path path) throws IOException {
+		throw new UnsupportedOperationException("restore");
+	}
+
+	/**
+	 * Starts sending change events to a listener. Engines that cannot say what
+	 * changed send none; the caller should then assume that anything may have
+	 * changed after each call.
+	 * 
+	 * @param listener the listener
+	 * @return whether the engine sends change events
+	 */
+	public default boolean addChangeListener(BeanCounterListener listener) {
+		return false;
+	}
+
+	/**
+	 * Stops sending change events to a listener.
+	 * 
+	 * @param listener the listener
+	 * @return whether the listener was registered
+	 */
+	public default boolean removeChangeListener(BeanCounterListener listener) {
+		return false;
+	}
+
+	/**
+	 * Returns the rank of the bean at the pth percentile of total beans by the
+	 * nearest-rank method.
+	 * 
+	 * @param p     the percentile as a fraction from 0 to 1
+	 * @param total number of beans, at least 1
+	 * @return rank from 0 to total - 1
+	 */
+	static long nearestRank(double p, long total) {
+		final long rank = (long) Math.ceil(p * total) - 1;
+		return Math.max(0, Math.min(rank, total - 1));
+	}
+}
@@ -1,10 +1,11 @@
+import java.io.IOException;
 import java.lang.Math;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
-import java.util.Collection;
-import java.util.Formatter;
-import java.util.LinkedList;
-import java.util.Queue;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Code by @author Wonsun Ahn
@@ -26,13 +27,39 @@ import java.util.Random;
  * positions of in-flight beans.For example, for a 4-slot machine: (0, 0) (0, 1)
  * (1, 1) (0, 2) (1, 2) (2, 2) (0, 3) (1, 3) (2, 3) (3, 3) [Slot0] [Slot1]
  * [Slot2] [Slot3]
+ *
+ * <p>A machine can be built with several lanes: up to laneCount beans then
+ * enter per step, side by side in the top row, and every row holds up to
+ * laneCount beans. Each bean still makes its own choices at every peg, so the
+ * slots fill the same way, but N beans drain in about N / laneCount +
+ * slotCount steps instead of N + slotCount.
  */
 
-public class BeanCounterLogicImpl implements BeanCounterLogic {
+public class BeanCounterLogicImpl extends AbstractBeanCounterLogic {
 	// TODO: Add member methods and variables as needed
-	private Bean[] fallingBeans;
-	private Queue<Bean> remainingBeans;
-	private Queue<Bean>[] slots;
+	private Bean[] beans; // beans of the current experiment; the rest of the state refers to them by index
+	private BeanStore store; // or, if not null, the store holding the beans of the current experiment
+	private final int laneCount; // number of beans a row holds
+	private int[] fallingBeans; // ring of rows of bean indices in flight, lane l of row y at
+								// rowIndex(y) * laneCount + l, or NO_BEAN_IN_YPOS; lanes fill from 0
+	private int topRow; // ring position of row 0 in fallingBeans; moves up one row every step
+	private int[] inFlightBeans; // ring of the bean indices in flight, lowest (oldest) bean first
+	private int inFlightHead; // position of the lowest in-flight bean in inFlightBeans
+	private int inFlightCount;
+	private int nextFreshBean; // beans nextFreshBean to beanCount - 1 have not been dropped since the reset
+	private int beanCount;
+	private int[] remainingOrder; // beans scooped up by repeat(), waiting behind the fresh ones
+	private int remainingHead; // position of the next bean to insert in remainingOrder
+	private int remainingSize; // remainingOrder is valid up to here
+	private int[] spareOrder; // buffer for the next repeat() to build remainingOrder in
+	private BeanSource lastSource; // source of the last reset(BeanSource), to reuse its store
+	private int[][] slots; // bean indices that landed in each slot, valid up to slotSizes[i]
+	private int[] slotSizes;
+
+	/**
+	 * Initial capacity of a slot's bean index array. Slots grow by doubling.
+	 */
+	private static final int INITIAL_SLOT_CAPACITY = 16;
 
 	/**
 	 * Constructor - creates the bean counter logic object that implements the core
@@ -42,12 +69,31 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 	 */
 	BeanCounterLogicImpl(int slotCount) {
 		// TODO: Implement
-		this.fallingBeans = new Bean[slotCount];
-		this.remainingBeans = new LinkedList<Bean>();
-		this.slots = (Queue<Bean>[]) new LinkedList[slotCount];
-		for (int i = 0; i < this.getSlotCount(); ++i) {
-			this.slots[i] = new LinkedList<Bean>();
+		this(slotCount, 1);
+	}
+
+	/**
+	 * Constructor - creates the bean counter logic object with the provided
+	 * number of slots, where up to laneCount beans enter per step and share each
+	 * row.
+	 * 
+	 * @param slotCount the number of slots in the machine
+	 * @param laneCount the number of beans a row holds
+	 */
+	BeanCounterLogicImpl(int slotCount, int laneCount) {
+		super(slotCount);
+		if (laneCount < 1) {
+			throw new IllegalArgumentException("laneCount must be at least 1");
 		}
+		this.laneCount = laneCount;
+		this.beans = new Bean[0];
+		this.fallingBeans = new int[Math.multiplyExact(slotCount, laneCount)];
+		Arrays.fill(this.fallingBeans, NO_BEAN_IN_YPOS);
+		this.inFlightBeans = new int[this.fallingBeans.length];
+		this.remainingOrder = new int[0];
+		this.spareOrder = new int[0];
+		this.slots = new int[slotCount][INITIAL_SLOT_CAPACITY];
+		this.slotSizes = new int[slotCount];
 	}
 
 	/**
@@ -60,15 +106,116 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 		return this.slots.length;
 	}
 
+	/**
+	 * Returns the number of beans a row of the machine holds, which is also the
+	 * number of beans inserted per step.
+	 * 
+	 * @return number of lanes
+	 */
+	@Override
+	public int getLaneCount() {
+		return this.laneCount;
+	}
+
 	private void insertBeansAtTop() {
 		if (this.fallingBeans.length == 0) {
 			return;
 		}
-		if (this.remainingBeans.size() > 0) {
-			(this.fallingBeans[0] = this.remainingBeans.remove()).reset();
-		} else {
-			this.fallingBeans[0] = null;
+		final int top = this.topRow * this.laneCount;
+		for (int lane = 0; lane < this.laneCount; lane++) {
+			if (this.getRemainingBeanCount() > 0) {
+				// Beans are pulled from the store or array only when they are dropped
+				final int bean = (this.nextFreshBean < this.beanCount) ? this.nextFreshBean++
+						: this.remainingOrder[this.remainingHead++];
+				if (this.store != null) {
+					this.store.reset(bean);
+				} else {
+					this.beans[bean].reset();
+				}
+				this.fallingBeans[top + lane] = bean;
+				this.inFlightBeans[this.inFlightPosition(this.inFlightCount++)] = bean;
+			} else {
+				this.fallingBeans[top + lane] = NO_BEAN_IN_YPOS;
+			}
+		}
+	}
+
+	/**
+	 * Returns the current X-coordinate of a bean of the current experiment.
+	 * 
+	 * @param bean index of the bean
+	 * @return the X-coordinate of the bean
+	 */
+	private int getBeanXPos(int bean) {
+		return (this.store != null) ? this.store.getXPos(bean) : this.beans[bean].getXPos();
+	}
+
+	/**
+	 * Returns the position of row yPos in the fallingBeans ring, counted in rows.
+	 * 
+	 * @param yPos the y-coordinate of the row
+	 * @return the ring position of the row
+	 */
+	private int rowIndex(int yPos) {
+		final int pos = this.topRow + yPos;
+		return (pos < this.slots.length) ? pos : pos - this.slots.length;
+	}
+
+	/**
+	 * Returns the position of the kth lowest in-flight bean in the inFlightBeans
+	 * ring.
+	 * 
+	 * @param k the rank of the bean counting from the lowest in-flight bean
+	 * @return the index into inFlightBeans
+	 */
+	private int inFlightPosition(int k) {
+		final int pos = this.inFlightHead + k;
+		return (pos < this.inFlightBeans.length) ? pos : pos - this.inFlightBeans.length;
+	}
+
+	/**
+	 * Empties all rows of the machine.
+	 */
+	private void clearInFlightBeans() {
+		Arrays.fill(this.fallingBeans, NO_BEAN_IN_YPOS);
+		this.topRow = 0;
+		this.inFlightHead = 0;
+		this.inFlightCount = 0;
+	}
+
+	/**
+	 * Appends a bean index to the given slot, doubling the slot array when full.
+	 * 
+	 * @param i    index of slot
+	 * @param bean index of the landing bean
+	 */
+	private void addToSlot(int i, int bean) {
+		if (this.slotSizes[i] == this.slots[i].length) {
+			this.slots[i] = Arrays.copyOf(this.slots[i], this.slots[i].length * 2);
 		}
+		this.slots[i][this.slotSizes[i]++] = bean;
+		this.countLanding(i, 1);
+	}
+
+	/**
+	 * Takes beans out of a slot, the most recently landed first.
+	 * 
+	 * @param i     index of slot
+	 * @param count number of beans to take
+	 */
+	@Override
+	protected void takeFromSlot(int i, long count) {
+		this.slotSizes[i] -= (int) count;
+	}
+
+	/**
+	 * Returns the number of beans currently falling through the pegs.
+	 * 
+	 * @return number of in-flight beans
+	 */
+	@Override
+	public int getInFlightBeanCount() {
+		return this.inFlightCount;
 	}
 
 	/**
@@ -78,7 +225,7 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 	 */
 	public int getRemainingBeanCount() {
 		// TODO: Implement
-		return this.remainingBeans.size();
+		return (this.beanCount - this.nextFreshBean) + (this.remainingSize - this.remainingHead);
 	}
 
 	/**
@@ -90,7 +237,22 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 	 */
 	public int getInFlightBeanXPos(int yPos) {
 		// TODO: Implement
-		return (this.fallingBeans[yPos] != null) ? this.fallingBeans[yPos].getXPos() : -1;
+		return this.getInFlightBeanXPos(yPos, 0);
+	}
+
+	/**
+	 * Returns the x-coordinate for the in-flight bean in the given lane of the
+	 * row at the provided y-coordinate.
+	 * 
+	 * @param yPos the y-coordinate in which to look for the in-flight bean
+	 * @param lane the lane, from 0 to getLaneCount() - 1
+	 * @return the x-coordinate of the in-flight bean; if no bean in that lane,
+	 *         return NO_BEAN_IN_YPOS
+	 */
+	@Override
+	public int getInFlightBeanXPos(int yPos, int lane) {
+		int bean = this.fallingBeans[this.rowIndex(yPos) * this.laneCount + lane];
+		return (bean != NO_BEAN_IN_YPOS) ? this.getBeanXPos(bean) : NO_BEAN_IN_YPOS;
 	}
 
 	/**
@@ -101,139 +263,81 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 	 */
 	public int getSlotBeanCount(int i) {
 		// TODO: Implement
-		return this.slots[i].size();
+		return this.slotSizes[i];
 	}
 
 	/**
-	 * Calculates the average slot number of all the beans in slots.
+	 * A hard reset. Initializes the machine with the passed beans. The machine
+	 * starts with one bean at the top.
 	 * 
-	 * @return Average slot number of all the beans in slots.
+	 * @param beans array of beans to add to the machine
 	 */
-	public double getAverageSlotBeanCount() {
+	public void reset(Bean[] beans) {
 		// TODO: Implement
-		int n = 0;
-		double n2 = 0.0;
-		for (int i = 0; i < this.getSlotCount(); ++i) {
-			n2 += i * this.getSlotBeanCount(i);
-			n += this.getSlotBeanCount(i);
-		}
-		if (n > 0) {
-			return n2 / n;
-		}
-		return 0.0;
+		final long start = System.nanoTime();
+		this.beans = (beans != null) ? beans : new Bean[0];
+		this.store = null;
+		this.lastSource = null;
+		this.resetBeans(this.beans.length);
+		this.countTime(TimedOperation.RESET, start);
 	}
 
 	/**
-	 * Removes the lower half of all beans currently in slots, keeping only the
-	 * upper half. If there are an odd number of beans, remove (N-1)/2 beans, where
-	 * N is the number of beans. So, if there are 3 beans, 1 will be removed and 2
-	 * will be remaining.
+	 * A hard reset. Initializes the machine with the beans in the passed store.
+	 * The machine works on the store's arrays directly instead of going through
+	 * Bean objects. The machine starts with one bean at the top.
+	 * 
+	 * @param store the beans to add to the machine
 	 */
-	public void upperHalf() {
-		// TODO: Implement
-		//to remove upper half: get total number of beans in slots, (n-1)/2 == numBeansToRemove, .remove them
-		int totalBeans = 0;
-		int beansToRemove;
-		int halfLastSlot;
-		Boolean isOdd = false;
-		for (int i = 0; i < this.getSlotCount() - 1; i++) {
-			totalBeans += this.getSlotBeanCount(i);
-		}
-		totalBeans = Math.abs(totalBeans);
-		if (totalBeans % 2 == 1) {
-			//is odd
-			isOdd = true;
-		}
-		// starting at the 1st slot [0], clear up to 4th [3] slot, half the 5th [4]
-		for (int j = 0; j < 5; j++) {
-			if (j == 4) {
-				//the last slot: get the size, half it, remove that many beans
-				if (isOdd) {
-					halfLastSlot = (this.slots[j].size() - 1) / 2;
-				} else {
-					halfLastSlot = this.slots[j].size() / 2;
-				}
-				//cant half one and use it as an iteration
-				if (this.getSlotBeanCount(j) == 1) {
-					this.slots[j].remove();
-				} else {
-					for (int k = 0; k < halfLastSlot - 1; k++) {
-						this.slots[j].remove();
-					}
-				}
-			} else {
-				//not the last slot
-				this.slots[j].clear();
-			}
-		}
+	public void reset(BeanStore store) {
+		final long start = System.nanoTime();
+		this.beans = null;
+		this.store = store;
+		this.lastSource = null;
+		this.resetBeans(store.size());
+		this.countTime(TimedOperation.RESET, start);
 	}
 
 	/**
-	 * Removes the upper half of all beans currently in slots, keeping only the
-	 * lower half. If there are an odd number of beans, remove (N-1)/2 beans, where
-	 * N is the number of beans. So, if there are 3 beans, 1 will be removed and 2
-	 * will be remaining.
+	 * A hard reset. Initializes the machine with the beans of the passed source,
+	 * which are loaded into a BeanStore as they are dropped. The luck decisions
+	 * are drawn from a generator seeded with the seed of the source, so equal
+	 * sources run the same way. Resetting again with the same source rewinds to
+	 * the beans already loaded and carries on with the same generator. The
+	 * machine starts with one bean at the top.
+	 * 
+	 * @param source the beans to add to the machine
 	 */
-	public void lowerHalf() {
-		// TODO: Implement
-		//to remove upper half: get total number of beans in slots, (n-1)/2 == numBeansToRemove, .remove them
-		int totalBeans = 0;
-		int beansToRemove;
-		int halfLastSlot;
-		Boolean isOdd = false;
-		for (int i = 0; i < this.getSlotCount() - 1; i++) {
-			totalBeans += this.getSlotBeanCount(i);
-		}
-		totalBeans = Math.abs(totalBeans);
-		if (totalBeans % 2 == 1) {
-			//is odd
-			isOdd = true;
-		}
-		// starting at the 10th slot [9], clear down to 6th slot, half the fifth
-		for (int j = this.slots.length - 1; j > 4; j--) {
-			if (j == 5) {
-				//the last slot: get the size, half it, remove that many times
-				if (isOdd) {
-					halfLastSlot = (this.slots[j].size() - 1) / 2;
-				} else {
-					halfLastSlot = this.slots[j].size() / 2;
-				}
-				//if the value in the slot is equal to 1, just remove the bean 
-				if (this.getSlotBeanCount(j) == 1) {
-					this.slots[j].remove();
-				} else { //else u gotta half the other beans 
-					for (int k = 0; k < halfLastSlot - 1; k++) {
-						this.slots[j].remove();
-					}
-				}	
-			} else {
-				//not the last slot
-				this.slots[j].clear();
-			}
+	@Override
+	public void reset(BeanSource source) {
+		final long start = System.nanoTime();
+		if (source instanceof BeanStore) {
+			this.store = (BeanStore) source;
+			this.lastSource = null;
+		} else if (source != this.lastSource) {
+			this.store = new BeanStore(source, new XoroshiroRandomSource(source.getSeed()));
+			this.lastSource = source;
 		}
+		this.beans = null;
+		this.resetBeans(this.store.size());
+		this.countTime(TimedOperation.RESET, start);
 	}
 
 	/**
-	 * A hard reset. Initializes the machine with the passed beans. The machine
-	 * starts with one bean at the top.
+	 * Empties the machine and makes beans 0 to beanCount - 1 the remaining beans,
+	 * in order.
 	 * 
-	 * @param beans array of beans to add to the machine
+	 * @param beanCount number of beans in the current experiment
 	 */
-	public void reset(Bean[] beans) {
-		// TODO: Implement
-		this.remainingBeans.clear();
-		for (int i = 0; i < this.getSlotCount(); ++i) {
-			this.fallingBeans[i] = null;
-		}
-		for (int j = 0; j < this.getSlotCount(); ++j) {
-			this.slots[j].clear();
-		}
-		if (beans != null) {
-			for (int k = 0; k < beans.length; ++k) {
-				this.remainingBeans.add(beans[k]);
-			}
-			this.insertBeansAtTop();
-		}
+	private void resetBeans(int beanCount) {
+		this.remainingHead = 0;
+		this.remainingSize = 0;
+		this.nextFreshBean = 0;
+		this.beanCount = beanCount;
+		this.clearInFlightBeans();
+		Arrays.fill(this.slotSizes, 0);
+		this.clearCounts();
+		this.insertBeansAtTop();
 	}
 
 	/**
@@ -243,138 +347,342 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 	 */
 	public void repeat() {
 		// TODO: Implement
+		final long start = System.nanoTime();
+		// Build the new order in the spare buffer: beans still waiting stay in front,
+		// then the slots in slot order, then the in-flight beans
+		final int waiting = this.remainingSize - this.remainingHead;
+		final long needed = waiting + this.getInSlotBeanCount() + this.inFlightCount;
+		int[] order = this.spareOrder;
+		if (order.length < needed) {
+			order = new int[(int) Math.max(needed, Math.min(2L * order.length, Integer.MAX_VALUE))];
+		}
+		System.arraycopy(this.remainingOrder, this.remainingHead, order, 0, waiting);
+		int size = waiting;
 		for (int i = 0; i < this.getSlotCount(); ++i) {
-			this.remainingBeans.addAll((Collection<Bean>) this.slots[i]); // you did something to this lkine
-			this.slots[i].clear();
+			System.arraycopy(this.slots[i], 0, order, size, this.slotSizes[i]);
+			size += this.slotSizes[i];
+			this.slotSizes[i] = 0;
 		}
-		for (int j = 0; j < this.getSlotCount(); ++j) {
-			if (this.fallingBeans[j] != null) {
-				this.remainingBeans.add(this.fallingBeans[j]);
-				this.fallingBeans[j] = null;
-			}
+		this.clearCounts();
+		// In-flight beans go back top row first, i.e. the most recently inserted first
+		for (int k = this.inFlightCount - 1; k >= 0; --k) {
+			order[size++] = this.inFlightBeans[this.inFlightPosition(k)];
 		}
+		this.spareOrder = this.remainingOrder;
+		this.remainingOrder = order;
+		this.remainingHead = 0;
+		this.remainingSize = size;
+		this.clearInFlightBeans();
 		this.insertBeansAtTop();
+		this.countTime(TimedOperation.REPEAT, start);
 	}
 
 	/**
-	 * Advances the machine one step. All the in-flight beans fall down one step to
-	 * the next peg. A new bean is inserted into the top of the machine if there are
-	 * beans remaining.
+	 * Saves the complete state of the machine to a checkpoint file: bean order,
+	 * in-flight rows with each in-flight bean's progress, slot contents, every
+	 * bean's skill level and the state of the beans' random number generator.
+	 * Only machines reset with a BeanStore or a BeanSource can be saved, since
+	 * the state of arbitrary Bean objects is out of reach. Beans of a source that
+	 * have not been dropped yet are read from the source, not loaded.
 	 * 
-	 * @return whether there has been any status change. If there is no change, that
-	 *         means the machine is finished.
+	 * <p>After the header, the file holds, as little-endian ints: the slot count,
+	 * the lane count, whether the beans are in luck mode, the bean count, the
+	 * number of beans dropped so far and the number waiting, the bean in each
+	 * lane of each row (or NO_BEAN_IN_YPOS), the x-coordinate and rights remaining of each
+	 * in-flight bean from the top row down and left lane first, the size of each slot, the beans of
+	 * each slot, the beans scooped up by repeat() still waiting, the skill level
+	 * of each bean, and finally the state of the random number generator as
+	 * XoroshiroRandomSource.writeState() lays it out. Only beans drawing from a
+	 * XoroshiroRandomSource can be saved.
+	 * 
+	 * <p>The file is written next to the given one and moved over it once
+	 * complete, so a crash while saving keeps the previous checkpoint.
+	 * 
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException if the file cannot be written
 	 */
-	public boolean advanceStep() {
-		// TODO: Implement
-		boolean b = false;
-		for (int i = this.getSlotCount() - 1; i >= 0; --i) {
-			final Bean bean = this.fallingBeans[i];
-			if (bean != null) {
-				if (i == this.getSlotCount() - 1) {
-					assert bean.getXPos() < this.getSlotCount();
-					this.slots[bean.getXPos()].add(bean);
-				} else {
-					bean.choose();
-					this.fallingBeans[i + 1] = bean;
+	@Override
+	public void checkpoint(Path path) throws IOException {
+		if (this.store == null) {
+			throw new UnsupportedOperationException("Only machines reset with a BeanStore or BeanSource can be saved");
+		}
+		if (!(this.store.getRandom() instanceof XoroshiroRandomSource)) {
+			throw new UnsupportedOperationException("Only beans drawing from a XoroshiroRandomSource can be saved");
+		}
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Writer out = new CheckpointFile.Writer(path, CheckpointFile.Engine.IMPL)) {
+			out.putInt(slotCount);
+			out.putInt(this.laneCount);
+			out.putInt(this.store.isLuck() ? 1 : 0);
+			out.putInt(this.beanCount);
+			out.putInt(this.nextFreshBean);
+			out.putInt(this.remainingSize - this.remainingHead);
+			for (int y = 0; y < slotCount; y++) {
+				out.putInts(this.fallingBeans, this.rowIndex(y) * this.laneCount, this.laneCount);
+			}
+			for (int y = 0; y < slotCount; y++) {
+				for (int lane = 0; lane < this.laneCount; lane++) {
+					final int bean = this.fallingBeans[this.rowIndex(y) * this.laneCount + lane];
+					if (bean != NO_BEAN_IN_YPOS) {
+						out.putInt(this.store.getXPos(bean));
+						out.putInt(this.store.getRightsRemaining(bean));
+					}
 				}
-				b = true;
-			} else if (i < this.getSlotCount() - 1) {
-				this.fallingBeans[i + 1] = null;
 			}
+			out.putInts(this.slotSizes, 0, slotCount);
+			for (int i = 0; i < slotCount; i++) {
+				out.putInts(this.slots[i], 0, this.slotSizes[i]);
+			}
+			out.putInts(this.remainingOrder, this.remainingHead, this.remainingSize - this.remainingHead);
+			for (int bean = 0; bean < this.beanCount; bean++) {
+				out.putInt(this.store.getSkillLevel(bean));
+			}
+			((XoroshiroRandomSource) this.store.getRandom()).writeState(out);
+			out.commit();
 		}
-		this.insertBeansAtTop();
-		return b;
 	}
 
 	/**
-	 * Number of spaces in between numbers when printing out the state of the
-	 * machine. Make sure the number is odd (even numbers don't work as well).
-	 */
-	private int xspacing = 3;
-
-	/**
-	 * Calculates the number of spaces to indent for the given row of pegs.
+	 * Checks that the bean numbers read from a checkpoint file name beans of the
+	 * machine.
 	 * 
-	 * @param yPos the y-position (or row number) of the pegs
-	 * @return the number of spaces to indent
+	 * @param path       the file, for the message
+	 * @param beans      the bean numbers
+	 * @param length     how many of them to check
+	 * @param beanCount  the number of beans of the machine
+	 * @param allowEmpty whether NO_BEAN_IN_YPOS may stand for no bean
+	 * @throws IOException if a number is out of range
 	 */
-	private int getIndent(int yPos) {
-		int rootIndent = (getSlotCount() - 1) * (xspacing + 1) / 2 + (xspacing + 1);
-		return rootIndent - (xspacing + 1) / 2 * yPos;
+	private static void checkBeans(Path path, int[] beans, int length, int beanCount, boolean allowEmpty)
+			throws IOException {
+		for (int k = 0; k < length; k++) {
+			final int bean = beans[k];
+			if ((bean < 0 || bean >= beanCount) && !(allowEmpty && bean == NO_BEAN_IN_YPOS)) {
+				throw new IOException(path + " holds an invalid bean number: " + bean);
+			}
+		}
 	}
 
 	/**
-	 * Constructs a string representation of the bean count of all the slots.
+	 * Replaces the state of the machine with one saved by checkpoint(). The beans
+	 * are restored into a new BeanStore, and the machine carries on exactly as
+	 * the saved one would have.
 	 * 
-	 * @return a string with bean counts for each slot
+	 * @param path the file to read
+	 * @throws IOException if the file cannot be read or does not hold the valid
+	 *                     state of a machine with this many slots and lanes
 	 */
-	public String getSlotString() {
-		StringBuilder bld = new StringBuilder();
-		Formatter fmt = new Formatter(bld);
-		String format = "%" + (xspacing + 1) + "d";
-		for (int i = 0; i < getSlotCount(); i++) {
-			fmt.format(format, getSlotBeanCount(i));
-		}
-		fmt.close();
-		return bld.toString();
+	@Override
+	public void restore(Path path) throws IOException {
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Reader in = new CheckpointFile.Reader(path, CheckpointFile.Engine.IMPL)) {
+			final int savedSlotCount = in.getInt();
+			if (savedSlotCount != slotCount) {
+				throw new IOException(path + " holds a machine with " + savedSlotCount + " slots, not " + slotCount);
+			}
+			final int savedLaneCount = in.getInt();
+			if (savedLaneCount != this.laneCount) {
+				throw new IOException(path + " holds a machine with " + savedLaneCount + " lanes, not " + this.laneCount);
+			}
+			final boolean isLuck = in.getInt() != 0;
+			final int savedBeanCount = in.getInt();
+			final int savedNextFreshBean = in.getInt();
+			final int waiting = in.getInt();
+			if (savedBeanCount < 0 || savedNextFreshBean < 0 || savedNextFreshBean > savedBeanCount
+					|| waiting < 0 || waiting > savedBeanCount) {
+				throw new IOException(path + " holds invalid bean counts");
+			}
+			final int[] rows = new int[this.fallingBeans.length];
+			in.getInts(rows, 0, rows.length);
+			checkBeans(path, rows, rows.length, savedBeanCount, true);
+			final int[] progress = new int[2 * rows.length];
+			int inFlight = 0;
+			for (int y = 0; y < rows.length; y++) {
+				if (rows[y] != NO_BEAN_IN_YPOS) {
+					progress[2 * inFlight] = in.getInt();
+					progress[2 * inFlight + 1] = in.getInt();
+					inFlight++;
+				}
+			}
+			final int[] sizes = new int[slotCount];
+			in.getInts(sizes, 0, slotCount);
+			final int[][] contents = new int[slotCount][];
+			for (int i = 0; i < slotCount; i++) {
+				if (sizes[i] < 0 || sizes[i] > savedBeanCount) {
+					throw new IOException(path + " holds an invalid size for slot " + i + ": " + sizes[i]);
+				}
+				contents[i] = new int[Math.max(INITIAL_SLOT_CAPACITY, sizes[i])];
+				in.getInts(contents[i], 0, sizes[i]);
+				checkBeans(path, contents[i], sizes[i], savedBeanCount, false);
+			}
+			final int[] order = new int[waiting];
+			in.getInts(order, 0, waiting);
+			checkBeans(path, order, waiting, savedBeanCount, false);
+			final int[] skillLevels = new int[savedBeanCount];
+			in.getInts(skillLevels, 0, savedBeanCount);
+			final RandomSource rand = XoroshiroRandomSource.readState(in);
+
+			// Everything is read; now replace the state of the machine
+			this.beans = null;
+			this.lastSource = null;
+			this.store = new BeanStore(slotCount, isLuck, rand, skillLevels);
+			this.beanCount = savedBeanCount;
+			this.nextFreshBean = savedNextFreshBean;
+			this.remainingOrder = order;
+			this.remainingHead = 0;
+			this.remainingSize = waiting;
+			this.clearInFlightBeans();
+			// The in-flight ring lists the lowest (oldest) bean first and, within a
+			// row, the left lane first, so the beans of the jth occupied row from the
+			// top go to the positions before those of row j - 1
+			int j = 0;
+			int end = inFlight;
+			for (int y = 0; y < slotCount; y++) {
+				final int base = y * this.laneCount;
+				int occupied = 0;
+				while (occupied < this.laneCount && rows[base + occupied] != NO_BEAN_IN_YPOS) {
+					occupied++;
+				}
+				for (int lane = 0; lane < this.laneCount; lane++) {
+					final int bean = rows[base + lane];
+					this.fallingBeans[base + lane] = bean;
+					if (bean != NO_BEAN_IN_YPOS) {
+						this.store.setProgress(bean, progress[2 * j], progress[2 * j + 1]);
+						this.inFlightBeans[end - occupied + lane] = bean;
+						j++;
+					}
+				}
+				end -= occupied;
+			}
+			this.inFlightCount = inFlight;
+			this.slots = contents;
+			this.slotSizes = sizes;
+			this.clearCounts();
+			for (int i = 0; i < slotCount; i++) {
+				this.countRestored(i, sizes[i]);
+			}
+			this.inFlightChanged();
+		}
 	}
 
 	/**
-	 * Constructs a string representation of the entire machine. If a peg has a bean
-	 * above it, it is represented as a "1", otherwise it is represented as a "0".
-	 * At the very bottom is attached the slots with the bean counts.
+	 * Advances the machine one step. All the in-flight beans fall down one step to
+	 * the next peg. A new bean is inserted into the top of the machine if there are
+	 * beans remaining.
 	 * 
-	 * @return the string representation of the machine
+	 * @return whether there has been any status change. If there is no change, that
+	 *         means the machine is finished.
 	 */
-	public String toString() {
-		StringBuilder bld = new StringBuilder();
-		Formatter fmt = new Formatter(bld);
-		for (int yPos = 0; yPos < getSlotCount(); yPos++) {
-			int xBeanPos = getInFlightBeanXPos(yPos);
-			for (int xPos = 0; xPos <= yPos; xPos++) {
-				int spacing = (xPos == 0) ? getIndent(yPos) : (xspacing + 1);
-				String format = "%" + spacing + "d";
-				if (xPos == xBeanPos) {
-					fmt.format(format, 1);
-				} else {
-					fmt.format(format, 0);
-				}
+	public boolean advanceStep() {
+		// TODO: Implement
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0) {
+			return false;
+		}
+		final boolean b = this.inFlightCount > 0;
+		// Drop the beans in the bottom row, which are always the oldest ones in flight
+		final int bottom = this.rowIndex(slotCount - 1);
+		for (int lane = 0; lane < this.laneCount; lane++) {
+			final int landing = this.fallingBeans[bottom * this.laneCount + lane];
+			if (landing == NO_BEAN_IN_YPOS) {
+				break;
+			}
+			assert landing == this.inFlightBeans[this.inFlightHead];
+			final int slot = this.getBeanXPos(landing);
+			assert slot < slotCount;
+			this.addToSlot(slot, landing);
+			this.fallingBeans[bottom * this.laneCount + lane] = NO_BEAN_IN_YPOS;
+			this.inFlightHead = this.inFlightPosition(1);
+			this.inFlightCount--;
+		}
+		// The other beans hit the next peg. Rather than shifting every row down, move
+		// the top of the ring up one position; the emptied bottom row becomes the top.
+		if (this.store != null) {
+			for (int k = 0; k < this.inFlightCount; ++k) {
+				this.store.choose(this.inFlightBeans[this.inFlightPosition(k)]);
+			}
+		} else {
+			for (int k = 0; k < this.inFlightCount; ++k) {
+				this.beans[this.inFlightBeans[this.inFlightPosition(k)]].choose();
 			}
-			fmt.format("%n");
 		}
-		fmt.close();
-		return bld.toString() + getSlotString();
+		this.topRow = bottom;
+		this.insertBeansAtTop();
+		if (b) {
+			this.countSteps(1);
+		}
+		return b;
 	}
 
 	/**
 	 * Prints usage information.
 	 */
 	public static void showUsage() {
-		System.out.println("Usage: java BeanCounterLogic slot_count bean_count <luck | skill> [debug]");
+		System.out.println("Usage: java BeanCounterLogic slot_count bean_count <luck | skill> [debug] [--every n]"
+				+ " [--fps f] [--threads n] [--seed n] [--record file | --replay file] [--jmx]"
+				+ " [--converge threshold [--divergence chi2 | kl] [--window n]] [--bias p[,p...]]"
+				+ " [--checkpoint file [--checkpoint-every n]] [--resume file] [--lanes n]");
 		System.out.println("Example: java BeanCounterLogic 10 400 luck");
 		System.out.println("Example: java BeanCounterLogic 20 1000 skill debug");
+		System.out.println("Example: java BeanCounterLogic 200 100000 luck --every 1000 --fps 10");
+		System.out.println("Example: java BeanCounterLogic 10 10000000000 luck --threads 8");
+		System.out.println("Example: java BeanCounterLogic 10 400 luck --seed 42");
+		System.out.println("Example: java BeanCounterLogic 10 400 luck --record run.log");
+		System.out.println("Example: java BeanCounterLogic 10 400 luck --replay run.log");
+		System.out.println("Example: java BeanCounterLogic 100 100000 luck --every 100 --jmx");
+		System.out.println("Example: java BeanCounterLogic 20 100000000 luck --converge 0.0001 --window 10000");
+		System.out.println("Example: java BeanCounterLogic 4 100000 luck --bias 0.5,0.6,0.7");
+		System.out.println("Example: java BeanCounterLogic 10 100000000 luck --checkpoint run.ckpt");
+		System.out.println("Example: java BeanCounterLogic 10 100000000 luck --resume run.ckpt --checkpoint run.ckpt");
+		System.out.println("Example: java BeanCounterLogic 10 400 luck --lanes 4 debug");
 	}
 
 	/**
 	 * Auxiliary main method. Runs the machine in text mode with no bells and
 	 * whistles. It simply shows the slot bean count at the end.
 	 * 
-	 * @param args commandline arguments; see showUsage() for detailed information
+	 * @param args commandline arguments; see showUsage() for detailed information;
+	 *             --every and --fps imply debug; --converge stops a luck-mode run
+	 *             once the chosen divergence of the slot counts from the binomial
+	 *             distribution has stayed under the threshold for a window of
+	 *             landed beans; --bias gives the probability of going right at
+	 *             the pegs of each row, or of every row if there is one value,
+	 *             for a luck-mode run on a biased board; --checkpoint steps the
+	 *             machine and saves it every n steps (a million by default) and
+	 *             when the run ends; --resume carries on from a saved machine of
+	 *             the same size, mode and bean count instead of dropping fresh
+	 *             beans, with the seed the file holds; --lanes inserts up to n
+	 *             beans per step, on a machine whose rows hold n beans each
 	 */
 	public static void main(String[] args) {
-		boolean debug;
+		boolean debug = false;
+		long debugEvery = 1;
+		double debugFps = 0;
 		boolean luck;
 		int slotCount = 0;
-		int beanCount = 0;
+		long beanCount = 0;
+		int threads = 1;
+		long seed = new Random().nextLong();
+		Path recordPath = null;
+		Path replayPath = null;
+		boolean jmx = false;
+		double convergeThreshold = 0;
+		GoodnessOfFit.Divergence divergence = GoodnessOfFit.Divergence.CHI_SQUARE;
+		long convergeWindow = 1000;
+		double[][] biases = null;
+		Path checkpointPath = null;
+		long checkpointEvery = 1000000;
+		Path resumePath = null;
+		int laneCount = 1;
 
-		if (args.length != 3 && args.length != 4) {
+		if (args.length < 3) {
 			showUsage();
 			return;
 		}
 
 		try {
 			slotCount = Integer.parseInt(args[0]);
-			beanCount = Integer.parseInt(args[1]);
+			beanCount = Long.parseLong(args[1]);
 		} catch (NumberFormatException ne) {
 			showUsage();
 			return;
@@ -393,37 +701,351 @@ public class BeanCounterLogicImpl implements BeanCounterLogic {
 			return;
 		}
 
-		if (args.length == 4 && args[3].equals("debug")) {
-			debug = true;
-		} else {
-			debug = false;
+		for (int i = 3; i < args.length; i++) {
+			if (args[i].equals("debug")) {
+				debug = true;
+			} else if (args[i].equals("--every") && i + 1 < args.length) {
+				try {
+					debugEvery = Long.parseLong(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (debugEvery < 1) {
+					showUsage();
+					return;
+				}
+				debug = true;
+			} else if (args[i].equals("--fps") && i + 1 < args.length) {
+				try {
+					debugFps = Double.parseDouble(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (!(debugFps > 0)) {
+					showUsage();
+					return;
+				}
+				debug = true;
+			} else if (args[i].equals("--threads") && i + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (threads < 1) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--seed") && i + 1 < args.length) {
+				try {
+					seed = Long.parseLong(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--record") && i + 1 < args.length) {
+				recordPath = Paths.get(args[++i]);
+			} else if (args[i].equals("--replay") && i + 1 < args.length) {
+				replayPath = Paths.get(args[++i]);
+			} else if (args[i].equals("--checkpoint") && i + 1 < args.length) {
+				checkpointPath = Paths.get(args[++i]);
+			} else if (args[i].equals("--checkpoint-every") && i + 1 < args.length) {
+				try {
+					checkpointEvery = Long.parseLong(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (checkpointEvery < 1) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--resume") && i + 1 < args.length) {
+				resumePath = Paths.get(args[++i]);
+			} else if (args[i].equals("--lanes") && i + 1 < args.length) {
+				try {
+					laneCount = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (laneCount < 1) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--jmx")) {
+				jmx = true;
+			} else if (args[i].equals("--converge") && i + 1 < args.length) {
+				try {
+					convergeThreshold = Double.parseDouble(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (!(convergeThreshold > 0)) {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--divergence") && i + 1 < args.length) {
+				final String name = args[++i];
+				if (name.equals("chi2")) {
+					divergence = GoodnessOfFit.Divergence.CHI_SQUARE;
+				} else if (name.equals("kl")) {
+					divergence = GoodnessOfFit.Divergence.KULLBACK_LEIBLER;
+				} else {
+					showUsage();
+					return;
+				}
+			} else if (args[i].equals("--bias") && i + 1 < args.length) {
+				final String[] values = args[++i].split(",");
+				if (slotCount < 2 || (values.length != 1 && values.length != slotCount - 1)) {
+					showUsage();
+					return;
+				}
+				double[] rows = new double[slotCount - 1];
+				try {
+					for (int y = 0; y < rows.length; y++) {
+						rows[y] = Double.parseDouble(values[(values.length == 1) ? 0 : y]);
+					}
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				for (double q : rows) {
+					if (!(q >= 0.0 && q <= 1.0)) {
+						showUsage();
+						return;
+					}
+				}
+				biases = BiasedBeanCounterLogic.rowBiases(rows);
+			} else if (args[i].equals("--window") && i + 1 < args.length) {
+				try {
+					convergeWindow = Long.parseLong(args[++i]);
+				} catch (NumberFormatException ne) {
+					showUsage();
+					return;
+				}
+				if (convergeWindow < 1) {
+					showUsage();
+					return;
+				}
+			} else {
+				showUsage();
+				return;
+			}
 		}
 
-		// Create the internal logic
-		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(slotCount);
-		// Create the beans (in luck mode)
-		BeanImpl[] beans = new BeanImpl[beanCount];
-		for (int i = 0; i < beanCount; i++) {
-			beans[i] = new BeanImpl(slotCount, luck, new Random());
+		if ((recordPath != null || replayPath != null) && (!luck || (recordPath != null && replayPath != null))) {
+			// Only luck-mode decisions are random, and a run either records or replays
+			showUsage();
+			return;
+		}
+		if (convergeThreshold > 0 && (!luck || slotCount < 1)) {
+			// Only luck-mode beans follow the binomial distribution
+			showUsage();
+			return;
+		}
+		if (threads > 1 && (debug || convergeThreshold > 0 || checkpointPath != null)) {
+			// Only a bulk run drops beans on several threads; shown, converging or saved runs step
+			showUsage();
+			return;
+		}
+		if (resumePath != null && recordPath != null) {
+			// A decision log holds the paths of a run from its start
+			showUsage();
+			return;
+		}
+		if (biases != null && (!luck || threads > 1 || recordPath != null || replayPath != null)) {
+			// Biased pegs are drawn on one thread, and a decision log holds fair paths
+			showUsage();
+			return;
+		}
+		if (laneCount > 1 && (beanCount > Integer.MAX_VALUE || threads > 1 || recordPath != null || replayPath != null
+				|| biases != null)) {
+			// Only BeanCounterLogicImpl has lanes; it steps fair beans it keeps in memory
+			showUsage();
+			return;
+		}
+		GoodnessOfFit fit = null;
+		if (convergeThreshold > 0) {
+			fit = (biases != null) ? GoodnessOfFit.of(BiasedBeanCounterLogic.getDistribution(biases))
+					: GoodnessOfFit.binomial(slotCount);
+			fit.setStoppingRule(divergence, convergeThreshold, convergeWindow);
 		}
-		// Initialize the logic with the beans
-		logic.reset(beans);
 
-		if (debug) {
-			System.out.println(logic.toString());
+		try {
+			BoardWriter boardWriter = debug ? new BoardWriter(Channels.newChannel(System.out), debugEvery, debugFps) : null;
+			runExperiment(slotCount, beanCount, luck, boardWriter, threads, seed, recordPath, replayPath, jmx,
+					fit, biases, checkpointPath, checkpointEvery, resumePath, laneCount);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
 		}
+	}
 
-		// Perform the experiment
-		while (true) {
-			if (!logic.advanceStep()) {
-				break;
+	/**
+	 * Runs the machine in text mode as set up by the command line, and shows the
+	 * slot bean counts at the end.
+	 * 
+	 * @param slotCount       the number of slots in the machine
+	 * @param beanCount       the number of beans
+	 * @param luck            whether the beans are in luck mode
+	 * @param boardWriter     where to show the machine after the steps, or null
+	 *                        to run without stepping
+	 * @param threads         number of threads to drop the beans on
+	 * @param seed            master seed of the luck-mode paths or skill levels
+	 * @param recordPath      file to record luck-mode decisions to, or null
+	 * @param replayPath      file to replay luck-mode decisions from, or null
+	 * @param jmx             whether to publish the metrics of the machine over
+	 *                        JMX while it runs
+	 * @param fit             goodness of fit with a stopping rule to step the
+	 *                        machine until it converges, or null to drop every
+	 *                        bean
+	 * @param biases          probabilities of going right at the pegs, as for
+	 *                        BiasedBeanCounterLogic, or null for fair pegs
+	 * @param checkpointPath  file to save the machine to as it steps, or null
+	 * @param checkpointEvery number of steps between saves
+	 * @param resumePath      file to restore the machine from instead of
+	 *                        dropping fresh beans, or null
+	 * @param laneCount       the number of beans a row holds; above 1 the beans
+	 *                        are stepped through BeanCounterLogicImpl
+	 * @throws IOException if the decision log or a checkpoint cannot be written
+	 *                     or read, or does not match the slot and bean counts
+	 */
+	private static void runExperiment(int slotCount, long beanCount, boolean luck, BoardWriter boardWriter, int threads,
+			long seed, Path recordPath, Path replayPath, boolean jmx, GoodnessOfFit fit,
+			double[][] biases, Path checkpointPath, long checkpointEvery, Path resumePath, int laneCount)
+			throws IOException {
+		// Create the internal logic and initialize it with the beans. Luck-mode beans
+		// are only counted: their paths are drawn as random bits keyed by the seed and
+		// the bean number, or read back from a decision log. The same seed gives the
+		// same result for any number of threads.
+		AbstractBeanCounterLogic logic;
+		if (laneCount > 1) {
+			// Several beans enter per step, so each bean's progress must be kept; the
+			// beans are loaded from the source as they are dropped
+			BeanCounterLogicImpl laneLogic = new BeanCounterLogicImpl(slotCount, laneCount);
+			if (resumePath == null) {
+				laneLogic.reset(new SeededBeanSource(slotCount, luck, seed, beanCount));
+			}
+			logic = laneLogic;
+		} else if (biases != null) {
+			// Biased pegs are drawn one at a time in flight, and landing slots are drawn
+			// from the exact distribution in bulk
+			BiasedBeanCounterLogic biasedLogic = new BiasedBeanCounterLogic(slotCount, biases,
+					new XoroshiroRandomSource(seed));
+			if (resumePath == null) {
+				biasedLogic.reset(beanCount);
+			}
+			logic = biasedLogic;
+		} else if (luck) {
+			if (replayPath != null) {
+				// The log must come from a machine of the same size, and hold a path for
+				// every bean to drop
+				final DecisionLog.Reader log = new DecisionLog.Reader(replayPath);
+				if (log.getSlotCount() != slotCount) {
+					throw new IOException(replayPath + " was recorded with " + log.getSlotCount() + " slots, not "
+							+ slotCount);
+				}
+				if (log.getBeanCount() < beanCount) {
+					throw new IOException(replayPath + " holds " + log.getBeanCount() + " beans, fewer than "
+							+ beanCount);
+				}
+				logic = new ReplayBeanCounterLogic(log);
+			} else {
+				logic = new LuckBeanCounterLogic(slotCount, seed);
+			}
+		} else {
+			// Skill-mode beans never need their pegs simulated, and their skill levels
+			// are made up as they are dropped
+			SkillBeanCounterLogic skillLogic = new SkillBeanCounterLogic(slotCount);
+			if (resumePath == null) {
+				skillLogic.reset(new SeededBeanSource(slotCount, luck, seed, beanCount));
+			}
+			logic = skillLogic;
+		}
+		if (fit != null) {
+			logic.setFit(fit);
+		}
+		if (resumePath != null) {
+			// The saved machine carries on in place of fresh beans; the fit takes in the
+			// beans already in the slots
+			logic.restore(resumePath);
+			final long savedBeanCount = logic.getRemainingBeanCountLong() + logic.getInFlightBeanCount()
+					+ logic.stats.getCount();
+			if (savedBeanCount != beanCount) {
+				throw new IOException(resumePath + " holds " + savedBeanCount + " beans, not " + beanCount);
+			}
+		}
+
+		// The log and the MBean are closed however the run ends, so a failed run
+		// still leaves a log that holds the paths drawn so far
+		final EngineMetrics metrics = jmx ? EngineMetrics.register(logic) : null;
+		try (DecisionLog.Writer recorder = (recordPath != null) ? new DecisionLog.Writer(recordPath, slotCount) : null) {
+			if (luck && biases == null && laneCount == 1 && resumePath == null) {
+				LuckBeanCounterLogic luckLogic = (LuckBeanCounterLogic) logic;
+				luckLogic.setRecorder(recorder);
+				luckLogic.reset(beanCount);
+			}
+
+			// Perform the experiment
+			if (boardWriter != null || fit != null || checkpointPath != null) {
+				// Step by step. Frames are rendered as chosen and written by a background
+				// thread, and the final state is always shown; the fit is updated as each
+				// bean lands and stops the run once it has converged; the machine is saved
+				// every checkpointEvery steps and where the run stops.
+				boolean shown = (boardWriter == null) || boardWriter.offer(logic);
+				long sinceCheckpoint = 0;
+				while ((fit == null || !fit.isConverged()) && logic.advanceStep()) {
+					if (boardWriter != null) {
+						shown = boardWriter.offer(logic);
+					}
+					if (checkpointPath != null && ++sinceCheckpoint == checkpointEvery) {
+						logic.checkpoint(checkpointPath);
+						sinceCheckpoint = 0;
+					}
+				}
+				if (checkpointPath != null) {
+					logic.checkpoint(checkpointPath);
+				}
+				if (boardWriter != null) {
+					if (!shown) {
+						boardWriter.show(logic);
+					}
+					boardWriter.close();
+					System.out.flush();
+				}
+			} else if (threads > 1) {
+				// Spread the beans over a fork/join pool, each worker with its own histogram
+				ForkJoinPool pool = new ForkJoinPool(threads);
+				try {
+					if (luck) {
+						((LuckBeanCounterLogic) logic).runToCompletion(pool);
+					} else {
+						((SkillBeanCounterLogic) logic).runToCompletion(pool);
+					}
+				} finally {
+					pool.shutdown();
+				}
+			} else {
+				logic.runToCompletion();
 			}
-			if (debug) {
-				System.out.println(logic.toString());
+		} finally {
+			if (metrics != null) {
+				metrics.close();
 			}
 		}
 		// display experimental results
 		System.out.println("Slot bean counts:");
 		System.out.println(logic.getSlotString());
+		if (fit != null) {
+			System.out.println((fit.isConverged() ? "Converged after " : "Did not converge after ") + fit.getCount()
+					+ " of " + beanCount + " beans");
+			System.out.println("Chi-square: " + fit.getChiSquare() + " with " + fit.getDegreesOfFreedom()
+					+ " degrees of freedom; chi-square divergence: " + fit.getChiSquareDivergence()
+					+ "; Kullback-Leibler divergence: " + fit.getKullbackLeibler());
+		}
 	}
 }
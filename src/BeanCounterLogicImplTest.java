@@ -0,0 +1,426 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests the parts of BeanCounterLogicImpl that go beyond the original
+ * BeanCounterLogic contract. The invariants of the original contract are
+ * checked by BeanCounterLogicTest.
+ */
+
+public class BeanCounterLogicImplTest {
+	private static final int SLOT_COUNT = 6;
+	private static final int BEAN_COUNT = 20;
+
+	/**
+	 * Creates beans with a fixed seed per bean so that two sets of beans take the
+	 * same paths.
+	 *
+	 * @param isLuck whether the beans are in luck mode
+	 * @return the beans
+	 */
+	private static Bean[] createBeans(boolean isLuck) {
+		Bean[] beans = new Bean[BEAN_COUNT];
+		for (int i = 0; i < BEAN_COUNT; i++) {
+			beans[i] = new BeanImpl(SLOT_COUNT, isLuck, new Random(i));
+		}
+		return beans;
+	}
+
+	/**
+	 * Test case for int advanceSteps(int n) and long runToCompletion().
+	 * Preconditions: None.
+	 * Execution steps: Run one machine with advanceStep() and another with advanceSteps(3)
+	 *                  followed by runToCompletion().
+	 * Invariants: advanceSteps(3) takes 3 steps, both machines take the same number of steps
+	 *             and end up with the same slot counts.
+	 */
+	@Test
+	public void testBulkAdvance() {
+		BeanCounterLogicImpl stepped = new BeanCounterLogicImpl(SLOT_COUNT);
+		stepped.reset(createBeans(true));
+		long steps = 0;
+		while (stepped.advanceStep()) {
+			steps++;
+		}
+		BeanCounterLogicImpl bulk = new BeanCounterLogicImpl(SLOT_COUNT);
+		bulk.reset(createBeans(true));
+		assertEquals(3, bulk.advanceSteps(3));
+		assertEquals(steps - 3, bulk.runToCompletion());
+		assertEquals(0, bulk.advanceSteps(3));
+		assertArrayEquals(MachineStates.getSlotCounts(stepped), MachineStates.getSlotCounts(bulk));
+	}
+
+	/**
+	 * Test case for BeanCounterLogicImpl(int slotCount, int laneCount).
+	 * Preconditions: None.
+	 * Execution steps: For luck and skill beans, step machines with several lane counts to
+	 *                  completion, then repeat one in mid-flight and finish it.
+	 * Invariants: Every step inserts up to laneCount beans and no row holds more, the machine
+	 *             drains in ceil(BEAN_COUNT / laneCount) - 1 + SLOT_COUNT steps, and the slot
+	 *             counts equal those of a single-lane machine; for skill beans, also after the
+	 *             repeats.
+	 */
+	@Test
+	public void testLanes() {
+		for (boolean isLuck : new boolean[] {true, false}) {
+			BeanCounterLogicImpl single = new BeanCounterLogicImpl(SLOT_COUNT);
+			single.reset(createBeans(isLuck));
+			single.runToCompletion();
+			for (int laneCount : new int[] {1, 2, 3, 7, BEAN_COUNT + 1}) {
+				BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT, laneCount);
+				assertEquals(laneCount, logic.getLaneCount());
+				logic.reset(createBeans(isLuck));
+				long steps = 0;
+				boolean more = true;
+				while (more) {
+					int inFlight = 0;
+					for (int y = 0; y < SLOT_COUNT; y++) {
+						for (int lane = 0; lane < laneCount; lane++) {
+							if (logic.getInFlightBeanXPos(y, lane) != BeanCounterLogic.NO_BEAN_IN_YPOS) {
+								inFlight++;
+							}
+						}
+					}
+					assertEquals(logic.getInFlightBeanCount(), inFlight);
+					final int remaining = logic.getRemainingBeanCount();
+					more = logic.advanceStep();
+					assertEquals(Math.max(0, remaining - laneCount), logic.getRemainingBeanCount());
+					if (more) {
+						steps++;
+					}
+				}
+				assertEquals((BEAN_COUNT + laneCount - 1) / laneCount - 1 + SLOT_COUNT, steps);
+				assertArrayEquals(MachineStates.getSlotCounts(single), MachineStates.getSlotCounts(logic));
+				logic.repeat();
+				logic.advanceSteps(2);
+				logic.repeat();
+				logic.runToCompletion();
+				if (!isLuck) {
+					// Luck beans draw new paths when they are dropped again
+					assertArrayEquals(MachineStates.getSlotCounts(single), MachineStates.getSlotCounts(logic));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test case for boolean advanceStep() and int getInFlightBeanXPos(int yPos, int lane).
+	 * Preconditions: None.
+	 * Execution steps: On a board of 41 slots, step a few beans and more beans than rows, in
+	 *                  one lane and in three, to completion. Alongside, step copies of the beans
+	 *                  down a reference board that shifts every row down one at each step.
+	 * Invariants: The machine takes more than slotCount steps, so its ring of rows wraps, and
+	 *             after every step each row and lane shows the bean of the reference board.
+	 */
+	@Test
+	public void testRingWrapsOnTallBoard() {
+		final int slotCount = 41;
+		for (int laneCount : new int[] {1, 3}) {
+			for (int beanCount : new int[] {4, 100}) {
+				Bean[] beans = new Bean[beanCount];
+				Bean[] copies = new Bean[beanCount];
+				for (int i = 0; i < beanCount; i++) {
+					beans[i] = new BeanImpl(slotCount, false, new Random(i));
+					copies[i] = new BeanImpl(slotCount, false, new Random(i));
+				}
+				BeanCounterLogicImpl logic = new BeanCounterLogicImpl(slotCount, laneCount);
+				logic.reset(beans);
+				Bean[][] rows = new Bean[slotCount][laneCount];
+				int nextBean = 0;
+				int steps = 0;
+				while (true) {
+					// Shift the reference rows down and drop new beans into the top row
+					for (int y = slotCount - 1; y > 0; y--) {
+						rows[y] = rows[y - 1];
+						for (Bean bean : rows[y]) {
+							if (bean != null) {
+								bean.choose();
+							}
+						}
+					}
+					rows[0] = new Bean[laneCount];
+					for (int lane = 0; lane < laneCount && nextBean < beanCount; lane++) {
+						rows[0][lane] = copies[nextBean++];
+						rows[0][lane].reset();
+					}
+					for (int y = 0; y < slotCount; y++) {
+						for (int lane = 0; lane < laneCount; lane++) {
+							final int xPos = (rows[y][lane] != null) ? rows[y][lane].getXPos()
+									: BeanCounterLogic.NO_BEAN_IN_YPOS;
+							assertEquals("step " + steps + ", row " + y + ", lane " + lane, xPos,
+									logic.getInFlightBeanXPos(y, lane));
+						}
+					}
+					if (!logic.advanceStep()) {
+						break;
+					}
+					steps++;
+				}
+				assertTrue(steps > slotCount);
+				assertEquals(beanCount, logic.getInSlotBeanCount());
+			}
+		}
+	}
+
+	/**
+	 * Test case for long advanceStepsUntil(long deadlineNanos).
+	 * Preconditions: None.
+	 * Execution steps: Call advanceStepsUntil() with a deadline that has passed, then with one far away.
+	 * Invariants: The first call stops after a bounded number of steps, the second finishes the machine.
+	 */
+	@Test
+	public void testAdvanceStepsUntil() {
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+		logic.reset(createBeans(false));
+		long steps = logic.advanceStepsUntil(System.nanoTime() - 1);
+		assertTrue(steps <= BeanCounterLogic.STEPS_PER_CLOCK_CHECK);
+		logic.advanceStepsUntil(System.nanoTime() + 60_000_000_000L);
+		assertEquals(0, logic.getRemainingBeanCount());
+		int inSlotBeanCount = 0;
+		for (int count : MachineStates.getSlotCounts(logic)) {
+			inSlotBeanCount += count;
+		}
+		assertEquals(BEAN_COUNT, inSlotBeanCount);
+	}
+
+	/**
+	 * Test case for void reset(BeanStore store).
+	 * Preconditions: None.
+	 * Execution steps: Run one machine on a BeanStore and another on BeanImpl objects that
+	 *                  share a Random seeded like the store's, through a run, repeat and a run.
+	 * Invariants: Both machines draw the same numbers in the same order, so in-flight
+	 *             positions and slot counts are identical after every step.
+	 */
+	@Test
+	public void testBeanStoreMatchesBeanObjects() {
+		for (boolean isLuck : new boolean[] {true, false}) {
+			Random rand = new Random(5);
+			Bean[] beans = new Bean[BEAN_COUNT];
+			for (int i = 0; i < BEAN_COUNT; i++) {
+				beans[i] = new BeanImpl(SLOT_COUNT, isLuck, rand);
+			}
+			BeanStore store = new BeanStore(SLOT_COUNT, isLuck, RandomSource.of(new Random(5)), BEAN_COUNT);
+			BeanCounterLogicImpl expected = new BeanCounterLogicImpl(SLOT_COUNT);
+			BeanCounterLogicImpl actual = new BeanCounterLogicImpl(SLOT_COUNT);
+			expected.reset(beans);
+			actual.reset(store);
+			for (int round = 0; round < 2; round++) {
+				boolean more = true;
+				while (more) {
+					for (int y = 0; y < SLOT_COUNT; y++) {
+						assertEquals(expected.getInFlightBeanXPos(y), actual.getInFlightBeanXPos(y));
+					}
+					more = expected.advanceStep();
+					assertEquals(more, actual.advanceStep());
+				}
+				assertArrayEquals(MachineStates.getSlotCounts(expected), MachineStates.getSlotCounts(actual));
+				expected.repeat();
+				actual.repeat();
+			}
+		}
+	}
+
+	/**
+	 * Test case for void upperHalf() and void lowerHalf().
+	 * Preconditions: None.
+	 * Execution steps: For luck and skill beans, run a machine to completion and take each
+	 *                  half; work out by hand which beans each half leaves.
+	 * Invariants: upperHalf() removes BEAN_COUNT / 2 beans starting from the first slot, and
+	 *             lowerHalf() removes as many starting from the last slot.
+	 */
+	@Test
+	public void testHalves() {
+		for (boolean isLuck : new boolean[] {true, false}) {
+			for (boolean upper : new boolean[] {true, false}) {
+				BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+				logic.reset(createBeans(isLuck));
+				logic.runToCompletion();
+				int[] expected = MachineStates.getSlotCounts(logic);
+				int beansToRemove = BEAN_COUNT / 2;
+				for (int k = 0; k < SLOT_COUNT && beansToRemove > 0; k++) {
+					final int i = upper ? k : SLOT_COUNT - 1 - k;
+					final int removed = Math.min(beansToRemove, expected[i]);
+					expected[i] -= removed;
+					beansToRemove -= removed;
+				}
+				if (upper) {
+					logic.upperHalf();
+				} else {
+					logic.lowerHalf();
+				}
+				assertArrayEquals(expected, MachineStates.getSlotCounts(logic));
+			}
+		}
+	}
+
+	/**
+	 * Test case for void reset(BeanSource source).
+	 * Preconditions: None.
+	 * Execution steps: For luck and skill beans, reset two machines with separate sources of
+	 *                  the same seed and run them to completion.
+	 * Invariants: Both machines end up with the same bean count in each slot.
+	 */
+	@Test
+	public void testResetFromSource() {
+		for (boolean isLuck : new boolean[] {true, false}) {
+			int[][] slotCounts = new int[2][];
+			for (int k = 0; k < slotCounts.length; k++) {
+				BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+				logic.reset(new SeededBeanSource(SLOT_COUNT, isLuck, 42, BEAN_COUNT));
+				logic.runToCompletion();
+				slotCounts[k] = MachineStates.getSlotCounts(logic);
+			}
+			assertArrayEquals(slotCounts[0], slotCounts[1]);
+		}
+	}
+
+	/**
+	 * Test case for void repeat().
+	 * Preconditions: None.
+	 * Execution steps: Reset with skill-mode beans, then repeat many times, each time after a
+	 *                  different number of steps, and finally run to completion.
+	 * Invariants: Every bean is scooped up exactly once per repeat, so the remaining count
+	 *             stays right and the final slot counts equal those of a single run.
+	 */
+	@Test
+	public void testRepeatKeepsEveryBean() {
+		Bean[] beans = createBeans(false);
+		BeanCounterLogicImpl expected = new BeanCounterLogicImpl(SLOT_COUNT);
+		expected.reset(beans);
+		expected.runToCompletion();
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+		logic.reset(beans);
+		for (int steps = 0; steps < BEAN_COUNT + SLOT_COUNT; steps++) {
+			logic.advanceSteps(steps);
+			logic.repeat();
+			assertEquals(BEAN_COUNT - 1, logic.getRemainingBeanCount());
+			assertEquals(1, logic.getInFlightBeanCount());
+		}
+		logic.runToCompletion();
+		assertArrayEquals(MachineStates.getSlotCounts(expected), MachineStates.getSlotCounts(logic));
+	}
+
+	/**
+	 * Test case for void keepRankRange(long fromRank, long toRank) and
+	 * int getPercentileSlot(double p).
+	 * Preconditions: None.
+	 * Execution steps: Run skill-mode beans to completion on both engines, then keep every
+	 *                  possible rank range.
+	 * Invariants: The slots hold exactly the beans of the kept ranks, the statistics match
+	 *             the remaining beans, and every percentile names the slot of its nearest-rank
+	 *             bean.
+	 */
+	@Test
+	public void testKeepRankRange() {
+		Bean[] beans = createBeans(false);
+		for (int from = 0; from <= BEAN_COUNT; from++) {
+			for (int to = from; to <= BEAN_COUNT; to++) {
+				AbstractBeanCounterLogic[] engines = {
+					new BeanCounterLogicImpl(SLOT_COUNT), new SkillBeanCounterLogic(SLOT_COUNT)
+				};
+				for (AbstractBeanCounterLogic logic : engines) {
+					logic.reset(beans);
+					logic.runToCompletion();
+					// The slot of each bean, in rank order
+					int[] sorted = new int[BEAN_COUNT];
+					int rank = 0;
+					for (int i = 0; i < SLOT_COUNT; i++) {
+						for (int k = 0; k < logic.getSlotBeanCount(i); k++) {
+							sorted[rank++] = i;
+						}
+					}
+					logic.keepRankRange(from, to);
+					int[] expected = new int[SLOT_COUNT];
+					double sum = 0;
+					for (int r = from; r < to; r++) {
+						expected[sorted[r]]++;
+						sum += sorted[r];
+					}
+					assertArrayEquals(expected, MachineStates.getSlotCounts(logic));
+					assertEquals((to > from) ? sum / (to - from) : 0.0, logic.getAverageSlotBeanCount(), 1e-9);
+					for (double p = 0.0; p <= 1.0; p += 0.05) {
+						int expectedSlot = BeanCounterLogic.NO_BEAN_IN_YPOS;
+						if (to > from) {
+							expectedSlot = sorted[from + (int) BeanCounterLogic.nearestRank(p, to - from)];
+						}
+						assertEquals(expectedSlot, logic.getPercentileSlot(p));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Counts the change events of a machine.
+	 */
+	private static class CountingListener implements BeanCounterListener {
+		final int[] slotEvents = new int[SLOT_COUNT];
+		int slotsEvents;
+		int inFlightEvents;
+
+		@Override
+		public void slotChanged(int slot) {
+			slotEvents[slot]++;
+		}
+
+		@Override
+		public void slotsChanged() {
+			slotsEvents++;
+		}
+
+		@Override
+		public void inFlightChanged() {
+			inFlightEvents++;
+		}
+	}
+
+	/**
+	 * Test case for boolean addChangeListener(BeanCounterListener listener) and boolean
+	 * removeChangeListener(BeanCounterListener listener).
+	 * Preconditions: None.
+	 * Execution steps: For luck and skill beans, listen to a machine while it is reset, stepped
+	 *                  to completion one step at a time, halved, repeated and run to
+	 *                  completion, then stop listening and reset it again.
+	 * Invariants: Each single step sends one in-flight event and one slot event per bean that
+	 *             landed, so a run sends as many slot events for a slot as it holds beans;
+	 *             reset, repeat and upperHalf() send a slots event, and a removed listener
+	 *             gets nothing more.
+	 */
+	@Test
+	public void testChangeListener() {
+		for (boolean isLuck : new boolean[] {true, false}) {
+			BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+			CountingListener listener = new CountingListener();
+			assertTrue(logic.addChangeListener(listener));
+			logic.reset(createBeans(isLuck));
+			assertEquals(1, listener.slotsEvents);
+			assertEquals(1, listener.inFlightEvents);
+			int steps = 0;
+			while (logic.advanceStep()) {
+				steps++;
+			}
+			assertEquals(1 + steps, listener.inFlightEvents);
+			assertArrayEquals(MachineStates.getSlotCounts(logic), listener.slotEvents);
+			logic.upperHalf();
+			assertEquals(2, listener.slotsEvents);
+			logic.repeat();
+			assertEquals(3, listener.slotsEvents);
+			Arrays.fill(listener.slotEvents, 0);
+			logic.runToCompletion();
+			assertArrayEquals(MachineStates.getSlotCounts(logic), listener.slotEvents);
+			assertTrue(logic.removeChangeListener(listener));
+			assertFalse(logic.removeChangeListener(listener));
+			final int inFlightEvents = listener.inFlightEvents;
+			logic.reset(createBeans(isLuck));
+			logic.runToCompletion();
+			assertEquals(3, listener.slotsEvents);
+			assertEquals(inFlightEvents, listener.inFlightEvents);
+		}
+	}
+}
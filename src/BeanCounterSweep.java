@@ -0,0 +1,440 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * BeanCounterSweep: Runs a grid of experiments (slot count x bean count x
+ * luck/skill x seed) in one JVM, with the same result for each as running
+ * "java BeanCounterLogicImpl slot_count bean_count mode --seed seed" on its
+ * own.
+ *
+ * <p>All experiments share one ForkJoinPool with a fixed number of threads.
+ * Each experiment is a task on the pool, and a large one splits its beans into
+ * tasks of its own on the same pool (see runToCompletion(ForkJoinPool) of the
+ * luck and skill engines), which idle threads steal; so a few large
+ * experiments keep every thread busy as well as many small ones. Experiments
+ * are submitted largest first, so that no large one is left running alone at
+ * the end.
+ *
+ * <p>Results are written as CSV, one row per experiment, as the experiments
+ * finish: the row order is the finishing order, and the first column is the
+ * experiment's position in the grid. Rows are collected into a direct buffer
+ * on the main thread and written to the channel whenever the buffer fills up
+ * or no finished row is waiting, so a long sweep can be watched while it runs.
+ */
+
+public final class BeanCounterSweep {
+	/**
+	 * Size of the buffer rows are collected in.
+	 */
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * The first row of the output.
+	 */
+	static final String HEADER = "index,slot_count,bean_count,mode,seed,mean,stddev,wall_millis,slot_counts";
+
+	/**
+	 * One experiment of the grid.
+	 */
+	static final class Experiment {
+		final int index;
+		final int slotCount;
+		final long beanCount;
+		final boolean luck;
+		final long seed;
+
+		Experiment(int index, int slotCount, long beanCount, boolean luck, long seed) {
+			this.index = index;
+			this.slotCount = slotCount;
+			this.beanCount = beanCount;
+			this.luck = luck;
+			this.seed = seed;
+		}
+
+		/**
+		 * Returns a rough measure of the time the experiment takes: a luck bean
+		 * draws a word per 64 pegs, and a skill bean looks up one skill level.
+		 *
+		 * @return the estimated cost
+		 */
+		double getCost() {
+			final int words = this.luck ? Math.max(1, (this.slotCount + 62) / 64) : 1;
+			return (double) this.beanCount * words + this.slotCount;
+		}
+	}
+
+	/**
+	 * Collects CSV rows in a buffer and writes them to a channel.
+	 */
+	static final class CsvWriter implements AutoCloseable {
+		private final WritableByteChannel channel;
+		private final boolean closeChannel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+		/**
+		 * Constructor - writes the header row into the buffer.
+		 *
+		 * @param channel      where to write the rows
+		 * @param closeChannel whether close() closes the channel
+		 */
+		CsvWriter(WritableByteChannel channel, boolean closeChannel) {
+			this.channel = channel;
+			this.closeChannel = closeChannel;
+			this.buffer.put((HEADER + "\n").getBytes(StandardCharsets.US_ASCII));
+		}
+
+		/**
+		 * Adds a row, writing out the buffer first if the row does not fit.
+		 *
+		 * @param row the row, without the line end
+		 * @throws IOException if the channel cannot be written
+		 */
+		void write(String row) throws IOException {
+			final byte[] bytes = (row + "\n").getBytes(StandardCharsets.US_ASCII);
+			if (bytes.length > this.buffer.remaining()) {
+				this.flush();
+			}
+			if (bytes.length > this.buffer.remaining()) {
+				// A row of a very wide machine goes out on its own
+				final ByteBuffer wide = ByteBuffer.wrap(bytes);
+				while (wide.hasRemaining()) {
+					this.channel.write(wide);
+				}
+			} else {
+				this.buffer.put(bytes);
+			}
+		}
+
+		/**
+		 * Writes out the buffered rows.
+		 *
+		 * @throws IOException if the channel cannot be written
+		 */
+		void flush() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		/**
+		 * Writes out the buffered rows and closes the channel if it was asked to.
+		 *
+		 * @throws IOException if the channel cannot be written
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				this.flush();
+			} finally {
+				if (this.closeChannel) {
+					this.channel.close();
+				}
+			}
+		}
+	}
+
+	private BeanCounterSweep() {
+	}
+
+	/**
+	 * Runs one experiment, using the pool for its beans.
+	 *
+	 * @param experiment the experiment
+	 * @param pool       the pool to split the beans over, or null for this thread
+	 * @return the CSV row of the result
+	 */
+	static String run(Experiment experiment, ForkJoinPool pool) {
+		final long start = System.nanoTime();
+		AbstractBeanCounterLogic logic;
+		if (experiment.luck) {
+			LuckBeanCounterLogic luckLogic = new LuckBeanCounterLogic(experiment.slotCount, experiment.seed);
+			luckLogic.reset(experiment.beanCount);
+			luckLogic.runToCompletion(pool);
+			logic = luckLogic;
+		} else {
+			SkillBeanCounterLogic skillLogic = new SkillBeanCounterLogic(experiment.slotCount);
+			skillLogic.reset(new SeededBeanSource(experiment.slotCount, false, experiment.seed, experiment.beanCount));
+			skillLogic.runToCompletion(pool);
+			logic = skillLogic;
+		}
+		final double wallMillis = (System.nanoTime() - start) / 1e6;
+		StringBuilder row = new StringBuilder();
+		row.append(experiment.index).append(',').append(experiment.slotCount).append(',').append(experiment.beanCount)
+				.append(',').append(experiment.luck ? "luck" : "skill").append(',').append(experiment.seed).append(',')
+				.append(number(logic.getAverageSlotBeanCount())).append(',')
+				.append(number(logic.getSlotBeanStandardDeviation())).append(',')
+				.append(String.format(Locale.ROOT, "%.3f", wallMillis)).append(',');
+		for (int i = 0; i < experiment.slotCount; i++) {
+			row.append((i == 0) ? "" : " ").append(logic.getSlotBeanCountLong(i));
+		}
+		return row.toString();
+	}
+
+	/**
+	 * Formats a statistic, leaving the field empty when there is none, as for a
+	 * machine without beans.
+	 *
+	 * @param value the statistic
+	 * @return the field
+	 */
+	private static String number(double value) {
+		return Double.isFinite(value) ? Double.toString(value) : "";
+	}
+
+	/**
+	 * Runs the experiments on a pool and writes a row for each as it finishes.
+	 *
+	 * @param experiments the experiments
+	 * @param threads     number of threads of the pool
+	 * @param out         where to write the rows
+	 * @throws IOException if the rows cannot be written, or the thread is
+	 *                     interrupted while waiting for them
+	 */
+	static void sweep(List<Experiment> experiments, int threads, CsvWriter out) throws IOException {
+		final ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			final CompletionService<String> done = new ExecutorCompletionService<>(pool);
+			final List<Experiment> order = new ArrayList<>(experiments);
+			order.sort(Comparator.comparingDouble(Experiment::getCost).reversed());
+			for (Experiment experiment : order) {
+				done.submit(() -> run(experiment, pool));
+			}
+			for (int k = 0; k < order.size(); k++) {
+				Future<String> row = done.poll();
+				if (row == null) {
+					// Nothing is ready: let the rows so far be seen while waiting
+					out.flush();
+					row = done.take();
+				}
+				out.write(row.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the experiments");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Parses a comma-separated list of numbers, where first..last stands for all
+	 * the numbers from first to last.
+	 *
+	 * @param list the list
+	 * @return the numbers
+	 * @throws IllegalArgumentException if the list is malformed
+	 */
+	static long[] parseLongs(String list) {
+		List<Long> values = new ArrayList<>();
+		for (String part : list.split(",")) {
+			final int range = part.indexOf("..");
+			if (range < 0) {
+				values.add(Long.parseLong(part.trim()));
+				continue;
+			}
+			final long first = Long.parseLong(part.substring(0, range).trim());
+			final long last = Long.parseLong(part.substring(range + 2).trim());
+			if (last < first || last - first >= Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Bad range: " + part);
+			}
+			for (long v = first; v <= last; v++) {
+				values.add(v);
+			}
+		}
+		return values.stream().mapToLong(Long::longValue).toArray();
+	}
+
+	/**
+	 * Adds every combination of the given lists to the experiments.
+	 *
+	 * @param experiments where to add the experiments
+	 * @param slotCounts  list of slot counts, as for parseLongs()
+	 * @param beanCounts  list of bean counts, as for parseLongs()
+	 * @param modes       comma-separated list of luck and skill
+	 * @param seeds       list of seeds, as for parseLongs()
+	 * @throws IllegalArgumentException if a list is malformed, a slot count is not
+	 *                                  positive, or a bean count is negative
+	 */
+	static void addGrid(List<Experiment> experiments, String slotCounts, String beanCounts, String modes,
+			String seeds) {
+		final long[] slotValues = parseLongs(slotCounts);
+		final long[] beanValues = parseLongs(beanCounts);
+		final long[] seedValues = parseLongs(seeds);
+		final String[] modeNames = modes.split(",");
+		for (long slots : slotValues) {
+			if (slots < 1 || slots > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Bad slot count: " + slots);
+			}
+		}
+		for (long beans : beanValues) {
+			if (beans < 0) {
+				throw new IllegalArgumentException("Bad bean count: " + beans);
+			}
+		}
+		for (String mode : modeNames) {
+			if (!mode.trim().equals("luck") && !mode.trim().equals("skill")) {
+				throw new IllegalArgumentException("Bad mode: " + mode);
+			}
+		}
+		for (long slots : slotValues) {
+			for (long beans : beanValues) {
+				for (String mode : modeNames) {
+					for (long seed : seedValues) {
+						experiments.add(new Experiment(experiments.size(), (int) slots, beans,
+								mode.trim().equals("luck"), seed));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads the experiments of a grid spec. Each line holds a slot count list, a
+	 * bean count list, a mode list and a seed list, separated by blanks, and adds
+	 * every combination of them; "10 400 luck 1" is a single experiment. Blank
+	 * lines and lines starting with # are skipped.
+	 *
+	 * @param lines the lines of the spec
+	 * @return the experiments, in the order of the lines
+	 * @throws IllegalArgumentException if a line is malformed
+	 */
+	static List<Experiment> parseSpec(List<String> lines) {
+		List<Experiment> experiments = new ArrayList<>();
+		for (int n = 0; n < lines.size(); n++) {
+			final String line = lines.get(n).trim();
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			final String[] fields = line.split("\\s+");
+			if (fields.length != 4) {
+				throw new IllegalArgumentException("Line " + (n + 1) + ": expected slot_counts bean_counts modes seeds");
+			}
+			try {
+				addGrid(experiments, fields[0], fields[1], fields[2], fields[3]);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Line " + (n + 1) + ": " + e.getMessage(), e);
+			}
+		}
+		return experiments;
+	}
+
+	/**
+	 * Prints usage information.
+	 */
+	public static void showUsage() {
+		System.out.println("Usage: java BeanCounterSweep (--spec file"
+				+ " | --slots list --beans list --modes list --seeds list) [--threads n] [--out file.csv]");
+		System.out.println("A list is comma-separated, and first..last stands for a range; a spec file has one"
+				+ " \"slots beans modes seeds\" grid per line.");
+		System.out.println("Example: java BeanCounterSweep --slots 10,100,1000 --beans 1000000 --modes luck,skill"
+				+ " --seeds 1..20 --out sweep.csv");
+		System.out.println("Example: java BeanCounterSweep --spec grid.txt --threads 8 --out sweep.csv");
+	}
+
+	/**
+	 * Runs the sweep given on the command line.
+	 *
+	 * @param args commandline arguments; see showUsage() for detailed information
+	 */
+	public static void main(String[] args) {
+		Path spec = null;
+		String slotCounts = null;
+		String beanCounts = null;
+		String modes = "luck";
+		String seeds = "0";
+		int threads = Runtime.getRuntime().availableProcessors();
+		Path out = null;
+
+		List<Experiment> experiments;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if (i + 1 >= args.length) {
+					showUsage();
+					return;
+				}
+				final String value = args[++i];
+				switch (args[i - 1]) {
+				case "--spec":
+					spec = Paths.get(value);
+					break;
+				case "--slots":
+					slotCounts = value;
+					break;
+				case "--beans":
+					beanCounts = value;
+					break;
+				case "--modes":
+					modes = value;
+					break;
+				case "--seeds":
+					seeds = value;
+					break;
+				case "--threads":
+					threads = Integer.parseInt(value);
+					break;
+				case "--out":
+					out = Paths.get(value);
+					break;
+				default:
+					showUsage();
+					return;
+				}
+			}
+			if (threads < 1 || (spec == null) == (slotCounts == null || beanCounts == null)) {
+				showUsage();
+				return;
+			}
+			if (spec != null) {
+				experiments = parseSpec(Files.readAllLines(spec, StandardCharsets.UTF_8));
+			} else {
+				experiments = new ArrayList<>();
+				addGrid(experiments, slotCounts, beanCounts, modes, seeds);
+			}
+		} catch (IllegalArgumentException e) {
+			System.out.println(e.getMessage());
+			showUsage();
+			return;
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+
+		final long start = System.nanoTime();
+		try (CsvWriter writer = (out != null)
+				? new CsvWriter(FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING), true)
+				: new CsvWriter(Channels.newChannel(System.out), false)) {
+			sweep(experiments, threads, writer);
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		System.err.println(String.format(Locale.ROOT, "%d experiments on %d threads in %.3f s", experiments.size(),
+				threads, (System.nanoTime() - start) / 1e9));
+	}
+}
@@ -0,0 +1,109 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests BeanCounterSweep: a sweep must give every experiment of the grid the
+ * same result as running it on its own, and the grid spec must be read the way
+ * it is documented.
+ */
+
+public class BeanCounterSweepTest {
+	/**
+	 * Test case for void sweep(List experiments, int threads, CsvWriter out).
+	 * Preconditions: None.
+	 * Execution steps: Sweep a grid of luck and skill experiments, one of them large enough
+	 *                  to be split into several tasks, on 3 threads into a file.
+	 * Invariants: The file has the header and one row per experiment, and each row is the
+	 *             row of the experiment run on its own on this thread, but for the wall
+	 *             time.
+	 */
+	@Test
+	public void testRowsMatchSingleRuns() throws IOException {
+		List<BeanCounterSweep.Experiment> experiments = BeanCounterSweep.parseSpec(
+				Arrays.asList("1,10,70 0,1000 luck,skill 1..2", "12 2500000 luck,skill 5"));
+		assertEquals(26, experiments.size());
+		Path path = Files.createTempFile("sweep", ".csv");
+		try {
+			try (BeanCounterSweep.CsvWriter writer = new BeanCounterSweep.CsvWriter(
+					FileChannel.open(path, StandardOpenOption.WRITE), true)) {
+				BeanCounterSweep.sweep(experiments, 3, writer);
+			}
+			List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+			assertEquals(BeanCounterSweep.HEADER, lines.get(0));
+			assertEquals(experiments.size() + 1, lines.size());
+			boolean[] seen = new boolean[experiments.size()];
+			for (String line : lines.subList(1, lines.size())) {
+				final int index = Integer.parseInt(line.substring(0, line.indexOf(',')));
+				assertTrue(!seen[index]);
+				seen[index] = true;
+				final String expected = BeanCounterSweep.run(experiments.get(index), null);
+				assertEquals(withoutWallTime(expected), withoutWallTime(line));
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Removes the wall time field from a row.
+	 *
+	 * @param row the row
+	 * @return the other fields
+	 */
+	private static String withoutWallTime(String row) {
+		final String[] fields = row.split(",", -1);
+		fields[7] = "";
+		return String.join(",", fields);
+	}
+
+	/**
+	 * Test case for List parseSpec(List lines).
+	 * Preconditions: None.
+	 * Execution steps: Read a spec with comments, a blank line, a single experiment and a
+	 *                  grid with a seed range.
+	 * Invariants: The experiments are numbered in order, the single experiment comes first,
+	 *             and the grid has every combination with the seeds varying fastest.
+	 */
+	@Test
+	public void testParseSpec() {
+		List<BeanCounterSweep.Experiment> experiments = BeanCounterSweep.parseSpec(
+				Arrays.asList("# slots beans modes seeds", "10 400 luck 42", "", "  5,6 7 skill,luck -1..1  "));
+		assertEquals(13, experiments.size());
+		BeanCounterSweep.Experiment single = experiments.get(0);
+		assertEquals(10, single.slotCount);
+		assertEquals(400, single.beanCount);
+		assertTrue(single.luck);
+		assertEquals(42, single.seed);
+		for (int k = 0; k < experiments.size(); k++) {
+			assertEquals(k, experiments.get(k).index);
+		}
+		BeanCounterSweep.Experiment last = experiments.get(12);
+		assertEquals(6, last.slotCount);
+		assertEquals(7, last.beanCount);
+		assertTrue(last.luck);
+		assertEquals(1, last.seed);
+		assertEquals(-1, experiments.get(1).seed);
+		assertEquals(false, experiments.get(1).luck);
+	}
+
+	/**
+	 * Test case for List parseSpec(List lines) with a malformed line.
+	 * Preconditions: None.
+	 * Execution steps: Read a spec whose second line has a slot count of 0.
+	 * Invariants: The spec is refused.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsBadSpec() {
+		BeanCounterSweep.parseSpec(Arrays.asList("10 400 luck 1", "0 400 luck 1"));
+	}
+}
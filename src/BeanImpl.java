@@ -21,15 +21,18 @@ import java.util.Random;
  * 
  * <p>Skill levels are irrelevant when the machine operates in luck mode. In that
  * case, the bean will have a 50/50 chance of going right or left, regardless of
- * skill level. The formula to calculate the direction is: rand.nextInt(2). If
- * the return value is 0, the bean goes left. If the return value is 1, the bean
- * goes right.
+ * skill level. The formula to calculate the direction is: rand.nextBoolean().
+ * If the return value is false, the bean goes left. If it is true, the bean
+ * goes right. For a java.util.Random this is the same as rand.nextInt(2) == 1.
+ *
+ * <p>Beans draw from a RandomSource, which is meant to be shared by all beans
+ * of a machine; a java.util.Random passed in is wrapped in one.
  */
 
 public class BeanImpl implements Bean {
 	
 	// TODO: Add more member variables as needed
-	private Random rand;
+	private RandomSource rand;
 	private boolean isLuck;
 	private int xpos;
 	private double skillAverage;
@@ -45,6 +48,18 @@ public class BeanImpl implements Bean {
 	 * @param rand		the random number generator
 	 */
 	BeanImpl(int slotCount, boolean isLuck, Random rand) {
+		this(slotCount, isLuck, RandomSource.of(rand));
+	}
+
+	/**
+	 * Constructor - creates a bean in either luck mode or skill mode that draws
+	 * from a shared random source.
+	 * 
+	 * @param slotCount	the number of slots in the machine
+	 * @param isLuck	whether the bean is in luck mode
+	 * @param rand		the random source
+	 */
+	BeanImpl(int slotCount, boolean isLuck, RandomSource rand) {
 		// TODO: Implement
 		this.isLuck = isLuck;
 		this.rand = rand;
@@ -61,6 +76,25 @@ public class BeanImpl implements Bean {
 		
 
 	}
+
+	/**
+	 * Constructor - creates a bean with a given skill level, for beans that come
+	 * from a BeanSource.
+	 * 
+	 * @param slotCount  the number of slots in the machine
+	 * @param isLuck     whether the bean is in luck mode
+	 * @param rand       the random source
+	 * @param skillLevel the skill level of the bean
+	 */
+	BeanImpl(int slotCount, boolean isLuck, RandomSource rand, int skillLevel) {
+		this.isLuck = isLuck;
+		this.rand = rand;
+		this.xpos = 0;
+		this.skillAverage = (double) (slotCount - 1) * 0.5;
+		this.skillStdDev = Math.sqrt(slotCount * 0.5 * 0.5);
+		this.totalRights = skillLevel;
+		this.rightsRemaining = this.totalRights;
+	}
 	
 	/**
 	 * Returns the current X-coordinate position of the bean in the logical coordinate system.
@@ -72,6 +106,26 @@ public class BeanImpl implements Bean {
 		return this.xpos;
 	}
 
+	/**
+	 * Returns whether the bean is in luck mode.
+	 * 
+	 * @return whether the bean is in luck mode
+	 */
+	boolean isLuck() {
+		return this.isLuck;
+	}
+
+	/**
+	 * Returns the skill level of the bean, i.e. the number of times it goes right
+	 * in skill mode. The level may be below 0 or above the number of pegs on the
+	 * way down, in which case the bean ends up in the first or last slot.
+	 * 
+	 * @return the skill level of the bean
+	 */
+	int getSkillLevel() {
+		return this.totalRights;
+	}
+
 	/**
 	 * Resets the bean to its initial state. The X-coordinate should be initialized
 	 * to 0. 
@@ -84,14 +138,14 @@ public class BeanImpl implements Bean {
 	
 	/**
 	 * Chooses left or right randomly (if luck) or according to skill. If the return
-	 * value of rand.nextInt(2) is 0, the bean goes left. Otherwise, the bean goes
-	 * right.  The X-coordinate is updated accordingly.
+	 * value of rand.nextBoolean() is false, the bean goes left. Otherwise, the bean
+	 * goes right.  The X-coordinate is updated accordingly.
 	 */
 	public void choose() {
 		// TODO: Implement
 		if (this.isLuck) {
 			// if its 1, its moving right, and therefore increment pos
-			if (this.rand.nextInt(2) == 1) {
+			if (this.rand.nextBoolean()) {
 				++this.xpos;
 			}
 		//if its not luck, its skill which is based on the var right turn remaining
@@ -0,0 +1,54 @@
+/**
+ * BeanSource: A population of beans that a machine can pull from one at a
+ * time, instead of a Bean array that has to be built in full before the first
+ * step. Beans are identified by their position in drop order, from 0 to
+ * getBeanCount() - 1, and a source must give the same skill level for the same
+ * bean every time it is asked, so a machine can rewind to the first bean
+ * without the source keeping any per-bean state.
+ *
+ * <p>Luck-mode beans carry no state worth keeping, so a luck source only needs
+ * to know how many beans there are. Engines that draw the luck decisions from a
+ * generator of their own seed it with getSeed(), so that the same source runs
+ * the same way every time.
+ */
+
+public interface BeanSource {
+	/**
+	 * Returns the number of slots of the machine the beans are made for.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount();
+
+	/**
+	 * Returns whether the beans are in luck mode.
+	 *
+	 * @return whether the beans are in luck mode
+	 */
+	public boolean isLuck();
+
+	/**
+	 * Returns the number of beans in the source.
+	 *
+	 * @return number of beans
+	 */
+	public long getBeanCount();
+
+	/**
+	 * Returns the skill level of a bean.
+	 *
+	 * @param id the bean id, from 0 to getBeanCount() - 1
+	 * @return the skill level of the bean
+	 */
+	public int getSkillLevel(long id);
+
+	/**
+	 * Returns the seed of the generator that the luck decisions of the beans are
+	 * drawn from. Sources without a seed of their own return 0.
+	 *
+	 * @return the seed
+	 */
+	public default long getSeed() {
+		return 0;
+	}
+}
@@ -0,0 +1,200 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.Test;
+
+/**
+ * Tests the BeanSource implementations and the engines that pull beans from
+ * them: skill levels must be reproducible, files must round-trip, and beans
+ * must only be read when they are dropped.
+ */
+
+public class BeanSourceTest {
+	private static final int[] SLOT_COUNTS = {1, 2, 5, 10};
+	private static final int BEAN_COUNT = 25;
+
+	/**
+	 * Source that remembers the highest bean id it has been asked for.
+	 */
+	private static final class WatchedSource implements BeanSource {
+		private final BeanSource source;
+		private long highestId = -1;
+
+		WatchedSource(BeanSource source) {
+			this.source = source;
+		}
+
+		public int getSlotCount() {
+			return this.source.getSlotCount();
+		}
+
+		public boolean isLuck() {
+			return this.source.isLuck();
+		}
+
+		public long getBeanCount() {
+			return this.source.getBeanCount();
+		}
+
+		public int getSkillLevel(long id) {
+			this.highestId = Math.max(this.highestId, id);
+			return this.source.getSkillLevel(id);
+		}
+	}
+
+	/**
+	 * Test case for int getSkillLevel(long id) of SeededBeanSource.
+	 * Preconditions: None.
+	 * Execution steps: Look up the same beans in two sources with the same seed, and many beans
+	 *                  in one source.
+	 * Invariants: Equal seeds give equal skill levels, and the levels have the mean and
+	 *             variance of BeanImpl's skill levels.
+	 */
+	@Test
+	public void testSeededSkillLevels() {
+		final int slotCount = 10;
+		final int beanCount = 200000;
+		SeededBeanSource source = new SeededBeanSource(slotCount, false, 11, beanCount);
+		SeededBeanSource again = new SeededBeanSource(slotCount, false, 11, beanCount);
+		double sum = 0;
+		double sumSquares = 0;
+		for (long id = 0; id < beanCount; id++) {
+			final int level = source.getSkillLevel(id);
+			assertEquals(level, again.getSkillLevel(id));
+			sum += level;
+			sumSquares += (double) level * level;
+		}
+		final double mean = sum / beanCount;
+		final double variance = sumSquares / beanCount - mean * mean;
+		assertEquals((slotCount - 1) * 0.5, mean, 0.02);
+		// Rounding to the nearest level adds 1/12 to the variance of the normal deviate
+		assertEquals(slotCount * 0.25 + 1.0 / 12, variance, 0.05);
+	}
+
+	/**
+	 * Test case for MappedBeanSource.write(Path path, BeanSource source) and
+	 * MappedBeanSource(Path path).
+	 * Preconditions: None.
+	 * Execution steps: Write a seeded source to a file and map it back.
+	 * Invariants: The mapped source has the same slot count, bean count and skill levels.
+	 */
+	@Test
+	public void testMappedRoundTrip() throws IOException {
+		Path path = Files.createTempFile("beans", ".bin");
+		try {
+			SeededBeanSource source = new SeededBeanSource(7, false, 3, 50000);
+			MappedBeanSource.write(path, source);
+			MappedBeanSource mapped = new MappedBeanSource(path);
+			assertEquals(7, mapped.getSlotCount());
+			assertEquals(50000, mapped.getBeanCount());
+			for (long id = 0; id < source.getBeanCount(); id++) {
+				assertEquals(source.getSkillLevel(id), mapped.getSkillLevel(id));
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for MappedBeanSource(Path path) with a file of the wrong format.
+	 * Preconditions: None.
+	 * Execution steps: Map a file that does not start with the magic number.
+	 * Invariants: The constructor throws an IOException.
+	 */
+	@Test(expected = IOException.class)
+	public void testMappedRejectsOtherFiles() throws IOException {
+		Path path = Files.createTempFile("beans", ".bin");
+		try {
+			Files.write(path, new byte[MappedBeanSource.HEADER_BYTES]);
+			new MappedBeanSource(path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for reset(BeanSource source).
+	 * Preconditions: None.
+	 * Execution steps: Drive BeanCounterLogicImpl and SkillBeanCounterLogic from the same source
+	 *                  through reset, a few steps, repeat in mid-flight, a full run, a half and
+	 *                  repeat, several times.
+	 * Invariants: After every call, both engines are in the same state.
+	 */
+	@Test
+	public void testEnginesAgreeOnSource() {
+		for (int slotCount : SLOT_COUNTS) {
+			BeanSource source = new SeededBeanSource(slotCount, false, slotCount, BEAN_COUNT);
+			AbstractBeanCounterLogic expected = new BeanCounterLogicImpl(slotCount);
+			AbstractBeanCounterLogic actual = new SkillBeanCounterLogic(slotCount);
+			for (int round = 0; round < 4; round++) {
+				expected.reset(source);
+				actual.reset(source);
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				for (int k = 0; k < 3 * round; k++) {
+					assertEquals(expected.advanceStep(), actual.advanceStep());
+				}
+				expected.repeat();
+				actual.repeat();
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				boolean more = true;
+				while (more) {
+					more = expected.advanceStep();
+					assertEquals(more, actual.advanceStep());
+					assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				}
+				expected.upperHalf();
+				actual.upperHalf();
+				expected.repeat();
+				actual.repeat();
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				expected.advanceSteps(2 * round);
+				assertEquals(expected.runToCompletion() + 2 * round, actual.runToCompletion());
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+			}
+		}
+	}
+
+	/**
+	 * Test case for lazy pulling in reset(BeanSource source).
+	 * Preconditions: None.
+	 * Execution steps: Reset each engine with a large source and take a few steps.
+	 * Invariants: No bean beyond those dropped so far has been read from the source.
+	 */
+	@Test
+	public void testBeansPulledOnDemand() {
+		final int steps = 5;
+		AbstractBeanCounterLogic[] engines = {new BeanCounterLogicImpl(10), new SkillBeanCounterLogic(10)};
+		for (AbstractBeanCounterLogic logic : engines) {
+			WatchedSource source = new WatchedSource(new SeededBeanSource(10, false, 1, 1000000));
+			logic.reset(source);
+			assertEquals(steps, logic.advanceSteps(steps));
+			assertTrue(source.highestId <= steps);
+			assertEquals(1000000 - steps - 1, logic.getRemainingBeanCount());
+		}
+	}
+
+	/**
+	 * Test case for the luck decisions of reset(BeanSource source) of BeanCounterLogicImpl.
+	 * Preconditions: None.
+	 * Execution steps: Run machines reset with separate luck sources of the same seed to
+	 *                  completion, and one with another seed.
+	 * Invariants: The same seed gives the same slot counts, since the decisions follow from
+	 *             the seed of the source; the other seed gives different ones.
+	 */
+	@Test
+	public void testSeededLuckReproducible() {
+		final int beanCount = 1000;
+		String[] states = new String[3];
+		for (int k = 0; k < states.length; k++) {
+			AbstractBeanCounterLogic logic = new BeanCounterLogicImpl(10);
+			logic.reset(new SeededBeanSource(10, true, (k < 2) ? 7 : 8, beanCount));
+			logic.runToCompletion();
+			states[k] = MachineStates.getState(logic);
+		}
+		assertEquals(states[0], states[1]);
+		assertTrue(!states[0].equals(states[2]));
+	}
+}
@@ -0,0 +1,307 @@
+import java.util.Arrays;
+
+/**
+ * BeanStore: A population of beans kept as parallel primitive arrays indexed
+ * by bean id, instead of one BeanImpl object per bean. Per-bean state is the
+ * x-coordinate, the skill level (total number of rights) and the number of
+ * rights remaining; everything that is the same for every bean (slot count,
+ * mode, skill distribution, random source) is stored once. Beans behave
+ * exactly like BeanImpl beans sharing one RandomSource.
+ *
+ * <p>A store built on a BeanSource loads beans from it lazily: the arrays grow
+ * as beans are first touched, in id order, so a machine that pulls beans one at
+ * a time never holds more of them than it has dropped.
+ *
+ * <p>BeanCounterLogicImpl works on the arrays directly when reset with a store.
+ * Code that needs Bean objects can get lightweight views with getBean().
+ */
+
+public class BeanStore implements BeanSource {
+	private final int slotCount;
+	private final boolean isLuck;
+	private final RandomSource rand; // shared by all beans
+	private final double skillAverage;
+	private final double skillStdDev;
+	private final BeanSource source; // where skill levels are loaded from, or null if all are loaded
+	private final int beanCount;
+	private int loadedCount; // beans 0 to loadedCount - 1 have their state in the arrays
+
+	private int[] xpos;
+	private int[] totalRights; // skill level of each bean
+	private int[] rightsRemaining;
+
+	/**
+	 * Initial capacity of the arrays of a lazily loaded store. They grow by
+	 * doubling.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * Number of normal deviates drawn at once when skill levels are assigned.
+	 */
+	private static final int GAUSSIANS_PER_BLOCK = 1024;
+
+	/**
+	 * View of one bean in a store. Calls go straight to the store's arrays.
+	 */
+	private static final class BeanView implements Bean {
+		private final BeanStore store;
+		private final int id;
+
+		BeanView(BeanStore store, int id) {
+			this.store = store;
+			this.id = id;
+		}
+
+		public int getXPos() {
+			return this.store.getXPos(this.id);
+		}
+
+		public void reset() {
+			this.store.reset(this.id);
+		}
+
+		public void choose() {
+			this.store.choose(this.id);
+		}
+	}
+
+	/**
+	 * Constructor - creates beanCount beans in either luck mode or skill mode. Skill
+	 * levels are drawn from rand the same way BeanImpl draws them, a block of
+	 * normal deviates at a time.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck    whether the beans are in luck mode
+	 * @param rand      the random source shared by all beans
+	 * @param beanCount the number of beans
+	 */
+	BeanStore(int slotCount, boolean isLuck, RandomSource rand, int beanCount) {
+		this.slotCount = slotCount;
+		this.isLuck = isLuck;
+		this.rand = rand;
+		this.skillAverage = (double) (slotCount - 1) * 0.5;
+		this.skillStdDev = Math.sqrt(slotCount * 0.5 * 0.5);
+		this.source = null;
+		this.beanCount = beanCount;
+		this.loadedCount = beanCount;
+		this.xpos = new int[beanCount];
+		this.totalRights = new int[beanCount];
+		this.rightsRemaining = new int[beanCount];
+		final double[] gaussians = new double[Math.min(beanCount, GAUSSIANS_PER_BLOCK)];
+		for (int first = 0; first < beanCount; first += gaussians.length) {
+			final int count = Math.min(gaussians.length, beanCount - first);
+			rand.nextGaussians(gaussians, 0, count);
+			for (int k = 0; k < count; k++) {
+				this.totalRights[first + k] = (int) Math.round(gaussians[k] * this.skillStdDev + this.skillAverage);
+			}
+		}
+		System.arraycopy(this.totalRights, 0, this.rightsRemaining, 0, beanCount);
+	}
+
+	/**
+	 * Constructor - creates a store of beans with the given skill levels, all in
+	 * their initial state.
+	 *
+	 * @param slotCount   the number of slots in the machine
+	 * @param isLuck      whether the beans are in luck mode
+	 * @param rand        the random source shared by all beans
+	 * @param skillLevels the skill level of each bean; the store takes ownership
+	 */
+	BeanStore(int slotCount, boolean isLuck, RandomSource rand, int[] skillLevels) {
+		this.slotCount = slotCount;
+		this.isLuck = isLuck;
+		this.rand = rand;
+		this.skillAverage = (double) (slotCount - 1) * 0.5;
+		this.skillStdDev = Math.sqrt(slotCount * 0.5 * 0.5);
+		this.source = null;
+		this.beanCount = skillLevels.length;
+		this.loadedCount = skillLevels.length;
+		this.xpos = new int[skillLevels.length];
+		this.totalRights = skillLevels;
+		this.rightsRemaining = skillLevels.clone();
+	}
+
+	/**
+	 * Constructor - creates a store that loads the beans of a source as they are
+	 * first touched.
+	 *
+	 * @param source the beans to load
+	 * @param rand   the random source shared by all beans
+	 * @throws ArithmeticException if the source holds more than Integer.MAX_VALUE
+	 *                             beans
+	 */
+	BeanStore(BeanSource source, RandomSource rand) {
+		this.slotCount = source.getSlotCount();
+		this.isLuck = source.isLuck();
+		this.rand = rand;
+		this.skillAverage = (double) (this.slotCount - 1) * 0.5;
+		this.skillStdDev = Math.sqrt(this.slotCount * 0.5 * 0.5);
+		this.source = source;
+		this.beanCount = Math.toIntExact(source.getBeanCount());
+		this.loadedCount = 0;
+		final int capacity = Math.min(this.beanCount, INITIAL_CAPACITY);
+		this.xpos = new int[capacity];
+		this.totalRights = new int[capacity];
+		this.rightsRemaining = new int[capacity];
+	}
+
+	/**
+	 * Loads beans from the source up to and including the given bean.
+	 *
+	 * @param id the bean id
+	 */
+	private void load(int id) {
+		if (id >= this.xpos.length) {
+			final int capacity = (int) Math.min(this.beanCount, Math.max(id + 1L, 2L * this.xpos.length));
+			this.xpos = Arrays.copyOf(this.xpos, capacity);
+			this.totalRights = Arrays.copyOf(this.totalRights, capacity);
+			this.rightsRemaining = Arrays.copyOf(this.rightsRemaining, capacity);
+		}
+		for (; this.loadedCount <= id; this.loadedCount++) {
+			this.totalRights[this.loadedCount] = this.source.getSkillLevel(this.loadedCount);
+			this.rightsRemaining[this.loadedCount] = this.totalRights[this.loadedCount];
+		}
+	}
+
+	/**
+	 * Returns the number of beans in the store.
+	 *
+	 * @return number of beans
+	 */
+	public int size() {
+		return this.beanCount;
+	}
+
+	/**
+	 * Returns the number of beans in the store, as a long.
+	 *
+	 * @return number of beans
+	 */
+	public long getBeanCount() {
+		return this.beanCount;
+	}
+
+	/**
+	 * Returns the number of beans whose state is held in the arrays so far.
+	 *
+	 * @return number of loaded beans
+	 */
+	int getLoadedCount() {
+		return this.loadedCount;
+	}
+
+	/**
+	 * Returns the number of slots of the machine the beans were made for.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return this.slotCount;
+	}
+
+	/**
+	 * Returns whether the beans are in luck mode.
+	 *
+	 * @return whether the beans are in luck mode
+	 */
+	public boolean isLuck() {
+		return this.isLuck;
+	}
+
+	/**
+	 * Returns the skill level of a bean.
+	 *
+	 * @param id the bean id
+	 * @return the skill level of the bean
+	 */
+	public int getSkillLevel(long id) {
+		return (id < this.loadedCount) ? this.totalRights[(int) id] : this.source.getSkillLevel(id);
+	}
+
+	/**
+	 * Returns the random source shared by the beans.
+	 *
+	 * @return the random source
+	 */
+	RandomSource getRandom() {
+		return this.rand;
+	}
+
+	/**
+	 * Returns how many more times a bean in skill mode is going to go right.
+	 *
+	 * @param id the bean id
+	 * @return the number of rights remaining
+	 */
+	int getRightsRemaining(int id) {
+		return this.rightsRemaining[id];
+	}
+
+	/**
+	 * Puts a bean back at a position it had reached, as recorded by
+	 * getXPos() and getRightsRemaining().
+	 *
+	 * @param id              the bean id
+	 * @param xpos            the X-coordinate of the bean
+	 * @param rightsRemaining the number of rights remaining
+	 */
+	void setProgress(int id, int xpos, int rightsRemaining) {
+		if (id >= this.loadedCount) {
+			this.load(id);
+		}
+		this.xpos[id] = xpos;
+		this.rightsRemaining[id] = rightsRemaining;
+	}
+
+	/**
+	 * Returns the current X-coordinate of a bean in the logical coordinate system.
+	 *
+	 * @param id the bean id
+	 * @return the current X-coordinate of the bean
+	 */
+	public int getXPos(int id) {
+		return this.xpos[id];
+	}
+
+	/**
+	 * Resets a bean to its initial state. Beans that have not been loaded yet are
+	 * loaded first, so a machine should reset each bean before dropping it.
+	 *
+	 * @param id the bean id
+	 */
+	public void reset(int id) {
+		if (id >= this.loadedCount) {
+			this.load(id);
+		}
+		this.xpos[id] = 0;
+		this.rightsRemaining[id] = this.totalRights[id];
+	}
+
+	/**
+	 * Makes a bean choose left or right, randomly (if luck) or according to its
+	 * skill, as BeanImpl.choose() does.
+	 *
+	 * @param id the bean id
+	 */
+	public void choose(int id) {
+		if (this.isLuck) {
+			if (this.rand.nextBoolean()) {
+				++this.xpos[id];
+			}
+		} else if (this.rightsRemaining[id] > 0) {
+			++this.xpos[id];
+			--this.rightsRemaining[id];
+		}
+	}
+
+	/**
+	 * Returns a Bean view of one bean of the store.
+	 *
+	 * @param id the bean id
+	 * @return a Bean whose state lives in this store
+	 */
+	public Bean getBean(int id) {
+		return new BeanView(this, id);
+	}
+}
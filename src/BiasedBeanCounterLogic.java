@@ -0,0 +1,464 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * BiasedBeanCounterLogic: BeanCounterLogic engine for luck-mode beans on a
+ * board whose pegs need not be fair, as on a worn or tilted machine. Each peg
+ * sends a bean right with its own probability, given per row (every peg of row
+ * y alike) or per peg (peg x of row y, for x from 0 to y).
+ *
+ * <p>Whatever the biases, where a bean goes next depends only on where it is,
+ * so the engine computes the exact distribution of the landing slots once, by
+ * dynamic programming down the triangle of pegs in O(slotCount^2), and keeps
+ * it in an AliasTable. runToCompletion() then draws the landing slot of every
+ * bean not yet dropped in O(1), so a bulk run costs O(beans + slotCount^2)
+ * rather than a draw per peg per bean. Beans in flight, which the per-step
+ * view shows, fall peg by peg with a draw at each peg, as in
+ * BeanCounterLogicImpl; both ways give the same distribution.
+ *
+ * <p>Like LuckBeanCounterLogic, the engine only counts its beans: the Bean
+ * objects passed to reset() are not used, and a bean scooped up by repeat()
+ * falls again from the top as a new bean. All draws come from one
+ * RandomSource, which checkpoint() saves along with the positions in flight
+ * and the slot counts when it is a XoroshiroRandomSource.
+ */
+
+public class BiasedBeanCounterLogic extends CountingBeanCounterLogic {
+	private final double[][] rightProbabilities; // per row, one value or one per peg
+	private final double[] distribution; // exact probability of each landing slot
+	private final AliasTable landings;
+	private RandomSource rand;
+
+	private final int[] rowXPos; // ring of in-flight x positions, row y at rowIndex(y), or NO_BEAN_IN_YPOS
+	private int topRow; // position of row 0 in rowXPos; moves up one position every step
+	private int inFlightCount;
+	private long remainingCount;
+
+	/**
+	 * Constructor - creates an engine for a board with the given peg biases.
+	 *
+	 * @param slotCount          the number of slots in the machine, at least 1
+	 * @param rightProbabilities for each row y from 0 to slotCount - 2, either a
+	 *                           single probability of going right at every peg of
+	 *                           the row, or y + 1 probabilities, one per peg
+	 * @param rand               the source of the draws
+	 */
+	BiasedBeanCounterLogic(int slotCount, double[][] rightProbabilities, RandomSource rand) {
+		super(slotCount);
+		this.rightProbabilities = copyBiases(slotCount, rightProbabilities);
+		this.distribution = getDistribution(this.rightProbabilities);
+		this.landings = new AliasTable(this.distribution);
+		this.rand = rand;
+		this.rowXPos = new int[slotCount];
+		Arrays.fill(this.rowXPos, NO_BEAN_IN_YPOS);
+	}
+
+	/**
+	 * Checks and copies the peg biases of a board.
+	 *
+	 * @param slotCount          the number of slots in the machine
+	 * @param rightProbabilities the biases, as for the constructor
+	 * @return a copy of the biases
+	 * @throws IllegalArgumentException if the biases do not fit the board, or a
+	 *                                  probability is not between 0 and 1
+	 */
+	private static double[][] copyBiases(int slotCount, double[][] rightProbabilities) {
+		if (slotCount < 1) {
+			throw new IllegalArgumentException("slotCount must be at least 1");
+		}
+		if (rightProbabilities.length != slotCount - 1) {
+			throw new IllegalArgumentException("Expected biases for " + (slotCount - 1) + " rows, got "
+					+ rightProbabilities.length);
+		}
+		double[][] copy = new double[rightProbabilities.length][];
+		for (int y = 0; y < copy.length; y++) {
+			final double[] row = rightProbabilities[y];
+			if (row.length != 1 && row.length != y + 1) {
+				throw new IllegalArgumentException("Row " + y + " needs 1 or " + (y + 1) + " biases, got "
+						+ row.length);
+			}
+			for (double q : row) {
+				if (!(q >= 0.0 && q <= 1.0)) {
+					throw new IllegalArgumentException("Bias of row " + y + " not between 0 and 1: " + q);
+				}
+			}
+			copy[y] = row.clone();
+		}
+		return copy;
+	}
+
+	/**
+	 * Returns the same bias for every peg of each row.
+	 *
+	 * @param rowProbabilities probability of going right at the pegs of each row
+	 * @return the biases, as for the constructor
+	 */
+	public static double[][] rowBiases(double... rowProbabilities) {
+		double[][] biases = new double[rowProbabilities.length][];
+		for (int y = 0; y < biases.length; y++) {
+			biases[y] = new double[] {rowProbabilities[y]};
+		}
+		return biases;
+	}
+
+	/**
+	 * Computes the exact probability of each landing slot of a board, by carrying
+	 * the probability of each position down one row at a time.
+	 *
+	 * @param rightProbabilities the biases of a board of rightProbabilities.length
+	 *                           + 1 slots, as for the constructor
+	 * @return probability of each slot
+	 */
+	public static double[] getDistribution(double[][] rightProbabilities) {
+		final double[] p = new double[rightProbabilities.length + 1];
+		p[0] = 1.0;
+		for (int y = 0; y < rightProbabilities.length; y++) {
+			final double[] row = rightProbabilities[y];
+			// Positions 0 to y move to 0 to y + 1; going from right to left, p[x] still
+			// holds row y's value when it is moved
+			for (int x = y; x >= 0; x--) {
+				final double q = (row.length == 1) ? row[0] : row[x];
+				p[x + 1] += p[x] * q;
+				p[x] *= 1.0 - q;
+			}
+		}
+		return p;
+	}
+
+	/**
+	 * Returns the exact probability of each landing slot.
+	 *
+	 * @return probability of each slot
+	 */
+	public double[] getDistribution() {
+		return this.distribution.clone();
+	}
+
+	/**
+	 * Returns whether a bean at the given peg goes right, drawing the decision.
+	 *
+	 * @param yPos row of the peg
+	 * @param xPos position of the peg in the row
+	 * @return true if the bean goes right
+	 */
+	private boolean goesRight(int yPos, int xPos) {
+		final double[] row = this.rightProbabilities[yPos];
+		return this.rand.nextDouble() < ((row.length == 1) ? row[0] : row[xPos]);
+	}
+
+	/**
+	 * Returns the position of row yPos in the rowXPos ring.
+	 *
+	 * @param yPos the y-coordinate of the row
+	 * @return the index into rowXPos
+	 */
+	private int rowIndex(int yPos) {
+		final int pos = this.topRow + yPos;
+		return (pos < this.rowXPos.length) ? pos : pos - this.rowXPos.length;
+	}
+
+	private void insertBeansAtTop() {
+		if (this.rowXPos.length == 0) {
+			return;
+		}
+		if (this.remainingCount > 0) {
+			this.rowXPos[this.topRow] = 0;
+			this.remainingCount--;
+			this.inFlightCount++;
+		} else {
+			this.rowXPos[this.topRow] = NO_BEAN_IN_YPOS;
+		}
+	}
+
+	private void clearInFlightBeans() {
+		Arrays.fill(this.rowXPos, NO_BEAN_IN_YPOS);
+		this.topRow = 0;
+		this.inFlightCount = 0;
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted.
+	 *
+	 * @return number of beans remaining
+	 * @throws ArithmeticException if the count does not fit in an int
+	 */
+	public int getRemainingBeanCount() {
+		return Math.toIntExact(this.remainingCount);
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted, as a
+	 * long.
+	 *
+	 * @return number of beans remaining
+	 */
+	@Override
+	public long getRemainingBeanCountLong() {
+		return this.remainingCount;
+	}
+
+	/**
+	 * Returns the number of beans currently falling through the pegs.
+	 *
+	 * @return number of in-flight beans
+	 */
+	@Override
+	public int getInFlightBeanCount() {
+		return this.inFlightCount;
+	}
+
+	/**
+	 * Returns the x-coordinate for the in-flight bean at the provided y-coordinate.
+	 *
+	 * @param yPos the y-coordinate in which to look for the in-flight bean
+	 * @return the x-coordinate of the in-flight bean; if no bean in y-coordinate,
+	 *         return NO_BEAN_IN_YPOS
+	 */
+	public int getInFlightBeanXPos(int yPos) {
+		return this.rowXPos[this.rowIndex(yPos)];
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with as many luck-mode beans as are
+	 * passed. The machine starts with one bean at the top.
+	 *
+	 * @param beans array of beans to add to the machine
+	 */
+	public void reset(Bean[] beans) {
+		if (beans != null) {
+			for (Bean bean : beans) {
+				if (bean instanceof BeanImpl && !((BeanImpl) bean).isLuck()) {
+					throw new IllegalArgumentException("BiasedBeanCounterLogic only takes beans in luck mode");
+				}
+			}
+		}
+		this.resetCount((beans != null) ? beans.length : 0);
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with as many luck-mode beans as the
+	 * source holds, without looking at any of them. The machine starts with one
+	 * bean at the top.
+	 *
+	 * @param source the beans to add to the machine
+	 */
+	@Override
+	public void reset(BeanSource source) {
+		if (!source.isLuck()) {
+			throw new IllegalArgumentException("BiasedBeanCounterLogic only takes beans in luck mode");
+		}
+		this.resetCount(source.getBeanCount());
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with beanCount luck-mode beans. The
+	 * machine starts with one bean at the top.
+	 *
+	 * @param beanCount number of beans to add to the machine
+	 */
+	public void reset(long beanCount) {
+		this.resetCount(beanCount);
+	}
+
+	/**
+	 * Empties the machine and makes beanCount beans the remaining beans.
+	 *
+	 * @param beanCount number of beans to add to the machine
+	 */
+	private void resetCount(long beanCount) {
+		if (beanCount < 0) {
+			throw new IllegalArgumentException("beanCount must not be negative");
+		}
+		final long start = System.nanoTime();
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.remainingCount = beanCount;
+		this.insertBeansAtTop();
+		this.countTime(TimedOperation.RESET, start);
+	}
+
+	/**
+	 * Repeats the experiment by scooping up all beans in the slots and all beans
+	 * in-flight and adding them into the pool of remaining beans. As in the
+	 * beginning, the machine starts with one bean at the top.
+	 */
+	public void repeat() {
+		final long start = System.nanoTime();
+		this.remainingCount = Math.addExact(this.remainingCount, this.stats.getCount() + this.inFlightCount);
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.insertBeansAtTop();
+		this.countTime(TimedOperation.REPEAT, start);
+	}
+
+	/**
+	 * Advances the machine one step. All the in-flight beans fall down one step to
+	 * the next peg. A new bean is inserted into the top of the machine if there are
+	 * beans remaining.
+	 *
+	 * @return whether there has been any status change. If there is no change, that
+	 *         means the machine is finished.
+	 */
+	public boolean advanceStep() {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0) {
+			return false;
+		}
+		final boolean b = this.inFlightCount > 0;
+		final int bottom = this.rowIndex(slotCount - 1);
+		if (this.rowXPos[bottom] != NO_BEAN_IN_YPOS) {
+			this.addToSlot(this.rowXPos[bottom], 1);
+			this.rowXPos[bottom] = NO_BEAN_IN_YPOS;
+			this.inFlightCount--;
+		}
+		// Every other bean passes the peg it is at; the ring then moves them down a row
+		for (int y = 0; y < slotCount - 1; y++) {
+			final int row = this.rowIndex(y);
+			final int x = this.rowXPos[row];
+			if (x != NO_BEAN_IN_YPOS && this.goesRight(y, x)) {
+				this.rowXPos[row] = x + 1;
+			}
+		}
+		this.topRow = bottom;
+		this.insertBeansAtTop();
+		if (b) {
+			this.countSteps(1);
+		}
+		return b;
+	}
+
+	/**
+	 * Drops every in-flight and remaining bean straight into its slot. Beans in
+	 * flight finish their fall peg by peg; the others each get a landing slot
+	 * from the alias table.
+	 *
+	 * @return number of steps that advanceStep() would have taken
+	 */
+	@Override
+	public long runToCompletion() {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0 || this.inFlightCount == 0) {
+			return 0;
+		}
+		// While beans remain, the top row is always occupied. Each remaining bean adds
+		// a step, and the last bean inserted needs slotCount steps to land.
+		int topOccupiedRow = -1;
+		for (int y = slotCount - 1; y >= 0; y--) {
+			int x = this.rowXPos[this.rowIndex(y)];
+			if (x != NO_BEAN_IN_YPOS) {
+				topOccupiedRow = y;
+				for (int peg = y; peg < slotCount - 1; peg++) {
+					if (this.goesRight(peg, x)) {
+						x++;
+					}
+				}
+				this.addToSlot(x, 1);
+			}
+		}
+		final long steps = this.remainingCount + slotCount - topOccupiedRow;
+		final long[] landed = new long[slotCount];
+		for (long k = this.remainingCount; k > 0; k--) {
+			landed[this.landings.sample(this.rand)]++;
+		}
+		for (int i = 0; i < slotCount; i++) {
+			this.addToSlot(i, landed[i]);
+		}
+		this.clearInFlightBeans();
+		this.remainingCount = 0;
+		this.countSteps(steps);
+		return steps;
+	}
+
+	/**
+	 * Saves the state of the machine to a checkpoint file. After the header, the
+	 * file holds the slot count as an int; the biases of each row, as the number
+	 * of them as an int followed by the doubles; the x-coordinate in each row from
+	 * the top (or NO_BEAN_IN_YPOS) as ints; the number of beans waiting and the
+	 * bean count of each slot as longs; and finally the state of the random number
+	 * generator as XoroshiroRandomSource.writeState() lays it out.
+	 *
+	 * <p>The file is written next to the given one and moved over it once
+	 * complete, so a crash while saving keeps the previous checkpoint.
+	 *
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException                   if the file cannot be written
+	 * @throws UnsupportedOperationException if the draws do not come from a
+	 *                                       XoroshiroRandomSource
+	 */
+	@Override
+	public void checkpoint(Path path) throws IOException {
+		if (!(this.rand instanceof XoroshiroRandomSource)) {
+			throw new UnsupportedOperationException("Only draws from a XoroshiroRandomSource can be saved");
+		}
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Writer out = new CheckpointFile.Writer(path, CheckpointFile.Engine.BIASED)) {
+			out.putInt(slotCount);
+			for (double[] row : this.rightProbabilities) {
+				out.putInt(row.length);
+				for (double q : row) {
+					out.putDouble(q);
+				}
+			}
+			for (int y = 0; y < slotCount; y++) {
+				out.putInt(this.rowXPos[this.rowIndex(y)]);
+			}
+			out.putLong(this.remainingCount);
+			this.writeSlots(out);
+			((XoroshiroRandomSource) this.rand).writeState(out);
+			out.commit();
+		}
+	}
+
+	/**
+	 * Replaces the state of the machine with one saved by checkpoint(). The
+	 * machine carries on exactly as the saved one would have, drawing from the
+	 * saved generator.
+	 *
+	 * @param path the file to read
+	 * @throws IOException if the file cannot be read or does not hold the valid
+	 *                     state of a machine with this many slots and these biases
+	 */
+	@Override
+	public void restore(Path path) throws IOException {
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Reader in = new CheckpointFile.Reader(path, CheckpointFile.Engine.BIASED)) {
+			this.readSlotCount(in, path);
+			for (double[] row : this.rightProbabilities) {
+				boolean same = in.getInt() == row.length;
+				for (int x = 0; same && x < row.length; x++) {
+					same = Double.doubleToLongBits(in.getDouble()) == Double.doubleToLongBits(row[x]);
+				}
+				if (!same) {
+					throw new IOException(path + " holds a machine with other biases");
+				}
+			}
+			final int[] xPos = new int[slotCount];
+			in.getInts(xPos, 0, slotCount);
+			int inFlight = 0;
+			for (int y = 0; y < slotCount; y++) {
+				if (xPos[y] != NO_BEAN_IN_YPOS) {
+					if (xPos[y] < 0 || xPos[y] > y) {
+						throw new IOException(path + " holds an invalid position in row " + y + ": " + xPos[y]);
+					}
+					inFlight++;
+				}
+			}
+			final long savedRemainingCount = in.getLong();
+			if (savedRemainingCount < 0) {
+				throw new IOException(path + " holds invalid bean counts");
+			}
+			final long[] counts = this.readSlots(in, path);
+			final RandomSource savedRand = XoroshiroRandomSource.readState(in);
+
+			// Everything is read; now replace the state of the machine
+			System.arraycopy(xPos, 0, this.rowXPos, 0, slotCount);
+			this.topRow = 0;
+			this.inFlightCount = inFlight;
+			this.remainingCount = savedRemainingCount;
+			this.rand = savedRand;
+			this.restoreSlots(counts);
+			this.inFlightChanged();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Tests BiasedBeanCounterLogic: the exact distribution must be the one the pegs
+ * give, stepping and bulk runs must both follow it, and the per-step view must
+ * be a walk down the pegs.
+ */
+
+public class BiasedBeanCounterLogicTest {
+	private static final double EPSILON = 1e-12;
+
+	/**
+	 * Test case for double[] getDistribution(double[][] rightProbabilities).
+	 * Preconditions: None.
+	 * Execution steps: Compute the distribution of fair boards, of a board with a bias per
+	 *                  row, and of one with a bias per peg.
+	 * Invariants: Fair boards give the binomial distribution, and the biased boards give
+	 *             the probabilities of their paths summed by hand.
+	 */
+	@Test
+	public void testExactDistribution() {
+		for (int slotCount : new int[] {1, 2, 11, 200}) {
+			double[] fair = new double[slotCount - 1];
+			Arrays.fill(fair, 0.5);
+			double[] p = BiasedBeanCounterLogic.getDistribution(BiasedBeanCounterLogic.rowBiases(fair));
+			GoodnessOfFit binomial = GoodnessOfFit.binomial(slotCount);
+			for (int i = 0; i < slotCount; i++) {
+				assertEquals(binomial.getProbability(i), p[i], EPSILON);
+			}
+		}
+		double[] rows = BiasedBeanCounterLogic.getDistribution(BiasedBeanCounterLogic.rowBiases(0.2, 0.7));
+		assertArrayEquals(new double[] {0.8 * 0.3, 0.8 * 0.7 + 0.2 * 0.3, 0.2 * 0.7}, rows, EPSILON);
+		// Row 1: the left peg always sends beans right, the right peg always left
+		double[] pegs = BiasedBeanCounterLogic.getDistribution(new double[][] {{0.25}, {1.0, 0.0}});
+		assertArrayEquals(new double[] {0.0, 1.0, 0.0}, pegs, EPSILON);
+	}
+
+	/**
+	 * Test case for long runToCompletion().
+	 * Preconditions: None.
+	 * Execution steps: Run a board with a bias per peg to completion after a few steps, and
+	 *                  another one with the same biases step by step.
+	 * Invariants: Both report the same number of steps, every bean lands, and the slot
+	 *             counts of both fit the exact distribution by a chi-square test.
+	 */
+	@Test
+	public void testBulkRunAndStepsFollowDistribution() {
+		double[][] biases = {{0.9}, {0.1, 0.5}, {0.3, 0.6, 0.8}, {0.5, 0.5, 0.2, 0.7}};
+		final int beanCount = 100000;
+		BiasedBeanCounterLogic bulk = new BiasedBeanCounterLogic(5, biases, new XoroshiroRandomSource(3));
+		BiasedBeanCounterLogic stepped = new BiasedBeanCounterLogic(5, biases, new XoroshiroRandomSource(4));
+		bulk.reset(beanCount);
+		stepped.reset(beanCount);
+		assertEquals(3, bulk.advanceSteps(3));
+		long steps = 0;
+		while (stepped.advanceStep()) {
+			steps++;
+		}
+		assertEquals(steps - 3, bulk.runToCompletion());
+		// 4 degrees of freedom: the 99.99th percentile of chi-square is about 23.5
+		for (BiasedBeanCounterLogic logic : new BiasedBeanCounterLogic[] {bulk, stepped}) {
+			assertEquals(beanCount, logic.getInSlotBeanCount());
+			GoodnessOfFit fit = GoodnessOfFit.of(logic.getDistribution());
+			logic.setFit(fit);
+			assertTrue(fit.getChiSquare() < 23.5);
+		}
+	}
+
+	/**
+	 * Test case for int getInFlightBeanXPos(int yPos).
+	 * Preconditions: None.
+	 * Execution steps: Step a board whose pegs all send beans right, and a random board,
+	 *                  watching the in-flight positions.
+	 * Invariants: On the first board every bean at row y is at x = y and lands in the last
+	 *             slot; on the second, a bean moves down one row a step, by 0 or 1 in x.
+	 */
+	@Test
+	public void testInFlightBeansWalkDown() {
+		double[] right = new double[9];
+		Arrays.fill(right, 1.0);
+		BiasedBeanCounterLogic sure = new BiasedBeanCounterLogic(10, BiasedBeanCounterLogic.rowBiases(right),
+				new XoroshiroRandomSource(1));
+		sure.reset(30);
+		do {
+			for (int y = 0; y < 10; y++) {
+				final int x = sure.getInFlightBeanXPos(y);
+				assertTrue(x == BeanCounterLogic.NO_BEAN_IN_YPOS || x == y);
+			}
+		} while (sure.advanceStep());
+		assertEquals(30, sure.getSlotBeanCount(9));
+
+		double[] tilted = new double[9];
+		Arrays.fill(tilted, 0.3);
+		BiasedBeanCounterLogic logic = new BiasedBeanCounterLogic(10, BiasedBeanCounterLogic.rowBiases(tilted),
+				new XoroshiroRandomSource(2));
+		logic.reset(50);
+		int[] before = new int[10];
+		boolean more = true;
+		while (more) {
+			for (int y = 0; y < 10; y++) {
+				before[y] = logic.getInFlightBeanXPos(y);
+			}
+			more = logic.advanceStep();
+			for (int y = 0; y < 9; y++) {
+				if (before[y] != BeanCounterLogic.NO_BEAN_IN_YPOS) {
+					final int moved = logic.getInFlightBeanXPos(y + 1) - before[y];
+					assertTrue(moved == 0 || moved == 1);
+				}
+			}
+		}
+		assertEquals(50, logic.getInSlotBeanCount());
+	}
+
+	/**
+	 * Test case for BiasedBeanCounterLogic(int slotCount, double[][] rightProbabilities,
+	 * RandomSource rand) with biases that do not fit the board.
+	 * Preconditions: None.
+	 * Execution steps: Create an engine with two biases in the first row.
+	 * Invariants: The biases are refused.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsMisshapenBiases() {
+		new BiasedBeanCounterLogic(3, new double[][] {{0.5, 0.5}, {0.5}}, new XoroshiroRandomSource(1));
+	}
+}
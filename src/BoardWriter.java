@@ -0,0 +1,187 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * BoardWriter: Shows a machine while it runs, for debug mode, without making
+ * the machine wait for the output. offer() is called after every step and
+ * decides whether the step gets a frame: only every Nth offer does, and no
+ * more than a given number of frames per second. A frame is rendered on the
+ * calling thread, since the machine moves on right after, into one of a few
+ * reusable buffers, and a background thread writes it to the channel. When
+ * the background thread falls behind by all the buffers, offer() waits for
+ * it, so every frame that was chosen is shown.
+ *
+ * <p>A writer is used by one thread. The channel is not closed by close(),
+ * since it may be standard output.
+ */
+
+public final class BoardWriter implements AutoCloseable {
+	private static final int FRAME_BUFFERS = 3;
+	private static final int INITIAL_FRAME_BYTES = 1 << 12;
+
+	/**
+	 * Frame that tells the background thread to stop.
+	 */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private static final String NEWLINE = System.lineSeparator();
+
+	private final WritableByteChannel channel;
+	private final long every;
+	private final long minFrameNanos;
+	private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(FRAME_BUFFERS);
+	private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(FRAME_BUFFERS + 1);
+	private final Thread thread;
+	private volatile IOException failure;
+	private long offerCount;
+	private long frameCount;
+	private long lastFrameNanos;
+	private boolean closed;
+
+	/**
+	 * Constructor - starts the background thread.
+	 *
+	 * @param channel            where to write the frames
+	 * @param every              show every Nth offered step, at least 1
+	 * @param maxFramesPerSecond most frames to show per second, or 0 for no limit
+	 */
+	public BoardWriter(WritableByteChannel channel, long every, double maxFramesPerSecond) {
+		if (every < 1 || !(maxFramesPerSecond >= 0)) {
+			throw new IllegalArgumentException("every must be at least 1 and maxFramesPerSecond at least 0");
+		}
+		this.channel = channel;
+		this.every = every;
+		this.minFrameNanos = (maxFramesPerSecond > 0) ? (long) (1e9 / maxFramesPerSecond) : 0;
+		for (int k = 0; k < FRAME_BUFFERS; k++) {
+			this.free.add(ByteBuffer.allocateDirect(INITIAL_FRAME_BYTES));
+		}
+		this.thread = new Thread(this::drain, "BoardWriter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Writes frames until told to stop. After a failed write, frames are thrown
+	 * away so that the machine is never held up; the failure is reported by the
+	 * next offer() or by close().
+	 */
+	private void drain() {
+		try {
+			for (ByteBuffer frame = this.full.take(); frame != END; frame = this.full.take()) {
+				try {
+					while (this.failure == null && frame.hasRemaining()) {
+						this.channel.write(frame);
+					}
+				} catch (IOException e) {
+					this.failure = e;
+				}
+				frame.clear();
+				this.free.add(frame);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Shows the machine if this step is chosen: if it is the first offer or a
+	 * multiple of every offers after it, and at least 1 / maxFramesPerSecond
+	 * seconds after the last frame.
+	 *
+	 * @param logic the machine
+	 * @return whether a frame was shown
+	 * @throws IOException if an earlier frame could not be written, or the thread
+	 *                     is interrupted while waiting for a buffer
+	 */
+	public boolean offer(AbstractBeanCounterLogic logic) throws IOException {
+		if (this.offerCount++ % this.every != 0) {
+			return false;
+		}
+		if (this.minFrameNanos > 0 && this.frameCount > 0
+				&& System.nanoTime() - this.lastFrameNanos < this.minFrameNanos) {
+			return false;
+		}
+		this.show(logic);
+		return true;
+	}
+
+	/**
+	 * Shows the machine whether or not the step is chosen, as for the final state.
+	 *
+	 * @param logic the machine
+	 * @throws IOException if an earlier frame could not be written, or the thread
+	 *                     is interrupted while waiting for a buffer
+	 */
+	public void show(AbstractBeanCounterLogic logic) throws IOException {
+		if (this.closed) {
+			throw new IllegalStateException("BoardWriter is closed");
+		}
+		this.checkFailure();
+		ByteBuffer frame;
+		try {
+			frame = this.free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a frame buffer");
+		}
+		while (true) {
+			try {
+				logic.putBoard(frame);
+				for (int k = 0; k < NEWLINE.length(); k++) {
+					frame.put((byte) NEWLINE.charAt(k));
+				}
+				break;
+			} catch (BufferOverflowException e) {
+				// Large boards get a larger buffer, which is kept for later frames
+				frame = ByteBuffer.allocateDirect(2 * frame.capacity());
+			}
+		}
+		frame.flip();
+		this.full.add(frame);
+		this.frameCount++;
+		this.lastFrameNanos = System.nanoTime();
+	}
+
+	private void checkFailure() throws IOException {
+		final IOException e = this.failure;
+		if (e != null) {
+			throw new IOException("Could not write the board", e);
+		}
+	}
+
+	/**
+	 * Returns the number of frames shown so far.
+	 *
+	 * @return number of frames
+	 */
+	public long getFrameCount() {
+		return this.frameCount;
+	}
+
+	/**
+	 * Waits until every frame is written and stops the background thread.
+	 *
+	 * @throws IOException if a frame could not be written, or the thread is
+	 *                     interrupted while waiting
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.full.add(END);
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing the board");
+		}
+		this.checkFailure();
+	}
+}
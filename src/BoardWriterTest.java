@@ -0,0 +1,167 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Formatter;
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests the text rendering of AbstractBeanCounterLogic and BoardWriter: the
+ * rendered text must be exactly what the format-string rendering used to give,
+ * and a BoardWriter must write just the frames it chose, in order.
+ */
+
+public class BoardWriterTest {
+	/**
+	 * Renders a machine with format strings, the way toString() used to.
+	 *
+	 * @param logic the machine
+	 * @return the board and the slot counts
+	 */
+	private static String formatBoard(AbstractBeanCounterLogic logic) {
+		StringBuilder bld = new StringBuilder();
+		Formatter fmt = new Formatter(bld);
+		final int slotCount = logic.getSlotCount();
+		for (int yPos = 0; yPos < slotCount; yPos++) {
+			for (int xPos = 0; xPos <= yPos; xPos++) {
+				int spacing = (xPos == 0) ? ((slotCount - 1) * 4 / 2 + 4 - 2 * yPos) : 4;
+				boolean occupied = false;
+				for (int lane = 0; lane < logic.getLaneCount(); lane++) {
+					occupied |= logic.getInFlightBeanXPos(yPos, lane) == xPos;
+				}
+				fmt.format("%" + spacing + "d", occupied ? 1 : 0);
+			}
+			fmt.format("%n");
+		}
+		for (int i = 0; i < slotCount; i++) {
+			fmt.format("%4d", logic.getSlotBeanCountLong(i));
+		}
+		fmt.close();
+		return bld.toString();
+	}
+
+	/**
+	 * Creates a skill-mode machine with several lanes, reset with fixed beans.
+	 *
+	 * @param slotCount the number of slots
+	 * @param beanCount the number of beans
+	 * @return the machine
+	 */
+	private static BeanCounterLogicImpl createMachine(int slotCount, int beanCount) {
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(slotCount, 2);
+		logic.reset(new BeanStore(slotCount, false, RandomSource.of(new Random(1)), beanCount));
+		return logic;
+	}
+
+	/**
+	 * Test case for String toString(), String getSlotString() and
+	 * void putBoard(ByteBuffer out).
+	 * Preconditions: None.
+	 * Execution steps: Step machines of several sizes, one with two lanes and one whose slot
+	 *                  counts are wider than a cell, and render them after every step.
+	 * Invariants: toString() and the bytes put into the buffer are exactly the text of the
+	 *             format-string rendering, and getSlotString() is its last line.
+	 */
+	@Test
+	public void testRenderMatchesFormatter() {
+		ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+		for (int slotCount : new int[] {1, 2, 5, 12}) {
+			AbstractBeanCounterLogic[] machines = {createMachine(slotCount, 30), new LuckBeanCounterLogic(slotCount, 7)};
+			((LuckBeanCounterLogic) machines[1]).reset(1000000L);
+			machines[1].runToCompletion();
+			for (AbstractBeanCounterLogic logic : machines) {
+				boolean more = true;
+				for (int step = 0; more && step < 50; step++) {
+					final String expected = formatBoard(logic);
+					assertEquals(expected, logic.toString());
+					assertTrue(expected.endsWith(logic.getSlotString()));
+					buffer.clear();
+					logic.putBoard(buffer);
+					assertEquals(expected, new String(buffer.array(), 0, buffer.position(), StandardCharsets.US_ASCII));
+					more = logic.advanceStep();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a whole file as ASCII text.
+	 *
+	 * @param path the file
+	 * @return the text
+	 * @throws IOException if the file cannot be read
+	 */
+	private static String readText(Path path) throws IOException {
+		return new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Test case for boolean offer(AbstractBeanCounterLogic logic) with every Nth step.
+	 * Preconditions: None.
+	 * Execution steps: Offer every step of a machine, large enough to outgrow the first frame
+	 *                  buffers, to a writer that shows every third step, then close it.
+	 * Invariants: The file holds the boards of steps 0, 3, 6, ... in order, each followed by
+	 *             a line separator, and offer() says which steps were shown.
+	 */
+	@Test
+	public void testEveryNthStep() throws IOException {
+		Path path = Files.createTempFile("board", ".txt");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			BeanCounterLogicImpl logic = createMachine(40, 20);
+			StringBuilder expected = new StringBuilder();
+			BoardWriter writer = new BoardWriter(channel, 3, 0);
+			int step = 0;
+			boolean more = true;
+			while (more) {
+				final boolean chosen = step % 3 == 0;
+				if (chosen) {
+					expected.append(logic.toString()).append(System.lineSeparator());
+				}
+				assertEquals(chosen, writer.offer(logic));
+				more = logic.advanceStep();
+				step++;
+			}
+			writer.close();
+			assertEquals((step + 2) / 3, writer.getFrameCount());
+			assertEquals(expected.toString(), readText(path));
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for boolean offer(AbstractBeanCounterLogic logic) with a frame rate limit
+	 * and void show(AbstractBeanCounterLogic logic).
+	 * Preconditions: None.
+	 * Execution steps: Offer every step of a machine to a writer allowed one frame every
+	 *                  1000 seconds, then show the final state.
+	 * Invariants: Only the first offered step and the final state are written.
+	 */
+	@Test
+	public void testFrameRateLimit() throws IOException {
+		Path path = Files.createTempFile("board", ".txt");
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			BeanCounterLogicImpl logic = createMachine(6, 20);
+			final String first = logic.toString() + System.lineSeparator();
+			BoardWriter writer = new BoardWriter(channel, 1, 0.001);
+			assertTrue(writer.offer(logic));
+			while (logic.advanceStep()) {
+				assertFalse(writer.offer(logic));
+			}
+			writer.show(logic);
+			writer.close();
+			assertEquals(2, writer.getFrameCount());
+			assertEquals(first + logic.toString() + System.lineSeparator(), readText(path));
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * CheckpointFile: Sequential little-endian access to the binary files that
+ * machines checkpoint their state to. A Writer streams values through a
+ * direct buffer into a FileChannel; a Reader maps the file into memory a
+ * window at a time and copies int arrays out in bulk, so files larger than a
+ * single mapping can be read back.
+ *
+ * <p>A Writer writes to a temporary file next to the target and moves it over
+ * the target atomically on commit(), so a crash while saving leaves the last
+ * good checkpoint in place. Closing a Writer that was not committed deletes
+ * the temporary file.
+ *
+ * <p>Every file starts with a magic number, a format version and the engine
+ * that wrote it, which the Reader checks when it is opened; each engine has a
+ * layout of its own after that, and getVersion() tells the caller which one
+ * follows.
+ */
+
+final class CheckpointFile {
+	/**
+	 * "BCKP" in ASCII.
+	 */
+	static final int MAGIC = 0x42434b50;
+	static final int VERSION = 4; // 2 added the lane count, 3 the generator state as values, 4 the engine
+
+	/**
+	 * Oldest version a Reader accepts; older files held a serialized generator,
+	 * which is not read back.
+	 */
+	static final int MIN_VERSION = 3;
+
+	/**
+	 * Size of the write buffer.
+	 */
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * Largest window of the file a Reader maps at once.
+	 */
+	private static final long WINDOW_BYTES = 1L << 30;
+
+	/**
+	 * Engines that save their state, each in a layout of its own.
+	 */
+	enum Engine {
+		IMPL, LUCK, SKILL, BIASED, REPLAY
+	}
+
+	private CheckpointFile() {
+	}
+
+	/**
+	 * Writes values to a new checkpoint file.
+	 */
+	static final class Writer implements AutoCloseable {
+		private final Path path;
+		private final Path temp; // written first, then moved to path
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private boolean committed;
+
+		/**
+		 * Constructor - creates a temporary file next to the given one and writes the
+		 * magic number, the version and the engine.
+		 *
+		 * @param path   the file to write, replaced on commit() if it exists
+		 * @param engine the engine whose state follows
+		 * @throws IOException if the file cannot be written
+		 */
+		Writer(Path path, Engine engine) throws IOException {
+			this.path = path.toAbsolutePath();
+			this.temp = Files.createTempFile(this.path.getParent(), this.path.getFileName().toString(), ".tmp");
+			try {
+				this.channel = FileChannel.open(this.temp, StandardOpenOption.WRITE);
+			} catch (IOException e) {
+				Files.deleteIfExists(this.temp);
+				throw e;
+			}
+			this.putInt(MAGIC);
+			this.putInt(VERSION);
+			this.putInt(engine.ordinal());
+		}
+
+		private void drain() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		void putInt(int value) throws IOException {
+			if (this.buffer.remaining() < Integer.BYTES) {
+				this.drain();
+			}
+			this.buffer.putInt(value);
+		}
+
+		void putLong(long value) throws IOException {
+			if (this.buffer.remaining() < Long.BYTES) {
+				this.drain();
+			}
+			this.buffer.putLong(value);
+		}
+
+		void putInts(int[] values, int offset, int length) throws IOException {
+			while (length > 0) {
+				if (this.buffer.remaining() < Integer.BYTES) {
+					this.drain();
+				}
+				final int n = Math.min(length, this.buffer.remaining() / Integer.BYTES);
+				this.buffer.asIntBuffer().put(values, offset, n);
+				this.buffer.position(this.buffer.position() + n * Integer.BYTES);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		void putDouble(double value) throws IOException {
+			this.putLong(Double.doubleToRawLongBits(value));
+		}
+
+		/**
+		 * Writes out what is left in the buffer, forces the file to disk and moves
+		 * it over the target.
+		 *
+		 * @throws IOException if the file cannot be written or moved
+		 */
+		void commit() throws IOException {
+			this.drain();
+			this.channel.force(false);
+			this.channel.close();
+			Files.move(this.temp, this.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			this.committed = true;
+		}
+
+		/**
+		 * Closes the file, deleting it if it was not committed.
+		 *
+		 * @throws IOException if the file cannot be closed
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!this.committed) {
+				try {
+					this.channel.close();
+				} finally {
+					Files.deleteIfExists(this.temp);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads values from a checkpoint file through memory mappings.
+	 */
+	static final class Reader implements AutoCloseable {
+		private final FileChannel channel;
+		private final Path path;
+		private MappedByteBuffer window;
+		private long windowStart; // file position of the start of window
+		private final int version;
+
+		/**
+		 * Constructor - opens the file and checks the magic number, the version and
+		 * the engine. Files older than version 4 were all written by
+		 * BeanCounterLogicImpl.
+		 *
+		 * @param path   the file to read
+		 * @param engine the engine that is to read the state
+		 * @throws IOException if the file cannot be read or is not a checkpoint of
+		 *                     the engine
+		 */
+		Reader(Path path, Engine engine) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.READ);
+			this.path = path;
+			this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, 0, 0);
+			try {
+				if (this.channel.size() < 2 * Integer.BYTES || this.getInt() != MAGIC) {
+					throw new IOException(path + " is not a checkpoint file");
+				}
+				this.version = this.getInt();
+				if (this.version < MIN_VERSION || this.version > VERSION) {
+					throw new IOException(path + " has unsupported checkpoint version " + this.version);
+				}
+				final int saved = (this.version >= 4) ? this.getInt() : Engine.IMPL.ordinal();
+				if (saved != engine.ordinal()) {
+					final String name = (saved >= 0 && saved < Engine.values().length) ? Engine.values()[saved].name()
+							: "unknown";
+					throw new IOException(path + " holds the state of the " + name + " engine, not " + engine.name());
+				}
+			} catch (IOException e) {
+				this.channel.close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Makes sure at least the given number of bytes can be read from the window,
+		 * mapping the next window of the file if needed.
+		 *
+		 * @param bytes number of bytes about to be read
+		 * @throws IOException if the file ends too early
+		 */
+		private void require(int bytes) throws IOException {
+			if (this.window.remaining() >= bytes) {
+				return;
+			}
+			final long position = this.windowStart + this.window.position();
+			final long length = Math.min(WINDOW_BYTES, this.channel.size() - position);
+			if (length < bytes) {
+				throw new IOException(this.path + " is truncated");
+			}
+			this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			this.window.order(ByteOrder.LITTLE_ENDIAN);
+			this.windowStart = position;
+		}
+
+		int getVersion() {
+			return this.version;
+		}
+
+		int getInt() throws IOException {
+			this.require(Integer.BYTES);
+			return this.window.getInt();
+		}
+
+		long getLong() throws IOException {
+			this.require(Long.BYTES);
+			return this.window.getLong();
+		}
+
+		double getDouble() throws IOException {
+			return Double.longBitsToDouble(this.getLong());
+		}
+
+		void getInts(int[] values, int offset, int length) throws IOException {
+			while (length > 0) {
+				this.require(Integer.BYTES);
+				final int n = Math.min(length, this.window.remaining() / Integer.BYTES);
+				this.window.asIntBuffer().get(values, offset, n);
+				this.window.position(this.window.position() + n * Integer.BYTES);
+				offset += n;
+				length -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.stream.Stream;
+import org.junit.Test;
+
+/**
+ * Tests checkpoint(Path) and restore(Path) of BeanCounterLogicImpl and of the
+ * counting engines: a restored machine must carry on exactly like the one that
+ * was saved.
+ */
+
+public class CheckpointTest {
+	private static final int SLOT_COUNT = 7;
+	private static final int BEAN_COUNT = 40;
+
+	/**
+	 * Drives a machine through steps, a repeat, a half and more steps, and records
+	 * its state after every call.
+	 *
+	 * @param logic the machine
+	 * @return the states one after another
+	 */
+	private static String runScript(AbstractBeanCounterLogic logic) {
+		StringBuilder bld = new StringBuilder();
+		for (int round = 0; round < 3; round++) {
+			for (int k = 0; k < 2 * SLOT_COUNT + round; k++) {
+				logic.advanceStep();
+				bld.append(MachineStates.getState(logic)).append('\n');
+			}
+			logic.repeat();
+			bld.append(MachineStates.getState(logic)).append('\n');
+			logic.advanceSteps(BEAN_COUNT / 2);
+			logic.upperHalf();
+			bld.append(MachineStates.getState(logic)).append('\n');
+		}
+		logic.runToCompletion();
+		return bld.append(MachineStates.getState(logic)).toString();
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) and restore(Path path).
+	 * Preconditions: None.
+	 * Execution steps: For luck and skill beans, from a BeanStore and from a BeanSource, on one
+	 *                  lane and on three, take some steps and a repeat, save the machine, then
+	 *                  run a script on it and on a fresh machine restored from the file.
+	 * Invariants: Both machines go through the same states, so the random number generator,
+	 *             the bean order and every bean's progress were all restored.
+	 */
+	@Test
+	public void testRestoredMachineCarriesOn() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			for (int laneCount : new int[] {1, 3}) {
+				for (boolean isLuck : new boolean[] {true, false}) {
+					for (boolean fromSource : new boolean[] {true, false}) {
+						BeanCounterLogicImpl saved = new BeanCounterLogicImpl(SLOT_COUNT, laneCount);
+						if (fromSource) {
+							saved.reset(new SeededBeanSource(SLOT_COUNT, isLuck, 9, BEAN_COUNT));
+						} else {
+							saved.reset(new BeanStore(SLOT_COUNT, isLuck, new XoroshiroRandomSource(9), BEAN_COUNT));
+						}
+						saved.advanceSteps(SLOT_COUNT + 3);
+						saved.repeat();
+						saved.advanceSteps(SLOT_COUNT - 2);
+						saved.checkpoint(path);
+						BeanCounterLogicImpl restored = new BeanCounterLogicImpl(SLOT_COUNT, laneCount);
+						restored.restore(path);
+						assertEquals(MachineStates.getState(saved), MachineStates.getState(restored));
+						assertEquals(saved.getAverageSlotBeanCount(), restored.getAverageSlotBeanCount(), 1e-9);
+						assertEquals(runScript(saved), runScript(restored));
+					}
+				}
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for restore(Path path) on a machine of another size.
+	 * Preconditions: None.
+	 * Execution steps: Save a machine and restore it into one with a different slot count.
+	 * Invariants: The restore fails with an IOException.
+	 */
+	@Test(expected = IOException.class)
+	public void testRejectsOtherSlotCount() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			BeanCounterLogicImpl saved = new BeanCounterLogicImpl(SLOT_COUNT);
+			saved.reset(new SeededBeanSource(SLOT_COUNT, true, 1, BEAN_COUNT));
+			saved.checkpoint(path);
+			new BeanCounterLogicImpl(SLOT_COUNT + 1).restore(path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for restore(Path path) on a machine with another number of lanes.
+	 * Preconditions: None.
+	 * Execution steps: Save a single-lane machine and restore it into one with two lanes.
+	 * Invariants: The restore fails with an IOException.
+	 */
+	@Test(expected = IOException.class)
+	public void testRejectsOtherLaneCount() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			BeanCounterLogicImpl saved = new BeanCounterLogicImpl(SLOT_COUNT);
+			saved.reset(new SeededBeanSource(SLOT_COUNT, true, 1, BEAN_COUNT));
+			saved.checkpoint(path);
+			new BeanCounterLogicImpl(SLOT_COUNT, 2).restore(path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) on a machine reset with a Bean array.
+	 * Preconditions: None.
+	 * Execution steps: Save a machine whose beans are Bean objects.
+	 * Invariants: The machine refuses, since it cannot reach the state of the beans.
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRejectsBeanObjects() throws IOException {
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+		logic.reset(new Bean[] {new BeanImpl(SLOT_COUNT, true, new Random())});
+		// Refused before the file is created
+		logic.checkpoint(Paths.get("machine.ckpt"));
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) on beans drawing from a generator it cannot save.
+	 * Preconditions: None.
+	 * Execution steps: Save a machine whose BeanStore draws from a java.util.Random.
+	 * Invariants: The machine refuses, since only the state of a XoroshiroRandomSource is
+	 *             written.
+	 */
+	@Test(expected = UnsupportedOperationException.class)
+	public void testRejectsOtherGenerator() throws IOException {
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+		logic.reset(new BeanStore(SLOT_COUNT, true, RandomSource.of(new Random(9)), BEAN_COUNT));
+		// Refused before the file is created
+		logic.checkpoint(Paths.get("machine.ckpt"));
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) over an existing checkpoint.
+	 * Preconditions: None.
+	 * Execution steps: Save a machine into an empty directory twice, the second time after
+	 *                  some steps.
+	 * Invariants: The directory holds only the checkpoint, no temporary file, and the file
+	 *             restores the second state.
+	 */
+	@Test
+	public void testReplacesCheckpoint() throws IOException {
+		Path dir = Files.createTempDirectory("machines");
+		Path path = dir.resolve("machine.ckpt");
+		try {
+			BeanCounterLogicImpl saved = new BeanCounterLogicImpl(SLOT_COUNT);
+			saved.reset(new SeededBeanSource(SLOT_COUNT, true, 3, BEAN_COUNT));
+			saved.checkpoint(path);
+			saved.advanceSteps(SLOT_COUNT + 2);
+			saved.checkpoint(path);
+			try (Stream<Path> files = Files.list(dir)) {
+				assertArrayEquals(new Object[] {path}, files.toArray());
+			}
+			BeanCounterLogicImpl restored = new BeanCounterLogicImpl(SLOT_COUNT);
+			restored.restore(path);
+			assertEquals(MachineStates.getState(saved), MachineStates.getState(restored));
+		} finally {
+			Files.deleteIfExists(path);
+			Files.delete(dir);
+		}
+	}
+
+	/**
+	 * Test case for restore(Path path) on a corrupt file.
+	 * Preconditions: None.
+	 * Execution steps: Save a machine, overwrite in turn its bean count, its waiting count,
+	 *                  the bean in its top row and the state of its generator with values
+	 *                  out of range, and restore each into a fresh machine.
+	 * Invariants: Every restore fails with an IOException.
+	 */
+	@Test
+	public void testRejectsCorruptFile() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			BeanCounterLogicImpl saved = new BeanCounterLogicImpl(SLOT_COUNT);
+			saved.reset(new SeededBeanSource(SLOT_COUNT, true, 5, BEAN_COUNT));
+			saved.advanceSteps(2);
+			saved.checkpoint(path);
+			final byte[] good = Files.readAllBytes(path);
+			// Magic, version, engine, slot count, lane count and luck come before the bean count
+			final int beanCountAt = 6 * Integer.BYTES;
+			final int rowsAt = beanCountAt + 3 * Integer.BYTES;
+			// The generator state ends with two longs, an int, a double and an int
+			final int bitCountAt = good.length - 2 * Integer.BYTES - Double.BYTES;
+			final int[][] corruptions = {
+				{beanCountAt, -1}, {beanCountAt + 2 * Integer.BYTES, -5}, {rowsAt, BEAN_COUNT}, {bitCountAt, 65}
+			};
+			for (int[] corruption : corruptions) {
+				Files.write(path, good);
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+					ByteBuffer value = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+					value.putInt(corruption[1]).flip();
+					channel.write(value, corruption[0]);
+				}
+				try {
+					new BeanCounterLogicImpl(SLOT_COUNT).restore(path);
+					fail("Restored a file with " + corruption[1] + " at " + corruption[0]);
+				} catch (IOException e) {
+					// expected
+				}
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Takes a machine through some steps, a repeat and more steps, saves it, and
+	 * checks that a fresh machine restored from the file goes through the same
+	 * states as the saved one.
+	 *
+	 * @param saved    the machine to save, reset
+	 * @param restored a fresh machine of the same kind
+	 * @param path     the file to save to
+	 * @throws IOException if the file cannot be written or read
+	 */
+	private static void assertCarriesOn(AbstractBeanCounterLogic saved, AbstractBeanCounterLogic restored, Path path)
+			throws IOException {
+		saved.advanceSteps(SLOT_COUNT + 3);
+		saved.repeat();
+		saved.advanceSteps(SLOT_COUNT - 2);
+		saved.checkpoint(path);
+		restored.restore(path);
+		assertEquals(MachineStates.getState(saved), MachineStates.getState(restored));
+		assertEquals(saved.getAverageSlotBeanCount(), restored.getAverageSlotBeanCount(), 1e-9);
+		assertEquals(runScript(saved), runScript(restored));
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) and restore(Path path) of the counting engines.
+	 * Preconditions: None.
+	 * Execution steps: For a luck-mode engine, a skill-mode engine reset from a source and from
+	 *                  Bean objects, and an engine with biased pegs, take some steps and a
+	 *                  repeat, save the machine, then run a script on it and on a fresh engine
+	 *                  with another seed restored from the file.
+	 * Invariants: Both machines go through the same states, so the seed, the waiting beans
+	 *             and the beans in flight were all restored.
+	 */
+	@Test
+	public void testCountingEnginesCarryOn() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			LuckBeanCounterLogic luck = new LuckBeanCounterLogic(SLOT_COUNT, 9);
+			luck.reset(BEAN_COUNT);
+			assertCarriesOn(luck, new LuckBeanCounterLogic(SLOT_COUNT, 1), path);
+
+			SkillBeanCounterLogic skill = new SkillBeanCounterLogic(SLOT_COUNT);
+			skill.reset(new SeededBeanSource(SLOT_COUNT, false, 9, BEAN_COUNT));
+			assertCarriesOn(skill, new SkillBeanCounterLogic(SLOT_COUNT), path);
+
+			Bean[] beans = new Bean[BEAN_COUNT];
+			for (int i = 0; i < BEAN_COUNT; i++) {
+				beans[i] = new BeanImpl(SLOT_COUNT, false, new Random(i));
+			}
+			skill = new SkillBeanCounterLogic(SLOT_COUNT);
+			skill.reset(beans);
+			assertCarriesOn(skill, new SkillBeanCounterLogic(SLOT_COUNT), path);
+
+			final double[][] biases = BiasedBeanCounterLogic.rowBiases(0.2, 0.4, 0.5, 0.6, 0.8, 0.9);
+			BiasedBeanCounterLogic biased = new BiasedBeanCounterLogic(SLOT_COUNT, biases, new XoroshiroRandomSource(9));
+			biased.reset(BEAN_COUNT);
+			assertCarriesOn(biased, new BiasedBeanCounterLogic(SLOT_COUNT, biases, new XoroshiroRandomSource(1)), path);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for checkpoint(Path path) and restore(Path path) of ReplayBeanCounterLogic.
+	 * Preconditions: None.
+	 * Execution steps: Record a luck-mode run, replay part of it and save the replaying
+	 *                  machine, then run the rest on it and on a fresh replay of the same log
+	 *                  restored from the file.
+	 * Invariants: Both machines go through the same states, so the restored one picked up
+	 *             the log where the saved one had left it.
+	 */
+	@Test
+	public void testReplayCarriesOn() throws IOException {
+		Path log = Files.createTempFile("decisions", ".log");
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			LuckBeanCounterLogic recorded = new LuckBeanCounterLogic(SLOT_COUNT, 4);
+			try (DecisionLog.Writer writer = new DecisionLog.Writer(log, SLOT_COUNT)) {
+				recorded.setRecorder(writer);
+				recorded.reset(BEAN_COUNT);
+				recorded.advanceSteps(SLOT_COUNT + 3);
+				recorded.repeat();
+				recorded.advanceSteps(SLOT_COUNT - 2);
+				runScript(recorded);
+			}
+			ReplayBeanCounterLogic saved = new ReplayBeanCounterLogic(new DecisionLog.Reader(log));
+			saved.reset(BEAN_COUNT);
+			assertCarriesOn(saved, new ReplayBeanCounterLogic(new DecisionLog.Reader(log)), path);
+		} finally {
+			Files.delete(log);
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for restore(Path path) on an engine of another kind or with other biases.
+	 * Preconditions: None.
+	 * Execution steps: Save a luck-mode machine and restore it into a skill-mode one, and save
+	 *                  a machine with biased pegs and restore it into one with fair pegs.
+	 * Invariants: Both restores fail with an IOException.
+	 */
+	@Test
+	public void testRejectsOtherEngine() throws IOException {
+		Path path = Files.createTempFile("machine", ".ckpt");
+		try {
+			LuckBeanCounterLogic luck = new LuckBeanCounterLogic(SLOT_COUNT, 2);
+			luck.reset(BEAN_COUNT);
+			luck.checkpoint(path);
+			try {
+				new SkillBeanCounterLogic(SLOT_COUNT).restore(path);
+				fail("Restored a luck-mode machine into a skill-mode one");
+			} catch (IOException e) {
+				// expected
+			}
+			BiasedBeanCounterLogic biased = new BiasedBeanCounterLogic(SLOT_COUNT,
+					BiasedBeanCounterLogic.rowBiases(0.1, 0.2, 0.3, 0.4, 0.5, 0.6), new XoroshiroRandomSource(2));
+			biased.reset(BEAN_COUNT);
+			biased.checkpoint(path);
+			try {
+				new BiasedBeanCounterLogic(SLOT_COUNT, BiasedBeanCounterLogic.rowBiases(0.5, 0.5, 0.5, 0.5, 0.5, 0.5),
+						new XoroshiroRandomSource(2)).restore(path);
+				fail("Restored a machine into one with other biases");
+			} catch (IOException e) {
+				// expected
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * CounterRandom: A stateless, counter-based random number generator. Word k of
+ * the stream is a pure function of the master seed and k: the SplitMix64
+ * finalizer applied to key + (k + 1) * GOLDEN_GAMMA, where the key is the
+ * scrambled seed. This is the sequence a SplittableRandom seeded with the key
+ * produces, but any word can be computed in O(1), in any order and on any
+ * thread, with the same result every time.
+ *
+ * <p>Luck-mode engines number the beans they drop and key the path of bean id
+ * on a machine with wordsPerPath words per path by the counters
+ * id * wordsPerPath to id * wordsPerPath + wordsPerPath - 1; goesRight() gives
+ * the decision of any bean at any peg from that numbering directly.
+ */
+
+public final class CounterRandom {
+	/**
+	 * Golden-ratio increment of the SplitMix64 generator.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private final long seed;
+	private final long key; // scrambled seed, so that nearby seeds give unrelated streams
+
+	/**
+	 * Constructor - creates the generator for a master seed.
+	 *
+	 * @param seed the master seed
+	 */
+	public CounterRandom(long seed) {
+		this.seed = seed;
+		this.key = mix64(seed);
+	}
+
+	/**
+	 * Scrambles a 64-bit value with the SplitMix64 finalizer.
+	 *
+	 * @param z the value to scramble
+	 * @return the scrambled value
+	 */
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	/**
+	 * Returns the master seed.
+	 *
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * Returns word k of the stream: 64 random bits.
+	 *
+	 * @param counter the position k in the stream
+	 * @return the random bits
+	 */
+	public long word(long counter) {
+		return mix64(this.key + (counter + 1) * GOLDEN_GAMMA);
+	}
+
+	/**
+	 * Returns whether a luck-mode bean goes right at a peg, for beans whose paths
+	 * take wordsPerPath words of the stream each.
+	 *
+	 * @param beanId       the number of the bean
+	 * @param row          the row of the peg, from 0
+	 * @param wordsPerPath 64-bit words per bean path
+	 * @return true if the bean goes right
+	 */
+	public boolean goesRight(long beanId, int row, int wordsPerPath) {
+		return ((this.word(beanId * wordsPerPath + (row >>> 6)) >>> (row & 63)) & 1) != 0;
+	}
+}
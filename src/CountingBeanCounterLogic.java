@@ -0,0 +1,153 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * CountingBeanCounterLogic: Base class for engines that keep only the number of
+ * beans in each slot, not which beans they are. This works whenever a bean's
+ * future does not depend on its history: a skill bean's path follows from its
+ * slot, and a luck bean's path is fresh randomness on every drop. Subclasses
+ * put landed beans in with addToSlot(); the slot queries are handled here, and
+ * the half operations and the statistics by AbstractBeanCounterLogic.
+ *
+ * <p>The slot counts are also all a checkpoint needs of the slots: subclasses
+ * write them with writeSlots() and put them back with readSlots() and
+ * restoreSlots().
+ */
+
+public abstract class CountingBeanCounterLogic extends AbstractBeanCounterLogic {
+	protected final long[] slots; // number of beans in each slot
+
+	/**
+	 * Constructor - creates empty slots.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 */
+	protected CountingBeanCounterLogic(int slotCount) {
+		super(slotCount);
+		this.slots = new long[slotCount];
+	}
+
+	/**
+	 * Returns the number of slots the machine was initialized with.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return this.slots.length;
+	}
+
+	/**
+	 * Returns the number of beans in the ith slot.
+	 *
+	 * @param i index of slot
+	 * @return number of beans in slot
+	 * @throws ArithmeticException if the count does not fit in an int
+	 */
+	public int getSlotBeanCount(int i) {
+		return Math.toIntExact(this.slots[i]);
+	}
+
+	/**
+	 * Returns the number of beans in the ith slot, as a long.
+	 *
+	 * @param i index of slot
+	 * @return number of beans in slot
+	 */
+	@Override
+	public long getSlotBeanCountLong(int i) {
+		return this.slots[i];
+	}
+
+	/**
+	 * Puts beans that landed in the same slot into it.
+	 *
+	 * @param i     index of slot
+	 * @param count number of beans
+	 */
+	protected void addToSlot(int i, long count) {
+		this.slots[i] = Math.addExact(this.slots[i], count);
+		this.countLanding(i, count);
+	}
+
+	/**
+	 * Empties all slots.
+	 */
+	protected void clearSlots() {
+		Arrays.fill(this.slots, 0);
+		this.clearCounts();
+	}
+
+	/**
+	 * Takes beans out of a slot.
+	 *
+	 * @param i     index of slot
+	 * @param count number of beans to take
+	 */
+	@Override
+	protected void takeFromSlot(int i, long count) {
+		this.slots[i] -= count;
+	}
+
+	/**
+	 * Reads the slot count at the start of a checkpoint and checks that it is the
+	 * slot count of this machine.
+	 *
+	 * @param in   the file
+	 * @param path the file, for the message
+	 * @throws IOException if the file cannot be read or holds another machine
+	 */
+	protected final void readSlotCount(CheckpointFile.Reader in, Path path) throws IOException {
+		final int savedSlotCount = in.getInt();
+		if (savedSlotCount != this.slots.length) {
+			throw new IOException(path + " holds a machine with " + savedSlotCount + " slots, not " + this.slots.length);
+		}
+	}
+
+	/**
+	 * Writes the bean count of each slot to a checkpoint file, as longs.
+	 *
+	 * @param out the file
+	 * @throws IOException if the file cannot be written
+	 */
+	protected final void writeSlots(CheckpointFile.Writer out) throws IOException {
+		for (long count : this.slots) {
+			out.putLong(count);
+		}
+	}
+
+	/**
+	 * Reads the slot bean counts written by writeSlots() and checks them.
+	 *
+	 * @param in   the file
+	 * @param path the file, for the message
+	 * @return bean count of each slot
+	 * @throws IOException if the file cannot be read or a count is out of range
+	 */
+	protected final long[] readSlots(CheckpointFile.Reader in, Path path) throws IOException {
+		final long[] counts = new long[this.slots.length];
+		long total = 0;
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = in.getLong();
+			if (counts[i] < 0 || counts[i] > Long.MAX_VALUE - total) {
+				throw new IOException(path + " holds an invalid count for slot " + i + ": " + counts[i]);
+			}
+			total += counts[i];
+		}
+		return counts;
+	}
+
+	/**
+	 * Replaces the beans in the slots with restored ones, which count in the
+	 * statistics but not as landed.
+	 *
+	 * @param counts bean count of each slot, as read by readSlots()
+	 */
+	protected final void restoreSlots(long[] counts) {
+		this.clearSlots();
+		for (int i = 0; i < counts.length; i++) {
+			this.slots[i] = counts[i];
+			this.countRestored(i, counts[i]);
+		}
+	}
+}
@@ -0,0 +1,483 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * DecisionLog: Append-only file of the left/right decisions of luck-mode
+ * beans, one bit per peg, so that a run can be replayed without a random
+ * number generator. Paths are appended in the order the engine draws them:
+ * bit y of a path is 1 if the bean goes right at row y, and the pegCount bits
+ * of each path follow the previous path's bits directly, packed LSB first into
+ * little-endian 64-bit words. A 10-slot machine takes 9 bits per bean.
+ *
+ * <p>The header holds a magic number, the format version, the slot count and
+ * the number of beans. The writer only ever appends whole words and fills in
+ * the bean count when it is closed; if it never is, a reader counts the beans
+ * whose bits made it to the file.
+ */
+
+public final class DecisionLog {
+	/**
+	 * "BDLG" in ASCII.
+	 */
+	public static final int MAGIC = 0x42444c47;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24; // magic, version, slot count, unused, bean count
+	private static final int BEAN_COUNT_POSITION = 16;
+	private static final long UNKNOWN_BEAN_COUNT = -1;
+
+	/**
+	 * Size of the write buffer.
+	 */
+	private static final int BUFFER_BYTES = 1 << 16;
+
+	/**
+	 * 64-bit words per memory mapping when reading; 1 GiB.
+	 */
+	private static final long WORDS_PER_CHUNK = 1L << 27;
+
+	/**
+	 * Words a Reader copies out of a mapping at a time.
+	 */
+	private static final int WINDOW_WORDS = 1 << 13;
+
+	private DecisionLog() {
+	}
+
+	/**
+	 * Returns the number of pegs a bean passes on a machine with the given number
+	 * of slots, which is the number of bits of its path.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @return number of pegs
+	 */
+	static int getPegCount(int slotCount) {
+		return Math.max(0, slotCount - 1);
+	}
+
+	/**
+	 * Appends bean paths to a new decision log.
+	 */
+	public static final class Writer implements AutoCloseable {
+		private final FileChannel channel;
+		private final int pegCount;
+		private final int wordsPerPath;
+		private final int lastWordBits; // bits in the last word of a path, from 1 to 64
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		private final long[] words = new long[BUFFER_BYTES / Long.BYTES]; // whole words not yet written
+		private int wordCount;
+		private long pending; // bits not yet making up a whole word, LSB first
+		private int pendingBits;
+		private long beanCount;
+
+		/**
+		 * Constructor - creates the log, replacing the file if it exists.
+		 *
+		 * @param path      the file to write
+		 * @param slotCount the number of slots of the machine being recorded
+		 * @throws IOException if the file cannot be written
+		 */
+		public Writer(Path path, int slotCount) throws IOException {
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			this.pegCount = getPegCount(slotCount);
+			this.wordsPerPath = (this.pegCount + 63) / 64;
+			this.lastWordBits = this.pegCount - 64 * (this.wordsPerPath - 1);
+			this.buffer.putInt(MAGIC).putInt(VERSION).putInt(slotCount).putInt(0);
+			this.buffer.putLong(UNKNOWN_BEAN_COUNT);
+			this.write();
+		}
+
+		/**
+		 * Appends the paths of count beans, stored one after the other in
+		 * (pegCount + 63) / 64 words each.
+		 *
+		 * @param paths  the path words, with no bits set beyond pegCount in each path
+		 * @param offset index of the first word of the first path
+		 * @param count  number of paths
+		 * @throws IOException if the file cannot be written
+		 */
+		public void append(long[] paths, int offset, int count) throws IOException {
+			final long[] out = this.words;
+			long pend = this.pending;
+			int bits = this.pendingBits;
+			int filled = this.wordCount;
+			if (this.wordsPerPath == 1) {
+				// One word per path, all of the same length
+				final int n = this.pegCount;
+				for (int end = offset + count; offset < end; offset++) {
+					final long word = paths[offset];
+					pend |= word << bits;
+					bits += n;
+					if (bits >= 64) {
+						out[filled++] = pend;
+						if (filled == out.length) {
+							this.wordCount = filled;
+							this.flush();
+							filled = 0;
+						}
+						bits -= 64;
+						pend = (word >>> 1) >>> (n - bits - 1);
+					}
+				}
+			} else {
+				for (int b = 0; b < count; b++) {
+					for (int w = 1; w <= this.wordsPerPath; w++) {
+						final long word = paths[offset++];
+						final int n = (w == this.wordsPerPath) ? this.lastWordBits : 64;
+						pend |= word << bits;
+						bits += n;
+						if (bits >= 64) {
+							out[filled++] = pend;
+							if (filled == out.length) {
+								this.wordCount = filled;
+								this.flush();
+								filled = 0;
+							}
+							bits -= 64;
+							// The bits of word that did not fit: word >>> (n - bits), in two shifts so
+							// that nothing is left when bits is 0
+							pend = (word >>> 1) >>> (n - bits - 1);
+						}
+					}
+				}
+			}
+			this.pending = pend;
+			this.pendingBits = bits;
+			this.wordCount = filled;
+			this.beanCount += count;
+		}
+
+		/**
+		 * Appends the path of one bean on a machine with at most 65 slots, whose path
+		 * fits in one word. The bits go into the partly filled word, which is stored
+		 * once it holds 64 of them, so a stepping engine pays a shift and an OR per
+		 * bean and a store per 64 decisions.
+		 *
+		 * @param path the path, with no bits set beyond pegCount
+		 * @throws IOException if the file cannot be written
+		 */
+		public void append(long path) throws IOException {
+			this.pending |= path << this.pendingBits;
+			this.pendingBits += this.pegCount;
+			this.beanCount++;
+			if (this.pendingBits >= 64) {
+				this.storePending(path);
+			}
+		}
+
+		/**
+		 * Stores the partly filled word once a path has filled it, and keeps the bits
+		 * of the path that did not fit.
+		 *
+		 * @param path the path that filled the word
+		 * @throws IOException if the file cannot be written
+		 */
+		private void storePending(long path) throws IOException {
+			this.words[this.wordCount++] = this.pending;
+			if (this.wordCount == this.words.length) {
+				this.flush();
+			}
+			this.pendingBits -= 64;
+			this.pending = (path >>> 1) >>> (this.pegCount - this.pendingBits - 1);
+		}
+
+		/**
+		 * Appends the paths of count beans that are already packed the way the log
+		 * stores them: pegCount bits per path, LSB first, from bit 0 of words[0] on,
+		 * with no bits set beyond the last path. Costs one shift per word rather than
+		 * one per path.
+		 *
+		 * @param words the packed paths
+		 * @param count number of paths
+		 * @throws IOException if the file cannot be written
+		 */
+		public void appendPacked(long[] words, long count) throws IOException {
+			final long bitCount = count * this.pegCount;
+			final int fullWords = (int) (bitCount >>> 6);
+			final int rest = (int) (bitCount & 63);
+			final long[] out = this.words;
+			final int bits = this.pendingBits;
+			long pend = this.pending;
+			int filled = this.wordCount;
+			for (int k = 0; k < fullWords; k++) {
+				final long word = words[k];
+				out[filled++] = pend | (word << bits);
+				if (filled == out.length) {
+					this.wordCount = filled;
+					this.flush();
+					filled = 0;
+				}
+				// The bits of word that did not fit, in two shifts so that nothing is left
+				// when bits is 0
+				pend = (word >>> 1) >>> (63 - bits);
+			}
+			this.pending = pend;
+			this.wordCount = filled;
+			if (rest > 0) {
+				this.appendBits(words[fullWords], rest);
+			}
+			this.beanCount += count;
+		}
+
+		/**
+		 * Appends the low bits of a word.
+		 *
+		 * @param word the bits, with none set beyond n
+		 * @param n    number of bits, from 1 to 64
+		 * @throws IOException if the file cannot be written
+		 */
+		private void appendBits(long word, int n) throws IOException {
+			this.pending |= word << this.pendingBits;
+			this.pendingBits += n;
+			if (this.pendingBits >= 64) {
+				this.words[this.wordCount++] = this.pending;
+				if (this.wordCount == this.words.length) {
+					this.flush();
+				}
+				this.pendingBits -= 64;
+				this.pending = (word >>> 1) >>> (n - this.pendingBits - 1);
+			}
+		}
+
+		/**
+		 * Writes out the contents of the byte buffer.
+		 *
+		 * @throws IOException if the file cannot be written
+		 */
+		private void write() throws IOException {
+			this.buffer.flip();
+			while (this.buffer.hasRemaining()) {
+				this.channel.write(this.buffer);
+			}
+			this.buffer.clear();
+		}
+
+		/**
+		 * Returns the number of beans appended so far.
+		 *
+		 * @return number of beans
+		 */
+		public long getBeanCount() {
+			return this.beanCount;
+		}
+
+		/**
+		 * Writes out the buffered whole words, so a reader sees every bean whose bits
+		 * they complete.
+		 *
+		 * @throws IOException if the file cannot be written
+		 */
+		public void flush() throws IOException {
+			this.buffer.asLongBuffer().put(this.words, 0, this.wordCount);
+			this.buffer.position(this.wordCount * Long.BYTES);
+			this.wordCount = 0;
+			this.write();
+		}
+
+		/**
+		 * Writes out the last, partly filled word, fills in the bean count and closes
+		 * the file.
+		 *
+		 * @throws IOException if the file cannot be written
+		 */
+		@Override
+		public void close() throws IOException {
+			try {
+				if (this.pendingBits > 0) {
+					// words has room: it is flushed as soon as it fills up
+					this.words[this.wordCount++] = this.pending;
+				}
+				this.flush();
+				this.buffer.putLong(this.beanCount).flip();
+				while (this.buffer.hasRemaining()) {
+					this.channel.write(this.buffer, BEAN_COUNT_POSITION + this.buffer.position());
+				}
+				this.buffer.clear();
+			} finally {
+				this.channel.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads the bean paths of a decision log in order, through memory mappings.
+	 */
+	public static final class Reader {
+		private final int slotCount;
+		private final int pegCount;
+		private final long beanCount;
+		private final MappedByteBuffer[] chunks;
+		private final long wordCount;
+		private long beansRead;
+		private final int wordsPerPath;
+		private final int lastWordBits; // bits in the last word of a path, from 1 to 64
+		private final long[] window; // words copied out of the mappings, zeros after windowLength
+		private int windowLength;
+		private long windowStart; // index in the file of the first word in window
+		private long bitPosition; // position in window of the next path
+
+		/**
+		 * Constructor - maps a decision log into memory.
+		 *
+		 * @param path the file to read
+		 * @throws IOException if the file cannot be read or is not a decision log
+		 */
+		public Reader(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+					continue;
+				}
+				header.flip();
+				if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+					throw new IOException(path + " is not a decision log");
+				}
+				final int version = header.getInt();
+				if (version != VERSION) {
+					throw new IOException(path + " has unsupported decision log version " + version);
+				}
+				this.slotCount = header.getInt();
+				header.getInt();
+				final long savedBeanCount = header.getLong();
+				this.pegCount = getPegCount(this.slotCount);
+				this.wordsPerPath = (this.pegCount + 63) / 64;
+				this.lastWordBits = this.pegCount - 64 * (this.wordsPerPath - 1);
+				// One word more than the longest path may take, for a path that starts in
+				// the middle of a word and for the word after it that read() peeks at
+				this.window = new long[Math.max(WINDOW_WORDS, this.wordsPerPath + 2)];
+				final long words = (channel.size() - HEADER_BYTES) / Long.BYTES;
+				this.wordCount = words;
+				if (savedBeanCount != UNKNOWN_BEAN_COUNT) {
+					this.beanCount = savedBeanCount;
+				} else if (this.pegCount == 0) {
+					this.beanCount = 0;
+				} else {
+					// The writer never closed the log: count the beans whose bits are all there
+					this.beanCount = words * 64 / this.pegCount;
+				}
+				if (this.beanCount < 0 || this.beanCount * this.pegCount > words * 64) {
+					throw new IOException(path + " is truncated");
+				}
+				this.chunks = new MappedByteBuffer[(int) ((words + WORDS_PER_CHUNK - 1) / WORDS_PER_CHUNK)];
+				for (int c = 0; c < this.chunks.length; c++) {
+					final long first = c * WORDS_PER_CHUNK;
+					final long length = Math.min(WORDS_PER_CHUNK, words - first) * Long.BYTES;
+					this.chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * Long.BYTES,
+							length);
+					this.chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+				}
+			}
+		}
+
+		/**
+		 * Returns the number of slots of the recorded machine.
+		 *
+		 * @return number of slots
+		 */
+		public int getSlotCount() {
+			return this.slotCount;
+		}
+
+		/**
+		 * Returns the number of bean paths in the log.
+		 *
+		 * @return number of beans
+		 */
+		public long getBeanCount() {
+			return this.beanCount;
+		}
+
+		/**
+		 * Returns the number of bean paths not read yet.
+		 *
+		 * @return number of beans
+		 */
+		public long getRemainingBeanCount() {
+			return this.beanCount - this.beansRead;
+		}
+
+		/**
+		 * Moves to the path of the given bean, so that the next read() starts there.
+		 *
+		 * @param bean the number of the bean, from 0 to getBeanCount()
+		 * @throws IllegalArgumentException if the log has no such bean
+		 */
+		public void seek(long bean) {
+			if (bean < 0 || bean > this.beanCount) {
+				throw new IllegalArgumentException("The decision log has no bean " + bean);
+			}
+			this.beansRead = bean;
+			final long bit = bean * this.pegCount;
+			// An empty window makes the next read() copy the words from there on
+			this.windowStart = bit >>> 6;
+			this.bitPosition = bit & 63;
+			this.windowLength = 0;
+		}
+
+		/**
+		 * Moves the window forward so it starts at the word that holds the next path,
+		 * copying the words from there on out of the mappings.
+		 */
+		private void slideWindow() {
+			this.windowStart += this.bitPosition >>> 6;
+			this.bitPosition &= 63;
+			this.windowLength = (int) Math.min(this.window.length - 1, this.wordCount - this.windowStart);
+			for (int k = 0; k < this.windowLength;) {
+				final long word = this.windowStart + k;
+				final int first = (int) (word % WORDS_PER_CHUNK);
+				final int n = (int) Math.min(this.windowLength - k, WORDS_PER_CHUNK - first);
+				final LongBuffer words = this.chunks[(int) (word / WORDS_PER_CHUNK)].asLongBuffer();
+				words.position(first);
+				words.get(this.window, k, n);
+				k += n;
+			}
+			Arrays.fill(this.window, this.windowLength, this.window.length, 0);
+		}
+
+		/**
+		 * Reads the paths of the next count beans, one after the other in
+		 * (pegCount + 63) / 64 words each.
+		 *
+		 * @param paths  where to put the path words
+		 * @param offset index of the first word of the first path
+		 * @param count  number of paths
+		 * @throws IllegalStateException if fewer than count paths are left
+		 */
+		public void read(long[] paths, int offset, int count) {
+			if (count > this.beanCount - this.beansRead) {
+				throw new IllegalStateException("The decision log has no more beans");
+			}
+			this.beansRead += count;
+			if (this.wordsPerPath == 0) {
+				return;
+			}
+			final long[] in = this.window;
+			long position = this.bitPosition;
+			for (int b = 0; b < count; b++) {
+				if ((position >>> 6) + this.wordsPerPath >= this.windowLength) {
+					this.bitPosition = position;
+					this.slideWindow();
+					position = this.bitPosition;
+				}
+				for (int w = 1; w <= this.wordsPerPath; w++) {
+					final int n = (w == this.wordsPerPath) ? this.lastWordBits : 64;
+					final int index = (int) (position >>> 6);
+					final int shift = (int) (position & 63);
+					// The next word contributes in[index + 1] << (64 - shift), split in two
+					// shifts so that nothing comes from it when shift is 0
+					final long value = (in[index] >>> shift) | ((in[index + 1] << 1) << (63 - shift));
+					paths[offset++] = (n == 64) ? value : value & ((1L << n) - 1);
+					position += n;
+				}
+			}
+			this.bitPosition = position;
+		}
+	}
+}
@@ -0,0 +1,234 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests DecisionLog and ReplayBeanCounterLogic: paths must come back out of a
+ * log bit for bit, and a replayed run must go exactly like the recorded one.
+ */
+
+public class DecisionLogTest {
+	private static final int[] SLOT_COUNTS = {1, 2, 10, 64, 65, 70, 130};
+
+	/**
+	 * Fills an array with random paths of pegCount bits each.
+	 *
+	 * @param rand      the random number generator
+	 * @param slotCount the number of slots of the machine
+	 * @param count     number of paths
+	 * @return the path words
+	 */
+	private static long[] randomPaths(SplittableRandom rand, int slotCount, int count) {
+		final int pegCount = DecisionLog.getPegCount(slotCount);
+		final int wordsPerPath = (pegCount + 63) / 64;
+		long[] paths = new long[count * wordsPerPath];
+		for (int b = 0; b < count; b++) {
+			for (int w = 0; w < wordsPerPath; w++) {
+				final int bits = Math.min(64, pegCount - 64 * w);
+				paths[b * wordsPerPath + w] = rand.nextLong() & ((bits == 64) ? -1L : (1L << bits) - 1);
+			}
+		}
+		return paths;
+	}
+
+	/**
+	 * Test case for DecisionLog.Writer.append() and DecisionLog.Reader.read().
+	 * Preconditions: None.
+	 * Execution steps: Append random paths in batches of different sizes, single one-word
+	 *                  paths on their own, close the log, and read them back in batches of
+	 *                  other sizes.
+	 * Invariants: The log holds the slot count and the number of beans, and every path reads
+	 *             back as it was written.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		final int beanCount = 5000;
+		Path path = Files.createTempFile("decisions", ".log");
+		try {
+			for (int slotCount : SLOT_COUNTS) {
+				long[] paths = randomPaths(new SplittableRandom(slotCount), slotCount, beanCount);
+				final int wordsPerPath = paths.length / beanCount;
+				try (DecisionLog.Writer writer = new DecisionLog.Writer(path, slotCount)) {
+					for (int b = 0, batch = 1; b < beanCount; b += batch, batch = batch % 17 + 1) {
+						if (batch == 1 && wordsPerPath == 1) {
+							writer.append(paths[b]);
+						} else {
+							writer.append(paths, b * wordsPerPath, Math.min(batch, beanCount - b));
+						}
+					}
+					assertEquals(beanCount, writer.getBeanCount());
+				}
+				DecisionLog.Reader reader = new DecisionLog.Reader(path);
+				assertEquals(slotCount, reader.getSlotCount());
+				assertEquals(beanCount, reader.getBeanCount());
+				long[] read = new long[paths.length];
+				for (int b = 0, batch = 1; b < beanCount; b += batch, batch = batch % 23 + 1) {
+					reader.read(read, b * wordsPerPath, Math.min(batch, beanCount - b));
+				}
+				assertArrayEquals(paths, read);
+				assertEquals(0, reader.getRemainingBeanCount());
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for DecisionLog.Reader(Path path) with a log that was never closed.
+	 * Preconditions: None.
+	 * Execution steps: Append paths and flush the log without closing it, then read it.
+	 * Invariants: The reader finds every bean whose bits are all in the file, and reads their
+	 *             paths back unchanged.
+	 */
+	@Test
+	public void testUnclosedLog() throws IOException {
+		final int slotCount = 10;
+		final int beanCount = 1000;
+		Path path = Files.createTempFile("decisions", ".log");
+		DecisionLog.Writer writer = new DecisionLog.Writer(path, slotCount);
+		try {
+			long[] paths = randomPaths(new SplittableRandom(3), slotCount, beanCount);
+			writer.append(paths, 0, beanCount);
+			writer.flush();
+			DecisionLog.Reader reader = new DecisionLog.Reader(path);
+			// Only whole words are written before the log is closed
+			final long complete = beanCount * 9L / 64 * 64 / 9;
+			assertEquals(complete, reader.getBeanCount());
+			long[] read = new long[(int) complete];
+			reader.read(read, 0, read.length);
+			for (int b = 0; b < read.length; b++) {
+				assertEquals(paths[b], read[b]);
+			}
+		} finally {
+			writer.close();
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for DecisionLog.Reader.read() past the end of the log.
+	 * Preconditions: None.
+	 * Execution steps: Write a log of two beans and read three.
+	 * Invariants: The third read throws an IllegalStateException.
+	 */
+	@Test(expected = IllegalStateException.class)
+	public void testReadPastEnd() throws IOException {
+		Path path = Files.createTempFile("decisions", ".log");
+		try {
+			try (DecisionLog.Writer writer = new DecisionLog.Writer(path, 5)) {
+				writer.append(new long[] {3, 12}, 0, 2);
+			}
+			DecisionLog.Reader reader = new DecisionLog.Reader(path);
+			long[] read = new long[1];
+			reader.read(read, 0, 1);
+			reader.read(read, 0, 1);
+			reader.read(read, 0, 1);
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Runs a machine through steps, a repeat in mid-flight, bulk runs and a half,
+	 * and describes its state after every call.
+	 *
+	 * @param logic the machine
+	 * @return the states, one per line
+	 */
+	private static String drive(LuckBeanCounterLogic logic) {
+		final int slotCount = logic.getSlotCount();
+		StringBuilder bld = new StringBuilder();
+		logic.reset(3000);
+		bld.append(MachineStates.getState(logic)).append('\n');
+		bld.append(logic.advanceSteps(25)).append(MachineStates.getState(logic)).append('\n');
+		logic.repeat();
+		bld.append(MachineStates.getState(logic)).append('\n');
+		bld.append(logic.advanceSteps(slotCount + 5)).append(MachineStates.getState(logic)).append('\n');
+		bld.append(logic.runToCompletion()).append(MachineStates.getState(logic)).append('\n');
+		logic.lowerHalf();
+		logic.repeat();
+		bld.append(MachineStates.getState(logic)).append('\n');
+		bld.append(logic.runToCompletion()).append(MachineStates.getState(logic)).append('\n');
+		return bld.toString();
+	}
+
+	/**
+	 * Test case for ReplayBeanCounterLogic.
+	 * Preconditions: None.
+	 * Execution steps: Record a luck-mode run of steps, repeats, a half and bulk runs, then
+	 *                  drive a ReplayBeanCounterLogic on the log through the same calls.
+	 * Invariants: After every call both machines are in the same state, and the replay uses
+	 *             up the whole log.
+	 */
+	@Test
+	public void testReplayMatchesRecording() throws IOException {
+		Path path = Files.createTempFile("decisions", ".log");
+		try {
+			for (int slotCount : SLOT_COUNTS) {
+				LuckBeanCounterLogic recorded = new LuckBeanCounterLogic(slotCount, slotCount);
+				final String expected;
+				try (DecisionLog.Writer writer = new DecisionLog.Writer(path, slotCount)) {
+					recorded.setRecorder(writer);
+					expected = drive(recorded);
+				}
+				DecisionLog.Reader reader = new DecisionLog.Reader(path);
+				assertEquals(expected, drive(new ReplayBeanCounterLogic(reader)));
+				assertEquals(0, reader.getRemainingBeanCount());
+			}
+		} finally {
+			Files.delete(path);
+		}
+	}
+
+	/**
+	 * Test case for recording in long runToCompletion(ForkJoinPool pool).
+	 * Preconditions: None.
+	 * Execution steps: Record a run of 150000 beans three ways: stepping one bean at a time,
+	 *                  in bulk on this thread, and in bulk on a pool of three threads.
+	 * Invariants: The three logs are the same byte for byte, though the bulk runs pack the
+	 *             paths of several ranges of beans separately and append them afterwards, and
+	 *             the machines end up with the same slot counts.
+	 */
+	@Test
+	public void testBulkRecordingMatchesStepping() throws IOException {
+		final int beanCount = 150000;
+		Path[] paths = new Path[3];
+		ForkJoinPool pool = new ForkJoinPool(3);
+		try {
+			for (int slotCount : SLOT_COUNTS) {
+				String[] states = new String[paths.length];
+				for (int k = 0; k < paths.length; k++) {
+					paths[k] = Files.createTempFile("decisions", ".log");
+					LuckBeanCounterLogic logic = new LuckBeanCounterLogic(slotCount, 17);
+					try (DecisionLog.Writer writer = new DecisionLog.Writer(paths[k], slotCount)) {
+						logic.setRecorder(writer);
+						logic.reset(beanCount);
+						if (k == 0) {
+							while (logic.advanceStep()) {
+								continue;
+							}
+						} else {
+							logic.runToCompletion((k == 2) ? pool : null);
+						}
+					}
+					states[k] = MachineStates.getState(logic);
+				}
+				for (int k = 1; k < paths.length; k++) {
+					assertArrayEquals(Files.readAllBytes(paths[0]), Files.readAllBytes(paths[k]));
+					assertEquals(states[0], states[k]);
+				}
+				for (Path path : paths) {
+					Files.delete(path);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
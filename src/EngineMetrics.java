@@ -0,0 +1,293 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * EngineMetrics: Publishes the live metrics of one machine as an MBean on the
+ * platform MBean server, under BeanCounter:type=Engine,name=ClassName-n, so
+ * that JConsole or any JMX client can watch a run.
+ *
+ * <p>The machine bumps its own counters (see AbstractBeanCounterLogic), which
+ * any thread may read. Rates come from samples of the step and landed
+ * counters, taken by the reads themselves and kept for one window: a rate is
+ * the change since the oldest sample in the window, or since the last sample
+ * before it, over the time between.
+ *
+ * <p>The rest of the machine's state is not safe to read from another thread,
+ * so the metrics listen to the machine and, on the machine's thread, take a
+ * snapshot of the bean counts and of the power sums behind the mean and the
+ * standard deviation after every step, reset, repeat and half. The moments
+ * themselves are only worked out when they are read. The snapshot is published with
+ * lazySet(), and the JMX reads only ever see a whole snapshot. Nothing runs in
+ * the background, and a machine without registered metrics pays nothing
+ * beyond its counters. Metrics must be registered and closed on the thread
+ * that drives the machine, or before it starts.
+ */
+
+public final class EngineMetrics implements EngineMetricsMBean, AutoCloseable {
+	/**
+	 * Most samples kept per window; samples closer together than window /
+	 * SAMPLES_PER_WINDOW are not kept.
+	 */
+	private static final int SAMPLES_PER_WINDOW = 64;
+	private static final int DEFAULT_WINDOW_SECONDS = 10;
+
+	private static final AtomicLong NEXT_ID = new AtomicLong();
+
+	private final AbstractBeanCounterLogic logic;
+	private final ObjectName name;
+	private final MBeanServer server;
+	private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(); // latest state of the machine
+	private final BeanCounterListener listener = new BeanCounterListener() {
+		@Override
+		public void slotsChanged() {
+			EngineMetrics.this.publish();
+		}
+
+		@Override
+		public void inFlightChanged() {
+			EngineMetrics.this.publish();
+		}
+	};
+
+	// Ring of samples, oldest at head; guarded by this
+	private final long[] sampleNanos = new long[SAMPLES_PER_WINDOW + 2];
+	private final long[] sampleSteps = new long[SAMPLES_PER_WINDOW + 2];
+	private final long[] sampleLanded = new long[SAMPLES_PER_WINDOW + 2];
+	private int head;
+	private int size;
+	private long windowNanos = DEFAULT_WINDOW_SECONDS * 1_000_000_000L;
+
+	private EngineMetrics(AbstractBeanCounterLogic logic, MBeanServer server) throws JMException {
+		this.logic = logic;
+		this.server = server;
+		this.name = new ObjectName("BeanCounter:type=Engine,name=" + logic.getClass().getSimpleName() + "-"
+				+ NEXT_ID.incrementAndGet());
+		this.sample();
+		this.publish();
+		logic.addChangeListener(this.listener);
+		try {
+			server.registerMBean(this, this.name);
+		} catch (JMException | RuntimeException e) {
+			logic.removeChangeListener(this.listener);
+			throw e;
+		}
+	}
+
+	/**
+	 * The state of the machine at the end of a step or an operation.
+	 */
+	private static final class Snapshot {
+		private final long remainingBeans;
+		private final int inFlightBeans;
+		private final SlotStatistics stats; // copy of the power sums; the moments are worked out when read
+
+		Snapshot(AbstractBeanCounterLogic logic) {
+			this.remainingBeans = logic.getRemainingBeanCountLong();
+			this.inFlightBeans = logic.getInFlightBeanCount();
+			this.stats = new SlotStatistics(logic.stats);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the machine. Called on the machine's thread.
+	 */
+	private void publish() {
+		this.snapshot.lazySet(new Snapshot(this.logic));
+	}
+
+	/**
+	 * Registers the metrics of a machine on the platform MBean server.
+	 *
+	 * @param logic the machine
+	 * @return the registered metrics; close() them when the machine is done
+	 * @throws IllegalStateException if the platform MBean server refuses them
+	 */
+	public static EngineMetrics register(AbstractBeanCounterLogic logic) {
+		try {
+			return new EngineMetrics(logic, ManagementFactory.getPlatformMBeanServer());
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not register the metrics of " + logic.getClass().getSimpleName(), e);
+		}
+	}
+
+	/**
+	 * Returns the name the metrics are registered under.
+	 *
+	 * @return the object name
+	 */
+	public ObjectName getObjectName() {
+		return this.name;
+	}
+
+	/**
+	 * Takes a sample of the counters, unless the last one is too recent, and
+	 * drops the samples that are no longer needed: all those before the window
+	 * except the last one.
+	 *
+	 * @return the ring position of the newest sample
+	 */
+	private synchronized int sample() {
+		final int capacity = this.sampleNanos.length;
+		final long now = System.nanoTime();
+		final int newest = (this.head + this.size - 1) % capacity;
+		if (this.size == 0 || now - this.sampleNanos[newest] >= this.windowNanos / SAMPLES_PER_WINDOW) {
+			if (this.size == capacity) {
+				this.head = (this.head + 1) % capacity;
+				this.size--;
+			}
+			final int k = (this.head + this.size) % capacity;
+			this.sampleNanos[k] = now;
+			this.sampleSteps[k] = this.logic.getStepCount();
+			this.sampleLanded[k] = this.logic.getLandedCount();
+			this.size++;
+		}
+		while (this.size > 1 && now - this.sampleNanos[(this.head + 1) % capacity] >= this.windowNanos) {
+			this.head = (this.head + 1) % capacity;
+			this.size--;
+		}
+		return (this.head + this.size - 1) % capacity;
+	}
+
+	/**
+	 * Returns the rate at which a counter grows over the window.
+	 *
+	 * @param counts  the samples of the counter
+	 * @param counter reads the counter
+	 * @return change per second
+	 */
+	private synchronized double getRate(long[] counts, LongSupplier counter) {
+		this.sample();
+		final long change = counter.getAsLong() - counts[this.head];
+		final long nanos = System.nanoTime() - this.sampleNanos[this.head];
+		return (nanos > 0) ? change * 1e9 / nanos : 0.0;
+	}
+
+	@Override
+	public String getEngine() {
+		return this.logic.getClass().getSimpleName();
+	}
+
+	@Override
+	public int getSlotCount() {
+		return this.logic.getSlotCount();
+	}
+
+	@Override
+	public long getSteps() {
+		return this.logic.getStepCount();
+	}
+
+	@Override
+	public long getBeansLanded() {
+		return this.logic.getLandedCount();
+	}
+
+	@Override
+	public double getStepsPerSecond() {
+		return this.getRate(this.sampleSteps, this.logic::getStepCount);
+	}
+
+	@Override
+	public double getBeansPerSecond() {
+		return this.getRate(this.sampleLanded, this.logic::getLandedCount);
+	}
+
+	@Override
+	public synchronized int getRateWindowSeconds() {
+		return (int) (this.windowNanos / 1_000_000_000L);
+	}
+
+	@Override
+	public synchronized void setRateWindowSeconds(int seconds) {
+		if (seconds < 1) {
+			throw new IllegalArgumentException("The rate window must be at least 1 second");
+		}
+		this.windowNanos = seconds * 1_000_000_000L;
+	}
+
+	@Override
+	public long getRemainingBeans() {
+		return this.snapshot.get().remainingBeans;
+	}
+
+	@Override
+	public int getInFlightBeans() {
+		return this.snapshot.get().inFlightBeans;
+	}
+
+	@Override
+	public long getInSlotBeans() {
+		return this.snapshot.get().stats.getCount();
+	}
+
+	@Override
+	public double getMean() {
+		return this.snapshot.get().stats.getMean();
+	}
+
+	@Override
+	public double getStandardDeviation() {
+		return this.snapshot.get().stats.getStandardDeviation();
+	}
+
+	@Override
+	public long getResetCount() {
+		return this.logic.getOperationCount(AbstractBeanCounterLogic.TimedOperation.RESET);
+	}
+
+	@Override
+	public long getResetNanos() {
+		return this.logic.getOperationNanos(AbstractBeanCounterLogic.TimedOperation.RESET);
+	}
+
+	@Override
+	public long getRepeatCount() {
+		return this.logic.getOperationCount(AbstractBeanCounterLogic.TimedOperation.REPEAT);
+	}
+
+	@Override
+	public long getRepeatNanos() {
+		return this.logic.getOperationNanos(AbstractBeanCounterLogic.TimedOperation.REPEAT);
+	}
+
+	@Override
+	public long getUpperHalfCount() {
+		return this.logic.getOperationCount(AbstractBeanCounterLogic.TimedOperation.UPPER_HALF);
+	}
+
+	@Override
+	public long getUpperHalfNanos() {
+		return this.logic.getOperationNanos(AbstractBeanCounterLogic.TimedOperation.UPPER_HALF);
+	}
+
+	@Override
+	public long getLowerHalfCount() {
+		return this.logic.getOperationCount(AbstractBeanCounterLogic.TimedOperation.LOWER_HALF);
+	}
+
+	@Override
+	public long getLowerHalfNanos() {
+		return this.logic.getOperationNanos(AbstractBeanCounterLogic.TimedOperation.LOWER_HALF);
+	}
+
+	/**
+	 * Unregisters the metrics and stops listening to the machine.
+	 */
+	@Override
+	public void close() {
+		this.logic.removeChangeListener(this.listener);
+		try {
+			this.server.unregisterMBean(this.name);
+		} catch (InstanceNotFoundException e) {
+			// Already unregistered
+		} catch (JMException e) {
+			throw new IllegalStateException("Could not unregister " + this.name, e);
+		}
+	}
+}
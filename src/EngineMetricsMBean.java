@@ -0,0 +1,68 @@
+/**
+ * EngineMetricsMBean: The management interface of EngineMetrics, the live
+ * metrics of one machine. Counts and times are since the machine was created;
+ * rates are over the last RateWindowSeconds seconds. The bean counts, the mean
+ * and the standard deviation come from one snapshot, taken by the machine's
+ * thread at the end of its last step or operation; the counters and rates may
+ * be a step ahead of it.
+ */
+
+public interface EngineMetricsMBean {
+	/**
+	 * Returns the class of the engine, such as LuckBeanCounterLogic.
+	 *
+	 * @return simple class name
+	 */
+	String getEngine();
+
+	int getSlotCount();
+
+	/**
+	 * Returns the number of steps that changed the status of the machine.
+	 *
+	 * @return number of steps
+	 */
+	long getSteps();
+
+	/**
+	 * Returns the number of beans that landed in slots, including those since
+	 * removed by a half or a repeat.
+	 *
+	 * @return number of beans
+	 */
+	long getBeansLanded();
+
+	double getStepsPerSecond();
+
+	double getBeansPerSecond();
+
+	int getRateWindowSeconds();
+
+	void setRateWindowSeconds(int seconds);
+
+	long getRemainingBeans();
+
+	int getInFlightBeans();
+
+	long getInSlotBeans();
+
+	double getMean();
+
+	double getStandardDeviation();
+
+	long getResetCount();
+
+	long getResetNanos();
+
+	long getRepeatCount();
+
+	long getRepeatNanos();
+
+	long getUpperHalfCount();
+
+	long getUpperHalfNanos();
+
+	long getLowerHalfCount();
+
+	long getLowerHalfNanos();
+}
@@ -0,0 +1,89 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.junit.Test;
+
+/**
+ * Tests EngineMetrics and the counters of AbstractBeanCounterLogic behind it:
+ * the MBean must be reachable on the platform server and report what the
+ * machine did.
+ */
+
+public class EngineMetricsTest {
+	private static final int SLOT_COUNT = 8;
+	private static final int BEAN_COUNT = 50;
+
+	/**
+	 * Test case for EngineMetrics register(AbstractBeanCounterLogic logic) and close().
+	 * Preconditions: None.
+	 * Execution steps: Register the metrics of a machine, step it partway, repeat, run it to
+	 *                  completion, take both halves, then read the attributes through the
+	 *                  platform MBean server and close the metrics.
+	 * Invariants: The attributes count the steps taken, the beans landed and the calls made,
+	 *             mirror the machine's state after each operation, and the MBean is gone
+	 *             after close().
+	 */
+	@Test
+	public void testAttributesThroughServer() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		BeanCounterLogicImpl logic = new BeanCounterLogicImpl(SLOT_COUNT);
+		ObjectName name;
+		try (EngineMetrics metrics = EngineMetrics.register(logic)) {
+			name = metrics.getObjectName();
+			assertTrue(server.isRegistered(name));
+			logic.reset(new BeanStore(SLOT_COUNT, true, RandomSource.of(new Random(2)), BEAN_COUNT));
+			long steps = logic.advanceSteps(SLOT_COUNT + 4);
+			final long landedBeforeRepeat = logic.getInSlotBeanCount();
+			logic.repeat();
+			steps += logic.runToCompletion();
+			assertEquals(steps, server.getAttribute(name, "Steps"));
+			assertEquals(landedBeforeRepeat + BEAN_COUNT, server.getAttribute(name, "BeansLanded"));
+			assertEquals(0L, server.getAttribute(name, "RemainingBeans"));
+			assertEquals(0, server.getAttribute(name, "InFlightBeans"));
+			assertEquals((long) BEAN_COUNT, server.getAttribute(name, "InSlotBeans"));
+			assertEquals(logic.getAverageSlotBeanCount(), (double) server.getAttribute(name, "Mean"), 0.0);
+			assertEquals("BeanCounterLogicImpl", server.getAttribute(name, "Engine"));
+			logic.upperHalf();
+			logic.lowerHalf();
+			assertEquals(logic.getInSlotBeanCount(), server.getAttribute(name, "InSlotBeans"));
+			assertEquals(logic.getSlotBeanStandardDeviation(),
+					(double) server.getAttribute(name, "StandardDeviation"), 0.0);
+			for (String operation : new String[] {"Reset", "Repeat", "UpperHalf", "LowerHalf"}) {
+				assertEquals(1L, server.getAttribute(name, operation + "Count"));
+				assertTrue((long) server.getAttribute(name, operation + "Nanos") >= 0);
+			}
+			assertTrue((double) server.getAttribute(name, "StepsPerSecond") > 0);
+			assertTrue((double) server.getAttribute(name, "BeansPerSecond") > 0);
+		}
+		assertFalse(server.isRegistered(name));
+	}
+
+	/**
+	 * Test case for long getStepCount() and long getLandedCount() of the bulk engines.
+	 * Preconditions: None.
+	 * Execution steps: Step a luck-mode and a skill-mode machine a little, then run them to
+	 *                  completion, which skips the steps.
+	 * Invariants: The step count is the number of steps the calls report, and every bean
+	 *             counts as landed once.
+	 */
+	@Test
+	public void testBulkEnginesCountSkippedSteps() {
+		LuckBeanCounterLogic luck = new LuckBeanCounterLogic(SLOT_COUNT, 3);
+		luck.reset(1000000L);
+		SkillBeanCounterLogic skill = new SkillBeanCounterLogic(SLOT_COUNT);
+		skill.reset(new SeededBeanSource(SLOT_COUNT, false, 3, 1000000L));
+		for (AbstractBeanCounterLogic logic : new AbstractBeanCounterLogic[] {luck, skill}) {
+			long steps = logic.advanceSteps(3 * SLOT_COUNT);
+			steps += logic.runToCompletion();
+			assertEquals(steps, logic.getStepCount());
+			assertEquals(1000000L, logic.getLandedCount());
+			assertEquals(1, logic.getOperationCount(AbstractBeanCounterLogic.TimedOperation.RESET));
+		}
+	}
+}
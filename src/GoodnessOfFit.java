@@ -0,0 +1,323 @@
+import java.util.Arrays;
+
+/**
+ * GoodnessOfFit: Running measures of how far the slot counts of a machine are
+ * from an expected distribution, such as Binomial(slotCount - 1, 0.5) for luck
+ * beans. With O_i beans in slot i, n beans in all and p_i the expected
+ * probability of slot i, the fit keeps the sums S = sum of O_i^2 / p_i,
+ * A = sum of O_i ln O_i and B = sum of O_i ln p_i, which change in O(1) when a
+ * bean lands, and answers from them:
+ *
+ * <ul>
+ * <li>the chi-square statistic sum of (O_i - n p_i)^2 / (n p_i) = S / n - n,
+ * which hovers around the degrees of freedom when the beans do follow the
+ * distribution;</li>
+ * <li>the chi-square divergence of the observed frequencies from the expected
+ * ones, the statistic divided by n = S / n^2 - 1;</li>
+ * <li>the Kullback-Leibler divergence sum of (O_i / n) ln(O_i / (n p_i)) =
+ * (A - B) / n - ln n.</li>
+ * </ul>
+ *
+ * <p>Both divergences fall towards 0 as beans land, about as (degrees of
+ * freedom) / n and half that, so a threshold on them says how close the
+ * histogram has to get. The fit can also keep a stopping rule: it counts the
+ * landings in a row after which the chosen divergence was under a threshold,
+ * and isConverged() says whether that run has reached a window of landings.
+ * Bulk additions count as that many landings if the divergence is under the
+ * threshold afterwards; removing beans starts the run over.
+ *
+ * <p>The expected probabilities are kept as logarithms, so that boards with
+ * thousands of slots, whose outer binomial probabilities underflow a double,
+ * still get a finite ln p_i. A bean landing in a slot whose probability is 0
+ * makes both divergences infinite.
+ */
+
+public class GoodnessOfFit {
+	/**
+	 * The divergences a stopping rule can use.
+	 */
+	public enum Divergence {
+		CHI_SQUARE, KULLBACK_LEIBLER
+	}
+
+	private final double[] logProbabilities; // ln p_i
+	private final double[] inverseProbabilities; // 1 / p_i
+	private final long[] counts; // O_i
+	private final double[] countLogCounts; // O_i ln O_i
+	private long count; // n
+	private double sumSquaresOverProbability; // S
+	private double sumCountLogCount; // A
+	private double sumCountLogProbability; // B
+
+	private Divergence divergence; // divergence of the stopping rule, or null for none
+	private double threshold;
+	private long window;
+	private long streak; // landings in a row after which the divergence was under the threshold
+
+	/**
+	 * Constructor - creates a fit with no beans.
+	 *
+	 * @param logProbabilities ln p_i of each slot, normalized so that the p_i sum
+	 *                         to 1
+	 */
+	private GoodnessOfFit(double[] logProbabilities) {
+		this.logProbabilities = logProbabilities;
+		this.inverseProbabilities = new double[logProbabilities.length];
+		for (int i = 0; i < logProbabilities.length; i++) {
+			this.inverseProbabilities[i] = Math.exp(-logProbabilities[i]);
+		}
+		this.counts = new long[logProbabilities.length];
+		this.countLogCounts = new double[logProbabilities.length];
+	}
+
+	/**
+	 * Returns a fit against the slots luck beans land in on a machine with the
+	 * given number of slots, Binomial(slotCount - 1, 0.5).
+	 *
+	 * @param slotCount the number of slots in the machine, at least 1
+	 * @return the fit
+	 */
+	public static GoodnessOfFit binomial(int slotCount) {
+		if (slotCount < 1) {
+			throw new IllegalArgumentException("slotCount must be at least 1");
+		}
+		final int pegCount = slotCount - 1;
+		double[] logProbabilities = new double[slotCount];
+		// ln C(n, k + 1) = ln C(n, k) + ln((n - k) / (k + 1)), from ln C(n, 0) - n ln 2
+		logProbabilities[0] = -pegCount * Math.log(2.0);
+		for (int k = 0; k < pegCount; k++) {
+			logProbabilities[k + 1] = logProbabilities[k] + Math.log(pegCount - k) - Math.log(k + 1);
+		}
+		return new GoodnessOfFit(normalize(logProbabilities));
+	}
+
+	/**
+	 * Returns a fit against any distribution over the slots.
+	 *
+	 * @param probabilities expected probability of each slot; they are scaled to
+	 *                      sum to 1
+	 * @return the fit
+	 */
+	public static GoodnessOfFit of(double[] probabilities) {
+		double[] logProbabilities = new double[probabilities.length];
+		for (int i = 0; i < probabilities.length; i++) {
+			if (!(probabilities[i] >= 0.0) || probabilities[i] == Double.POSITIVE_INFINITY) {
+				throw new IllegalArgumentException("Bad probability for slot " + i + ": " + probabilities[i]);
+			}
+			logProbabilities[i] = Math.log(probabilities[i]);
+		}
+		return new GoodnessOfFit(normalize(logProbabilities));
+	}
+
+	/**
+	 * Shifts logarithms of probabilities so that the probabilities sum to 1.
+	 *
+	 * @param logProbabilities the logarithms, changed in place
+	 * @return logProbabilities
+	 */
+	private static double[] normalize(double[] logProbabilities) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (double l : logProbabilities) {
+			max = Math.max(max, l);
+		}
+		if (max == Double.NEGATIVE_INFINITY) {
+			throw new IllegalArgumentException("At least one slot must have a positive probability");
+		}
+		double sum = 0.0;
+		for (double l : logProbabilities) {
+			sum += Math.exp(l - max);
+		}
+		final double logSum = max + Math.log(sum);
+		for (int i = 0; i < logProbabilities.length; i++) {
+			logProbabilities[i] -= logSum;
+		}
+		return logProbabilities;
+	}
+
+	/**
+	 * Returns the number of slots of the distribution.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return this.counts.length;
+	}
+
+	/**
+	 * Returns the expected probability of a slot.
+	 *
+	 * @param slot the slot
+	 * @return p_i
+	 */
+	public double getProbability(int slot) {
+		return Math.exp(this.logProbabilities[slot]);
+	}
+
+	/**
+	 * Returns the degrees of freedom of the chi-square statistic: one less than the
+	 * number of slots beans can land in.
+	 *
+	 * @return degrees of freedom
+	 */
+	public int getDegreesOfFreedom() {
+		int possible = 0;
+		for (double l : this.logProbabilities) {
+			if (l != Double.NEGATIVE_INFINITY) {
+				possible++;
+			}
+		}
+		return possible - 1;
+	}
+
+	/**
+	 * Sets the stopping rule that isConverged() answers.
+	 *
+	 * @param divergence the divergence to watch, or null for no rule
+	 * @param threshold  the divergence has to be under this
+	 * @param window     for this many landings in a row, at least 1
+	 */
+	public void setStoppingRule(Divergence divergence, double threshold, long window) {
+		if (window < 1) {
+			throw new IllegalArgumentException("window must be at least 1");
+		}
+		this.divergence = divergence;
+		this.threshold = threshold;
+		this.window = window;
+		this.streak = 0;
+	}
+
+	/**
+	 * Adds one bean that landed in the given slot.
+	 *
+	 * @param slot slot number of the bean
+	 */
+	public void add(int slot) {
+		final long o = this.counts[slot];
+		final long next = o + 1;
+		final double nextLog = next * Math.log(next);
+		this.count = Math.addExact(this.count, 1);
+		this.counts[slot] = next;
+		this.sumSquaresOverProbability += (2 * o + 1) * this.inverseProbabilities[slot];
+		this.sumCountLogCount += nextLog - this.countLogCounts[slot];
+		this.countLogCounts[slot] = nextLog;
+		this.sumCountLogProbability += this.logProbabilities[slot];
+		if (this.divergence != null) {
+			this.streak = (this.getDivergence(this.divergence) < this.threshold) ? this.streak + 1 : 0;
+		}
+	}
+
+	/**
+	 * Adds a number of beans that landed in the same slot.
+	 *
+	 * @param slot  slot number of the beans
+	 * @param beans number of beans
+	 */
+	public void add(int slot, long beans) {
+		if (beans == 0) {
+			return;
+		}
+		final long o = this.counts[slot];
+		final long next = o + beans;
+		final double nextLog = (next > 0) ? next * Math.log(next) : 0.0;
+		this.count = Math.addExact(this.count, beans);
+		this.counts[slot] = next;
+		this.sumSquaresOverProbability += (double) beans * (2.0 * o + beans) * this.inverseProbabilities[slot];
+		this.sumCountLogCount += nextLog - this.countLogCounts[slot];
+		this.countLogCounts[slot] = nextLog;
+		this.sumCountLogProbability += beans * this.logProbabilities[slot];
+		if (this.divergence != null) {
+			final boolean under = beans > 0 && this.getDivergence(this.divergence) < this.threshold;
+			this.streak = under ? this.streak + beans : 0;
+		}
+	}
+
+	/**
+	 * Removes a number of beans from the same slot.
+	 *
+	 * @param slot  slot number of the beans
+	 * @param beans number of beans
+	 */
+	public void remove(int slot, long beans) {
+		this.add(slot, -beans);
+	}
+
+	/**
+	 * Forgets all beans.
+	 */
+	public void clear() {
+		Arrays.fill(this.counts, 0);
+		Arrays.fill(this.countLogCounts, 0.0);
+		this.count = 0;
+		this.sumSquaresOverProbability = 0.0;
+		this.sumCountLogCount = 0.0;
+		this.sumCountLogProbability = 0.0;
+		this.streak = 0;
+	}
+
+	/**
+	 * Returns the number of beans added so far.
+	 *
+	 * @return number of beans
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Returns the chi-square statistic of the beans against the distribution.
+	 *
+	 * @return the statistic, or NaN if there are no beans
+	 */
+	public double getChiSquare() {
+		return this.getChiSquareDivergence() * this.count;
+	}
+
+	/**
+	 * Returns the chi-square divergence of the observed frequencies from the
+	 * expected ones.
+	 *
+	 * @return the divergence, or NaN if there are no beans
+	 */
+	public double getChiSquareDivergence() {
+		if (this.count == 0) {
+			return Double.NaN;
+		}
+		final double n = this.count;
+		// Rounding can push a perfect fit slightly negative
+		return Math.max(0.0, this.sumSquaresOverProbability / (n * n) - 1.0);
+	}
+
+	/**
+	 * Returns the Kullback-Leibler divergence of the observed frequencies from the
+	 * expected ones.
+	 *
+	 * @return the divergence, or NaN if there are no beans
+	 */
+	public double getKullbackLeibler() {
+		if (this.count == 0) {
+			return Double.NaN;
+		}
+		final double n = this.count;
+		return Math.max(0.0, (this.sumCountLogCount - this.sumCountLogProbability) / n - Math.log(n));
+	}
+
+	/**
+	 * Returns one of the divergences.
+	 *
+	 * @param divergence which one
+	 * @return the divergence, or NaN if there are no beans
+	 */
+	public double getDivergence(Divergence divergence) {
+		return (divergence == Divergence.CHI_SQUARE) ? this.getChiSquareDivergence() : this.getKullbackLeibler();
+	}
+
+	/**
+	 * Returns whether the divergence of the stopping rule has been under its
+	 * threshold for a window of landings in a row.
+	 *
+	 * @return whether the beans have converged; false if there is no rule
+	 */
+	public boolean isConverged() {
+		return this.divergence != null && this.streak >= this.window;
+	}
+}
@@ -0,0 +1,149 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks the running divergences kept by GoodnessOfFit against a direct
+ * computation over the per-slot bean counts, and its stopping rule.
+ */
+
+public class GoodnessOfFitTest {
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * Computes the chi-square statistic of a histogram directly.
+	 *
+	 * @param counts        bean count of each slot
+	 * @param probabilities expected probability of each slot
+	 * @return the statistic
+	 */
+	private static double chiSquare(int[] counts, double[] probabilities) {
+		double n = 0;
+		for (int c : counts) {
+			n += c;
+		}
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			final double expected = n * probabilities[i];
+			sum += (counts[i] - expected) * (counts[i] - expected) / expected;
+		}
+		return sum;
+	}
+
+	/**
+	 * Computes the Kullback-Leibler divergence of a histogram directly.
+	 *
+	 * @param counts        bean count of each slot
+	 * @param probabilities expected probability of each slot
+	 * @return the divergence
+	 */
+	private static double kullbackLeibler(int[] counts, double[] probabilities) {
+		double n = 0;
+		for (int c : counts) {
+			n += c;
+		}
+		double sum = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				sum += counts[i] / n * Math.log(counts[i] / n / probabilities[i]);
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Test case for double getProbability(int slot) of a binomial fit.
+	 * Preconditions: None.
+	 * Execution steps: Create binomial fits for 1, 2, 11 and 3000 slots.
+	 * Invariants: The probabilities are C(n, k) / 2^n for the small boards, and sum to 1
+	 *             with the middle slot the most likely for the large one.
+	 */
+	@Test
+	public void testBinomialProbabilities() {
+		assertEquals(1.0, GoodnessOfFit.binomial(1).getProbability(0), EPSILON);
+		assertEquals(0.5, GoodnessOfFit.binomial(2).getProbability(1), EPSILON);
+		GoodnessOfFit fit = GoodnessOfFit.binomial(11);
+		double choose = 1;
+		for (int k = 0; k <= 10; k++) {
+			assertEquals(choose / 1024, fit.getProbability(k), EPSILON);
+			choose = choose * (10 - k) / (k + 1);
+		}
+		assertEquals(10, fit.getDegreesOfFreedom());
+		GoodnessOfFit large = GoodnessOfFit.binomial(3000);
+		double sum = 0;
+		for (int k = 0; k < 3000; k++) {
+			sum += large.getProbability(k);
+		}
+		assertEquals(1.0, sum, EPSILON);
+		assertTrue(large.getProbability(1499) > large.getProbability(1400));
+	}
+
+	/**
+	 * Test case for the divergence getters.
+	 * Preconditions: None.
+	 * Execution steps: Add the beans of a small histogram one at a time and in bulk, then
+	 *                  remove some of them.
+	 * Invariants: Each way gives the chi-square statistic, chi-square divergence and
+	 *             Kullback-Leibler divergence of the histogram.
+	 */
+	@Test
+	public void testDivergencesMatchHistogram() {
+		double[] probabilities = {0.1, 0.2, 0.3, 0.25, 0.15};
+		int[] counts = {3, 9, 0, 7, 4};
+		GoodnessOfFit single = GoodnessOfFit.of(probabilities);
+		GoodnessOfFit bulk = GoodnessOfFit.of(probabilities);
+		for (int i = 0; i < counts.length; i++) {
+			for (int k = 0; k < counts[i]; k++) {
+				single.add(i);
+			}
+			bulk.add(i, counts[i]);
+		}
+		final double chiSquare = chiSquare(counts, probabilities);
+		for (GoodnessOfFit fit : new GoodnessOfFit[] {single, bulk}) {
+			assertEquals(23, fit.getCount());
+			assertEquals(chiSquare, fit.getChiSquare(), EPSILON);
+			assertEquals(chiSquare / 23, fit.getChiSquareDivergence(), EPSILON);
+			assertEquals(kullbackLeibler(counts, probabilities), fit.getKullbackLeibler(), EPSILON);
+		}
+		bulk.remove(1, 9);
+		bulk.remove(3, 2);
+		int[] left = {3, 0, 0, 5, 4};
+		assertEquals(chiSquare(left, probabilities), bulk.getChiSquare(), EPSILON);
+		assertEquals(kullbackLeibler(left, probabilities), bulk.getKullbackLeibler(), EPSILON);
+		bulk.clear();
+		assertEquals(0, bulk.getCount());
+		assertTrue(Double.isNaN(bulk.getChiSquare()));
+	}
+
+	/**
+	 * Test case for boolean isConverged().
+	 * Preconditions: None.
+	 * Execution steps: Set a stopping rule with a window of 60 landings, add beans to a fair
+	 *                  two-slot fit in bulk and one at a time, then push the divergence over
+	 *                  the threshold and back, then remove a bean.
+	 * Invariants: Bulk additions count as that many landings, the fit converges on the 60th
+	 *             landing in a row under the threshold, an addition that leaves the
+	 *             divergence over it starts the window over, and so does a removal.
+	 */
+	@Test
+	public void testStoppingRule() {
+		GoodnessOfFit fit = GoodnessOfFit.of(new double[] {0.5, 0.5});
+		fit.setStoppingRule(GoodnessOfFit.Divergence.KULLBACK_LEIBLER, 0.01, 60);
+		assertFalse(fit.isConverged());
+		fit.add(0, 50);
+		assertFalse(fit.isConverged());
+		fit.add(1, 50);
+		fit.add(0, 9);
+		assertFalse(fit.isConverged());
+		fit.add(1);
+		assertTrue(fit.isConverged());
+		fit.add(0, 100);
+		assertFalse(fit.isConverged());
+		fit.add(1, 108);
+		assertTrue(fit.isConverged());
+		fit.remove(0, 1);
+		assertFalse(fit.isConverged());
+	}
+}
@@ -0,0 +1,861 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * LuckBeanCounterLogic: BeanCounterLogic engine for machines whose beans are
+ * all in luck mode. A luck bean's choices at the slotCount-1 pegs on its way
+ * down are independent fair coin flips, so its whole path can be drawn up front
+ * as random bits: bit y of the path (bit y % 64 of word y / 64) is 1 if the bean
+ * goes right at row y. The bean is then at x = popcount(first y bits) on row y
+ * and lands in slot popcount(all bits). Boards with up to 65 slots need one
+ * 64-bit draw per bean instead of one nextInt(2) call per peg.
+ *
+ * <p>The engine numbers the beans it drops, from 0 at every reset, and takes
+ * the path of bean id from a CounterRandom as words id * wordsPerPath onwards.
+ * A path depends only on the seed and the bean number, not on which thread
+ * draws it or when, and goesRight() gives any bean's decision at any peg in
+ * O(1). Resetting an engine with the same number of beans runs the same
+ * experiment again; repeat() keeps counting, so a repeated run is a new one.
+ *
+ * <p>Luck beans have no identity worth keeping: a bean that is scooped up by
+ * repeat() draws a fresh path, just as a BeanImpl draws fresh choices from its
+ * Random; it is a new bean with the next number. So the engine only keeps
+ * counts of waiting and landed beans, plus the paths of the beans in flight for
+ * the per-step view. The Bean objects passed to reset() are only counted; the
+ * paths come from the engine's own generator.
+ *
+ * <p>runToCompletion(ForkJoinPool) spreads the remaining beans over the pool.
+ * Each task drops a range of bean numbers into its own histogram, and the
+ * histograms are summed at the end. Since every path is keyed by its bean
+ * number, the result is the same for any number of threads, and the same as
+ * stepping the beans down one by one.
+ *
+ * <p>With a DecisionLog.Writer attached by setRecorder(), every path is appended
+ * to the log as it is drawn, including the paths of beans that repeat() later
+ * scoops up before they land. ReplayBeanCounterLogic reads them back instead of
+ * drawing. While recording, runToCompletion() splits the remaining beans into
+ * ranges that each pack their paths into a buffer of their own, in the same
+ * loop that counts their landing slots, and appends the ranges to the log in
+ * bean order. On a pool, the next batch of ranges is dropped while the last
+ * one is written out.
+ *
+ * <p>checkpoint() saves the seed, the bean numbering, the paths of the beans in
+ * flight and the slot counts, which is all it takes to carry on; restore()
+ * puts them back, generator included.
+ */
+
+public class LuckBeanCounterLogic extends CountingBeanCounterLogic {
+	private final int pegCount; // number of pegs (coin flips) on the way down
+	private final int wordsPerPath; // 64-bit words per bean path
+	private final long lastWordMask; // valid bits of the last word of a path
+	private CounterRandom rand; // null if a subclass supplies the paths
+	private long nextBeanId; // number of the next bean to be dropped
+	private DecisionLog.Writer recorder;
+
+	private final long[] rowPaths; // ring of paths in flight, row y at rowIndex(y) * wordsPerPath
+	private final boolean[] rowOccupied; // whether the row at each ring position holds a bean
+	private int topRow; // ring position of row 0; moves up one position every step
+	private int inFlightCount;
+	private long remainingCount;
+
+	/**
+	 * Number of beans a parallel task drops itself rather than splitting further.
+	 */
+	private static final long BEANS_PER_TASK = 1 << 20;
+
+	/**
+	 * Number of paths runToCompletion() draws at once when they have to be drawn
+	 * in full.
+	 */
+	private static final int PATHS_PER_BLOCK = 1 << 10;
+
+	/**
+	 * Words of packed paths a range of recorded beans fills at most; 1 MiB.
+	 */
+	private static final int WORDS_PER_RECORDED_RANGE = 1 << 17;
+
+	/**
+	 * Number of recorded ranges a pool drops at once.
+	 */
+	private static final int RECORDED_RANGES_PER_BATCH = 64;
+
+	/**
+	 * Task that drops a number of beans into a histogram of its own.
+	 */
+	private final class DropTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final long firstId;
+		private final long beanCount;
+
+		DropTask(long firstId, long beanCount) {
+			this.firstId = firstId;
+			this.beanCount = beanCount;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (this.beanCount <= BEANS_PER_TASK) {
+				return dropBeans(this.firstId, this.beanCount);
+			}
+			final long half = this.beanCount / 2;
+			final DropTask upper = new DropTask(this.firstId + half, this.beanCount - half);
+			upper.fork();
+			final long[] landed = new DropTask(this.firstId, half).compute();
+			final long[] upperLanded = upper.join();
+			for (int i = 0; i < landed.length; i++) {
+				landed[i] += upperLanded[i];
+			}
+			return landed;
+		}
+	}
+
+	/**
+	 * Task that drops recorded ranges of beans, each into a histogram and a buffer
+	 * of packed paths of its own.
+	 */
+	private final class RecordTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final long firstId; // number of the first bean of range 0
+		private final long beanCount; // number of beans in all the ranges
+		private final long rangeBeans; // number of beans in each range but the last
+		private final int firstRange;
+		private final int rangeCount;
+		private final long[][] landed; // histogram of each range
+		private final long[][] words; // packed paths of each range
+
+		RecordTask(long firstId, long beanCount, long rangeBeans, int firstRange, int rangeCount, long[][] landed,
+				long[][] words) {
+			this.firstId = firstId;
+			this.beanCount = beanCount;
+			this.rangeBeans = rangeBeans;
+			this.firstRange = firstRange;
+			this.rangeCount = rangeCount;
+			this.landed = landed;
+			this.words = words;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.rangeCount == 1) {
+				final long offset = this.firstRange * this.rangeBeans;
+				final long count = Math.min(this.rangeBeans, this.beanCount - offset);
+				this.landed[this.firstRange] = new long[getSlotCount()];
+				this.words[this.firstRange] = new long[packedWords(count)];
+				recordBeans(this.firstId + offset, count, this.landed[this.firstRange], this.words[this.firstRange]);
+				return;
+			}
+			final int half = this.rangeCount / 2;
+			invokeAll(new RecordTask(this.firstId, this.beanCount, this.rangeBeans, this.firstRange, half,
+					this.landed, this.words),
+					new RecordTask(this.firstId, this.beanCount, this.rangeBeans, this.firstRange + half,
+							this.rangeCount - half, this.landed, this.words));
+		}
+	}
+
+	/**
+	 * Constructor - creates a luck-mode engine with the provided number of slots
+	 * and a random seed.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 */
+	LuckBeanCounterLogic(int slotCount) {
+		this(slotCount, new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * Constructor - creates a luck-mode engine with the provided number of slots
+	 * whose bean paths follow from the given seed.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @param seed      the master seed of the bean paths
+	 */
+	LuckBeanCounterLogic(int slotCount, long seed) {
+		this(slotCount, new CounterRandom(seed));
+	}
+
+	/**
+	 * Constructor - creates a luck-mode engine with the provided number of slots
+	 * whose bean paths come from the given generator.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @param rand      the generator for bean paths, or null if a subclass
+	 *                  overrides drawPaths()
+	 */
+	LuckBeanCounterLogic(int slotCount, CounterRandom rand) {
+		super(slotCount);
+		this.pegCount = Math.max(0, slotCount - 1);
+		this.wordsPerPath = (this.pegCount + 63) / 64;
+		this.lastWordMask = (this.pegCount % 64 == 0) ? -1L : (1L << (this.pegCount % 64)) - 1;
+		this.rand = rand;
+		this.rowPaths = new long[slotCount * this.wordsPerPath];
+		this.rowOccupied = new boolean[slotCount];
+	}
+
+	/**
+	 * Starts or stops recording the drawn paths.
+	 *
+	 * @param recorder the log to append paths to, or null to stop recording
+	 */
+	public void setRecorder(DecisionLog.Writer recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Returns whether a bean goes right at a peg.
+	 *
+	 * @param beanId the number of the bean, counting every bean the engine has
+	 *               dropped since the last reset
+	 * @param row    the row of the peg, from 0 to slotCount - 2
+	 * @return true if the bean goes right
+	 */
+	public boolean goesRight(long beanId, int row) {
+		return this.rand.goesRight(beanId, row, this.wordsPerPath);
+	}
+
+	/**
+	 * Draws the paths of the next count beans, wordsPerPath words each, with no
+	 * bits set beyond pegCount.
+	 *
+	 * @param paths  where to put the path words
+	 * @param offset index of the first word of the first path
+	 * @param count  number of paths
+	 */
+	protected void drawPaths(long[] paths, int offset, int count) {
+		final long firstId = this.nextBeanId;
+		this.nextBeanId += count;
+		if (this.wordsPerPath == 1) {
+			for (int b = 0; b < count; b++) {
+				paths[offset + b] = this.rand.word(firstId + b) & this.lastWordMask;
+			}
+			return;
+		}
+		long counter = firstId * this.wordsPerPath;
+		for (int end = offset + count * this.wordsPerPath; offset < end; offset += this.wordsPerPath) {
+			for (int w = 0; w < this.wordsPerPath; w++) {
+				paths[offset + w] = this.rand.word(counter++);
+			}
+			paths[offset + this.wordsPerPath - 1] &= this.lastWordMask;
+		}
+	}
+
+	/**
+	 * Draws the paths of the next count beans and appends them to the recorder,
+	 * if any.
+	 *
+	 * @param paths  where to put the path words
+	 * @param offset index of the first word of the first path
+	 * @param count  number of paths
+	 */
+	private void nextPaths(long[] paths, int offset, int count) {
+		this.drawPaths(paths, offset, count);
+		if (this.recorder != null) {
+			try {
+				if (count == 1 && this.wordsPerPath == 1) {
+					this.recorder.append(paths[offset]);
+				} else {
+					this.recorder.append(paths, offset, count);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of row yPos in the ring of rows.
+	 *
+	 * @param yPos the y-coordinate of the row
+	 * @return the ring position of the row
+	 */
+	private int rowIndex(int yPos) {
+		final int pos = this.topRow + yPos;
+		return (pos < this.slots.length) ? pos : pos - this.slots.length;
+	}
+
+	/**
+	 * Returns how many times the bean whose path starts at rowPaths[offset] goes
+	 * right on its first n pegs.
+	 *
+	 * @param offset index of the first word of the path
+	 * @param n      number of pegs to look at
+	 * @return number of rights in the first n pegs
+	 */
+	private int countRights(int offset, int n) {
+		return countRights(this.rowPaths, offset, n);
+	}
+
+	/**
+	 * Returns how many times the bean whose path starts at path[offset] goes right
+	 * on its first n pegs.
+	 *
+	 * @param path   path words
+	 * @param offset index of the first word of the path
+	 * @param n      number of pegs to look at
+	 * @return number of rights in the first n pegs
+	 */
+	private static int countRights(long[] path, int offset, int n) {
+		int rights = 0;
+		int word = offset;
+		for (; n >= 64; n -= 64) {
+			rights += Long.bitCount(path[word++]);
+		}
+		if (n > 0) {
+			rights += Long.bitCount(path[word] & ((1L << n) - 1));
+		}
+		return rights;
+	}
+
+	/**
+	 * Drops a range of beans straight into a histogram of their landing slots,
+	 * without storing their paths.
+	 *
+	 * @param firstId   the number of the first bean
+	 * @param beanCount number of beans
+	 * @return number of beans landing in each slot
+	 */
+	private long[] dropBeans(long firstId, long beanCount) {
+		final long[] landed = new long[this.getSlotCount()];
+		if (this.wordsPerPath == 1) {
+			for (long id = firstId, end = firstId + beanCount; id < end; id++) {
+				landed[Long.bitCount(this.rand.word(id) & this.lastWordMask)]++;
+			}
+			return landed;
+		}
+		for (long id = firstId, end = firstId + beanCount; id < end; id++) {
+			final long counter = id * this.wordsPerPath;
+			int rights = 0;
+			for (int w = 0; w < this.wordsPerPath - 1; w++) {
+				rights += Long.bitCount(this.rand.word(counter + w));
+			}
+			if (this.wordsPerPath > 0) {
+				rights += Long.bitCount(this.rand.word(counter + this.wordsPerPath - 1) & this.lastWordMask);
+			}
+			landed[rights]++;
+		}
+		return landed;
+	}
+
+	/**
+	 * Returns the number of words that count packed paths take.
+	 *
+	 * @param count number of paths
+	 * @return number of words
+	 */
+	private int packedWords(long count) {
+		return (int) ((count * this.pegCount + 63) / 64);
+	}
+
+	/**
+	 * Drops a range of beans into a histogram of their landing slots and packs
+	 * their paths one after the other, pegCount bits each, as DecisionLog stores
+	 * them.
+	 *
+	 * @param firstId   the number of the first bean
+	 * @param beanCount number of beans
+	 * @param landed    histogram to add the beans to
+	 * @param words     where to pack the paths, packedWords(beanCount) words
+	 */
+	private void recordBeans(long firstId, long beanCount, long[] landed, long[] words) {
+		long pend = 0; // bits not yet making up a whole word, LSB first
+		int bits = 0;
+		int filled = 0;
+		if (this.wordsPerPath == 1) {
+			final int n = this.pegCount;
+			for (long id = firstId, end = firstId + beanCount; id < end; id++) {
+				final long word = this.rand.word(id) & this.lastWordMask;
+				landed[Long.bitCount(word)]++;
+				pend |= word << bits;
+				bits += n;
+				if (bits >= 64) {
+					words[filled++] = pend;
+					bits -= 64;
+					// The bits of word that did not fit, in two shifts so that nothing is left
+					// when bits is 0
+					pend = (word >>> 1) >>> (n - bits - 1);
+				}
+			}
+		} else if (this.wordsPerPath > 1) {
+			for (long id = firstId, end = firstId + beanCount; id < end; id++) {
+				final long counter = id * this.wordsPerPath;
+				int rights = 0;
+				for (int w = 0; w < this.wordsPerPath; w++) {
+					long word = this.rand.word(counter + w);
+					int n = 64;
+					if (w == this.wordsPerPath - 1) {
+						word &= this.lastWordMask;
+						n = this.pegCount - 64 * w;
+					}
+					rights += Long.bitCount(word);
+					pend |= word << bits;
+					bits += n;
+					if (bits >= 64) {
+						words[filled++] = pend;
+						bits -= 64;
+						pend = (word >>> 1) >>> (n - bits - 1);
+					}
+				}
+				landed[rights]++;
+			}
+		} else {
+			landed[0] += beanCount;
+		}
+		if (bits > 0) {
+			words[filled] = pend;
+		}
+	}
+
+	/**
+	 * Drops the remaining beans into a histogram, appending their paths to the
+	 * recorder in bean order, a range at a time.
+	 *
+	 * @param pool the pool to drop the ranges on, or null for this thread
+	 * @return number of beans landing in each slot
+	 * @throws IOException if the log cannot be written
+	 */
+	private long[] recordRemaining(ForkJoinPool pool) throws IOException {
+		final int slotCount = this.getSlotCount();
+		final long[] landed = new long[slotCount];
+		final long rangeBeans = Math.min(BEANS_PER_TASK,
+				Math.max(1, 64L * WORDS_PER_RECORDED_RANGE / Math.max(1, this.pegCount)));
+		long id = this.nextBeanId;
+		long left = this.remainingCount;
+		if (pool == null) {
+			final long[] rangeLanded = new long[slotCount];
+			final long[] words = new long[this.packedWords(Math.min(left, rangeBeans))];
+			while (left > 0) {
+				final long count = Math.min(left, rangeBeans);
+				Arrays.fill(rangeLanded, 0);
+				this.recordBeans(id, count, rangeLanded, words);
+				this.recorder.appendPacked(words, count);
+				for (int i = 0; i < slotCount; i++) {
+					landed[i] += rangeLanded[i];
+				}
+				id += count;
+				left -= count;
+			}
+			return landed;
+		}
+		// The pool drops the next batch while this thread writes out the last one
+		final long batchBeans = rangeBeans * RECORDED_RANGES_PER_BATCH;
+		long[][] doneLanded = null;
+		long[][] doneWords = null;
+		long doneCount = 0;
+		while (left > 0 || doneLanded != null) {
+			ForkJoinTask<Void> running = null;
+			long[][] nextLanded = null;
+			long[][] nextWords = null;
+			final long nextCount = Math.min(left, batchBeans);
+			if (nextCount > 0) {
+				final int ranges = (int) ((nextCount + rangeBeans - 1) / rangeBeans);
+				nextLanded = new long[ranges][];
+				nextWords = new long[ranges][];
+				running = pool.submit(new RecordTask(id, nextCount, rangeBeans, 0, ranges, nextLanded, nextWords));
+				id += nextCount;
+				left -= nextCount;
+			}
+			if (doneLanded != null) {
+				this.appendRanges(doneLanded, doneWords, doneCount, rangeBeans, landed);
+			}
+			if (running != null) {
+				running.join();
+			}
+			doneLanded = nextLanded;
+			doneWords = nextWords;
+			doneCount = nextCount;
+		}
+		return landed;
+	}
+
+	/**
+	 * Appends the packed paths of a batch of recorded ranges to the recorder, in
+	 * order, and adds their histograms up.
+	 *
+	 * @param rangeLanded histogram of each range
+	 * @param rangeWords  packed paths of each range
+	 * @param batchCount  number of beans in all the ranges
+	 * @param rangeBeans  number of beans in each range but the last
+	 * @param landed      histogram to add to
+	 * @throws IOException if the log cannot be written
+	 */
+	private void appendRanges(long[][] rangeLanded, long[][] rangeWords, long batchCount, long rangeBeans,
+			long[] landed) throws IOException {
+		for (int r = 0; r < rangeLanded.length; r++) {
+			this.recorder.appendPacked(rangeWords[r], Math.min(rangeBeans, batchCount - r * rangeBeans));
+			for (int i = 0; i < landed.length; i++) {
+				landed[i] += rangeLanded[r][i];
+			}
+		}
+	}
+
+	private void insertBeansAtTop() {
+		if (this.slots.length == 0) {
+			return;
+		}
+		if (this.remainingCount > 0) {
+			this.nextPaths(this.rowPaths, this.topRow * this.wordsPerPath, 1);
+			this.rowOccupied[this.topRow] = true;
+			this.remainingCount--;
+			this.inFlightCount++;
+		} else {
+			this.rowOccupied[this.topRow] = false;
+		}
+	}
+
+	private void clearInFlightBeans() {
+		Arrays.fill(this.rowOccupied, false);
+		this.topRow = 0;
+		this.inFlightCount = 0;
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted.
+	 *
+	 * @return number of beans remaining
+	 * @throws ArithmeticException if the count does not fit in an int
+	 */
+	public int getRemainingBeanCount() {
+		return Math.toIntExact(this.remainingCount);
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted, as a
+	 * long.
+	 *
+	 * @return number of beans remaining
+	 */
+	@Override
+	public long getRemainingBeanCountLong() {
+		return this.remainingCount;
+	}
+
+	/**
+	 * Returns the number of beans currently falling through the pegs.
+	 *
+	 * @return number of in-flight beans
+	 */
+	@Override
+	public int getInFlightBeanCount() {
+		return this.inFlightCount;
+	}
+
+	/**
+	 * Returns the x-coordinate for the in-flight bean at the provided y-coordinate,
+	 * which is the number of rights in the first yPos bits of its path.
+	 *
+	 * @param yPos the y-coordinate in which to look for the in-flight bean
+	 * @return the x-coordinate of the in-flight bean; if no bean in y-coordinate,
+	 *         return NO_BEAN_IN_YPOS
+	 */
+	public int getInFlightBeanXPos(int yPos) {
+		final int row = this.rowIndex(yPos);
+		return this.rowOccupied[row] ? this.countRights(row * this.wordsPerPath, yPos) : NO_BEAN_IN_YPOS;
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with as many luck-mode beans as are
+	 * passed. The machine starts with one bean at the top.
+	 *
+	 * @param beans array of beans to add to the machine
+	 */
+	public void reset(Bean[] beans) {
+		if (beans != null) {
+			for (Bean bean : beans) {
+				if (bean instanceof BeanImpl && !((BeanImpl) bean).isLuck()) {
+					throw new IllegalArgumentException("LuckBeanCounterLogic only takes beans in luck mode");
+				}
+			}
+		}
+		this.resetCount((beans != null) ? beans.length : 0);
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with as many luck-mode beans as the
+	 * source holds, without looking at any of them. The machine starts with one
+	 * bean at the top.
+	 *
+	 * @param source the beans to add to the machine
+	 */
+	@Override
+	public void reset(BeanSource source) {
+		if (!source.isLuck()) {
+			throw new IllegalArgumentException("LuckBeanCounterLogic only takes beans in luck mode");
+		}
+		this.resetCount(source.getBeanCount());
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with beanCount luck-mode beans. The
+	 * machine starts with one bean at the top.
+	 *
+	 * @param beanCount number of beans to add to the machine
+	 */
+	public void reset(long beanCount) {
+		this.resetCount(beanCount);
+	}
+
+	/**
+	 * Empties the machine and makes beanCount beans the remaining beans.
+	 *
+	 * @param beanCount number of beans to add to the machine
+	 */
+	private void resetCount(long beanCount) {
+		final long start = System.nanoTime();
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.nextBeanId = 0;
+		this.remainingCount = beanCount;
+		this.insertBeansAtTop();
+		this.countTime(TimedOperation.RESET, start);
+	}
+
+	/**
+	 * Repeats the experiment by scooping up all beans in the slots and all beans
+	 * in-flight and adding them into the pool of remaining beans. As in the
+	 * beginning, the machine starts with one bean at the top.
+	 */
+	public void repeat() {
+		final long start = System.nanoTime();
+		this.remainingCount = Math.addExact(this.remainingCount, this.stats.getCount() + this.inFlightCount);
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.insertBeansAtTop();
+		this.countTime(TimedOperation.REPEAT, start);
+	}
+
+	/**
+	 * Advances the machine one step. All the in-flight beans fall down one step to
+	 * the next peg. A new bean is inserted into the top of the machine if there are
+	 * beans remaining.
+	 *
+	 * @return whether there has been any status change. If there is no change, that
+	 *         means the machine is finished.
+	 */
+	public boolean advanceStep() {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0) {
+			return false;
+		}
+		final boolean b = this.inFlightCount > 0;
+		final int bottom = this.rowIndex(slotCount - 1);
+		if (this.rowOccupied[bottom]) {
+			this.addToSlot(this.countRights(bottom * this.wordsPerPath, this.pegCount), 1);
+			this.rowOccupied[bottom] = false;
+			this.inFlightCount--;
+		}
+		// Positions follow from the paths, so only the top of the ring moves
+		this.topRow = bottom;
+		this.insertBeansAtTop();
+		if (b) {
+			this.countSteps(1);
+		}
+		return b;
+	}
+
+	/**
+	 * Drops every in-flight and remaining bean straight into its slot without
+	 * walking any steps. Each remaining bean costs one random draw per 64 pegs.
+	 *
+	 * @return number of steps that advanceStep() would have taken
+	 */
+	@Override
+	public long runToCompletion() {
+		return this.runToCompletion(null);
+	}
+
+	/**
+	 * Drops every in-flight and remaining bean straight into its slot, splitting
+	 * the remaining beans into tasks on the given pool.
+	 *
+	 * @param pool the pool to run on, or null to drop the beans on this thread
+	 * @return number of steps that advanceStep() would have taken
+	 */
+	public long runToCompletion(ForkJoinPool pool) {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0 || this.inFlightCount == 0) {
+			return 0;
+		}
+		// While beans remain, the top row is always occupied. Each remaining bean adds
+		// a step, and the last bean inserted needs slotCount steps to land.
+		int topOccupiedRow = -1;
+		for (int y = slotCount - 1; y >= 0; y--) {
+			final int row = this.rowIndex(y);
+			if (this.rowOccupied[row]) {
+				topOccupiedRow = y;
+				this.addToSlot(this.countRights(row * this.wordsPerPath, this.pegCount), 1);
+			}
+		}
+		final long steps = this.remainingCount + slotCount - topOccupiedRow;
+		final long[] landed;
+		if (this.rand != null && this.recorder != null) {
+			try {
+				landed = this.recordRemaining(pool);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			this.nextBeanId += this.remainingCount;
+		} else if (this.rand == null) {
+			// Every path has to be read in order, in full; a block at a time
+			landed = new long[slotCount];
+			final long[] paths = new long[PATHS_PER_BLOCK * this.wordsPerPath];
+			for (long k = this.remainingCount; k > 0;) {
+				final int count = (int) Math.min(k, PATHS_PER_BLOCK);
+				this.nextPaths(paths, 0, count);
+				if (this.wordsPerPath == 1) {
+					for (int b = 0; b < count; b++) {
+						landed[Long.bitCount(paths[b])]++;
+					}
+				} else {
+					for (int b = 0; b < count; b++) {
+						landed[countRights(paths, b * this.wordsPerPath, this.pegCount)]++;
+					}
+				}
+				k -= count;
+			}
+		} else if (pool == null) {
+			landed = this.dropBeans(this.nextBeanId, this.remainingCount);
+			this.nextBeanId += this.remainingCount;
+		} else {
+			landed = pool.invoke(new DropTask(this.nextBeanId, this.remainingCount));
+			this.nextBeanId += this.remainingCount;
+		}
+		for (int i = 0; i < slotCount; i++) {
+			this.addToSlot(i, landed[i]);
+		}
+		this.clearInFlightBeans();
+		this.remainingCount = 0;
+		this.countSteps(steps);
+		return steps;
+	}
+
+	/**
+	 * Returns the engine that checkpoint() names in the file.
+	 *
+	 * @return the engine
+	 */
+	protected CheckpointFile.Engine getCheckpointEngine() {
+		return CheckpointFile.Engine.LUCK;
+	}
+
+	/**
+	 * Returns what checkpoint() saves of where the paths come from: the master
+	 * seed of the generator.
+	 *
+	 * @return the seed
+	 */
+	protected long getPathSource() {
+		return this.rand.getSeed();
+	}
+
+	/**
+	 * Makes the paths come from where a checkpoint says, as returned by
+	 * getPathSource(). Called once the rest of the checkpoint has been read, and
+	 * before any of the state is replaced.
+	 *
+	 * @param source the saved value
+	 * @param path   the checkpoint file, for the message
+	 * @throws IOException if the value is not valid for this engine
+	 */
+	protected void setPathSource(long source, Path path) throws IOException {
+		this.rand = new CounterRandom(source);
+	}
+
+	/**
+	 * Saves the state of the machine to a checkpoint file. After the header, the
+	 * file holds the slot count as an int, then as longs where the paths come
+	 * from (see getPathSource()), the number of the next bean to draw and the
+	 * number of beans waiting, then for each row from the top an int that is 1 if
+	 * the row holds a bean, followed by the bean's path words if it does, and
+	 * finally the bean count of each slot as a long. The recorder is not part of
+	 * the state.
+	 *
+	 * <p>The file is written next to the given one and moved over it once
+	 * complete, so a crash while saving keeps the previous checkpoint.
+	 *
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException if the file cannot be written
+	 */
+	@Override
+	public void checkpoint(Path path) throws IOException {
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Writer out = new CheckpointFile.Writer(path, this.getCheckpointEngine())) {
+			out.putInt(slotCount);
+			out.putLong(this.getPathSource());
+			out.putLong(this.nextBeanId);
+			out.putLong(this.remainingCount);
+			for (int y = 0; y < slotCount; y++) {
+				final int row = this.rowIndex(y);
+				out.putInt(this.rowOccupied[row] ? 1 : 0);
+				if (this.rowOccupied[row]) {
+					for (int w = 0; w < this.wordsPerPath; w++) {
+						out.putLong(this.rowPaths[row * this.wordsPerPath + w]);
+					}
+				}
+			}
+			this.writeSlots(out);
+			out.commit();
+		}
+	}
+
+	/**
+	 * Replaces the state of the machine with one saved by checkpoint(). The
+	 * machine carries on exactly as the saved one would have; a recorder attached
+	 * to it stays attached.
+	 *
+	 * @param path the file to read
+	 * @throws IOException if the file cannot be read or does not hold the valid
+	 *                     state of this kind of machine with this many slots
+	 */
+	@Override
+	public void restore(Path path) throws IOException {
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Reader in = new CheckpointFile.Reader(path, this.getCheckpointEngine())) {
+			this.readSlotCount(in, path);
+			final long source = in.getLong();
+			final long savedNextBeanId = in.getLong();
+			final long savedRemainingCount = in.getLong();
+			if (savedNextBeanId < 0 || savedRemainingCount < 0) {
+				throw new IOException(path + " holds invalid bean counts");
+			}
+			final boolean[] occupied = new boolean[slotCount];
+			final long[] paths = new long[this.rowPaths.length];
+			int inFlight = 0;
+			for (int y = 0; y < slotCount; y++) {
+				final int flag = in.getInt();
+				if (flag != 0 && flag != 1) {
+					throw new IOException(path + " holds an invalid row " + y);
+				}
+				occupied[y] = flag != 0;
+				if (occupied[y]) {
+					for (int w = 0; w < this.wordsPerPath; w++) {
+						paths[y * this.wordsPerPath + w] = in.getLong();
+					}
+					if (this.wordsPerPath > 0 && (paths[(y + 1) * this.wordsPerPath - 1] & ~this.lastWordMask) != 0) {
+						throw new IOException(path + " holds an invalid path in row " + y);
+					}
+					inFlight++;
+				}
+			}
+			final long[] counts = this.readSlots(in, path);
+
+			// Everything is read; now replace the state of the machine
+			this.setPathSource(source, path);
+			this.nextBeanId = savedNextBeanId;
+			this.remainingCount = savedRemainingCount;
+			System.arraycopy(paths, 0, this.rowPaths, 0, paths.length);
+			System.arraycopy(occupied, 0, this.rowOccupied, 0, slotCount);
+			this.topRow = 0;
+			this.inFlightCount = inFlight;
+			this.restoreSlots(counts);
+			this.inFlightChanged();
+		}
+	}
+}
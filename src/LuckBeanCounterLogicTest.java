@@ -0,0 +1,255 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Tests LuckBeanCounterLogic: the per-step view must be consistent with each
+ * bean's path, bulk runs must agree with stepping, and the slot counts must
+ * follow the binomial distribution.
+ */
+
+public class LuckBeanCounterLogicTest {
+	private static final int[] SLOT_COUNTS = {1, 2, 10, 64, 65, 70, 130};
+
+	/**
+	 * Test case for long runToCompletion().
+	 * Preconditions: None.
+	 * Execution steps: Run one machine step by step and another one with the same seed in bulk
+	 *                  after a few steps.
+	 * Invariants: Both draw the same paths, so they end with the same slot counts, and
+	 *             runToCompletion() reports the steps that were skipped.
+	 */
+	@Test
+	public void testBulkRunMatchesSteps() {
+		for (int slotCount : SLOT_COUNTS) {
+			LuckBeanCounterLogic stepped = new LuckBeanCounterLogic(slotCount, slotCount);
+			LuckBeanCounterLogic bulk = new LuckBeanCounterLogic(slotCount, slotCount);
+			stepped.reset(500);
+			bulk.reset(500);
+			long steps = 0;
+			while (stepped.advanceStep()) {
+				steps++;
+			}
+			assertEquals(7, bulk.advanceSteps(7));
+			assertEquals(steps - 7, bulk.runToCompletion());
+			assertArrayEquals(MachineStates.getSlotCounts(stepped), MachineStates.getSlotCounts(bulk));
+			assertEquals(0, bulk.getRemainingBeanCount());
+			assertEquals(stepped.getAverageSlotBeanCount(), bulk.getAverageSlotBeanCount(), 1e-9);
+		}
+	}
+
+	/**
+	 * Test case for int getInFlightBeanXPos(int yPos).
+	 * Preconditions: None.
+	 * Execution steps: Step a machine and follow the bean that entered first.
+	 * Invariants: The bean moves right by 0 or 1 per row and lands in the slot of its
+	 *             last position.
+	 */
+	@Test
+	public void testPathIsConsistent() {
+		for (int slotCount : SLOT_COUNTS) {
+			LuckBeanCounterLogic logic = new LuckBeanCounterLogic(slotCount, 1);
+			logic.reset(1);
+			int xPos = logic.getInFlightBeanXPos(0);
+			assertEquals(0, xPos);
+			for (int y = 1; y < slotCount; y++) {
+				assertTrue(logic.advanceStep());
+				int next = logic.getInFlightBeanXPos(y);
+				assertTrue(next == xPos || next == xPos + 1);
+				xPos = next;
+			}
+			assertTrue(logic.advanceStep());
+			assertEquals(1, logic.getSlotBeanCount(xPos));
+			assertEquals(false, logic.advanceStep());
+		}
+	}
+
+	/**
+	 * Test case for the distribution of beans.
+	 * Preconditions: None.
+	 * Execution steps: Drop many beans on a 70-slot machine, which needs two words per path.
+	 * Invariants: The mean and variance of the slot numbers are those of Binomial(69, 0.5),
+	 *             within a few standard errors.
+	 */
+	@Test
+	public void testBinomialMoments() {
+		final int slotCount = 70;
+		final int beanCount = 200000;
+		LuckBeanCounterLogic logic = new LuckBeanCounterLogic(slotCount, 3);
+		logic.reset(beanCount);
+		logic.runToCompletion();
+		double mean = (slotCount - 1) * 0.5;
+		double variance = (slotCount - 1) * 0.25;
+		assertEquals(mean, logic.getAverageSlotBeanCount(), 5 * Math.sqrt(variance / beanCount));
+		assertEquals(variance, logic.getSlotBeanVariance(), 0.05 * variance);
+	}
+
+	/**
+	 * Test case for long runToCompletion(ForkJoinPool pool).
+	 * Preconditions: None.
+	 * Execution steps: Run machines with the same seed on this thread and on pools of 1 and 4
+	 *                  threads, with enough beans to be split into several tasks.
+	 * Invariants: All beans land, and the slot counts do not depend on the thread count.
+	 */
+	@Test
+	public void testParallelRunIndependentOfThreads() {
+		final int beanCount = 5_000_000;
+		int[][] results = new int[3][];
+		int[] threadCounts = {0, 1, 4};
+		for (int t = 0; t < threadCounts.length; t++) {
+			LuckBeanCounterLogic logic = new LuckBeanCounterLogic(12, 11);
+			logic.reset(beanCount);
+			ForkJoinPool pool = (threadCounts[t] > 0) ? new ForkJoinPool(threadCounts[t]) : null;
+			try {
+				assertEquals(beanCount - 1 + 12, logic.runToCompletion(pool));
+			} finally {
+				if (pool != null) {
+					pool.shutdown();
+				}
+			}
+			results[t] = MachineStates.getSlotCounts(logic);
+			int inSlotBeanCount = 0;
+			for (int count : results[t]) {
+				inSlotBeanCount += count;
+			}
+			assertEquals(beanCount, inSlotBeanCount);
+		}
+		assertArrayEquals(results[0], results[1]);
+		assertArrayEquals(results[0], results[2]);
+	}
+
+	/**
+	 * Test case for boolean goesRight(long beanId, int row).
+	 * Preconditions: None.
+	 * Execution steps: Step three beans down machines with the same seed, repeat, and step
+	 *                  the next three; look up each bean's decisions by its number.
+	 * Invariants: Each bean moves right at exactly the rows where goesRight() says so, and
+	 *             the beans dropped after repeat() are numbered on from the first ones.
+	 */
+	@Test
+	public void testDecisionsByBeanNumber() {
+		for (int slotCount : SLOT_COUNTS) {
+			LuckBeanCounterLogic logic = new LuckBeanCounterLogic(slotCount, 5);
+			LuckBeanCounterLogic lookup = new LuckBeanCounterLogic(slotCount, 5);
+			for (int round = 0; round < 2; round++) {
+				if (round == 0) {
+					logic.reset(3);
+				} else {
+					logic.repeat();
+				}
+				int[] expected = new int[3];
+				for (int step = 0; step < slotCount + 2; step++) {
+					for (int b = 0; b < 3; b++) {
+						final int y = step - b;
+						if (y >= 0 && y < slotCount) {
+							assertEquals(expected[b], logic.getInFlightBeanXPos(y));
+							if (y < slotCount - 1 && lookup.goesRight(3 * round + b, y)) {
+								expected[b]++;
+							}
+						}
+					}
+					logic.advanceStep();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test case for void reset(long beanCount).
+	 * Preconditions: None.
+	 * Execution steps: Run an experiment on a machine, repeat it, and reset the machine
+	 *                  with the same number of beans; run it again each time.
+	 * Invariants: The reset machine drops the same beans again and fills the slots as in
+	 *             the first run, while the repeated run draws new beans.
+	 */
+	@Test
+	public void testResetRewindsBeanNumbers() {
+		for (int slotCount : SLOT_COUNTS) {
+			LuckBeanCounterLogic logic = new LuckBeanCounterLogic(slotCount, 13);
+			logic.reset(1000);
+			logic.runToCompletion();
+			int[] first = MachineStates.getSlotCounts(logic);
+			logic.repeat();
+			logic.runToCompletion();
+			int[] repeated = MachineStates.getSlotCounts(logic);
+			logic.reset(1000);
+			logic.runToCompletion();
+			assertArrayEquals(first, MachineStates.getSlotCounts(logic));
+			if (slotCount > 2) {
+				assertFalse(Arrays.equals(first, repeated));
+			}
+		}
+	}
+
+	/**
+	 * Test case for long getRemainingBeanCountLong().
+	 * Preconditions: None.
+	 * Execution steps: Reset a machine with more than Integer.MAX_VALUE beans and take a few steps.
+	 * Invariants: The long counts add up to the beans passed in, and the int count throws
+	 *             instead of wrapping.
+	 */
+	@Test
+	public void testCountsBeyondIntRange() {
+		final long beanCount = Integer.MAX_VALUE + 100L;
+		LuckBeanCounterLogic logic = new LuckBeanCounterLogic(10, 3);
+		logic.reset(beanCount);
+		assertEquals(12, logic.advanceSteps(12));
+		assertEquals(10, logic.getInFlightBeanCount());
+		assertEquals(3, logic.getInSlotBeanCount());
+		assertEquals(beanCount - 13, logic.getRemainingBeanCountLong());
+		try {
+			logic.getRemainingBeanCount();
+			fail("getRemainingBeanCount() should throw when the count does not fit in an int");
+		} catch (ArithmeticException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Test case for void setFit(GoodnessOfFit fit).
+	 * Preconditions: None.
+	 * Execution steps: Step a machine of 15 slots with a binomial fit and a chi-square
+	 *                  stopping rule until the fit converges, then take the upper half, run
+	 *                  the rest of the beans down, and repeat.
+	 * Invariants: The run stops well before the beans run out with the divergence under the
+	 *             threshold, and after each operation the fit holds the beans in the slots
+	 *             and agrees with a fit built from them afresh.
+	 */
+	@Test
+	public void testFitFollowsSlots() {
+		final int beanCount = 2_000_000;
+		LuckBeanCounterLogic logic = new LuckBeanCounterLogic(15, 21);
+		logic.reset(beanCount);
+		GoodnessOfFit fit = GoodnessOfFit.binomial(15);
+		fit.setStoppingRule(GoodnessOfFit.Divergence.CHI_SQUARE, 1e-3, 1000);
+		logic.setFit(fit);
+		while (!fit.isConverged() && logic.advanceStep()) {
+			// step until the slot counts are close enough
+		}
+		assertTrue(fit.isConverged());
+		assertTrue(fit.getCount() < beanCount / 10);
+		assertTrue(fit.getChiSquareDivergence() < 1e-3);
+		for (int k = 0; k < 3; k++) {
+			GoodnessOfFit fresh = GoodnessOfFit.binomial(15);
+			for (int i = 0; i < 15; i++) {
+				fresh.add(i, logic.getSlotBeanCountLong(i));
+			}
+			assertEquals(logic.getInSlotBeanCount(), fit.getCount());
+			assertEquals(fresh.getChiSquare(), fit.getChiSquare(), 1e-6 * fresh.getChiSquare());
+			assertEquals(fresh.getKullbackLeibler(), fit.getKullbackLeibler(), 1e-9);
+			if (k == 0) {
+				logic.upperHalf();
+			} else if (k == 1) {
+				logic.runToCompletion();
+			}
+		}
+		logic.repeat();
+		assertEquals(0, fit.getCount());
+	}
+}
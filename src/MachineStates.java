@@ -0,0 +1,44 @@
+/**
+ * MachineStates: helpers the tests use to compare what two machines show,
+ * whichever engine runs them.
+ */
+
+final class MachineStates {
+	private MachineStates() {
+	}
+
+	/**
+	 * Describes the observable state of a machine.
+	 *
+	 * @param logic the machine
+	 * @return in-flight positions in every lane, remaining count and slot counts as
+	 *         a string
+	 */
+	static String getState(AbstractBeanCounterLogic logic) {
+		StringBuilder bld = new StringBuilder();
+		for (int y = 0; y < logic.getSlotCount(); y++) {
+			for (int lane = 0; lane < logic.getLaneCount(); lane++) {
+				bld.append(logic.getInFlightBeanXPos(y, lane)).append(',');
+			}
+		}
+		bld.append(logic.getRemainingBeanCount()).append('|');
+		for (int i = 0; i < logic.getSlotCount(); i++) {
+			bld.append(logic.getSlotBeanCount(i)).append(',');
+		}
+		return bld.toString();
+	}
+
+	/**
+	 * Returns the bean counts of all slots.
+	 *
+	 * @param logic the machine
+	 * @return bean count of each slot
+	 */
+	static int[] getSlotCounts(AbstractBeanCounterLogic logic) {
+		int[] counts = new int[logic.getSlotCount()];
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = logic.getSlotBeanCount(i);
+		}
+		return counts;
+	}
+}
@@ -1,4 +1,6 @@
 import java.awt.BorderLayout;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import javax.swing.JFrame;
 
 public class MainFrame {
@@ -18,16 +20,25 @@ public class MainFrame {
 	 * 
 	 * @param beanCount number of beans in the machine
 	 * @param luck      whether beans progress through pure luck (or skill)
+	 * @param seed      the seed the bean paths and skill levels follow from
+	 * @param laneCount the number of beans inserted per step
 	 */
-	public MainFrame(int beanCount, boolean luck) {
+	public MainFrame(int beanCount, boolean luck, long seed, int laneCount) {
 
 		frame.setSize(MainFrame.WIDTH, MainFrame.HEIGHT);
-		// Close program when window is closed
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		// Close program when window is closed, once the window has been disposed so
+		// that the panel has let go of its metrics
+		frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				System.exit(0);
+			}
+		});
 
 		// Add Main Panel and Button Panel
 
-		mainPanel = new MainPanel(beanCount, luck);
+		mainPanel = new MainPanel(beanCount, luck, seed, laneCount);
 
 		buttonPanel = new ButtonPanel(mainPanel);
 
@@ -3,10 +3,11 @@ import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.text.DecimalFormat;
 import java.util.Arrays;
-import java.util.Random;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 /**
  * Code by @author Wonsun Ahn
@@ -14,20 +15,47 @@ import javax.swing.JPanel;
  * <p>MainPanel: This is the display for the machine. Most internal state is
  * encapsulated inside _logic. This class mainly handles the display of that
  * internal state animations between frames.
+ *
+ * <p>Only what changed is repainted: the logic's change events mark the bars
+ * of the slots beans landed in and the statistics, and each animation frame
+ * marks the spots of the moving beans. Painting then skips every peg, bar and
+ * bean outside the clip, and only asks the logic for the counts of the bars it
+ * draws. A logic that sends no change events gets the whole panel repainted
+ * after each call instead.
+ *
+ * <p>Animation is driven by a Swing Timer that ticks on the event dispatch
+ * thread while something is moving, so painting only draws the current state
+ * and the buttons stay responsive. In slow mode every tick moves the beans a
+ * pixel and the machine pauses for some ticks between steps. In fast mode the
+ * machine runs at a fixed number of steps per second: every tick takes the
+ * steps that are due since the run started, in one advanceSteps() call, and
+ * the beans jump to where they are.
+ *
+ * <p>A machine with several lanes is run by BeanCounterLogicImpl, whatever the
+ * logic type: it holds up to laneCount beans in each row, and the beans of a
+ * row are drawn side by side, half a bean apart, around the spot a single bean
+ * would take.
  */
 
 public class MainPanel extends JPanel {
 
 	private BeanCounterLogic logic;	// The core logic of the program
-	private Bean[] beans;				// The beans in the machine
+	private BeanSource beans;			// The beans in the machine, made as they are dropped
+	private EngineMetrics metrics;		// JMX registration of the logic, or null
 
-	private Point[] beanPositions;		// Current bean positions in physical coordinates
+	private final int laneCount;		// Number of beans a row holds
+	private Point[] beanPositions;		// Current bean positions in physical coordinates, lane l of row y
+										// at y * laneCount + l
 	private Point[] targetPositions;	// Target positions that the beans need to move to
 
-	private int timeBetweenFrames;		// Time (ms) between bean movement animation frames
-	private int timeBetweenSteps;		// Time (ms) that is paused before executing the next step
+	private final Timer timer;			// Ticks the animation while something is moving
+	private int pauseTicks;				// Ticks left to pause before the next slow step
+	private long fastStartNanos;		// When the fast run started
+	private long fastSteps;				// Steps due in the fast run so far
 
 	private boolean isRunning;			// Is the bean counter running now?
+	private boolean isFast;				// Is it running in fast mode?
+	private boolean isListening;		// Does the logic tell us what changed?
 
 	private int barHeight;				// The height reserved for bar graphs in the panel
 
@@ -37,28 +65,57 @@ public class MainPanel extends JPanel {
 	public static final int TOP_MARGIN = 30;
 	public static final int BOTTOM_MARGIN = 30;
 	public static final int BAR_TEXT_HEIGHT = 20;
+	public static final int LANE_SPACING = BEAN_SIZE / 2;	// Distance between the beans of a row
+	public static final int TICK_MILLIS = 10;				// Time (ms) between animation ticks
+	public static final int SLOW_PAUSE_TICKS = 10;			// Ticks paused between slow steps
+	public static final int FAST_STEPS_PER_SECOND = 200;	// Step rate of fast mode
 
 	/**
 	 * Constructor - creates the main animation panel for the machine.
 	 * 
 	 * @param beanCount number of beans in the machine
 	 * @param isLuck    whether beans progress through pure luck (or skill)
+	 * @param seed      the seed the bean paths and skill levels follow from
+	 * @param laneCount the number of beans inserted per step
 	 */
-	public MainPanel(int beanCount, boolean isLuck) {
+	public MainPanel(int beanCount, boolean isLuck, long seed, int laneCount) {
 		super();
 		
-		// Create the internal logic
-		logic = BeanCounterLogic.createInstance(SLOT_COUNT);
-		// Create the beans
-		beans = new Bean[beanCount];
-		for (int i = 0; i < beanCount; i++) {
-			beans[i] = Bean.createInstance(SLOT_COUNT, isLuck, new Random());
+		// Create the internal logic; only BeanCounterLogicImpl has lanes
+		this.laneCount = laneCount;
+		logic = (laneCount > 1) ? new BeanCounterLogicImpl(SLOT_COUNT, laneCount)
+				: BeanCounterLogic.createInstance(SLOT_COUNT, isLuck, seed);
+		// Publish live metrics over JMX for the life of the window
+		if (logic instanceof AbstractBeanCounterLogic) {
+			metrics = EngineMetrics.register((AbstractBeanCounterLogic) logic);
 		}
+		// Describe the beans; the logic pulls them from the source as it needs them
+		beans = new SeededBeanSource(SLOT_COUNT, isLuck, seed, beanCount);
+		// Repaint just the parts the logic says changed, if it says
+		isListening = logic.addChangeListener(new BeanCounterListener() {
+			@Override
+			public void slotChanged(int slot) {
+				repaint(getBarBounds(slot));
+				repaint(getStatsBounds());
+			}
+
+			@Override
+			public void slotsChanged() {
+				repaint(getBarsBounds());
+				repaint(getStatsBounds());
+			}
+
+			@Override
+			public void inFlightChanged() {
+				// The remaining count goes down as beans are inserted; the beans themselves
+				// are repainted as they are animated
+				repaint(getStatsBounds());
+			}
+		});
 		// Initialize the logic with the beans
 		logic.reset(beans);
 		// Set some display related parameters
-		timeBetweenFrames = 10;
-		timeBetweenSteps = 100;
+		timer = new Timer(TICK_MILLIS, e -> tick());
 		// Heuristically maximum height of a bell curve with some headroom
 		barHeight = (int) Math.round(beanCount * 0.27) + 10; 
 		setBackground(Color.WHITE);
@@ -112,21 +169,81 @@ public class MainPanel extends JPanel {
 		return new Point(physicalX, physicalY);
 	}
 
+	/**
+	 * Returns the area of the bar of a slot: its column, from the top of the panel
+	 * down to the slot number under it, since a bar can outgrow the space set
+	 * aside for bars.
+	 * 
+	 * @param slot index of the slot
+	 * @return the area in physical coordinates
+	 */
+	private Rectangle getBarBounds(int slot) {
+		Dimension d = getSize();
+		Point p = logicalToPhysical(new Point(slot, SLOT_COUNT));
+		return new Rectangle(p.x, 0, d.width / (SLOT_COUNT + 1) + 1, d.height);
+	}
+
+	/**
+	 * Returns the area of all the bars.
+	 * 
+	 * @return the area in physical coordinates
+	 */
+	private Rectangle getBarsBounds() {
+		return getBarBounds(0).union(getBarBounds(SLOT_COUNT - 1));
+	}
+
+	/**
+	 * Returns the area of the statistics text.
+	 * 
+	 * @return the area in physical coordinates
+	 */
+	private Rectangle getStatsBounds() {
+		Dimension d = getSize();
+		return new Rectangle(d.width - 200, 0, 200, TOP_MARGIN + 70);
+	}
+
+	/**
+	 * Marks the spots of beans for repainting, with a pixel to spare around each
+	 * so that a bean that moved one pixel since is covered too.
+	 * 
+	 * @param positions bean positions in physical coordinates; null entries are
+	 *                  skipped
+	 */
+	private void repaintBeans(Point[] positions) {
+		for (Point p : positions) {
+			if (p != null) {
+				repaint(p.x - 1, p.y - 1, BEAN_SIZE + 3, BEAN_SIZE + 3);
+			}
+		}
+	}
+
+	/**
+	 * Repaints the whole panel if the logic does not say what changed.
+	 */
+	private void repaintIfNotListening() {
+		if (!isListening) {
+			repaint();
+		}
+	}
+
 	/**
 	 * Calculates all the in-flight bean positions (in physical coordinates) from
-	 * _logic.
+	 * _logic, for every lane of every row.
 	 * 
-	 * @return an array of in-flight bean positions
+	 * @return an array of in-flight bean positions, lane l of row y at
+	 *         y * laneCount + l
 	 */
 	private Point[] getBeanPositions() {
-		Point[] positions = new Point[SLOT_COUNT];
+		Point[] positions = new Point[SLOT_COUNT * laneCount];
 		for (int yPos = 0; yPos < SLOT_COUNT; yPos++) {
-			int xPos = logic.getInFlightBeanXPos(yPos);
-			if (xPos != BeanCounterLogic.NO_BEAN_IN_YPOS) {
-				positions[yPos] = logicalToPhysical(new Point(xPos, yPos));
-				positions[yPos].y -= PEG_SIZE + 5;
-			} else {
-				positions[yPos] = null;
+			for (int lane = 0; lane < laneCount; lane++) {
+				int xPos = logic.getInFlightBeanXPos(yPos, lane);
+				if (xPos != BeanCounterLogic.NO_BEAN_IN_YPOS) {
+					Point p = logicalToPhysical(new Point(xPos, yPos));
+					p.x += (2 * lane - (laneCount - 1)) * LANE_SPACING / 2;
+					p.y -= PEG_SIZE + 5;
+					positions[yPos * laneCount + lane] = p;
+				}
 			}
 		}
 		return positions;
@@ -138,14 +255,82 @@ public class MainPanel extends JPanel {
 	private void runOneStep() {
 		// Get current positions
 		beanPositions = getBeanPositions();
-		// Drop the last bean into the slot
-		beanPositions[SLOT_COUNT - 1] = null;
+		// The last row drops into the slots, so its spots need clearing
+		repaintBeans(beanPositions);
+		Arrays.fill(beanPositions, (SLOT_COUNT - 1) * laneCount, SLOT_COUNT * laneCount, null);
 		// Advance one step
 		logic.advanceStep();
 		// Get new positions
 		targetPositions = getBeanPositions();
 		// Repaint
-		repaint();
+		repaintIfNotListening();
+	}
+
+	/**
+	 * Takes the steps of the fast run that are due by now, at most a second's
+	 * worth; if the timer fell further behind than that, the rest are dropped
+	 * rather than run in one go.
+	 */
+	private void runFastSteps() {
+		final long expected = (System.nanoTime() - fastStartNanos) * FAST_STEPS_PER_SECOND / 1_000_000_000L;
+		final int due = (int) Math.min(expected - fastSteps, FAST_STEPS_PER_SECOND);
+		fastSteps = expected;
+		if (due <= 0) {
+			return;
+		}
+		repaintBeans(beanPositions);
+		final int taken = logic.advanceSteps(due);
+		beanPositions = getBeanPositions();
+		repaintBeans(beanPositions);
+		repaintIfNotListening();
+		if (taken < due) {
+			// The machine is finished
+			isRunning = false;
+			timer.stop();
+		}
+	}
+
+	/**
+	 * Moves the animation on by one tick of the timer: moves the beans a pixel
+	 * towards their targets, or pauses, or takes the next step, or stops the timer
+	 * once nothing is moving.
+	 */
+	private void tick() {
+		// If we have target positions, we are still moving
+		if (targetPositions != null) {
+			boolean allArrived = true;
+			// Rows fall with their lanes in place, so each bean moves to the same lane of
+			// the next row
+			for (int i = 0; i < (SLOT_COUNT - 1) * laneCount; i++) {
+				if (beanPositions[i] != null && targetPositions[i + laneCount] != null) {
+					allArrived &= moveOnePixel(beanPositions[i], targetPositions[i + laneCount]);
+				}
+			}
+			// Only the moving beans need painting
+			repaintBeans(beanPositions);
+			if (!allArrived) {
+				return;
+			}
+			// Now that beans have arrived, reset bean positions for the next step; the
+			// new bean at the top appears
+			beanPositions = getBeanPositions();
+			repaintBeans(beanPositions);
+			// Remove target positions such that animations stop for this step
+			targetPositions = null;
+			pauseTicks = SLOW_PAUSE_TICKS;
+		}
+		if (!isRunning) {
+			timer.stop();
+		} else if (isFast) {
+			runFastSteps();
+		} else if (pauseTicks > 0) {
+			pauseTicks--;
+		} else if (Arrays.stream(beanPositions).filter(p -> p != null).count() == 0) {
+			isRunning = false;
+			timer.stop();
+		} else {
+			runOneStep();
+		}
 	}
 
 	/**
@@ -153,8 +338,8 @@ public class MainPanel extends JPanel {
 	 */
 	public void step() {
 		isRunning = false;
-		timeBetweenFrames = 10;
 		runOneStep();
+		timer.start();
 	}
 
 	/**
@@ -162,33 +347,45 @@ public class MainPanel extends JPanel {
 	 */
 	public void runSlow() {
 		isRunning = true;
-		timeBetweenFrames = 10;
-		timeBetweenSteps = 100;
+		isFast = false;
 		runOneStep();
+		timer.start();
 	}
 
 	/**
-	 * Run the machine continuously in fast mode.
+	 * Run the machine continuously in fast mode. The beans stop being animated
+	 * between steps and jump to their positions on each tick instead.
 	 */
 	public void runFast() {
 		isRunning = true;
-		timeBetweenFrames = 1;
-		timeBetweenSteps = 1;
-		runOneStep();
+		isFast = true;
+		if (targetPositions != null) {
+			// Finish the move of the current step at once
+			repaintBeans(beanPositions);
+			targetPositions = null;
+		}
+		beanPositions = getBeanPositions();
+		repaintBeans(beanPositions);
+		fastStartNanos = System.nanoTime();
+		fastSteps = 0;
+		timer.start();
 	}
 
+	/**
+	 * Stop the machine. A bean move in progress still finishes.
+	 */
 	public void stop() {
 		isRunning = false;
 	}
 
 	public void lowerHalf() {
 		logic.lowerHalf();
-		repaint();
+		repaintIfNotListening();
 	}
 
 	public void upperHalf() {
 		logic.upperHalf();
-		repaint();
+		repaintIfNotListening();
 	}
 
 	/**
@@ -198,10 +395,16 @@ public class MainPanel extends JPanel {
 	 */
 	public void repeat() {
 		isRunning = false;
+		if (beanPositions != null) {
+			repaintBeans(beanPositions);
+		}
 		logic.repeat();
 		// repeat() clears machine of in-flight beans, so need to refresh positions
 		beanPositions = getBeanPositions();
-		repaint();
+		targetPositions = null;
+		timer.stop();
+		repaintBeans(beanPositions);
+		repaintIfNotListening();
 	}
 
 	/**
@@ -209,10 +412,16 @@ public class MainPanel extends JPanel {
 	 */
 	public void reset() {
 		isRunning = false;
+		if (beanPositions != null) {
+			repaintBeans(beanPositions);
+		}
 		logic.reset(beans);
-		// repeat() clears machine of in-flight beans, so need to refresh positions
+		// reset() clears machine of in-flight beans, so need to refresh positions
 		beanPositions = getBeanPositions();
-		repaint();
+		targetPositions = null;
+		timer.stop();
+		repaintBeans(beanPositions);
+		repaintIfNotListening();
 	}
 
 	/**
@@ -222,24 +431,47 @@ public class MainPanel extends JPanel {
 	 */
 	public void drawPegs(Graphics g) {
 		g.setColor(Color.BLACK);
+		Rectangle clip = getClip(g);
 		for (int i = 0; i < SLOT_COUNT - 1; i++) {
+			Point first = logicalToPhysical(new Point(0, i));
+			if (first.y > clip.y + clip.height || first.y + PEG_SIZE < clip.y) {
+				// The row is above or below the clip
+				continue;
+			}
 			for (int j = 0; j <= i; j++) {
 				Point p = logicalToPhysical(new Point(j, i));
-				g.drawRect(p.x, p.y, PEG_SIZE, PEG_SIZE);
+				if (clip.intersects(p.x, p.y, PEG_SIZE + 1, PEG_SIZE + 1)) {
+					g.drawRect(p.x, p.y, PEG_SIZE, PEG_SIZE);
+				}
 			}
 		}
 	}
 
 	/**
-	 * Draw the in-flight beans in the machine.
+	 * Returns the area being painted.
+	 * 
+	 * @param g the graphics object
+	 * @return the clip, or the whole panel if there is none
+	 */
+	private Rectangle getClip(Graphics g) {
+		Rectangle clip = g.getClipBounds();
+		return (clip != null) ? clip : new Rectangle(getSize());
+	}
+
+	/**
+	 * Draw the in-flight beans in the machine, in every lane of every row.
 	 * 
 	 * @param g the graphics object
 	 */
 	public void drawBeans(Graphics g) {
 		g.setColor(Color.BLACK);
+		Rectangle clip = getClip(g);
 		for (int i = 0; i < SLOT_COUNT; i++) {
-			if (beanPositions[i] != null) {
-				g.fillOval(beanPositions[i].x, beanPositions[i].y, BEAN_SIZE, BEAN_SIZE);
+			for (int lane = 0; lane < laneCount; lane++) {
+				Point p = beanPositions[i * laneCount + lane];
+				if (p != null && clip.intersects(p.x, p.y, BEAN_SIZE + 1, BEAN_SIZE + 1)) {
+					g.fillOval(p.x, p.y, BEAN_SIZE, BEAN_SIZE);
+				}
 			}
 		}
 	}
@@ -251,7 +483,11 @@ public class MainPanel extends JPanel {
 	 */
 	public void drawBars(Graphics g) {
 		g.setColor(Color.BLACK);
+		Rectangle clip = getClip(g);
 		for (int i = 0; i < SLOT_COUNT; i++) {
+			if (!clip.intersects(getBarBounds(i))) {
+				continue;
+			}
 			Dimension d = getSize();
 			Point p = logicalToPhysical(new Point(i, SLOT_COUNT));
 			g.fillRect(p.x, d.height - BOTTOM_MARGIN - BAR_TEXT_HEIGHT - logic.getSlotBeanCount(i),
@@ -261,18 +497,55 @@ public class MainPanel extends JPanel {
 	}
 
 	/**
-	 * Display some statistics such as the current average slot value and the
-	 * remaining number of beans.
+	 * Returns the standard deviation of the slot numbers of the beans in slots.
+	 * The prebuilt logic types do not keep it, so for them it is worked out from
+	 * the slot counts.
+	 * 
+	 * @return the standard deviation
+	 */
+	private double getStandardDeviation() {
+		if (logic instanceof AbstractBeanCounterLogic) {
+			return ((AbstractBeanCounterLogic) logic).getSlotBeanStandardDeviation();
+		}
+		SlotStatistics stats = new SlotStatistics();
+		for (int i = 0; i < SLOT_COUNT; i++) {
+			stats.add(i, logic.getSlotBeanCount(i));
+		}
+		return stats.getStandardDeviation();
+	}
+
+	/**
+	 * Display some statistics such as the current average slot value, its
+	 * standard deviation and the remaining number of beans.
 	 * 
 	 * @param g the graphics object
 	 */
 	public void drawStats(Graphics g) {
+		if (!getClip(g).intersects(getStatsBounds())) {
+			return;
+		}
 		Dimension d = getSize();
 		g.setFont(new Font("Courier", Font.PLAIN, 20));
 		String average = "Average = " + new DecimalFormat("#.##").format(logic.getAverageSlotBeanCount());
 		g.drawString(average, d.width - 200, TOP_MARGIN);
+		String stdDev = "StdDev = " + new DecimalFormat("#.##").format(getStandardDeviation());
+		g.drawString(stdDev, d.width - 200, TOP_MARGIN + 30);
 		String remaining = "Remaining = " + logic.getRemainingBeanCount();
-		g.drawString(remaining, d.width - 200, TOP_MARGIN + 30);
+		g.drawString(remaining, d.width - 200, TOP_MARGIN + 60);
+	}
+
+	/**
+	 * Stops the animation and withdraws the metrics from JMX once the panel leaves
+	 * the screen, as when its frame is disposed.
+	 */
+	@Override
+	public void removeNotify() {
+		super.removeNotify();
+		timer.stop();
+		if (metrics != null) {
+			metrics.close();
+			metrics = null;
+		}
 	}
 
 	@Override
@@ -285,43 +558,6 @@ public class MainPanel extends JPanel {
 		drawBeans(g);
 		drawBars(g);
 		drawStats(g);
-
-		// If we have target positions, we are still moving
-		if (targetPositions != null) {
-			boolean allArrived = true;
-			for (int i = 0; i < SLOT_COUNT - 1; i++) {
-				if (beanPositions[i] != null && targetPositions[i + 1] != null) {
-					allArrived &= moveOnePixel(beanPositions[i], targetPositions[i + 1]);
-				}
-			}
-			try {
-				Thread.sleep(timeBetweenFrames);
-			} catch (InterruptedException ie) {
-				// Nothing to do here
-			}
-			if (allArrived) {
-				// Now that beans have arrived, reset bean positions for the next frame
-				beanPositions = getBeanPositions();
-				// Remove target positions such that animations stop for this step
-				targetPositions = null;
-				// If running, take the next step
-				if (isRunning) {
-					if (Arrays.stream(beanPositions).filter(p -> p != null).count() == 0) {
-						isRunning = false;
-					} else {
-						try {
-							Thread.sleep(timeBetweenSteps);
-						} catch (InterruptedException ie) {
-							// Nothing to do here
-						}
-						runOneStep();
-						return;
-					}
-				}
-			}
-			// Put repaint request on the queue again for the next frame
-			repaint();
-		}
 	}
 
 }
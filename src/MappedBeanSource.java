@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedBeanSource: A BeanSource backed by a file of pre-generated skill
+ * levels, mapped into memory so the operating system pages beans in as the
+ * machine pulls them. The file holds a header (magic number, format version,
+ * slot count, bean count) followed by one 32-bit skill level per bean, all
+ * little-endian. Files larger than one mapping allows are mapped in chunks of
+ * BEANS_PER_CHUNK beans.
+ *
+ * <p>write() creates such a file from any skill-mode BeanSource.
+ */
+
+public class MappedBeanSource implements BeanSource {
+	/**
+	 * "BEAN" in ASCII.
+	 */
+	public static final int MAGIC = 0x4245414e;
+	public static final int VERSION = 1;
+	public static final int HEADER_BYTES = 24; // magic, version, slot count, unused, bean count
+	public static final int BEANS_PER_CHUNK = 1 << 28; // 1 GiB of skill levels per mapping
+
+	private final int slotCount;
+	private final long beanCount;
+	private final MappedByteBuffer[] chunks;
+
+	/**
+	 * Constructor - maps a skill level file into memory.
+	 *
+	 * @param path the file to map
+	 * @throws IOException if the file cannot be read or is not a skill level file
+	 */
+	MappedBeanSource(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) >= 0) {
+				continue;
+			}
+			header.flip();
+			if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+				throw new IOException(path + " is not a skill level file");
+			}
+			final int version = header.getInt();
+			if (version != VERSION) {
+				throw new IOException(path + " has unsupported version " + version);
+			}
+			this.slotCount = header.getInt();
+			header.getInt();
+			this.beanCount = header.getLong();
+			if (this.beanCount < 0 || channel.size() < HEADER_BYTES + this.beanCount * Integer.BYTES) {
+				throw new IOException(path + " is truncated");
+			}
+			// The mappings stay valid after the channel is closed
+			this.chunks = new MappedByteBuffer[(int) ((this.beanCount + BEANS_PER_CHUNK - 1) / BEANS_PER_CHUNK)];
+			for (int c = 0; c < this.chunks.length; c++) {
+				final long first = (long) c * BEANS_PER_CHUNK;
+				final long beans = Math.min(BEANS_PER_CHUNK, this.beanCount - first);
+				this.chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + first * Integer.BYTES,
+						beans * Integer.BYTES);
+				this.chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+
+	/**
+	 * Writes the skill levels of all beans of a skill-mode source to a file that
+	 * MappedBeanSource can map.
+	 *
+	 * @param path   the file to write, replaced if it exists
+	 * @param source the beans to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(Path path, BeanSource source) throws IOException {
+		if (source.isLuck()) {
+			throw new IllegalArgumentException("Only skill-mode beans have skill levels to write");
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(source.getSlotCount()).putInt(0);
+			buffer.putLong(source.getBeanCount());
+			for (long id = 0; id < source.getBeanCount(); id++) {
+				if (buffer.remaining() < Integer.BYTES) {
+					drain(channel, buffer);
+				}
+				buffer.putInt(source.getSkillLevel(id));
+			}
+			drain(channel, buffer);
+		}
+	}
+
+	/**
+	 * Writes out everything in a buffer and clears it.
+	 *
+	 * @param channel the channel to write to
+	 * @param buffer  the buffer to write out
+	 * @throws IOException if the channel cannot be written
+	 */
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Returns the number of slots of the machine the beans were made for.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return this.slotCount;
+	}
+
+	/**
+	 * Returns false: the file only holds skill-mode beans.
+	 *
+	 * @return false
+	 */
+	public boolean isLuck() {
+		return false;
+	}
+
+	/**
+	 * Returns the number of beans in the file.
+	 *
+	 * @return number of beans
+	 */
+	public long getBeanCount() {
+		return this.beanCount;
+	}
+
+	/**
+	 * Returns the skill level of a bean, read from the mapped file.
+	 *
+	 * @param id the bean id
+	 * @return the skill level of the bean
+	 */
+	public int getSkillLevel(long id) {
+		return this.chunks[(int) (id / BEANS_PER_CHUNK)].getInt((int) (id % BEANS_PER_CHUNK) * Integer.BYTES);
+	}
+}
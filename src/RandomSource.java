@@ -0,0 +1,121 @@
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * RandomSource: Where beans and bean stores get their random numbers from. A
+ * source is meant to be shared by all the beans of an engine (or of a thread)
+ * rather than created per bean, and is not thread-safe. Besides single values,
+ * it hands out random bits and normal deviates in bulk, for drawing many paths
+ * or skill levels at once.
+ *
+ * <p>XoroshiroRandomSource is the fast implementation. of() adapts a
+ * java.util.Random, with the exact sequence of values the Random itself
+ * produces.
+ */
+
+public interface RandomSource {
+	/**
+	 * Returns 64 random bits.
+	 *
+	 * @return the random bits
+	 */
+	long nextLong();
+
+	/**
+	 * Returns a random bit.
+	 *
+	 * @return true or false with equal probability
+	 */
+	default boolean nextBoolean() {
+		return this.nextLong() < 0;
+	}
+
+	/**
+	 * Returns a uniform double in [0, 1).
+	 *
+	 * @return the random double
+	 */
+	default double nextDouble() {
+		return (this.nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Returns a normal deviate with mean 0 and standard deviation 1.
+	 *
+	 * @return the random double
+	 */
+	default double nextGaussian() {
+		// 1 - u lies in (0, 1], so the logarithm is finite
+		final double u1 = 1.0 - this.nextDouble();
+		final double u2 = this.nextDouble();
+		return Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+	}
+
+	/**
+	 * Fills part of an array with random bits.
+	 *
+	 * @param words  where to put the bits
+	 * @param offset index of the first word to fill
+	 * @param count  number of words
+	 */
+	default void nextLongs(long[] words, int offset, int count) {
+		for (int k = offset; k < offset + count; k++) {
+			words[k] = this.nextLong();
+		}
+	}
+
+	/**
+	 * Fills part of an array with normal deviates, the same ones count calls to
+	 * nextGaussian() would return.
+	 *
+	 * @param values where to put the deviates
+	 * @param offset index of the first value to fill
+	 * @param count  number of values
+	 */
+	default void nextGaussians(double[] values, int offset, int count) {
+		for (int k = offset; k < offset + count; k++) {
+			values[k] = this.nextGaussian();
+		}
+	}
+
+	/**
+	 * Returns a source that draws from a java.util.Random. Each call is passed on
+	 * to the Random, so the source gives exactly the values the Random gives.
+	 *
+	 * @param rand the generator
+	 * @return the source
+	 */
+	static RandomSource of(Random rand) {
+		return new GeneratorSource(rand);
+	}
+
+	/**
+	 * Source that passes every call on to a java.util.Random. It can be serialized,
+	 * as a Random can.
+	 */
+	final class GeneratorSource implements RandomSource, Serializable {
+		private static final long serialVersionUID = 1L;
+
+		private final Random rand;
+
+		private GeneratorSource(Random rand) {
+			this.rand = rand;
+		}
+
+		public long nextLong() {
+			return this.rand.nextLong();
+		}
+
+		public boolean nextBoolean() {
+			return this.rand.nextBoolean();
+		}
+
+		public double nextDouble() {
+			return this.rand.nextDouble();
+		}
+
+		public double nextGaussian() {
+			return this.rand.nextGaussian();
+		}
+	}
+}
@@ -0,0 +1,128 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Tests the RandomSource implementations: the bulk methods must give the same
+ * values as the single ones, adapted generators must be passed through
+ * unchanged, and the values must have the right distribution.
+ */
+
+public class RandomSourceTest {
+	/**
+	 * Test case for void nextLongs(long[] words, int offset, int count).
+	 * Preconditions: None.
+	 * Execution steps: Draw words from two XoroshiroRandomSources with the same seed, one in
+	 *                  bulk and one at a time.
+	 * Invariants: Both give the same words, and the bulk call leaves the rest of the array
+	 *             alone.
+	 */
+	@Test
+	public void testBulkBitsMatchSingle() {
+		RandomSource bulk = new XoroshiroRandomSource(17);
+		RandomSource single = new XoroshiroRandomSource(17);
+		long[] words = new long[1002];
+		bulk.nextLongs(words, 1, 1000);
+		assertEquals(0, words[0]);
+		assertEquals(0, words[1001]);
+		for (int k = 1; k <= 1000; k++) {
+			assertEquals(single.nextLong(), words[k]);
+		}
+		assertEquals(single.nextLong(), bulk.nextLong());
+	}
+
+	/**
+	 * Test case for void nextGaussians(double[] values, int offset, int count).
+	 * Preconditions: None.
+	 * Execution steps: Draw deviates from two XoroshiroRandomSources with the same seed, one
+	 *                  in bulk runs of odd and even lengths and one at a time.
+	 * Invariants: Both give the same deviates in the same order.
+	 */
+	@Test
+	public void testBulkGaussiansMatchSingle() {
+		RandomSource bulk = new XoroshiroRandomSource(5);
+		RandomSource single = new XoroshiroRandomSource(5);
+		double[] values = new double[16];
+		for (int count = 0; count <= values.length; count++) {
+			bulk.nextGaussians(values, 0, count);
+			for (int k = 0; k < count; k++) {
+				assertEquals(single.nextGaussian(), values[k], 0.0);
+			}
+		}
+	}
+
+	/**
+	 * Test case for boolean nextBoolean() of XoroshiroRandomSource.
+	 * Preconditions: None.
+	 * Execution steps: Draw 640 bits from a source, and 10 words from one with the same seed.
+	 * Invariants: The bits are those of the words, lowest first.
+	 */
+	@Test
+	public void testBitsComeFromWords() {
+		RandomSource bits = new XoroshiroRandomSource(3);
+		RandomSource words = new XoroshiroRandomSource(3);
+		for (int w = 0; w < 10; w++) {
+			final long word = words.nextLong();
+			for (int b = 0; b < 64; b++) {
+				assertEquals(((word >>> b) & 1) != 0, bits.nextBoolean());
+			}
+		}
+	}
+
+	/**
+	 * Test case for RandomSource of(Random rand).
+	 * Preconditions: None.
+	 * Execution steps: Draw bits, deviates and bulk deviates from a source on a
+	 *                  java.util.Random, and the same calls from a Random with the same seed.
+	 * Invariants: The source gives exactly the Random's values, and nextBoolean() agrees with
+	 *             nextInt(2) == 1, the choice BeanImpl used to make.
+	 */
+	@Test
+	public void testAdapterPassesRandomThrough() {
+		RandomSource source = RandomSource.of(new Random(11));
+		Random bits = new Random(11);
+		for (int k = 0; k < 1000; k++) {
+			assertEquals(bits.nextInt(2) == 1, source.nextBoolean());
+		}
+		double[] values = new double[101];
+		source.nextGaussians(values, 0, values.length);
+		double[] expected = new double[values.length];
+		for (int k = 0; k < expected.length; k++) {
+			expected[k] = bits.nextGaussian();
+		}
+		assertArrayEquals(expected, values, 0.0);
+	}
+
+	/**
+	 * Test case for the distribution of XoroshiroRandomSource's values.
+	 * Preconditions: None.
+	 * Execution steps: Draw many bits and deviates in bulk.
+	 * Invariants: Half the bits are set, and the deviates have mean 0 and variance 1, within
+	 *             a few standard errors.
+	 */
+	@Test
+	public void testMoments() {
+		final int n = 200000;
+		RandomSource source = new XoroshiroRandomSource(23);
+		long[] words = new long[n / 64];
+		source.nextLongs(words, 0, words.length);
+		long ones = 0;
+		for (long word : words) {
+			ones += Long.bitCount(word);
+		}
+		final long bitCount = 64L * words.length;
+		assertEquals(0.5, (double) ones / bitCount, 5 * Math.sqrt(0.25 / bitCount));
+		double[] values = new double[n];
+		source.nextGaussians(values, 0, n);
+		double sum = 0;
+		double sumSquares = 0;
+		for (double value : values) {
+			sum += value;
+			sumSquares += value * value;
+		}
+		assertEquals(0, sum / n, 5 / Math.sqrt(n));
+		assertEquals(1, sumSquares / n, 0.02);
+	}
+}
@@ -0,0 +1,78 @@
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * ReplayBeanCounterLogic: Luck-mode engine that takes its bean paths from a
+ * DecisionLog instead of a random number generator. Driven through the same
+ * calls as the recorded LuckBeanCounterLogic (resets, steps, repeats, halves,
+ * bulk runs), it draws the same paths in the same order and so reproduces the
+ * recorded run exactly, at the speed of reading bits from a mapped file.
+ *
+ * <p>A checkpoint of a replay holds the position in the log instead of a seed,
+ * and restores into an engine replaying the same log.
+ */
+
+public class ReplayBeanCounterLogic extends LuckBeanCounterLogic {
+	private final DecisionLog.Reader log;
+
+	/**
+	 * Constructor - creates an engine that replays the given log, with the slot
+	 * count of the recorded machine.
+	 *
+	 * @param log the recorded paths
+	 */
+	ReplayBeanCounterLogic(DecisionLog.Reader log) {
+		super(log.getSlotCount(), null);
+		this.log = log;
+	}
+
+	/**
+	 * Reads the paths of the next count beans from the log.
+	 *
+	 * @param paths  where to put the path words
+	 * @param offset index of the first word of the first path
+	 * @param count  number of paths
+	 * @throws IllegalStateException if the log has fewer paths left
+	 */
+	@Override
+	protected void drawPaths(long[] paths, int offset, int count) {
+		this.log.read(paths, offset, count);
+	}
+
+	/**
+	 * Returns the engine that checkpoint() names in the file.
+	 *
+	 * @return the engine
+	 */
+	@Override
+	protected CheckpointFile.Engine getCheckpointEngine() {
+		return CheckpointFile.Engine.REPLAY;
+	}
+
+	/**
+	 * Returns what checkpoint() saves of where the paths come from: the number of
+	 * paths read from the log so far.
+	 *
+	 * @return number of paths read
+	 */
+	@Override
+	protected long getPathSource() {
+		return this.log.getBeanCount() - this.log.getRemainingBeanCount();
+	}
+
+	/**
+	 * Moves the log to where a checkpoint left it.
+	 *
+	 * @param source number of paths read from the log when it was saved
+	 * @param path   the checkpoint file, for the message
+	 * @throws IOException if the log does not have that many paths
+	 */
+	@Override
+	protected void setPathSource(long source, Path path) throws IOException {
+		if (source < 0 || source > this.log.getBeanCount()) {
+			throw new IOException(path + " was saved after " + source + " paths, but the log holds "
+					+ this.log.getBeanCount());
+		}
+		this.log.seek(source);
+	}
+}
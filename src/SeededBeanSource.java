@@ -0,0 +1,117 @@
+/**
+ * SeededBeanSource: A BeanSource that makes up each bean's skill level when it
+ * is asked for, from a seed and the bean id alone. The id is mixed with the
+ * seed by the SplitMix64 finalizer into two uniform numbers, which the
+ * Box-Muller transform turns into a normal deviate. Skill levels follow the same
+ * distribution as BeanImpl's (mean (SLOT_COUNT-1)/2, standard deviation
+ * sqrt(SLOT_COUNT/4)), but any bean can be looked up in O(1) and the source
+ * holds no per-bean memory.
+ */
+
+public class SeededBeanSource implements BeanSource {
+	private final int slotCount;
+	private final boolean isLuck;
+	private final long seed;
+	private final long beanCount;
+	private final double skillAverage;
+	private final double skillStdDev;
+
+	/**
+	 * Golden-ratio increment of the SplitMix64 generator.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	/**
+	 * Constructor - creates a source of beanCount beans in either luck mode or
+	 * skill mode.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @param isLuck    whether the beans are in luck mode
+	 * @param seed      the seed the skill levels are derived from
+	 * @param beanCount the number of beans
+	 */
+	SeededBeanSource(int slotCount, boolean isLuck, long seed, long beanCount) {
+		if (beanCount < 0) {
+			throw new IllegalArgumentException("beanCount must not be negative");
+		}
+		this.slotCount = slotCount;
+		this.isLuck = isLuck;
+		this.seed = seed;
+		this.beanCount = beanCount;
+		this.skillAverage = (double) (slotCount - 1) * 0.5;
+		this.skillStdDev = Math.sqrt(slotCount * 0.5 * 0.5);
+	}
+
+	/**
+	 * Turns the top 53 bits of a 64-bit value into a double in [0, 1).
+	 *
+	 * @param bits the random bits
+	 * @return a uniform double in [0, 1)
+	 */
+	private static double toUnitDouble(long bits) {
+		return (bits >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Returns the number of slots of the machine the beans are made for.
+	 *
+	 * @return number of slots
+	 */
+	public int getSlotCount() {
+		return this.slotCount;
+	}
+
+	/**
+	 * Returns whether the beans are in luck mode.
+	 *
+	 * @return whether the beans are in luck mode
+	 */
+	public boolean isLuck() {
+		return this.isLuck;
+	}
+
+	/**
+	 * Returns the number of beans in the source.
+	 *
+	 * @return number of beans
+	 */
+	public long getBeanCount() {
+		return this.beanCount;
+	}
+
+	/**
+	 * Returns the skill level of a bean, computed from the seed and the id.
+	 *
+	 * @param id the bean id
+	 * @return the skill level of the bean
+	 */
+	public int getSkillLevel(long id) {
+		final long z = this.seed + (2 * id + 1) * GOLDEN_GAMMA;
+		// 1 - u lies in (0, 1], so the logarithm is finite
+		final double u1 = 1.0 - toUnitDouble(CounterRandom.mix64(z));
+		final double u2 = toUnitDouble(CounterRandom.mix64(z + GOLDEN_GAMMA));
+		final double gaussian = Math.sqrt(-2.0 * Math.log(u1)) * Math.cos(2.0 * Math.PI * u2);
+		return (int) Math.round(gaussian * this.skillStdDev + this.skillAverage);
+	}
+
+	/**
+	 * Returns the seed the source was created with, from which the same source
+	 * can be made again.
+	 *
+	 * @return the seed
+	 */
+	long getSourceSeed() {
+		return this.seed;
+	}
+
+	/**
+	 * Returns the seed of the generator of the luck decisions: the seed of the
+	 * source, scrambled so that the decisions are unrelated to the skill levels.
+	 *
+	 * @return the seed
+	 */
+	@Override
+	public long getSeed() {
+		return CounterRandom.mix64(this.seed);
+	}
+}
@@ -0,0 +1,583 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * SkillBeanCounterLogic: BeanCounterLogic engine for machines whose beans are
+ * all in skill mode. A skill bean never makes a random choice: with skill level
+ * s it goes right on the first s pegs and left on the rest, so at row y it is at
+ * x = min(s, y) and it lands in slot s (clamped to the slots of the machine).
+ * This engine therefore never walks pegs or calls Bean.choose().
+ *
+ * <p>The population is kept as a histogram of skill levels. Beans waiting to be
+ * inserted are runs of (skill level, count) in drop order, beans in flight are a
+ * ring of skill levels indexed by row, and the slots are plain counts. After a
+ * repeat() the waiting beans are just the slot histogram in slot order, so
+ * repeat() and runToCompletion() cost O(slotCount), and upperHalf() and
+ * lowerHalf() cost O(log slotCount) per slot they empty.
+ *
+ * <p>reset(BeanSource) does not read the source up front. Beans not yet dropped
+ * since the reset are a range of source ids in front of the runs, and each one
+ * is looked up when it is inserted; a rewind just moves the range back to the
+ * start. Only runToCompletion() has to read the rest of the range.
+ *
+ * <p>runToCompletion(ForkJoinPool) splits that range over the pool. Each task
+ * looks up a range of ids into its own histogram, so the source is read from
+ * several threads at once; the sources in this package allow that, since a
+ * lookup changes nothing.
+ *
+ * <p>Beans are dropped in the same order as BeanCounterLogicImpl drops them, so
+ * getInFlightBeanXPos() gives the same answers step by step.
+ *
+ * <p>checkpoint() saves the skill levels in flight, the waiting runs and the
+ * slot counts. Waiting beans still in the source are saved as the range of ids
+ * and the seed of the source, so only a SeededBeanSource can be saved before
+ * its beans are all dropped.
+ */
+
+public class SkillBeanCounterLogic extends CountingBeanCounterLogic {
+	private final int[] rowSkills; // ring of skill levels in flight, row y at rowIndex(y), or NO_BEAN_IN_YPOS
+	private int topRow; // position of row 0 in rowSkills; moves up one position every step
+	private int inFlightCount;
+
+	private Runs resetRuns = new Runs(); // skill levels of the beans of the last reset() in drop order
+	private BeanSource source; // source of the last reset(BeanSource), or null
+	private long sourceCursor; // id of the next source bean to insert
+	private long sourceEnd; // source beans sourceCursor to sourceEnd - 1 wait in front of the runs
+	private Runs repeatRuns = new Runs(); // waiting beans built by repeat()
+	private Runs spareRuns = new Runs(); // buffer for the next repeat() to build into
+	private Runs remaining = resetRuns; // runs the waiting beans are taken from
+	private int runCursor; // index of the run the next bean is taken from
+	private long runConsumed; // beans already taken from that run
+	private long remainingCount;
+
+	/**
+	 * Number of source beans a parallel task looks up itself rather than
+	 * splitting further.
+	 */
+	private static final long BEANS_PER_TASK = 1 << 20;
+
+	/**
+	 * Runs of beans with equal skill levels, in drop order.
+	 */
+	private static final class Runs {
+		private int[] skills = new int[16];
+		private long[] counts = new long[16];
+		private int size;
+
+		/**
+		 * Appends count beans with the given skill level, merging with the last run
+		 * if it has the same level.
+		 *
+		 * @param skill skill level of the beans
+		 * @param count number of beans
+		 */
+		void add(int skill, long count) {
+			if (count == 0) {
+				return;
+			}
+			if (size > 0 && skills[size - 1] == skill) {
+				counts[size - 1] += count;
+				return;
+			}
+			if (size == skills.length) {
+				skills = Arrays.copyOf(skills, size * 2);
+				counts = Arrays.copyOf(counts, size * 2);
+			}
+			skills[size] = skill;
+			counts[size++] = count;
+		}
+
+		void clear() {
+			size = 0;
+		}
+	}
+
+	/**
+	 * Task that looks up a range of source beans into a histogram of its own.
+	 */
+	private final class LookupTask extends RecursiveTask<long[]> {
+		private static final long serialVersionUID = 1L;
+
+		private final long firstId;
+		private final long beanCount;
+
+		LookupTask(long firstId, long beanCount) {
+			this.firstId = firstId;
+			this.beanCount = beanCount;
+		}
+
+		@Override
+		protected long[] compute() {
+			if (this.beanCount <= BEANS_PER_TASK) {
+				return lookUpBeans(this.firstId, this.firstId + this.beanCount);
+			}
+			final long half = this.beanCount / 2;
+			final LookupTask upper = new LookupTask(this.firstId + half, this.beanCount - half);
+			upper.fork();
+			final long[] landed = new LookupTask(this.firstId, half).compute();
+			final long[] upperLanded = upper.join();
+			for (int i = 0; i < landed.length; i++) {
+				landed[i] += upperLanded[i];
+			}
+			return landed;
+		}
+	}
+
+	/**
+	 * Constructor - creates a skill-mode engine with the provided number of slots.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 */
+	SkillBeanCounterLogic(int slotCount) {
+		super(slotCount);
+		this.rowSkills = new int[slotCount];
+		Arrays.fill(this.rowSkills, NO_BEAN_IN_YPOS);
+	}
+
+	/**
+	 * Returns the slot a skill-mode bean lands in, which is its skill level clamped
+	 * to the slots of the machine.
+	 *
+	 * @param bean a bean in skill mode
+	 * @return the slot the bean lands in
+	 */
+	private int getLandingSlot(Bean bean) {
+		int level;
+		if (bean instanceof BeanImpl) {
+			if (((BeanImpl) bean).isLuck()) {
+				throw new IllegalArgumentException("SkillBeanCounterLogic only takes beans in skill mode");
+			}
+			level = ((BeanImpl) bean).getSkillLevel();
+		} else {
+			// A skill bean always takes the same path, so follow it down once
+			bean.reset();
+			for (int y = 1; y < this.getSlotCount(); y++) {
+				bean.choose();
+			}
+			level = bean.getXPos();
+			bean.reset();
+		}
+		return this.clamp(level);
+	}
+
+	/**
+	 * Returns the slot a bean with the given skill level lands in.
+	 *
+	 * @param level the skill level
+	 * @return the skill level clamped to the slots of the machine
+	 */
+	private int clamp(int level) {
+		return Math.max(0, Math.min(level, this.getSlotCount() - 1));
+	}
+
+	/**
+	 * Returns the position of row yPos in the rowSkills ring.
+	 *
+	 * @param yPos the y-coordinate of the row
+	 * @return the index into rowSkills
+	 */
+	private int rowIndex(int yPos) {
+		final int pos = this.topRow + yPos;
+		return (pos < this.rowSkills.length) ? pos : pos - this.rowSkills.length;
+	}
+
+	private void insertBeansAtTop() {
+		if (this.rowSkills.length == 0) {
+			return;
+		}
+		if (this.sourceCursor < this.sourceEnd) {
+			this.rowSkills[this.topRow] = this.clamp(this.source.getSkillLevel(this.sourceCursor++));
+			this.remainingCount--;
+			this.inFlightCount++;
+		} else if (this.remainingCount > 0) {
+			this.rowSkills[this.topRow] = this.remaining.skills[this.runCursor];
+			if (++this.runConsumed == this.remaining.counts[this.runCursor]) {
+				this.runCursor++;
+				this.runConsumed = 0;
+			}
+			this.remainingCount--;
+			this.inFlightCount++;
+		} else {
+			this.rowSkills[this.topRow] = NO_BEAN_IN_YPOS;
+		}
+	}
+
+	private void clearInFlightBeans() {
+		Arrays.fill(this.rowSkills, NO_BEAN_IN_YPOS);
+		this.topRow = 0;
+		this.inFlightCount = 0;
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted.
+	 *
+	 * @return number of beans remaining
+	 * @throws ArithmeticException if the count does not fit in an int
+	 */
+	public int getRemainingBeanCount() {
+		return Math.toIntExact(this.remainingCount);
+	}
+
+	/**
+	 * Returns the number of beans remaining that are waiting to get inserted, as a
+	 * long.
+	 *
+	 * @return number of beans remaining
+	 */
+	@Override
+	public long getRemainingBeanCountLong() {
+		return this.remainingCount;
+	}
+
+	/**
+	 * Returns the number of beans currently falling through the pegs.
+	 *
+	 * @return number of in-flight beans
+	 */
+	@Override
+	public int getInFlightBeanCount() {
+		return this.inFlightCount;
+	}
+
+	/**
+	 * Returns the x-coordinate for the in-flight bean at the provided y-coordinate.
+	 *
+	 * @param yPos the y-coordinate in which to look for the in-flight bean
+	 * @return the x-coordinate of the in-flight bean; if no bean in y-coordinate,
+	 *         return NO_BEAN_IN_YPOS
+	 */
+	public int getInFlightBeanXPos(int yPos) {
+		final int skill = this.rowSkills[this.rowIndex(yPos)];
+		return (skill != NO_BEAN_IN_YPOS) ? Math.min(skill, yPos) : NO_BEAN_IN_YPOS;
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with the passed beans, which must all
+	 * be in skill mode. The machine starts with one bean at the top.
+	 *
+	 * @param beans array of beans to add to the machine
+	 */
+	public void reset(Bean[] beans) {
+		final long start = System.nanoTime();
+		this.resetRuns.clear();
+		if (beans != null) {
+			for (Bean bean : beans) {
+				this.resetRuns.add(this.getLandingSlot(bean), 1);
+			}
+		}
+		this.source = null;
+		this.rewind(this.resetRuns, 0, (beans != null) ? beans.length : 0);
+		this.countTime(TimedOperation.RESET, start);
+	}
+
+	/**
+	 * A hard reset. Initializes the machine with the beans of the passed source,
+	 * which must be in skill mode. Beans are looked up as they are inserted. The
+	 * machine starts with one bean at the top.
+	 *
+	 * @param source the beans to add to the machine
+	 */
+	@Override
+	public void reset(BeanSource source) {
+		if (source.isLuck()) {
+			throw new IllegalArgumentException("SkillBeanCounterLogic only takes beans in skill mode");
+		}
+		final long start = System.nanoTime();
+		this.source = source;
+		this.repeatRuns.clear();
+		this.rewind(this.repeatRuns, source.getBeanCount(), source.getBeanCount());
+		this.countTime(TimedOperation.RESET, start);
+	}
+
+	/**
+	 * Empties the machine and makes the first sourceBeans beans of the source,
+	 * followed by the given runs, the waiting beans.
+	 *
+	 * @param runs        the runs to drop after the source beans
+	 * @param sourceBeans number of source beans to drop first
+	 * @param beanCount   number of waiting beans in total
+	 */
+	private void rewind(Runs runs, long sourceBeans, long beanCount) {
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.sourceCursor = 0;
+		this.sourceEnd = sourceBeans;
+		this.remaining = runs;
+		this.runCursor = 0;
+		this.runConsumed = 0;
+		this.remainingCount = beanCount;
+		this.insertBeansAtTop();
+	}
+
+	/**
+	 * Repeats the experiment by scooping up all beans in the slots and all beans
+	 * in-flight and adding them into the pool of remaining beans. As in the
+	 * beginning, the machine starts with one bean at the top.
+	 */
+	public void repeat() {
+		final long start = System.nanoTime();
+		final Runs next = this.spareRuns;
+		next.clear();
+		// Beans still waiting stay in front; those still in the source stay there
+		for (int r = this.runCursor; r < this.remaining.size; r++) {
+			final long consumed = (r == this.runCursor) ? this.runConsumed : 0;
+			next.add(this.remaining.skills[r], this.remaining.counts[r] - consumed);
+		}
+		for (int i = 0; i < this.getSlotCount(); i++) {
+			next.add(i, this.slots[i]);
+		}
+		// In-flight beans go back top row first, i.e. the most recently inserted first
+		for (int y = 0; y < this.getSlotCount(); y++) {
+			final int skill = this.rowSkills[this.rowIndex(y)];
+			if (skill != NO_BEAN_IN_YPOS) {
+				next.add(skill, 1);
+			}
+		}
+		this.remainingCount = Math.addExact(this.remainingCount, this.stats.getCount() + this.inFlightCount);
+		this.clearSlots();
+		this.clearInFlightBeans();
+		this.spareRuns = this.repeatRuns;
+		this.repeatRuns = next;
+		this.remaining = next;
+		this.runCursor = 0;
+		this.runConsumed = 0;
+		this.insertBeansAtTop();
+		this.countTime(TimedOperation.REPEAT, start);
+	}
+
+	/**
+	 * Advances the machine one step. All the in-flight beans fall down one step to
+	 * the next peg. A new bean is inserted into the top of the machine if there are
+	 * beans remaining.
+	 *
+	 * @return whether there has been any status change. If there is no change, that
+	 *         means the machine is finished.
+	 */
+	public boolean advanceStep() {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0) {
+			return false;
+		}
+		final boolean b = this.inFlightCount > 0;
+		final int bottom = this.rowIndex(slotCount - 1);
+		if (this.rowSkills[bottom] != NO_BEAN_IN_YPOS) {
+			this.addToSlot(this.rowSkills[bottom], 1);
+			this.rowSkills[bottom] = NO_BEAN_IN_YPOS;
+			this.inFlightCount--;
+		}
+		// Positions follow from the skill levels, so only the top of the ring moves
+		this.topRow = bottom;
+		this.insertBeansAtTop();
+		if (b) {
+			this.countSteps(1);
+		}
+		return b;
+	}
+
+	/**
+	 * Counts the slots a range of source beans land in.
+	 *
+	 * @param firstId id of the first bean
+	 * @param endId   id after the last bean
+	 * @return number of the beans landing in each slot
+	 */
+	private long[] lookUpBeans(long firstId, long endId) {
+		final long[] landed = new long[this.getSlotCount()];
+		for (long id = firstId; id < endId; id++) {
+			landed[this.clamp(this.source.getSkillLevel(id))]++;
+		}
+		return landed;
+	}
+
+	/**
+	 * Drops every in-flight and remaining bean straight into its slot without
+	 * walking any steps.
+	 *
+	 * @return number of steps that advanceStep() would have taken
+	 */
+	@Override
+	public long runToCompletion() {
+		return this.runToCompletion(null);
+	}
+
+	/**
+	 * Drops every in-flight and remaining bean straight into its slot, splitting
+	 * the source beans still to be looked up into tasks on the given pool.
+	 *
+	 * @param pool the pool to run on, or null to look up the beans on this thread
+	 * @return number of steps that advanceStep() would have taken
+	 */
+	public long runToCompletion(ForkJoinPool pool) {
+		final int slotCount = this.getSlotCount();
+		if (slotCount == 0 || this.inFlightCount == 0) {
+			return 0;
+		}
+		// While beans remain, the top row is always occupied. Each remaining bean adds
+		// a step, and the last bean inserted needs slotCount steps to land.
+		int topOccupiedRow = -1;
+		for (int y = 0; y < slotCount; y++) {
+			final int skill = this.rowSkills[this.rowIndex(y)];
+			if (skill != NO_BEAN_IN_YPOS) {
+				if (topOccupiedRow < 0) {
+					topOccupiedRow = y;
+				}
+				this.addToSlot(skill, 1);
+			}
+		}
+		final long steps = this.remainingCount + slotCount - topOccupiedRow;
+		if (this.sourceCursor < this.sourceEnd) {
+			final long[] landed;
+			if (pool == null) {
+				landed = this.lookUpBeans(this.sourceCursor, this.sourceEnd);
+			} else {
+				landed = pool.invoke(new LookupTask(this.sourceCursor, this.sourceEnd - this.sourceCursor));
+			}
+			for (int i = 0; i < slotCount; i++) {
+				this.addToSlot(i, landed[i]);
+			}
+			this.sourceCursor = this.sourceEnd;
+		}
+		for (int r = this.runCursor; r < this.remaining.size; r++) {
+			final long consumed = (r == this.runCursor) ? this.runConsumed : 0;
+			this.addToSlot(this.remaining.skills[r], this.remaining.counts[r] - consumed);
+		}
+		this.clearInFlightBeans();
+		this.runCursor = this.remaining.size;
+		this.runConsumed = 0;
+		this.remainingCount = 0;
+		this.countSteps(steps);
+		return steps;
+	}
+
+	/**
+	 * Saves the state of the machine to a checkpoint file. After the header, the
+	 * file holds the slot count and the skill level in each row from the top (or
+	 * NO_BEAN_IN_YPOS) as ints; then an int that is 1 if waiting beans are still
+	 * in the source, followed by the source's slot count as an int and its seed,
+	 * bean count and range of waiting ids as longs; then the number of waiting
+	 * runs, each as an int skill level and a long count; and finally the number of
+	 * beans waiting and the bean count of each slot as longs.
+	 *
+	 * <p>The file is written next to the given one and moved over it once
+	 * complete, so a crash while saving keeps the previous checkpoint.
+	 *
+	 * @param path the file to write, replaced if it exists
+	 * @throws IOException                   if the file cannot be written
+	 * @throws UnsupportedOperationException if beans still waiting in the source
+	 *                                       do not come from a SeededBeanSource
+	 */
+	@Override
+	public void checkpoint(Path path) throws IOException {
+		final boolean inSource = this.sourceCursor < this.sourceEnd;
+		if (inSource && !(this.source instanceof SeededBeanSource)) {
+			throw new UnsupportedOperationException("Only beans waiting in a SeededBeanSource can be saved");
+		}
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Writer out = new CheckpointFile.Writer(path, CheckpointFile.Engine.SKILL)) {
+			out.putInt(slotCount);
+			for (int y = 0; y < slotCount; y++) {
+				out.putInt(this.rowSkills[this.rowIndex(y)]);
+			}
+			out.putInt(inSource ? 1 : 0);
+			if (inSource) {
+				final SeededBeanSource seeded = (SeededBeanSource) this.source;
+				out.putInt(seeded.getSlotCount());
+				out.putLong(seeded.getSourceSeed());
+				out.putLong(seeded.getBeanCount());
+				out.putLong(this.sourceCursor);
+				out.putLong(this.sourceEnd);
+			}
+			out.putInt(this.remaining.size - this.runCursor);
+			for (int r = this.runCursor; r < this.remaining.size; r++) {
+				out.putInt(this.remaining.skills[r]);
+				out.putLong(this.remaining.counts[r] - ((r == this.runCursor) ? this.runConsumed : 0));
+			}
+			out.putLong(this.remainingCount);
+			this.writeSlots(out);
+			out.commit();
+		}
+	}
+
+	/**
+	 * Replaces the state of the machine with one saved by checkpoint(). The
+	 * machine carries on exactly as the saved one would have.
+	 *
+	 * @param path the file to read
+	 * @throws IOException if the file cannot be read or does not hold the valid
+	 *                     state of a skill-mode machine with this many slots
+	 */
+	@Override
+	public void restore(Path path) throws IOException {
+		final int slotCount = this.getSlotCount();
+		try (CheckpointFile.Reader in = new CheckpointFile.Reader(path, CheckpointFile.Engine.SKILL)) {
+			this.readSlotCount(in, path);
+			final int[] skills = new int[slotCount];
+			in.getInts(skills, 0, slotCount);
+			int inFlight = 0;
+			for (int y = 0; y < slotCount; y++) {
+				if (skills[y] != NO_BEAN_IN_YPOS) {
+					if (skills[y] < 0 || skills[y] >= slotCount) {
+						throw new IOException(path + " holds an invalid skill level in row " + y + ": " + skills[y]);
+					}
+					inFlight++;
+				}
+			}
+			final int inSource = in.getInt();
+			if (inSource != 0 && inSource != 1) {
+				throw new IOException(path + " holds an invalid source flag");
+			}
+			BeanSource savedSource = null;
+			long cursor = 0;
+			long end = 0;
+			if (inSource != 0) {
+				final int sourceSlotCount = in.getInt();
+				final long seed = in.getLong();
+				final long sourceBeanCount = in.getLong();
+				cursor = in.getLong();
+				end = in.getLong();
+				if (sourceSlotCount < 0 || sourceBeanCount < 0 || cursor < 0 || cursor > end || end > sourceBeanCount) {
+					throw new IOException(path + " holds an invalid source");
+				}
+				savedSource = new SeededBeanSource(sourceSlotCount, false, seed, sourceBeanCount);
+			}
+			final int runCount = in.getInt();
+			if (runCount < 0) {
+				throw new IOException(path + " holds an invalid number of runs: " + runCount);
+			}
+			final Runs runs = new Runs();
+			long waiting = end - cursor;
+			for (int r = 0; r < runCount; r++) {
+				final int skill = in.getInt();
+				final long count = in.getLong();
+				if (skill < 0 || skill >= slotCount || count < 0 || count > Long.MAX_VALUE - waiting) {
+					throw new IOException(path + " holds an invalid run of " + count + " beans at " + skill);
+				}
+				runs.add(skill, count);
+				waiting += count;
+			}
+			final long savedRemainingCount = in.getLong();
+			if (savedRemainingCount != waiting) {
+				throw new IOException(path + " holds invalid bean counts");
+			}
+			final long[] counts = this.readSlots(in, path);
+
+			// Everything is read; now replace the state of the machine
+			System.arraycopy(skills, 0, this.rowSkills, 0, slotCount);
+			this.topRow = 0;
+			this.inFlightCount = inFlight;
+			this.source = savedSource;
+			this.sourceCursor = cursor;
+			this.sourceEnd = end;
+			this.repeatRuns = runs;
+			this.remaining = runs;
+			this.runCursor = 0;
+			this.runConsumed = 0;
+			this.remainingCount = savedRemainingCount;
+			this.restoreSlots(counts);
+			this.inFlightChanged();
+		}
+	}
+}
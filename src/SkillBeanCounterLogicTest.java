@@ -0,0 +1,195 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Test;
+
+/**
+ * Checks that SkillBeanCounterLogic behaves exactly like BeanCounterLogicImpl
+ * on skill-mode beans, step by step and in bulk.
+ */
+
+public class SkillBeanCounterLogicTest {
+	private static final int[] SLOT_COUNTS = {1, 2, 5, 10};
+	private static final int BEAN_COUNT = 25;
+
+	/**
+	 * Creates skill-mode beans from a fixed seed.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 * @return the beans
+	 */
+	private static Bean[] createBeans(int slotCount) {
+		Random rand = new Random(7);
+		Bean[] beans = new Bean[BEAN_COUNT];
+		for (int i = 0; i < BEAN_COUNT; i++) {
+			beans[i] = new BeanImpl(slotCount, false, rand);
+		}
+		return beans;
+	}
+
+	/**
+	 * Test case for step-by-step equivalence.
+	 * Preconditions: None.
+	 * Execution steps: Drive both engines through reset, a few steps, repeat in mid-flight,
+	 *                  a full run, upperHalf, repeat, a full run, lowerHalf and reset.
+	 * Invariants: After every call, in-flight positions, remaining count and slot
+	 *             counts of both engines are identical.
+	 */
+	@Test
+	public void testSameStepsAsImpl() {
+		for (int slotCount : SLOT_COUNTS) {
+			Bean[] beans = createBeans(slotCount);
+			AbstractBeanCounterLogic expected = new BeanCounterLogicImpl(slotCount);
+			AbstractBeanCounterLogic actual = new SkillBeanCounterLogic(slotCount);
+			for (int round = 0; round < 5; round++) {
+				expected.reset(beans);
+				actual.reset(beans);
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				for (int k = 0; k < 3 * round; k++) {
+					assertEquals(expected.advanceStep(), actual.advanceStep());
+				}
+				expected.repeat();
+				actual.repeat();
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				boolean more = true;
+				while (more) {
+					more = expected.advanceStep();
+					assertEquals(more, actual.advanceStep());
+					assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				}
+				if (round % 2 == 0) {
+					expected.upperHalf();
+					actual.upperHalf();
+				} else {
+					expected.lowerHalf();
+					actual.lowerHalf();
+				}
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				assertEquals(expected.getAverageSlotBeanCount(), actual.getAverageSlotBeanCount(), 1e-9);
+				expected.repeat();
+				actual.repeat();
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+			}
+		}
+	}
+
+	/**
+	 * Test case for long runToCompletion().
+	 * Preconditions: None.
+	 * Execution steps: Take a few steps on both engines, then run both to completion.
+	 * Invariants: The skill engine reports the same number of steps and the same slot counts.
+	 */
+	@Test
+	public void testRunToCompletion() {
+		for (int slotCount : SLOT_COUNTS) {
+			Bean[] beans = createBeans(slotCount);
+			for (int initialSteps = 0; initialSteps < BEAN_COUNT + slotCount + 2; initialSteps += 4) {
+				AbstractBeanCounterLogic expected = new BeanCounterLogicImpl(slotCount);
+				AbstractBeanCounterLogic actual = new SkillBeanCounterLogic(slotCount);
+				expected.reset(beans);
+				actual.reset(beans);
+				assertEquals(expected.advanceSteps(initialSteps), actual.advanceSteps(initialSteps));
+				long steps = 0;
+				while (expected.advanceStep()) {
+					steps++;
+				}
+				assertEquals(steps, actual.runToCompletion());
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+			}
+		}
+	}
+
+	/**
+	 * Test case for void reset(Bean[] beans) with a modified array.
+	 * Preconditions: None.
+	 * Execution steps: Run both engines on an array of beans, replace some of its beans with
+	 *                  beans of other skill levels, and reset both engines with the same array.
+	 * Invariants: The skill engine drops the beans the array holds now, step by step and in
+	 *             its slot counts, like BeanCounterLogicImpl.
+	 */
+	@Test
+	public void testResetRereadsModifiedArray() {
+		for (int slotCount : SLOT_COUNTS) {
+			Bean[] beans = createBeans(slotCount);
+			Random rand = new Random(11);
+			AbstractBeanCounterLogic expected = new BeanCounterLogicImpl(slotCount);
+			AbstractBeanCounterLogic actual = new SkillBeanCounterLogic(slotCount);
+			for (int round = 0; round < 3; round++) {
+				expected.reset(beans);
+				actual.reset(beans);
+				boolean more = true;
+				while (more) {
+					assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+					more = expected.advanceStep();
+					assertEquals(more, actual.advanceStep());
+				}
+				assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+				for (int i = round; i < BEAN_COUNT; i += 3) {
+					beans[i] = new BeanImpl(slotCount, false, rand);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Test case for reset(Bean[] beans) with luck-mode beans.
+	 * Preconditions: None.
+	 * Execution steps: Call reset with a luck-mode bean.
+	 * Invariants: The engine refuses the bean.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsLuckBeans() {
+		new SkillBeanCounterLogic(5).reset(new Bean[] {new BeanImpl(5, true, new Random())});
+	}
+
+	/**
+	 * Test case for slot counts after a bulk run.
+	 * Preconditions: None.
+	 * Execution steps: Run a skill machine to completion.
+	 * Invariants: Each bean is in the slot given by its skill level.
+	 */
+	@Test
+	public void testSlotsFollowSkillLevels() {
+		Bean[] beans = createBeans(10);
+		int[] expected = new int[10];
+		for (Bean bean : beans) {
+			expected[Math.max(0, Math.min(((BeanImpl) bean).getSkillLevel(), 9))]++;
+		}
+		AbstractBeanCounterLogic logic = new SkillBeanCounterLogic(10);
+		logic.reset(beans);
+		logic.runToCompletion();
+		int[] actual = new int[10];
+		for (int i = 0; i < 10; i++) {
+			actual[i] = logic.getSlotBeanCount(i);
+		}
+		assertArrayEquals(expected, actual);
+	}
+
+	/**
+	 * Test case for long runToCompletion(ForkJoinPool pool).
+	 * Preconditions: None.
+	 * Execution steps: Run machines on the same seeded source on this thread and on a pool
+	 *                  of 4 threads, with enough beans to be split into several tasks, after
+	 *                  a few steps.
+	 * Invariants: Both report the same number of steps and the same slot counts.
+	 */
+	@Test
+	public void testParallelRunMatchesSequential() {
+		final long beanCount = 3_000_000;
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			SkillBeanCounterLogic expected = new SkillBeanCounterLogic(20);
+			SkillBeanCounterLogic actual = new SkillBeanCounterLogic(20);
+			expected.reset(new SeededBeanSource(20, false, 9, beanCount));
+			actual.reset(new SeededBeanSource(20, false, 9, beanCount));
+			assertEquals(expected.advanceSteps(7), actual.advanceSteps(7));
+			assertEquals(expected.runToCompletion(), actual.runToCompletion(pool));
+			assertEquals(MachineStates.getState(expected), MachineStates.getState(actual));
+			assertEquals(beanCount, actual.getInSlotBeanCount());
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
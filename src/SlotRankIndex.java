@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+/**
+ * SlotRankIndex: A Fenwick tree (binary indexed tree) over the bean counts of
+ * the slots of a machine. Order the beans in the slots by slot number; the
+ * rank of a bean is its position in that order, starting from 0. The index
+ * answers how many beans lie below a slot and which slot holds the bean of a
+ * given rank, both in O(log slotCount), and takes count changes in
+ * O(log slotCount).
+ *
+ * <p>Node k of the tree (1-based) holds the total count of the slots k - (k &amp;
+ * -k) to k - 1.
+ */
+
+public class SlotRankIndex {
+	private final long[] tree;
+	private final int highestStep; // highest power of two not above the slot count
+	private long total;
+
+	/**
+	 * Constructor - creates an index over empty slots.
+	 *
+	 * @param slotCount the number of slots in the machine
+	 */
+	public SlotRankIndex(int slotCount) {
+		this.tree = new long[slotCount + 1];
+		this.highestStep = Integer.highestOneBit(slotCount);
+	}
+
+	/**
+	 * Changes the bean count of a slot.
+	 *
+	 * @param slot  slot number
+	 * @param delta number of beans added (negative if removed)
+	 */
+	public void add(int slot, long delta) {
+		for (int k = slot + 1; k < this.tree.length; k += k & -k) {
+			this.tree[k] += delta;
+		}
+		this.total += delta;
+	}
+
+	/**
+	 * Empties all slots.
+	 */
+	public void clear() {
+		Arrays.fill(this.tree, 0);
+		this.total = 0;
+	}
+
+	/**
+	 * Returns the number of beans in all slots.
+	 *
+	 * @return number of beans
+	 */
+	public long getTotal() {
+		return this.total;
+	}
+
+	/**
+	 * Returns the number of beans in the slots below the given one, which is also
+	 * the rank of the first bean in that slot.
+	 *
+	 * @param slot slot number
+	 * @return number of beans in slots 0 to slot - 1
+	 */
+	public long countBelow(int slot) {
+		long count = 0;
+		for (int k = slot; k > 0; k -= k & -k) {
+			count += this.tree[k];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the slot that holds the bean of the given rank.
+	 *
+	 * @param rank the rank, from 0 to getTotal() - 1
+	 * @return slot number
+	 */
+	public int findSlot(long rank) {
+		int pos = 0;
+		for (int step = this.highestStep; step > 0; step >>= 1) {
+			final int next = pos + step;
+			if (next < this.tree.length && this.tree[next] <= rank) {
+				pos = next;
+				rank -= this.tree[next];
+			}
+		}
+		return pos;
+	}
+}
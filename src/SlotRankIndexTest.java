@@ -0,0 +1,56 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the prefix counts and rank lookups of SlotRankIndex against a direct
+ * walk over the per-slot bean counts.
+ */
+
+public class SlotRankIndexTest {
+	private static final int[] SLOT_COUNTS = {1, 2, 7, 16, 33};
+
+	/**
+	 * Checks every query of an index against the counts it was built from.
+	 *
+	 * @param index  the index
+	 * @param counts the bean count of each slot
+	 */
+	private static void assertMatches(SlotRankIndex index, long[] counts) {
+		long below = 0;
+		for (int i = 0; i < counts.length; i++) {
+			assertEquals(below, index.countBelow(i));
+			for (long rank = below; rank < below + counts[i]; rank++) {
+				assertEquals(i, index.findSlot(rank));
+			}
+			below += counts[i];
+		}
+		assertEquals(below, index.getTotal());
+	}
+
+	/**
+	 * Test case for long countBelow(int slot) and int findSlot(long rank).
+	 * Preconditions: None.
+	 * Execution steps: Add and remove random numbers of beans in random slots, leaving some
+	 *                  slots empty.
+	 * Invariants: After every change, prefix counts and rank lookups match the histogram.
+	 */
+	@Test
+	public void testQueriesMatchHistogram() {
+		Random rand = new Random(1);
+		for (int slotCount : SLOT_COUNTS) {
+			SlotRankIndex index = new SlotRankIndex(slotCount);
+			long[] counts = new long[slotCount];
+			for (int k = 0; k < 50; k++) {
+				int slot = rand.nextInt(slotCount);
+				long delta = (rand.nextInt(3) == 0) ? -counts[slot] : rand.nextInt(5);
+				index.add(slot, delta);
+				counts[slot] += delta;
+				assertMatches(index, counts);
+			}
+			index.clear();
+			assertMatches(index, new long[slotCount]);
+		}
+	}
+}
@@ -0,0 +1,276 @@
+import java.math.BigInteger;
+
+/**
+ * SlotStatistics: Running statistics over the slot numbers of the beans that
+ * have landed in the slots of a machine. Each landed bean contributes its slot
+ * number x to the power sums n, Sx, Sx^2, Sx^3 and Sx^4, which are enough to
+ * answer the mean, variance, skewness and kurtosis queries in O(1).
+ *
+ * <p>Landings are added one at a time or a slot at a time. Beans taken out of
+ * a slot are subtracted with remove(); operations that empty every slot
+ * (repeat, reset) should call clear().
+ *
+ * <p>The power sums are kept exactly, as 126-bit integers in pairs of longs,
+ * so removing beans takes back exactly what adding them put in, and any number
+ * of halves and repeats leaves no drift behind. The central moments are worked
+ * out from them exactly as well, with BigInteger, before the one division that
+ * turns them into a double: on a board with thousands of slots x^4 * n is far
+ * past 2^53, and the usual E[x^2] - E[x]^2 on doubles would cancel away most of
+ * the digits. The mean is a single division and needs none of this.
+ *
+ * <p>The count is a long and throws an ArithmeticException rather than wrap.
+ * The power sums wrap only past 2^126.
+ */
+
+public class SlotStatistics {
+	private static final long LOW_32 = 0xFFFFFFFFL;
+	private static final int MAX_FAST_SLOT = 55108; // largest x with x^4 < 2^63
+
+	private long count; // n
+	private final long[] sumHigh = new long[4]; // Sx, Sx^2, Sx^3 and Sx^4 shifted right by 63 bits
+	private final long[] sumLow = new long[4]; // low 63 bits of the same sums
+
+	/**
+	 * Creates statistics with no beans.
+	 */
+	public SlotStatistics() {
+	}
+
+	/**
+	 * Creates a copy of other statistics.
+	 *
+	 * @param other the statistics to copy
+	 */
+	public SlotStatistics(SlotStatistics other) {
+		this.count = other.count;
+		System.arraycopy(other.sumHigh, 0, this.sumHigh, 0, this.sumHigh.length);
+		System.arraycopy(other.sumLow, 0, this.sumLow, 0, this.sumLow.length);
+	}
+
+	/**
+	 * Adds a 128-bit number to a power sum.
+	 *
+	 * @param k    the power minus 1
+	 * @param high high 64 bits of the number
+	 * @param low  low 64 bits of the number
+	 */
+	private void addToSum(int k, long high, long low) {
+		// The sums keep 63 bits in the low word, so that a carry shows as its sign
+		final long sum = this.sumLow[k] + (low & Long.MAX_VALUE);
+		final long carry = sum >>> 63;
+		this.sumLow[k] = sum & Long.MAX_VALUE;
+		this.sumHigh[k] += 2 * high + (low >>> 63) + carry;
+	}
+
+	/**
+	 * Adds a non-negative number below 2^63 to a power sum.
+	 *
+	 * @param k     the power minus 1
+	 * @param value the number
+	 */
+	private void addToSum(int k, long value) {
+		final long sum = this.sumLow[k] + value;
+		if (sum < 0) {
+			this.sumLow[k] = sum & Long.MAX_VALUE;
+			this.sumHigh[k]++;
+		} else {
+			this.sumLow[k] = sum;
+		}
+	}
+
+	/**
+	 * Adds one bean that landed in the given slot.
+	 *
+	 * @param slot slot number of the bean
+	 */
+	public void add(int slot) {
+		if (slot < 0 || slot > MAX_FAST_SLOT) {
+			this.addBeans(slot, 1);
+			return;
+		}
+		final long x = slot;
+		final long x2 = x * x;
+		this.count = Math.addExact(this.count, 1);
+		this.addToSum(0, x);
+		this.addToSum(1, x2);
+		this.addToSum(2, x2 * x);
+		this.addToSum(3, x2 * x2);
+	}
+
+	/**
+	 * Adds a number of beans that landed in the same slot.
+	 *
+	 * @param slot  slot number of the beans
+	 * @param beans number of beans
+	 */
+	public void add(int slot, long beans) {
+		if (beans == 1) {
+			this.add(slot);
+		} else {
+			this.addBeans(slot, beans);
+		}
+	}
+
+	/**
+	 * Adds a number of beans to the same slot, multiplying out the powers in 128
+	 * bits.
+	 *
+	 * @param slot  slot number of the beans
+	 * @param beans number of beans, negative to take them away
+	 */
+	private void addBeans(int slot, long beans) {
+		this.count = Math.addExact(this.count, beans);
+		// beans * x^k for k = 1 to 4, as 128-bit two's complement numbers
+		final long x = Math.abs((long) slot);
+		final boolean negate = slot < 0;
+		long high = beans >> 63;
+		long low = beans;
+		for (int k = 0; k < 4; k++) {
+			final long low0 = (low & LOW_32) * x;
+			final long low1 = (low >>> 32) * x;
+			final long middle = (low0 >>> 32) + (low1 & LOW_32);
+			high = high * x + (low1 >>> 32) + (middle >>> 32);
+			low = low0 + (low1 << 32);
+			if (negate && k % 2 == 0) {
+				this.addToSum(k, ~high + ((low == 0) ? 1 : 0), -low);
+			} else {
+				this.addToSum(k, high, low);
+			}
+		}
+	}
+
+	/**
+	 * Removes a number of beans from the same slot.
+	 *
+	 * @param slot  slot number of the beans
+	 * @param beans number of beans
+	 */
+	public void remove(int slot, long beans) {
+		this.addBeans(slot, Math.negateExact(beans));
+	}
+
+	/**
+	 * Forgets all beans.
+	 */
+	public void clear() {
+		this.count = 0;
+		for (int k = 0; k < 4; k++) {
+			this.sumHigh[k] = 0;
+			this.sumLow[k] = 0;
+		}
+	}
+
+	/**
+	 * Returns the number of beans added so far.
+	 *
+	 * @return number of beans
+	 */
+	public long getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Returns a power sum as a BigInteger.
+	 *
+	 * @param k the power minus 1
+	 * @return the sum
+	 */
+	private BigInteger getSum(int k) {
+		return BigInteger.valueOf(this.sumHigh[k]).shiftLeft(63).add(BigInteger.valueOf(this.sumLow[k]));
+	}
+
+	/**
+	 * Returns the average slot number of the beans, or 0 if there are none.
+	 *
+	 * @return average slot number
+	 */
+	public double getMean() {
+		if (this.count == 0) {
+			return 0.0;
+		}
+		return (this.sumHigh[0] * 0x1.0p63 + this.sumLow[0]) / this.count;
+	}
+
+	/**
+	 * Returns n^2 times the variance of the slot numbers, n Sx^2 - (Sx)^2.
+	 *
+	 * @param n  the count
+	 * @param s1 the sum Sx
+	 * @return the scaled variance
+	 */
+	private BigInteger getScaledVariance(BigInteger n, BigInteger s1) {
+		return n.multiply(this.getSum(1)).subtract(s1.multiply(s1));
+	}
+
+	/**
+	 * Returns the population variance of the slot numbers, or 0 if there are no
+	 * beans.
+	 *
+	 * @return variance of the slot numbers
+	 */
+	public double getVariance() {
+		if (this.count == 0) {
+			return 0.0;
+		}
+		final double n = this.count;
+		return this.getScaledVariance(BigInteger.valueOf(this.count), this.getSum(0)).doubleValue() / (n * n);
+	}
+
+	/**
+	 * Returns the population standard deviation of the slot numbers.
+	 *
+	 * @return standard deviation of the slot numbers
+	 */
+	public double getStandardDeviation() {
+		return Math.sqrt(this.getVariance());
+	}
+
+	/**
+	 * Returns the skewness of the slot numbers, or 0 if all beans are in the same
+	 * slot.
+	 *
+	 * @return skewness of the slot numbers
+	 */
+	public double getSkewness() {
+		if (this.count == 0) {
+			return 0.0;
+		}
+		final BigInteger n = BigInteger.valueOf(this.count);
+		final BigInteger s1 = this.getSum(0);
+		final double variance = this.getScaledVariance(n, s1).doubleValue();
+		if (variance == 0.0) {
+			return 0.0;
+		}
+		// n^3 times the third central moment: n^2 Sx^3 - 3 n Sx Sx^2 + 2 (Sx)^3
+		final BigInteger central3 = n.multiply(n).multiply(this.getSum(2))
+				.subtract(BigInteger.valueOf(3).multiply(n).multiply(s1).multiply(this.getSum(1)))
+				.add(BigInteger.valueOf(2).multiply(s1).multiply(s1).multiply(s1));
+		return central3.doubleValue() / (variance * Math.sqrt(variance));
+	}
+
+	/**
+	 * Returns the excess kurtosis of the slot numbers (0 for a normal
+	 * distribution), or 0 if all beans are in the same slot.
+	 *
+	 * @return excess kurtosis of the slot numbers
+	 */
+	public double getKurtosis() {
+		if (this.count == 0) {
+			return 0.0;
+		}
+		final BigInteger n = BigInteger.valueOf(this.count);
+		final BigInteger s1 = this.getSum(0);
+		final double variance = this.getScaledVariance(n, s1).doubleValue();
+		if (variance == 0.0) {
+			return 0.0;
+		}
+		// n^4 times the fourth central moment:
+		// n^3 Sx^4 - 4 n^2 Sx Sx^3 + 6 n (Sx)^2 Sx^2 - 3 (Sx)^4
+		final BigInteger s1Squared = s1.multiply(s1);
+		final BigInteger central4 = n.multiply(n).multiply(n).multiply(this.getSum(3))
+				.subtract(BigInteger.valueOf(4).multiply(n).multiply(n).multiply(s1).multiply(this.getSum(2)))
+				.add(BigInteger.valueOf(6).multiply(n).multiply(s1Squared).multiply(this.getSum(1)))
+				.subtract(BigInteger.valueOf(3).multiply(s1Squared).multiply(s1Squared));
+		return central4.doubleValue() / (variance * variance) - 3.0;
+	}
+}
@@ -0,0 +1,180 @@
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+import org.junit.Test;
+
+/**
+ * Checks the running statistics kept by SlotStatistics against a direct
+ * computation over the per-slot bean counts.
+ */
+
+public class SlotStatisticsTest {
+	private static final double EPSILON = 1e-9;
+
+	/**
+	 * Test case for the moment getters.
+	 * Preconditions: None.
+	 * Execution steps: Add the beans of a small histogram one at a time and in bulk.
+	 * Invariants: Both ways give the mean, variance, skewness and excess kurtosis
+	 *             of the histogram.
+	 */
+	@Test
+	public void testMomentsMatchHistogram() {
+		int[] counts = {1, 4, 0, 7, 2};
+		SlotStatistics single = new SlotStatistics();
+		SlotStatistics bulk = new SlotStatistics();
+		double n = 0;
+		double mean = 0;
+		for (int i = 0; i < counts.length; i++) {
+			for (int k = 0; k < counts[i]; k++) {
+				single.add(i);
+			}
+			bulk.add(i, counts[i]);
+			n += counts[i];
+			mean += i * counts[i];
+		}
+		mean /= n;
+		double m2 = 0;
+		double m3 = 0;
+		double m4 = 0;
+		for (int i = 0; i < counts.length; i++) {
+			double d = i - mean;
+			m2 += counts[i] * d * d / n;
+			m3 += counts[i] * d * d * d / n;
+			m4 += counts[i] * d * d * d * d / n;
+		}
+		for (SlotStatistics stats : new SlotStatistics[] {single, bulk}) {
+			assertEquals(14, stats.getCount());
+			assertEquals(mean, stats.getMean(), EPSILON);
+			assertEquals(m2, stats.getVariance(), EPSILON);
+			assertEquals(Math.sqrt(m2), stats.getStandardDeviation(), EPSILON);
+			assertEquals(m3 / Math.pow(m2, 1.5), stats.getSkewness(), EPSILON);
+			assertEquals(m4 / (m2 * m2) - 3.0, stats.getKurtosis(), EPSILON);
+		}
+	}
+
+	/**
+	 * Test case for degenerate histograms.
+	 * Preconditions: None.
+	 * Execution steps: Query an empty statistics object, then one with all beans in one slot.
+	 * Invariants: All moments are 0 except the mean, which is the slot number.
+	 */
+	@Test
+	public void testDegenerateHistograms() {
+		SlotStatistics stats = new SlotStatistics();
+		assertEquals(0.0, stats.getMean(), EPSILON);
+		assertEquals(0.0, stats.getVariance(), EPSILON);
+		stats.add(3, 5);
+		assertEquals(3.0, stats.getMean(), EPSILON);
+		assertEquals(0.0, stats.getVariance(), EPSILON);
+		assertEquals(0.0, stats.getSkewness(), EPSILON);
+		assertEquals(0.0, stats.getKurtosis(), EPSILON);
+		stats.clear();
+		assertEquals(0, stats.getCount());
+	}
+
+	/**
+	 * Computes the mean and the central moments of a histogram in two passes.
+	 *
+	 * @param counts bean count of each slot
+	 * @return mean, variance, skewness and excess kurtosis
+	 */
+	private static double[] twoPassMoments(long[] counts) {
+		double n = 0;
+		double mean = 0;
+		for (int i = 0; i < counts.length; i++) {
+			n += counts[i];
+			mean += (double) i * counts[i];
+		}
+		mean /= n;
+		double m2 = 0;
+		double m3 = 0;
+		double m4 = 0;
+		for (int i = 0; i < counts.length; i++) {
+			final double d = i - mean;
+			m2 += counts[i] * d * d / n;
+			m3 += counts[i] * d * d * d / n;
+			m4 += counts[i] * d * d * d * d / n;
+		}
+		return new double[] {mean, m2, m3 / Math.pow(m2, 1.5), m4 / (m2 * m2) - 3.0};
+	}
+
+	/**
+	 * Test case for the moment getters on a large board after many removals.
+	 * Preconditions: None.
+	 * Execution steps: Fill the top fifth of a board of 5000 slots with millions of beans
+	 *                  per slot, then take away half of the beans from the bottom or the top
+	 *                  and pour new beans back in, many times over.
+	 * Invariants: After every round the moments agree with a two-pass computation over the
+	 *             histogram, though x^4 * n is far beyond 2^53.
+	 */
+	@Test
+	public void testLargeBoardAfterHalves() {
+		final int slotCount = 5000;
+		Random rand = new Random(3);
+		long[] counts = new long[slotCount];
+		SlotStatistics stats = new SlotStatistics();
+		for (int i = 4000; i < slotCount; i++) {
+			counts[i] = 1_000_000 + rand.nextInt(1_000_000);
+			stats.add(i, counts[i]);
+		}
+		for (int round = 0; round < 40; round++) {
+			long total = stats.getCount();
+			long toRemove = total / 2;
+			for (int k = 0; k < slotCount && toRemove > 0; k++) {
+				final int i = (round % 2 == 0) ? k : slotCount - 1 - k;
+				final long removed = Math.min(toRemove, counts[i]);
+				counts[i] -= removed;
+				stats.remove(i, removed);
+				toRemove -= removed;
+			}
+			for (int b = 0; b < 1000; b++) {
+				final int i = 3000 + rand.nextInt(2000);
+				counts[i]++;
+				stats.add(i);
+			}
+			final double[] expected = twoPassMoments(counts);
+			assertEquals(expected[0], stats.getMean(), EPSILON * expected[0]);
+			assertEquals(expected[1], stats.getVariance(), EPSILON * expected[1]);
+			assertEquals(expected[2], stats.getSkewness(), EPSILON * Math.max(1.0, Math.abs(expected[2])));
+			assertEquals(expected[3], stats.getKurtosis(), EPSILON * Math.max(1.0, Math.abs(expected[3])));
+		}
+	}
+
+	/**
+	 * Test case for void add(int slot) and void remove(int slot, long beans) on far slots.
+	 * Preconditions: None.
+	 * Execution steps: Add beans to slots whose fourth power does not fit in a long, one at
+	 *                  a time and in bulk, and take some of them away again.
+	 * Invariants: Both ways give the same moments, and taking beans away restores exactly
+	 *             the moments from before they were added.
+	 */
+	@Test
+	public void testFarSlots() {
+		SlotStatistics single = new SlotStatistics();
+		SlotStatistics bulk = new SlotStatistics();
+		single.add(3);
+		bulk.add(3);
+		final double variance = single.getVariance();
+		final double skewness = single.getSkewness();
+		for (int slot : new int[] {70000, 2_000_000_000}) {
+			for (int k = 0; k < 3; k++) {
+				single.add(slot);
+			}
+			bulk.add(slot, 3);
+		}
+		assertEquals(single.getMean(), bulk.getMean(), 0.0);
+		assertEquals(single.getVariance(), bulk.getVariance(), 0.0);
+		assertEquals(single.getSkewness(), bulk.getSkewness(), 0.0);
+		assertEquals(single.getKurtosis(), bulk.getKurtosis(), 0.0);
+		assertEquals((3.0 + 3 * 70000.0 + 3 * 2e9) / 7, bulk.getMean(), EPSILON * bulk.getMean());
+		bulk.remove(70000, 3);
+		bulk.remove(2_000_000_000, 3);
+		bulk.add(5);
+		bulk.remove(5, 1);
+		assertEquals(1, bulk.getCount());
+		assertEquals(3.0, bulk.getMean(), 0.0);
+		assertEquals(variance, bulk.getVariance(), 0.0);
+		assertEquals(skewness, bulk.getSkewness(), 0.0);
+	}
+}
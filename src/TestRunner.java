@@ -46,6 +46,25 @@ public class TestRunner {
 
 		// ADD ANY CLASSES YOU WISH TO TEST HERE
 		classesToTest.add(BeanCounterLogicTest.class);
+		classesToTest.add(SlotStatisticsTest.class);
+		classesToTest.add(SlotRankIndexTest.class);
+		classesToTest.add(RandomSourceTest.class);
+		classesToTest.add(GoodnessOfFitTest.class);
+		classesToTest.add(AliasTableTest.class);
+		if (Config.getLogicType() == LogicType.IMPL && Config.getTestType() == TestType.JUNIT) {
+			// Tests for features that only BeanCounterLogicImpl has. They use files,
+			// memory mappings, fork/join pools and JMX, which JPF cannot model.
+			classesToTest.add(BeanCounterLogicImplTest.class);
+			classesToTest.add(SkillBeanCounterLogicTest.class);
+			classesToTest.add(LuckBeanCounterLogicTest.class);
+			classesToTest.add(BeanSourceTest.class);
+			classesToTest.add(CheckpointTest.class);
+			classesToTest.add(DecisionLogTest.class);
+			classesToTest.add(BoardWriterTest.class);
+			classesToTest.add(EngineMetricsTest.class);
+			classesToTest.add(BeanCounterSweepTest.class);
+			classesToTest.add(BiasedBeanCounterLogicTest.class);
+		}
 
 		// For all test classes added, loop through and use JUnit
 		// to run them.
@@ -0,0 +1,195 @@
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.SplittableRandom;
+
+/**
+ * XoroshiroRandomSource: A RandomSource built on the xoroshiro128++ generator
+ * (Blackman and Vigna): 128 bits of state, a period of 2^128 - 1, and a
+ * handful of adds, shifts and rotates per 64-bit output, with no locking. The
+ * state is seeded from a 64-bit seed through SplitMix64, as the authors
+ * recommend.
+ *
+ * <p>nextBoolean() hands out the bits of one output word one at a time, so a
+ * luck-mode bean costs one generator step per 64 pegs. Normal deviates come
+ * in pairs from the Box-Muller transform; nextGaussian() keeps the second of
+ * each pair for the next call.
+ *
+ * <p>The whole state can be written to a checkpoint file and read back field
+ * by field, so that a saved run carries on with the same values.
+ */
+
+public final class XoroshiroRandomSource implements RandomSource, Serializable {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Golden-ratio increment of the SplitMix64 generator.
+	 */
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private long s0;
+	private long s1;
+	private long bits; // bits of the last word not handed out by nextBoolean() yet
+	private int bitCount; // number of those bits
+	private double spareGaussian;
+	private boolean hasSpareGaussian;
+
+	/**
+	 * Constructor - creates a source with a random seed.
+	 */
+	public XoroshiroRandomSource() {
+		this(new SplittableRandom().nextLong());
+	}
+
+	/**
+	 * Constructor - creates a source whose values follow from the given seed.
+	 *
+	 * @param seed the seed
+	 */
+	public XoroshiroRandomSource(long seed) {
+		this.s0 = CounterRandom.mix64(seed + GOLDEN_GAMMA);
+		this.s1 = CounterRandom.mix64(seed + 2 * GOLDEN_GAMMA);
+		if ((this.s0 | this.s1) == 0) {
+			// The all-zero state only ever produces zeros
+			this.s1 = GOLDEN_GAMMA;
+		}
+	}
+
+	/**
+	 * Returns 64 random bits.
+	 *
+	 * @return the random bits
+	 */
+	public long nextLong() {
+		final long a = this.s0;
+		long b = this.s1;
+		final long result = Long.rotateLeft(a + b, 17) + a;
+		b ^= a;
+		this.s0 = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+		this.s1 = Long.rotateLeft(b, 28);
+		return result;
+	}
+
+	/**
+	 * Returns a random bit, taking 64 bits from the generator every 64 calls.
+	 *
+	 * @return true or false with equal probability
+	 */
+	@Override
+	public boolean nextBoolean() {
+		if (this.bitCount == 0) {
+			this.bits = this.nextLong();
+			this.bitCount = 64;
+		}
+		final boolean bit = (this.bits & 1) != 0;
+		this.bits >>>= 1;
+		this.bitCount--;
+		return bit;
+	}
+
+	/**
+	 * Returns a normal deviate with mean 0 and standard deviation 1.
+	 *
+	 * @return the random double
+	 */
+	@Override
+	public double nextGaussian() {
+		if (this.hasSpareGaussian) {
+			this.hasSpareGaussian = false;
+			return this.spareGaussian;
+		}
+		// 1 - u lies in (0, 1], so the logarithm is finite
+		final double r = Math.sqrt(-2.0 * Math.log(1.0 - this.nextDouble()));
+		final double theta = 2.0 * Math.PI * this.nextDouble();
+		this.spareGaussian = r * Math.sin(theta);
+		this.hasSpareGaussian = true;
+		return r * Math.cos(theta);
+	}
+
+	/**
+	 * Fills part of an array with random bits, keeping the generator state in
+	 * locals for the whole run.
+	 *
+	 * @param words  where to put the bits
+	 * @param offset index of the first word to fill
+	 * @param count  number of words
+	 */
+	@Override
+	public void nextLongs(long[] words, int offset, int count) {
+		long a = this.s0;
+		long b = this.s1;
+		for (int k = offset; k < offset + count; k++) {
+			words[k] = Long.rotateLeft(a + b, 17) + a;
+			b ^= a;
+			a = Long.rotateLeft(a, 49) ^ b ^ (b << 21);
+			b = Long.rotateLeft(b, 28);
+		}
+		this.s0 = a;
+		this.s1 = b;
+	}
+
+	/**
+	 * Fills part of an array with normal deviates, the same ones count calls to
+	 * nextGaussian() would return, a Box-Muller pair at a time.
+	 *
+	 * @param values where to put the deviates
+	 * @param offset index of the first value to fill
+	 * @param count  number of values
+	 */
+	@Override
+	public void nextGaussians(double[] values, int offset, int count) {
+		final int end = offset + count;
+		int k = offset;
+		if (k < end && this.hasSpareGaussian) {
+			values[k++] = this.nextGaussian();
+		}
+		for (; k + 1 < end; k += 2) {
+			final double r = Math.sqrt(-2.0 * Math.log(1.0 - this.nextDouble()));
+			final double theta = 2.0 * Math.PI * this.nextDouble();
+			values[k] = r * Math.cos(theta);
+			values[k + 1] = r * Math.sin(theta);
+		}
+		if (k < end) {
+			values[k] = this.nextGaussian();
+		}
+	}
+
+	/**
+	 * Writes the state of the generator to a checkpoint file: the two state
+	 * words, the bits not handed out by nextBoolean() yet and their number, and
+	 * the spare normal deviate and whether there is one.
+	 *
+	 * @param out the file
+	 * @throws IOException if the file cannot be written
+	 */
+	void writeState(CheckpointFile.Writer out) throws IOException {
+		out.putLong(this.s0);
+		out.putLong(this.s1);
+		out.putLong(this.bits);
+		out.putInt(this.bitCount);
+		out.putDouble(this.spareGaussian);
+		out.putInt(this.hasSpareGaussian ? 1 : 0);
+	}
+
+	/**
+	 * Reads a generator written by writeState().
+	 *
+	 * @param in the file
+	 * @return the generator, in the state it was saved in
+	 * @throws IOException if the file cannot be read or holds no valid state
+	 */
+	static XoroshiroRandomSource readState(CheckpointFile.Reader in) throws IOException {
+		final XoroshiroRandomSource rand = new XoroshiroRandomSource(0);
+		rand.s0 = in.getLong();
+		rand.s1 = in.getLong();
+		rand.bits = in.getLong();
+		rand.bitCount = in.getInt();
+		rand.spareGaussian = in.getDouble();
+		final int hasSpareGaussian = in.getInt();
+		if ((rand.s0 | rand.s1) == 0 || rand.bitCount < 0 || rand.bitCount > 64
+				|| (hasSpareGaussian != 0 && hasSpareGaussian != 1)) {
+			throw new IOException("Invalid random number generator state");
+		}
+		rand.hasSpareGaussian = hasSpareGaussian != 0;
+		return rand;
+	}
+}